@@ -42,6 +42,9 @@ import org.slf4j.LoggerFactory;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Slf4jReporter;
 import com.github.dozedoff.commonj.hash.ImagePHash;
+import com.github.dozedoff.similarImage.component.DaggerPersistenceComponent;
+import com.github.dozedoff.similarImage.component.PersistenceComponent;
+import com.github.dozedoff.similarImage.db.ImageRecord;
 import com.github.dozedoff.similarImage.handler.HashNames;
 import com.github.dozedoff.similarImage.image.ImageResizer;
 import com.github.dozedoff.similarImage.io.HashAttribute;
@@ -50,6 +53,13 @@ import com.github.dozedoff.similarImage.messaging.ArtemisSession;
 import com.github.dozedoff.similarImage.messaging.ArtemisQueue.QueueAddress;
 import com.github.dozedoff.similarImage.messaging.HasherNode;
 import com.github.dozedoff.similarImage.messaging.ResizerNode;
+import com.github.dozedoff.similarImage.module.SQLitePersistenceModule;
+import com.github.dozedoff.similarImage.thread.pipeline.ImageQueryPipeline;
+import com.github.dozedoff.similarImage.thread.pipeline.ImageQueryPipelineBuilder;
+import com.github.dozedoff.similarImage.thread.pipeline.PipelineMetrics;
+import com.github.dozedoff.similarImage.thread.pipeline.PipelineMetrics.StageMeasurement;
+import com.github.dozedoff.similarImage.thread.pipeline.SweepImagesStage;
+import com.google.common.collect.Multimap;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
@@ -70,6 +80,7 @@ public class ArgumentPasrser {
 	private static final int DEFAULT_ARTEMIS_CORE_PORT = 61616;
 	private static final String DEFAULT_IP = "127.0.0.1";
 	private static final int DEFAULT_WINDOW = 1024 * 1024;
+	private static final String DEFAULT_DATABASE = "similarImage.db";
 
 	private final List<HasherNode> hashWorkers = new LinkedList<HasherNode>();
 	private final List<ResizerNode> resizeWorkers = new LinkedList<ResizerNode>();
@@ -77,7 +88,7 @@ public class ArgumentPasrser {
 	private final MetricRegistry metrics;
 
 	private enum CommandLineOptions {
-		path, update, progress
+		path, update, progress, sort, distance, sweep, shards, database
 	};
 
 	private enum Subcommand {
@@ -115,6 +126,16 @@ public class ArgumentPasrser {
 				.help("Process all files in the given directory");
 		localSubcommand.addArgument("--" + enumToString(CommandLineOptions.progress)).action(Arguments.storeTrue())
 				.help("Check the hashing progress of the given paths");
+		localSubcommand.addArgument("--" + enumToString(CommandLineOptions.sort)).action(Arguments.storeTrue())
+				.help("Group similar images in the given paths, or all images, and show metrics for each query stage");
+		localSubcommand.addArgument("--" + enumToString(CommandLineOptions.distance)).type(Integer.class).setDefault(0)
+				.help("Hamming distance used to group images");
+		localSubcommand.addArgument("--" + enumToString(CommandLineOptions.sweep)).action(Arguments.storeTrue())
+				.help("Group images once and show the number of groups for every distance up to the hamming distance");
+		localSubcommand.addArgument("--" + enumToString(CommandLineOptions.shards)).type(Integer.class).setDefault(1)
+				.help("Number of shards to split the search index into, must be a power of 2");
+		localSubcommand.addArgument("--" + enumToString(CommandLineOptions.database)).type(String.class)
+				.setDefault(DEFAULT_DATABASE).help("Database to query for images");
 
 		int processors = Runtime.getRuntime().availableProcessors();
 		Subparser nodeSubcommand = parser.addSubparsers().addParser("node").setDefault("subcommand", Subcommand.node);
@@ -164,6 +185,60 @@ public class ArgumentPasrser {
 			walkPathsWithVisitor(paths,
 					new ProgressVisitor(metrics, new HashAttribute(HashNames.DEFAULT_DCT_HASH_2)));
 			outputProgress(metrics);
+		} else if (parsedArgs.getBoolean(enumToString(CommandLineOptions.sort))) {
+			sortCommand(parsedArgs, paths);
+		}
+	}
+
+	private void sortCommand(Namespace parsedArgs, List<Object> paths) {
+		Path database = Paths.get(parsedArgs.getString(enumToString(CommandLineOptions.database)));
+		PersistenceComponent persistence = DaggerPersistenceComponent.builder()
+				.sQLitePersistenceModule(new SQLitePersistenceModule(database)).build();
+
+		try {
+			PipelineMetrics pipelineMetrics = new PipelineMetrics(ImageQueryPipeline.class, metrics);
+			ImageQueryPipelineBuilder builder = ImageQueryPipelineBuilder
+					.newBuilder(persistence.getImageRepository(), persistence.getFilterRepository())
+					.distance(parsedArgs.getInt(enumToString(CommandLineOptions.distance)))
+					.shards(parsedArgs.getInt(enumToString(CommandLineOptions.shards))).metrics(pipelineMetrics);
+
+			if (parsedArgs.getBoolean(enumToString(CommandLineOptions.sweep))) {
+				builder.groupSweep();
+			} else {
+				builder.groupAll();
+			}
+
+			ImageQueryPipeline pipeline = builder.removeSingleImageGroups().removeDuplicateGroups().build();
+
+			if (paths.isEmpty()) {
+				outputSort(pipeline, null);
+			}
+
+			for (Object path : paths) {
+				outputSort(pipeline, Paths.get((String) path));
+			}
+		} finally {
+			persistence.getDatabase().close();
+		}
+	}
+
+	private void outputSort(ImageQueryPipeline pipeline, Path scope) {
+		Multimap<Long, ImageRecord> groups = pipeline.apply(scope);
+
+		System.out.println(String.format("%s: %d groups", scope == null ? "all images" : scope,
+				groups.keySet().size()));
+
+		for (StageMeasurement stage : pipeline.getMetrics().getLastRun()) {
+			System.out.println(String.format("  %s, %d bytes allocated", stage, stage.getAllocatedBytes()));
+		}
+
+		if (pipeline.getImageGrouper() instanceof SweepImagesStage) {
+			int maxDistance = ((SweepImagesStage) pipeline.getImageGrouper()).getHammingDistance();
+
+			for (int distance = 0; distance <= maxDistance; distance++) {
+				System.out.println(String.format("  distance %d: %d groups", distance,
+						pipeline.regroup(distance).keySet().size()));
+			}
 		}
 	}
 
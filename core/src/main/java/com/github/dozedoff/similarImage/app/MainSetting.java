@@ -31,4 +31,28 @@ public interface MainSetting {
 	 * @return if true, ignored images will be included in the results
 	 */
 	boolean includeIgnoredImages();
+
+	/**
+	 * The number of shards the hash space is split into for similarity searches. More shards reduce the hashes that
+	 * are searched for small distances.
+	 * 
+	 * @return number of shards, a power of 2
+	 */
+	int searchShards();
+
+	/**
+	 * The minimum bit balance, the smaller of the number of set and unset bits, of a hash. Records with hashes below
+	 * this are excluded from the similarity search.
+	 * 
+	 * @return minimum bit balance from 0 to 32, 0 to search all hashes
+	 */
+	int degenerateBitBalance();
+
+	/**
+	 * The maximum number of records that can share a hash. Records with hashes shared by more records are excluded
+	 * from the similarity search.
+	 * 
+	 * @return maximum number of records per hash, 0 for no limit
+	 */
+	int degenerateHashPopulation();
 }
@@ -17,6 +17,8 @@
  */
 package com.github.dozedoff.similarImage.app;
 
+import com.github.dozedoff.similarImage.duplicate.PartitionedSearchIndex;
+
 public class MainSettingValidator {
 	private MainSettingValidator() {
 	}
@@ -33,5 +35,18 @@ public class MainSettingValidator {
 		if (mainSetting.threads() < 1) {
 			throw new IllegalArgumentException("Thread number must be greater than zero");
 		}
+
+		if (!PartitionedSearchIndex.isValidShardCount(mainSetting.searchShards())) {
+			throw new IllegalArgumentException(
+					"Search shards must be a power of 2 from 1 to " + PartitionedSearchIndex.MAX_SHARDS);
+		}
+
+		if (mainSetting.degenerateBitBalance() < 0 || mainSetting.degenerateBitBalance() > Long.SIZE / 2) {
+			throw new IllegalArgumentException("Degenerate bit balance must be between 0 and " + Long.SIZE / 2);
+		}
+
+		if (mainSetting.degenerateHashPopulation() < 0) {
+			throw new IllegalArgumentException("Degenerate hash population must not be negative");
+		}
 	}
 }
@@ -20,6 +20,9 @@ package com.github.dozedoff.similarImage.component;
 import javax.inject.Singleton;
 
 import com.github.dozedoff.similarImage.db.Database;
+import com.github.dozedoff.similarImage.db.ImageChangeLog;
+import com.github.dozedoff.similarImage.db.LiveImageIndex;
+import com.github.dozedoff.similarImage.db.PersistedHashIndex;
 import com.github.dozedoff.similarImage.db.repository.FilterRepository;
 import com.github.dozedoff.similarImage.db.repository.IgnoreRepository;
 import com.github.dozedoff.similarImage.db.repository.ImageRepository;
@@ -38,6 +41,12 @@ public interface PersistenceComponent {
 
 	RepositoryFactory getRepositoryFactory();
 
+	PersistedHashIndex getPersistedHashIndex();
+
+	LiveImageIndex getLiveImageIndex();
+
+	ImageChangeLog getImageChangeLog();
+
 	// TODO remove methods below here, they are temporary for refactoring
 	ImageRepository getImageRepository();
 	PendingHashImageRepository getPendingHashImageRepository();
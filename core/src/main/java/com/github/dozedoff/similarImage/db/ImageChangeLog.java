@@ -0,0 +1,171 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.db;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import com.github.dozedoff.similarImage.db.repository.ImageRepositoryListener;
+
+/**
+ * Counts the changes reported by an {@link com.github.dozedoff.similarImage.db.repository.ObservableImageRepository}
+ * and keeps a bounded log of the most recent changes. Results computed at a given change count can be brought up to
+ * date with the changes that were made since, as long as they are still in the log.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class ImageChangeLog implements ImageRepositoryListener {
+	/**
+	 * Default number of changes kept in the log.
+	 */
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	private final int capacity;
+	private final Deque<Change> changes;
+	private long changeCount;
+
+	/**
+	 * A change made to the repository.
+	 */
+	public static final class Change {
+		private final ImageRecord image;
+		private final boolean stored;
+
+		Change(ImageRecord image, boolean stored) {
+			this.image = image;
+			this.stored = stored;
+		}
+
+		/**
+		 * Get the image that was changed.
+		 * 
+		 * @return the changed image
+		 */
+		public ImageRecord getImage() {
+			return image;
+		}
+
+		/**
+		 * Check if the image was stored or removed.
+		 * 
+		 * @return true if the image was stored or updated, false if it was removed
+		 */
+		public boolean isStored() {
+			return stored;
+		}
+	}
+
+	/**
+	 * Create a new log with the {@link #DEFAULT_CAPACITY}.
+	 */
+	public ImageChangeLog() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a new log that keeps up to capacity changes.
+	 * 
+	 * @param capacity
+	 *            maximum number of changes to keep
+	 * @throws IllegalArgumentException
+	 *             if the capacity is negative
+	 */
+	public ImageChangeLog(int capacity) throws IllegalArgumentException {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Capacity must be 0 or greater");
+		}
+
+		this.capacity = capacity;
+		this.changes = new ArrayDeque<>(Math.min(capacity, DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * Get the number of changes reported since this log was created.
+	 * 
+	 * @return the current change count
+	 */
+	public synchronized long getChangeCount() {
+		return changeCount;
+	}
+
+	/**
+	 * Get the changes made after the given change count, oldest first.
+	 * 
+	 * @param since
+	 *            change count at which the changes should start
+	 * @return the changes made since, or null if some of the changes are no longer in the log
+	 */
+	public synchronized List<Change> changesSince(long since) {
+		long missing = changeCount - since;
+
+		if (missing < 0 || missing > changes.size()) {
+			return null;
+		}
+
+		List<Change> result = new ArrayList<>((int) missing);
+		Iterator<Change> newestFirst = changes.descendingIterator();
+
+		for (long i = 0; i < missing; i++) {
+			result.add(newestFirst.next());
+		}
+
+		Collections.reverse(result);
+		return result;
+	}
+
+	private synchronized void record(Change change) {
+		changeCount++;
+
+		if (capacity == 0) {
+			return;
+		}
+
+		if (changes.size() == capacity) {
+			changes.removeFirst();
+		}
+
+		changes.addLast(change);
+	}
+
+	/**
+	 * Record the stored image.
+	 * 
+	 * @param image
+	 *            that was stored
+	 */
+	@Override
+	public void imageStored(ImageRecord image) {
+		record(new Change(image, true));
+	}
+
+	/**
+	 * Record the removed image.
+	 * 
+	 * @param image
+	 *            that was removed
+	 */
+	@Override
+	public void imageRemoved(ImageRecord image) {
+		record(new Change(image, false));
+	}
+}
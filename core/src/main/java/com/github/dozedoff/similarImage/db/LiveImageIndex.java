@@ -0,0 +1,331 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.db;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.dozedoff.similarImage.db.repository.ImageRepository;
+import com.github.dozedoff.similarImage.db.repository.ImageRepositoryListener;
+import com.github.dozedoff.similarImage.db.repository.RepositoryException;
+import com.github.dozedoff.similarImage.duplicate.HashGroups;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Long-lived, in-memory index of all {@link ImageRecord}s. The index is loaded from the repository on first use and
+ * then kept up to date with the changes reported by an
+ * {@link com.github.dozedoff.similarImage.db.repository.ObservableImageRepository}, so queries do not need to reload
+ * the records from the database. The records are also kept grouped by hash, so unscoped queries can be searched
+ * without grouping the records again. Changes are collected and merged into the grouping on the next query, see
+ * {@link HashGroups#update(java.util.Collection, java.util.Collection)}.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class LiveImageIndex implements ImageRepositoryListener {
+	private static final Logger LOGGER = LoggerFactory.getLogger(LiveImageIndex.class);
+
+	private final ImageRepository imageRepository;
+	private final Object loadLock;
+
+	private final Map<String, ImageRecord> byPath;
+	/**
+	 * All records grouped by hash, or null if the records have not been grouped yet. Does not include the changes
+	 * since the grouping was created, see {@link #storedSinceGrouping} and {@link #removedSinceGrouping}.
+	 */
+	private HashGroups byHash;
+	/**
+	 * Records stored since the grouping was created, by path.
+	 */
+	private final Map<String, ImageRecord> storedSinceGrouping;
+	/**
+	 * Records in the grouping that have been removed or replaced since the grouping was created.
+	 */
+	private final Set<ImageRecord> removedSinceGrouping;
+
+	private final List<Change> pendingChanges;
+	private boolean loaded;
+	private boolean recording;
+
+	/**
+	 * A change reported while the index was loading.
+	 */
+	private static final class Change {
+		private final ImageRecord image;
+		private final boolean stored;
+
+		Change(ImageRecord image, boolean stored) {
+			this.image = image;
+			this.stored = stored;
+		}
+	}
+
+	/**
+	 * Create a new index that will be loaded from the given repository.
+	 * 
+	 * @param imageRepository
+	 *            used to load the initial state of the index
+	 */
+	public LiveImageIndex(ImageRepository imageRepository) {
+		this.imageRepository = imageRepository;
+		this.loadLock = new Object();
+		this.byPath = new HashMap<>();
+		this.storedSinceGrouping = new HashMap<>();
+		this.removedSinceGrouping = new HashSet<>();
+		this.pendingChanges = new LinkedList<>();
+	}
+
+	/**
+	 * Load the index from the repository, if it has not been loaded yet. Changes reported during loading are applied
+	 * once the load is complete.
+	 * 
+	 * @throws RepositoryException
+	 *             if the records could not be loaded
+	 */
+	public void load() throws RepositoryException {
+		synchronized (loadLock) {
+			synchronized (this) {
+				if (loaded) {
+					return;
+				}
+
+				recording = true;
+			}
+
+			Stopwatch sw = Stopwatch.createStarted();
+			List<ImageRecord> records;
+
+			try {
+				records = imageRepository.getAll();
+			} catch (RepositoryException e) {
+				synchronized (this) {
+					recording = false;
+					pendingChanges.clear();
+				}
+
+				throw e;
+			}
+
+			synchronized (this) {
+				for (ImageRecord image : records) {
+					add(image);
+				}
+
+				for (Change change : pendingChanges) {
+					apply(change);
+				}
+
+				LOGGER.info("Loaded {} records into index in {}, applied {} changes made while loading",
+						records.size(), sw, pendingChanges.size());
+
+				pendingChanges.clear();
+				recording = false;
+				loaded = true;
+			}
+		}
+	}
+
+	/**
+	 * Check if the index has been loaded.
+	 * 
+	 * @return true if the index is loaded and kept up to date
+	 */
+	public synchronized boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Get all records in the index. Loads the index if needed.
+	 * 
+	 * @return a copy of all records
+	 * @throws RepositoryException
+	 *             if the index could not be loaded
+	 */
+	public List<ImageRecord> getAll() throws RepositoryException {
+		load();
+
+		synchronized (this) {
+			return new ArrayList<>(byPath.values());
+		}
+	}
+
+	/**
+	 * Get all records grouped by hash. Loads the index if needed. Records stored or removed since the last call are
+	 * merged into the previous grouping.
+	 * 
+	 * @return all records grouped by hash
+	 * @throws RepositoryException
+	 *             if the index could not be loaded
+	 */
+	public HashGroups getGroups() throws RepositoryException {
+		load();
+
+		synchronized (this) {
+			return groups();
+		}
+	}
+
+	private HashGroups groups() {
+		if (byHash == null) {
+			Stopwatch sw = Stopwatch.createStarted();
+			byHash = HashGroups.group(byPath.values());
+			LOGGER.debug("Grouped {} records by hash in {}", byHash.size(), sw);
+		} else if (!storedSinceGrouping.isEmpty() || !removedSinceGrouping.isEmpty()) {
+			Stopwatch sw = Stopwatch.createStarted();
+			byHash = byHash.update(removedSinceGrouping, storedSinceGrouping.values());
+			LOGGER.debug("Merged {} stored and {} removed records into grouping in {}", storedSinceGrouping.size(),
+					removedSinceGrouping.size(), sw);
+
+			storedSinceGrouping.clear();
+			removedSinceGrouping.clear();
+		}
+
+		return byHash;
+	}
+
+	/**
+	 * Get all records with a path starting with the directory. Loads the index if needed.
+	 * 
+	 * @param directory
+	 *            the path should start with
+	 * @return a copy of all matching records
+	 * @throws RepositoryException
+	 *             if the index could not be loaded
+	 */
+	public List<ImageRecord> startsWithPath(Path directory) throws RepositoryException {
+		load();
+
+		String prefix = directory.toString();
+		List<ImageRecord> result = new ArrayList<>();
+
+		synchronized (this) {
+			for (ImageRecord image : byPath.values()) {
+				if (image.getPath().startsWith(prefix)) {
+					result.add(image);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Get all records with the given hash. Loads the index if needed.
+	 * 
+	 * @param hash
+	 *            to search for
+	 * @return a copy of all matching records
+	 * @throws RepositoryException
+	 *             if the index could not be loaded
+	 */
+	public List<ImageRecord> getByHash(long hash) throws RepositoryException {
+		load();
+
+		synchronized (this) {
+			return new ArrayList<>(groups().get(hash));
+		}
+	}
+
+	/**
+	 * Get the number of records in the index.
+	 * 
+	 * @return number of records, 0 if the index is not loaded
+	 */
+	public synchronized int size() {
+		return byPath.size();
+	}
+
+	private void add(ImageRecord image) {
+		ImageRecord previous = byPath.put(image.getPath(), image);
+
+		if (byHash == null || image.equals(previous)) {
+			return;
+		}
+
+		if (previous != null) {
+			ungroup(previous);
+		}
+
+		storedSinceGrouping.put(image.getPath(), image);
+	}
+
+	private void remove(ImageRecord image) {
+		ImageRecord previous = byPath.remove(image.getPath());
+
+		if (byHash != null && previous != null) {
+			ungroup(previous);
+		}
+	}
+
+	/**
+	 * Drop a record that is no longer current. If it was stored since the grouping was created, it is not in the
+	 * grouping and only needs to be dropped from the stored records.
+	 */
+	private void ungroup(ImageRecord previous) {
+		if (storedSinceGrouping.remove(previous.getPath()) == null) {
+			removedSinceGrouping.add(previous);
+		}
+	}
+
+	private void apply(Change change) {
+		if (change.stored) {
+			add(change.image);
+		} else {
+			remove(change.image);
+		}
+	}
+
+	private synchronized void onChange(Change change) {
+		if (recording) {
+			pendingChanges.add(change);
+		} else if (loaded) {
+			apply(change);
+		}
+	}
+
+	/**
+	 * Add or update the record in the index.
+	 * 
+	 * @param image
+	 *            that was stored
+	 */
+	@Override
+	public void imageStored(ImageRecord image) {
+		onChange(new Change(image, true));
+	}
+
+	/**
+	 * Remove the record from the index.
+	 * 
+	 * @param image
+	 *            that was removed
+	 */
+	@Override
+	public void imageRemoved(ImageRecord image) {
+		onChange(new Change(image, false));
+	}
+}
@@ -0,0 +1,247 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read only memory mapping of a file of any size. The file is mapped in segments, as a single mapping is limited to
+ * 2 GB. The mapping is released when the file is closed, so the file can be replaced or deleted afterwards. Reading a
+ * closed file throws an {@link IllegalStateException}.
+ * <p>
+ * The file is opened for one reader. A file that is retired while the reader still uses it stays mapped until the
+ * reader releases it.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+class MappedIndexFile implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MappedIndexFile.class);
+
+	static final int SEGMENT_BYTES = 1 << 30;
+
+	private final Path file;
+	private final long size;
+	private MappedByteBuffer[] segments;
+	private int readers = 1;
+	private boolean retired;
+
+	/**
+	 * Map the file.
+	 * 
+	 * @param file
+	 *            to map
+	 * @throws IOException
+	 *             if the file could not be mapped
+	 */
+	MappedIndexFile(Path file) throws IOException {
+		this.file = file;
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			this.size = channel.size();
+			this.segments = new MappedByteBuffer[(int) ((size + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+
+			for (int i = 0; i < segments.length; i++) {
+				long start = (long) i * SEGMENT_BYTES;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_BYTES, size - start));
+			}
+		}
+	}
+
+	/**
+	 * Get the size of the mapped file.
+	 * 
+	 * @return size in bytes
+	 */
+	long size() {
+		return size;
+	}
+
+	private MappedByteBuffer segment(long position) {
+		if (segments == null) {
+			throw new IllegalStateException("Index file " + file + " has been closed");
+		}
+
+		return segments[(int) (position / SEGMENT_BYTES)];
+	}
+
+	/**
+	 * Read a byte.
+	 * 
+	 * @param position
+	 *            offset in the file
+	 * @return the byte at the position
+	 */
+	synchronized byte get(long position) {
+		return segment(position).get((int) (position % SEGMENT_BYTES));
+	}
+
+	/**
+	 * Read a big-endian int.
+	 * 
+	 * @param position
+	 *            offset in the file
+	 * @return the int at the position
+	 */
+	synchronized int getInt(long position) {
+		int offset = (int) (position % SEGMENT_BYTES);
+		MappedByteBuffer segment = segment(position);
+
+		if (offset + Integer.BYTES <= segment.limit()) {
+			return segment.getInt(offset);
+		}
+
+		return (int) getAcrossSegments(position, Integer.BYTES);
+	}
+
+	/**
+	 * Read a big-endian long.
+	 * 
+	 * @param position
+	 *            offset in the file
+	 * @return the long at the position
+	 */
+	synchronized long getLong(long position) {
+		int offset = (int) (position % SEGMENT_BYTES);
+		MappedByteBuffer segment = segment(position);
+
+		if (offset + Long.BYTES <= segment.limit()) {
+			return segment.getLong(offset);
+		}
+
+		return getAcrossSegments(position, Long.BYTES);
+	}
+
+	private long getAcrossSegments(long position, int bytes) {
+		long value = 0;
+
+		for (int i = 0; i < bytes; i++) {
+			value = (value << Byte.SIZE) | (get(position + i) & 0xFF);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Copy bytes from the file.
+	 * 
+	 * @param position
+	 *            offset in the file
+	 * @param destination
+	 *            to copy the bytes to
+	 */
+	synchronized void get(long position, byte[] destination) {
+		int copied = 0;
+
+		while (copied < destination.length) {
+			long current = position + copied;
+			ByteBuffer segment = segment(current).duplicate();
+			segment.position((int) (current % SEGMENT_BYTES));
+
+			int length = Math.min(segment.remaining(), destination.length - copied);
+			segment.get(destination, copied, length);
+			copied += length;
+		}
+	}
+
+	/**
+	 * Release a reader of the file. The mapping is released if this was the last reader and the file was retired.
+	 */
+	synchronized void release() {
+		if (readers == 0) {
+			return;
+		}
+
+		readers--;
+
+		if (readers == 0 && retired) {
+			close();
+		}
+	}
+
+	/**
+	 * Release the mapping once there are no readers left.
+	 */
+	synchronized void retire() {
+		retired = true;
+
+		if (readers == 0) {
+			close();
+		}
+	}
+
+	/**
+	 * Release the mapping. Further reads will fail.
+	 */
+	@Override
+	public synchronized void close() {
+		if (segments == null) {
+			return;
+		}
+
+		for (MappedByteBuffer segment : segments) {
+			unmap(segment);
+		}
+
+		segments = null;
+	}
+
+	/**
+	 * Release the memory of the buffer without waiting for garbage collection. The JDK has no public API for this,
+	 * so the internal cleaner is used if it is accessible. Otherwise the mapping is released once the buffer is
+	 * garbage collected.
+	 */
+	private void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+		} catch (NoSuchMethodException e) {
+			unmapLegacy(buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LOGGER.debug("Failed to unmap {}: {}", file, e.toString());
+		}
+	}
+
+	private void unmapLegacy(MappedByteBuffer buffer) {
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+
+			if (cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LOGGER.debug("Failed to unmap {}: {}", file, e.toString());
+		}
+	}
+}
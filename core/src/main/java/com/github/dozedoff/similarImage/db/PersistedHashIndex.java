@@ -0,0 +1,742 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.db;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.dozedoff.similarImage.db.repository.ImageRepositoryListener;
+import com.github.dozedoff.similarImage.duplicate.HashGroups;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Persists the results of image queries in index files next to the database, so they do not need to be reloaded from
+ * the database if nothing has changed. Records are stored in ascending hash order in a table of hashes and path
+ * offsets, followed by the UTF-8 paths. The files are read with memory-mapped I/O, records are only created when they
+ * are accessed.
+ * <p>
+ * A snapshot is valid if the database file has not been modified since the snapshot was created. Stored and removed
+ * {@link ImageRecord}s are appended to snapshots that contain every record of the database. Other snapshots are
+ * deleted, as it is not known if the changed record belongs to them. The header keeps the database version the
+ * snapshot was written at, a snapshot with appended changes is only valid as long as every change this index was
+ * notified of since the snapshot was written or read has been appended. It is rebuilt after a restart.
+ * </p>
+ * <p>
+ * Snapshots returned by {@link #read(String)} stay readable until they are released with {@link #release(List)},
+ * even if the snapshot is replaced or deleted in the meantime.
+ * </p>
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class PersistedHashIndex implements ImageRepositoryListener {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PersistedHashIndex.class);
+
+	private static final int MAGIC = 0x53494458;
+	private static final int FORMAT_VERSION = 2;
+	/**
+	 * magic, format version, database size, database last modified, number of records, number of path bytes, flags
+	 */
+	private static final int HEADER_BYTES = Integer.BYTES * 2 + Long.BYTES * 4 + Integer.BYTES;
+	private static final int DATABASE_VERSION_OFFSET = Integer.BYTES * 2;
+	/**
+	 * hash, offset of the path
+	 */
+	private static final int RECORD_BYTES = Long.BYTES * 2;
+	/**
+	 * type, hash, path length
+	 */
+	private static final int CHANGE_HEADER_BYTES = 1 + Long.BYTES + Integer.BYTES;
+	private static final byte CHANGE_STORED = 'S';
+	private static final byte CHANGE_REMOVED = 'R';
+	private static final int FLAG_COMPLETE = 1;
+	private static final int WRITE_BUFFER_BYTES = 1 << 20;
+	private static final String INDEX_EXTENSION = ".idx";
+
+	private final Path databaseFile;
+	private final Set<String> knownQueries;
+	/**
+	 * Mapped snapshots that may still be in use, they are retired when the snapshot is replaced or deleted.
+	 */
+	private final Map<String, List<WeakReference<MappedIndexFile>>> openFiles;
+	/**
+	 * Change count at which the snapshot of a query was known to contain every change.
+	 */
+	private final Map<String, Long> syncedChanges;
+	private long changeCount;
+
+	/**
+	 * Create a new index for the given database file. Index files will be created in the same directory.
+	 * 
+	 * @param databaseFile
+	 *            the database the records are loaded from
+	 */
+	public PersistedHashIndex(Path databaseFile) {
+		this.databaseFile = databaseFile;
+		this.knownQueries = ConcurrentHashMap.newKeySet();
+		this.openFiles = new HashMap<>();
+		this.syncedChanges = new HashMap<>();
+	}
+
+	/**
+	 * Version of the database at a point in time. Must be obtained before the database is queried for records that
+	 * will be persisted.
+	 */
+	public static final class Version {
+		private final long changeCount;
+		private final long databaseSize;
+		private final long databaseModified;
+
+		private Version(long changeCount, long databaseSize, long databaseModified) {
+			this.changeCount = changeCount;
+			this.databaseSize = databaseSize;
+			this.databaseModified = databaseModified;
+		}
+
+		private boolean sameDatabase(long size, long modified) {
+			return databaseSize == size && databaseModified == modified;
+		}
+	}
+
+	/**
+	 * Get the path of the index file for the query.
+	 * 
+	 * @param query
+	 *            name of the query
+	 * @return path of the index file
+	 */
+	public Path indexFile(String query) {
+		Objects.requireNonNull(query, "Query name cannot be null");
+		return databaseFile.resolveSibling(databaseFile.getFileName().toString() + "." + query + INDEX_EXTENSION);
+	}
+
+	/**
+	 * Get the current version of the database.
+	 * 
+	 * @return the current version
+	 */
+	public synchronized Version currentVersion() {
+		return new Version(changeCount, databaseSize(), databaseModified());
+	}
+
+	private long databaseSize() {
+		try {
+			return Files.size(databaseFile);
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	private long databaseModified() {
+		try {
+			return Files.getLastModifiedTime(databaseFile).toMillis();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Check if there is a valid snapshot for the query.
+	 * 
+	 * @param query
+	 *            name of the query
+	 * @return true if a snapshot exists and the database has not changed since it was written, or all changes have
+	 *         been appended
+	 */
+	public synchronized boolean isValid(String query) {
+		Path indexFile = indexFile(query);
+
+		if (!Files.exists(indexFile)) {
+			return false;
+		}
+
+		try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+			ByteBuffer header = readHeader(channel);
+			return header != null && isValidSnapshot(query, header, channel.size());
+		} catch (IOException e) {
+			LOGGER.warn("Failed to read index header from {}: {}", indexFile, e.toString());
+			return false;
+		}
+	}
+
+	private ByteBuffer readHeader(FileChannel channel) throws IOException {
+		if (channel.size() < HEADER_BYTES) {
+			return null;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+
+		while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+			// read the complete header
+		}
+
+		header.flip();
+
+		if (header.getInt(0) != MAGIC || header.getInt(Integer.BYTES) != FORMAT_VERSION) {
+			return null;
+		}
+
+		return header;
+	}
+
+	/**
+	 * A snapshot without changes is valid if the database version matches the header. Once changes are appended, the
+	 * database version no longer matches and the snapshot is only valid if it has every change made since it was
+	 * known to be valid.
+	 */
+	private boolean isValidSnapshot(String query, ByteBuffer header, long fileSize) {
+		boolean valid;
+
+		if (fileSize == changesStart(recordCount(header), pathBytes(header))) {
+			long size = header.getLong(DATABASE_VERSION_OFFSET);
+			long modified = header.getLong(DATABASE_VERSION_OFFSET + Long.BYTES);
+
+			valid = size == databaseSize() && modified == databaseModified() && size >= 0;
+		} else {
+			valid = Objects.equals(syncedChanges.get(query), changeCount);
+		}
+
+		if (valid) {
+			syncedChanges.put(query, changeCount);
+		}
+
+		return valid;
+	}
+
+	private static long recordCount(ByteBuffer header) {
+		return header.getLong(DATABASE_VERSION_OFFSET + Long.BYTES * 2);
+	}
+
+	private static long pathBytes(ByteBuffer header) {
+		return header.getLong(DATABASE_VERSION_OFFSET + Long.BYTES * 3);
+	}
+
+	private static boolean isComplete(ByteBuffer header) {
+		return (header.getInt(DATABASE_VERSION_OFFSET + Long.BYTES * 4) & FLAG_COMPLETE) != 0;
+	}
+
+	private static long changesStart(long recordCount, long pathBytes) {
+		return HEADER_BYTES + recordCount * RECORD_BYTES + pathBytes;
+	}
+
+	/**
+	 * Read the snapshot for the query. Records are read from the mapped file when they are accessed. The returned
+	 * list must be released with {@link #release(List)} once it is no longer read, the file stays mapped until then.
+	 * 
+	 * @param query
+	 *            name of the query
+	 * @return the records of the snapshot in ascending hash order, followed by records stored since the snapshot was
+	 *         written
+	 * @throws IOException
+	 *             if the snapshot could not be read or is no longer valid
+	 */
+	public synchronized List<ImageRecord> read(String query) throws IOException {
+		Path indexFile = indexFile(query);
+		Stopwatch sw = Stopwatch.createStarted();
+		MappedIndexFile mapped = new MappedIndexFile(indexFile);
+
+		try {
+			if (mapped.size() < HEADER_BYTES || mapped.getInt(0) != MAGIC
+					|| mapped.getInt(Integer.BYTES) != FORMAT_VERSION) {
+				throw new IOException("Index " + indexFile + " has an unknown format");
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+
+			for (int i = 0; i < HEADER_BYTES; i++) {
+				header.put(mapped.get(i));
+			}
+
+			if (!isValidSnapshot(query, header, mapped.size())) {
+				throw new IOException("Index " + indexFile + " is out of date");
+			}
+
+			long recordCount = recordCount(header);
+
+			if (recordCount > Integer.MAX_VALUE) {
+				throw new IOException("Index " + indexFile + " has too many records: " + recordCount);
+			}
+
+			Snapshot snapshot = new Snapshot(mapped, (int) recordCount, pathBytes(header));
+			snapshot.applyChanges();
+
+			List<WeakReference<MappedIndexFile>> files = openFiles.computeIfAbsent(query, k -> new ArrayList<>());
+			files.removeIf(file -> file.get() == null);
+			files.add(new WeakReference<>(mapped));
+			knownQueries.add(query);
+			LOGGER.info("Mapped {} records from index {} in {}", snapshot.size(), indexFile, sw);
+
+			return snapshot;
+		} catch (IOException | RuntimeException e) {
+			mapped.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Release a list returned by {@link #read(String)}, so the mapping of a replaced or deleted snapshot can be
+	 * released. The list can no longer be read afterwards. Lists that are not snapshots are ignored.
+	 * 
+	 * @param records
+	 *            list to release
+	 */
+	public static void release(List<ImageRecord> records) {
+		if (records instanceof Snapshot) {
+			((Snapshot) records).release();
+		}
+	}
+
+	/**
+	 * Write a snapshot for the query that contains every record of the database. See
+	 * {@link #write(String, Collection, Version, boolean)}.
+	 * 
+	 * @param query
+	 *            name of the query
+	 * @param records
+	 *            result of the query
+	 * @param version
+	 *            of the database before the query was run
+	 * @return true if the snapshot was written
+	 * @throws IOException
+	 *             if there was an error writing the snapshot
+	 */
+	public boolean write(String query, Collection<ImageRecord> records, Version version) throws IOException {
+		return write(query, records, version, true);
+	}
+
+	/**
+	 * Write a snapshot for the query. The snapshot is not written if the index was invalidated after the version was
+	 * obtained. A previous snapshot for the query is replaced, lists read from it stay readable until released.
+	 * 
+	 * @param query
+	 *            name of the query
+	 * @param records
+	 *            result of the query
+	 * @param version
+	 *            of the database before the query was run
+	 * @param complete
+	 *            true if the records are every record of the database, so changes can be appended to the snapshot.
+	 *            Snapshots of filtered queries are deleted on changes instead.
+	 * @return true if the snapshot was written
+	 * @throws IOException
+	 *             if there was an error writing the snapshot
+	 */
+	public synchronized boolean write(String query, Collection<ImageRecord> records, Version version,
+			boolean complete) throws IOException {
+		if (version.changeCount != changeCount || !version.sameDatabase(databaseSize(), databaseModified())) {
+			LOGGER.info("Database changed during query, not writing index for {}", query);
+			return false;
+		}
+
+		Stopwatch sw = Stopwatch.createStarted();
+		HashGroups groups = HashGroups.group(records);
+
+		Path indexFile = indexFile(query);
+		Path tempFile = indexFile.resolveSibling(indexFile.getFileName().toString() + ".tmp");
+
+		try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeSnapshot(channel, groups, version, complete);
+		}
+
+		closeFiles(query);
+
+		try {
+			Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			Files.deleteIfExists(tempFile);
+			throw e;
+		}
+
+		knownQueries.add(query);
+		syncedChanges.put(query, changeCount);
+
+		LOGGER.info("Wrote {} records to index {} in {}", groups.size(), indexFile, sw);
+
+		return true;
+	}
+
+	private void writeSnapshot(FileChannel channel, HashGroups groups, Version version, boolean complete)
+			throws IOException {
+		ChunkedWriter writer = new ChunkedWriter(channel);
+		long pathBytes = 0;
+
+		for (int group = 0; group < groups.distinctHashes(); group++) {
+			for (ImageRecord image : groups.groupAt(group)) {
+				pathBytes += image.getPath().getBytes(StandardCharsets.UTF_8).length;
+			}
+		}
+
+		writer.putInt(MAGIC).putInt(FORMAT_VERSION);
+		writer.putLong(version.databaseSize).putLong(version.databaseModified);
+		writer.putLong(groups.size()).putLong(pathBytes).putInt(complete ? FLAG_COMPLETE : 0);
+
+		long pathOffset = 0;
+
+		for (int group = 0; group < groups.distinctHashes(); group++) {
+			long hash = groups.hashAt(group);
+
+			for (ImageRecord image : groups.groupAt(group)) {
+				writer.putLong(hash).putLong(pathOffset);
+				pathOffset += image.getPath().getBytes(StandardCharsets.UTF_8).length;
+			}
+		}
+
+		for (int group = 0; group < groups.distinctHashes(); group++) {
+			for (ImageRecord image : groups.groupAt(group)) {
+				writer.put(image.getPath().getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		writer.flush();
+	}
+
+	/**
+	 * Invalidate all snapshots, they will need to be rebuilt from the database.
+	 */
+	public synchronized void invalidate() {
+		changeCount++;
+
+		for (String query : knownQueries) {
+			delete(query);
+		}
+	}
+
+	private void delete(String query) {
+		closeFiles(query);
+		syncedChanges.remove(query);
+
+		try {
+			Files.deleteIfExists(indexFile(query));
+		} catch (IOException e) {
+			LOGGER.warn("Failed to delete index for {}: {}", query, e.toString());
+		}
+	}
+
+	private void closeFiles(String query) {
+		List<WeakReference<MappedIndexFile>> files = openFiles.remove(query);
+
+		if (files == null) {
+			return;
+		}
+
+		for (WeakReference<MappedIndexFile> file : files) {
+			MappedIndexFile mapped = file.get();
+
+			if (mapped != null) {
+				mapped.retire();
+			}
+		}
+	}
+
+	/**
+	 * Get the number of times the index was changed.
+	 * 
+	 * @return the number of changes
+	 */
+	public synchronized long getChangeCount() {
+		return changeCount;
+	}
+
+	/**
+	 * Append the stored image to complete snapshots, other snapshots are deleted.
+	 * 
+	 * @param image
+	 *            that was stored
+	 */
+	@Override
+	public void imageStored(ImageRecord image) {
+		appendChange(CHANGE_STORED, image);
+	}
+
+	/**
+	 * Append the removed image to complete snapshots, other snapshots are deleted.
+	 * 
+	 * @param image
+	 *            that was removed
+	 */
+	@Override
+	public void imageRemoved(ImageRecord image) {
+		appendChange(CHANGE_REMOVED, image);
+	}
+
+	private synchronized void appendChange(byte type, ImageRecord image) {
+		changeCount++;
+
+		for (String query : knownQueries) {
+			try {
+				if (!append(query, type, image)) {
+					delete(query);
+				}
+			} catch (IOException e) {
+				LOGGER.warn("Failed to append change to index for {}: {}", query, e.toString());
+				delete(query);
+			}
+		}
+	}
+
+	/**
+	 * Append the change to the snapshot, if the snapshot is complete, has every previous change and the changes are no
+	 * larger than the snapshot itself. The database version in the header is not updated, so writes to the database
+	 * that did not notify this index still invalidate the snapshot after a restart.
+	 */
+	private boolean append(String query, byte type, ImageRecord image) throws IOException {
+		Path indexFile = indexFile(query);
+
+		if (!Files.exists(indexFile)) {
+			return true;
+		}
+
+		if (!Objects.equals(syncedChanges.get(query), changeCount - 1)) {
+			return false;
+		}
+
+		try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer header = readHeader(channel);
+
+			if (header == null || !isComplete(header)) {
+				return false;
+			}
+
+			byte[] path = image.getPath().getBytes(StandardCharsets.UTF_8);
+			long changesStart = changesStart(recordCount(header), pathBytes(header));
+			long end = channel.size();
+
+			if (end - changesStart + CHANGE_HEADER_BYTES + path.length > changesStart) {
+				LOGGER.debug("Too many changes for index {}, it will be rebuilt", query);
+				return false;
+			}
+
+			ByteBuffer change = ByteBuffer.allocate(CHANGE_HEADER_BYTES + path.length);
+			change.put(type).putLong(image.getpHash()).putInt(path.length).put(path);
+			change.flip();
+			writeFully(channel, change, end);
+		}
+
+		syncedChanges.put(query, changeCount);
+		return true;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Buffers writes and writes them to the channel in chunks.
+	 */
+	private static final class ChunkedWriter {
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+
+		ChunkedWriter(FileChannel channel) {
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+		}
+
+		private void ensureCapacity(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+
+		ChunkedWriter putInt(int value) throws IOException {
+			ensureCapacity(Integer.BYTES);
+			buffer.putInt(value);
+			return this;
+		}
+
+		ChunkedWriter putLong(long value) throws IOException {
+			ensureCapacity(Long.BYTES);
+			buffer.putLong(value);
+			return this;
+		}
+
+		ChunkedWriter put(byte[] data) throws IOException {
+			int written = 0;
+
+			while (written < data.length) {
+				if (!buffer.hasRemaining()) {
+					flush();
+				}
+
+				int length = Math.min(buffer.remaining(), data.length - written);
+				buffer.put(data, written, length);
+				written += length;
+			}
+
+			return this;
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Records of a mapped snapshot with the appended changes applied. Records of the snapshot are decoded on access.
+	 */
+	private static final class Snapshot extends AbstractList<ImageRecord> {
+		private final MappedIndexFile mapped;
+		private final int recordCount;
+		private final long pathBytes;
+		private final long pathsStart;
+
+		/**
+		 * Indices of the snapshot records that were not changed, or null if there are no changes.
+		 */
+		private int[] unchanged;
+		private List<ImageRecord> stored;
+
+		Snapshot(MappedIndexFile mapped, int recordCount, long pathBytes) {
+			this.mapped = mapped;
+			this.recordCount = recordCount;
+			this.pathBytes = pathBytes;
+			this.pathsStart = HEADER_BYTES + (long) recordCount * RECORD_BYTES;
+			this.stored = new ArrayList<>();
+		}
+
+		void release() {
+			mapped.release();
+		}
+
+		void applyChanges() throws IOException {
+			Map<String, ImageRecord> changes = readChanges();
+
+			if (changes.isEmpty()) {
+				return;
+			}
+
+			int[] kept = new int[recordCount];
+			int keptCount = 0;
+
+			for (int i = 0; i < recordCount; i++) {
+				if (!changes.containsKey(path(i))) {
+					kept[keptCount++] = i;
+				}
+			}
+
+			unchanged = keptCount == recordCount ? null : Arrays.copyOf(kept, keptCount);
+
+			for (ImageRecord change : changes.values()) {
+				if (change != null) {
+					stored.add(change);
+				}
+			}
+		}
+
+		/**
+		 * Read the appended changes, the last change for a path wins. Removed paths map to null.
+		 */
+		private Map<String, ImageRecord> readChanges() throws IOException {
+			Map<String, ImageRecord> changes = new LinkedHashMap<>();
+			long position = pathsStart + pathBytes;
+
+			while (position < mapped.size()) {
+				if (position + CHANGE_HEADER_BYTES > mapped.size()) {
+					throw new IOException("Truncated change in index");
+				}
+
+				byte type = mapped.get(position);
+				long hash = mapped.getLong(position + 1);
+				int length = mapped.getInt(position + 1 + Long.BYTES);
+				position += CHANGE_HEADER_BYTES;
+
+				byte[] path = new byte[length];
+				mapped.get(position, path);
+				position += length;
+
+				String decoded = new String(path, StandardCharsets.UTF_8);
+				changes.remove(decoded);
+				changes.put(decoded, type == CHANGE_STORED ? new ImageRecord(decoded, hash) : null);
+			}
+
+			return changes;
+		}
+
+		private long recordPosition(int index) {
+			return HEADER_BYTES + (long) index * RECORD_BYTES;
+		}
+
+		private String path(int index) {
+			long start = mapped.getLong(recordPosition(index) + Long.BYTES);
+			long end = index + 1 < recordCount ? mapped.getLong(recordPosition(index + 1) + Long.BYTES) : pathBytes;
+
+			byte[] path = new byte[(int) (end - start)];
+			mapped.get(pathsStart + start, path);
+
+			return new String(path, StandardCharsets.UTF_8);
+		}
+
+		private ImageRecord record(int index) {
+			return new ImageRecord(path(index), mapped.getLong(recordPosition(index)));
+		}
+
+		private int snapshotSize() {
+			return unchanged == null ? recordCount : unchanged.length;
+		}
+
+		@Override
+		public ImageRecord get(int index) {
+			int snapshotSize = snapshotSize();
+
+			if (index < 0 || index >= size()) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+			}
+
+			if (index >= snapshotSize) {
+				return stored.get(index - snapshotSize);
+			}
+
+			return record(unchanged == null ? index : unchanged[index]);
+		}
+
+		@Override
+		public int size() {
+			return snapshotSize() + stored.size();
+		}
+	}
+}
@@ -22,6 +22,7 @@ import java.util.Collection;
 import java.util.List;
 
 import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.j256.ormlite.dao.CloseableIterator;
 
 public interface ImageRepository extends Repository {
 	/**
@@ -115,4 +116,48 @@ public interface ImageRepository extends Repository {
 	 *             if there is a error accessing the datasource
 	 */
 	List<ImageRecord> getAllWithoutIgnored(Path directory) throws RepositoryException;
+
+	/**
+	 * Iterate over all {@link ImageRecord} stored in the datasource, without loading them all into memory. The
+	 * iterator must be closed after use.
+	 * 
+	 * @return an iterator over all {@link ImageRecord}
+	 * @throws RepositoryException
+	 *             if there is a error accessing the datasource
+	 */
+	CloseableIterator<ImageRecord> iterateAll() throws RepositoryException;
+
+	/**
+	 * Iterate over all {@link ImageRecord} that start with the given path, without loading them all into memory. The
+	 * iterator must be closed after use.
+	 * 
+	 * @param directory
+	 *            path that the paths should start with
+	 * @return an iterator over {@link ImageRecord} that start with the given path
+	 * @throws RepositoryException
+	 *             if there is a error accessing the datasource
+	 */
+	CloseableIterator<ImageRecord> iterateStartsWithPath(Path directory) throws RepositoryException;
+
+	/**
+	 * Iterate over all {@link ImageRecord} who are not ignored, without loading them all into memory. The iterator
+	 * must be closed after use.
+	 * 
+	 * @return an iterator over all non-ignored {@link ImageRecord}
+	 * @throws RepositoryException
+	 *             if there is a error accessing the datasource
+	 */
+	CloseableIterator<ImageRecord> iterateAllWithoutIgnored() throws RepositoryException;
+
+	/**
+	 * Iterate over all {@link ImageRecord} who are not ignored, without loading them all into memory. The iterator
+	 * must be closed after use.
+	 * 
+	 * @param directory
+	 *            only include images from the directory and it's sub-directories
+	 * @return an iterator over all non-ignored {@link ImageRecord}
+	 * @throws RepositoryException
+	 *             if there is a error accessing the datasource
+	 */
+	CloseableIterator<ImageRecord> iterateAllWithoutIgnored(Path directory) throws RepositoryException;
 }
@@ -0,0 +1,247 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.db.repository;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.j256.ormlite.dao.CloseableIterator;
+import com.j256.ormlite.misc.TransactionManager;
+
+/**
+ * Decorator for a {@link ImageRepository} that notifies {@link ImageRepositoryListener}s of successful changes.
+ * Changes made by {@link #callInTransaction(TransactionManager, Callable)} are only notified once the transaction is
+ * committed.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class ObservableImageRepository implements ImageRepository {
+	private final ImageRepository imageRepository;
+	private final List<ImageRepositoryListener> listeners;
+	/**
+	 * Notifications of the transaction running on the current thread, null if there is no transaction.
+	 */
+	private final ThreadLocal<List<Runnable>> deferred = new ThreadLocal<>();
+
+	/**
+	 * Wrap the repository and notify the listeners of changes.
+	 * 
+	 * @param imageRepository
+	 *            the repository to delegate to
+	 * @param listeners
+	 *            to notify of changes
+	 */
+	public ObservableImageRepository(ImageRepository imageRepository, ImageRepositoryListener... listeners) {
+		this.imageRepository = imageRepository;
+		this.listeners = new CopyOnWriteArrayList<>(Arrays.asList(listeners));
+	}
+
+	/**
+	 * Add a listener that will be notified of changes.
+	 * 
+	 * @param listener
+	 *            to add
+	 */
+	public void addListener(ImageRepositoryListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Remove a listener, it will no longer be notified of changes.
+	 * 
+	 * @param listener
+	 *            to remove
+	 */
+	public void removeListener(ImageRepositoryListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Run the call in a transaction. Listeners are notified of the changes made by the call after the transaction is
+	 * committed. If the transaction is rolled back, the changes are not notified. Nested calls join the outer
+	 * transaction.
+	 * 
+	 * @param transactionManager
+	 *            to run the transaction with
+	 * @param call
+	 *            to run in the transaction
+	 * @return the result of the call
+	 * @throws SQLException
+	 *             if the call failed and the transaction was rolled back
+	 */
+	public <T> T callInTransaction(TransactionManager transactionManager, Callable<T> call) throws SQLException {
+		if (deferred.get() != null) {
+			return transactionManager.callInTransaction(call);
+		}
+
+		List<Runnable> notifications = new ArrayList<>();
+		deferred.set(notifications);
+		T result;
+
+		try {
+			result = transactionManager.callInTransaction(call);
+		} finally {
+			deferred.remove();
+		}
+
+		notifications.forEach(Runnable::run);
+		return result;
+	}
+
+	private void notifyListeners(Runnable notification) {
+		List<Runnable> notifications = deferred.get();
+
+		if (notifications == null) {
+			notification.run();
+		} else {
+			notifications.add(notification);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void store(ImageRecord image) throws RepositoryException {
+		imageRepository.store(image);
+
+		notifyListeners(() -> {
+			for (ImageRepositoryListener listener : listeners) {
+				listener.imageStored(image);
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<ImageRecord> getByHash(long hash) throws RepositoryException {
+		return imageRepository.getByHash(hash);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ImageRecord getByPath(Path path) throws RepositoryException {
+		return imageRepository.getByPath(path);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<ImageRecord> startsWithPath(Path directory) throws RepositoryException {
+		return imageRepository.startsWithPath(directory);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void remove(ImageRecord image) throws RepositoryException {
+		imageRepository.remove(image);
+
+		notifyListeners(() -> {
+			for (ImageRepositoryListener listener : listeners) {
+				listener.imageRemoved(image);
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void remove(Collection<ImageRecord> images) throws RepositoryException {
+		imageRepository.remove(images);
+
+		notifyListeners(() -> {
+			for (ImageRecord image : images) {
+				for (ImageRepositoryListener listener : listeners) {
+					listener.imageRemoved(image);
+				}
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<ImageRecord> getAll() throws RepositoryException {
+		return imageRepository.getAll();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<ImageRecord> getAllWithoutIgnored() throws RepositoryException {
+		return imageRepository.getAllWithoutIgnored();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<ImageRecord> getAllWithoutIgnored(Path directory) throws RepositoryException {
+		return imageRepository.getAllWithoutIgnored(directory);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CloseableIterator<ImageRecord> iterateAll() throws RepositoryException {
+		return imageRepository.iterateAll();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CloseableIterator<ImageRecord> iterateStartsWithPath(Path directory) throws RepositoryException {
+		return imageRepository.iterateStartsWithPath(directory);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CloseableIterator<ImageRecord> iterateAllWithoutIgnored() throws RepositoryException {
+		return imageRepository.iterateAllWithoutIgnored();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CloseableIterator<ImageRecord> iterateAllWithoutIgnored(Path directory) throws RepositoryException {
+		return imageRepository.iterateAllWithoutIgnored(directory);
+	}
+}
@@ -0,0 +1,407 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.db.repository;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.j256.ormlite.dao.CloseableIterator;
+import com.j256.ormlite.misc.TransactionManager;
+
+/**
+ * Decorator for a {@link ImageRepository} that defers stores. Stored records are collected in a bounded queue and
+ * written to the delegate in a single transaction, once a batch is full or the maximum delay has passed. Callers of
+ * {@link #store(ImageRecord)} block while the queue is full.
+ * <p>
+ * All other operations flush the queue first, so they see every record stored before the call. The repository must be
+ * closed on shutdown, or queued records are lost. If the delegate is an {@link ObservableImageRepository}, its
+ * listeners are notified of a batch after the transaction is committed.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class WriteBehindImageRepository implements ImageRepository, Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindImageRepository.class);
+
+	/**
+	 * Number of batches that can be queued before stores block.
+	 */
+	public static final int QUEUED_BATCHES = 4;
+
+	public static final String METRIC_NAME_QUEUE_DEPTH = MetricRegistry.name(WriteBehindImageRepository.class,
+			"queue", "depth");
+	public static final String METRIC_NAME_FLUSH_LATENCY = MetricRegistry.name(WriteBehindImageRepository.class,
+			"flush", "latency");
+	public static final String METRIC_NAME_FAILED_RECORDS = MetricRegistry.name(WriteBehindImageRepository.class,
+			"failed", "records");
+
+	private final ImageRepository imageRepository;
+	private final TransactionManager transactionManager;
+	private final int batchSize;
+	private final long maxDelayNanos;
+
+	private final BlockingQueue<ImageRecord> queue;
+	private final Object flushLock = new Object();
+	private final Object flushSignal = new Object();
+	private final Thread flusher;
+	private volatile boolean closed;
+
+	private final Counter queueDepth;
+	private final Timer flushLatency;
+	private final Counter failedRecords;
+
+	/**
+	 * Wrap the repository and write stored records in batches, using a private {@link MetricRegistry}.
+	 * 
+	 * @param imageRepository
+	 *            the repository to delegate to
+	 * @param transactionManager
+	 *            used to write each batch in a single transaction
+	 * @param batchSize
+	 *            maximum number of records written per transaction, a flush is triggered when this many records are
+	 *            queued
+	 * @param maxDelay
+	 *            maximum time a record is queued before it is written
+	 * @param unit
+	 *            of the delay
+	 */
+	public WriteBehindImageRepository(ImageRepository imageRepository, TransactionManager transactionManager,
+			int batchSize, long maxDelay, TimeUnit unit) {
+		this(imageRepository, transactionManager, batchSize, maxDelay, unit, new MetricRegistry());
+	}
+
+	/**
+	 * Wrap the repository and write stored records in batches.
+	 * 
+	 * @param imageRepository
+	 *            the repository to delegate to
+	 * @param transactionManager
+	 *            used to write each batch in a single transaction
+	 * @param batchSize
+	 *            maximum number of records written per transaction, a flush is triggered when this many records are
+	 *            queued
+	 * @param maxDelay
+	 *            maximum time a record is queued before it is written
+	 * @param unit
+	 *            of the delay
+	 * @param metrics
+	 *            for tracking queue depth and flush latency
+	 */
+	public WriteBehindImageRepository(ImageRepository imageRepository, TransactionManager transactionManager,
+			int batchSize, long maxDelay, TimeUnit unit, MetricRegistry metrics) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		}
+
+		if (maxDelay < 1) {
+			throw new IllegalArgumentException("Maximum delay must be greater than 0");
+		}
+
+		this.imageRepository = imageRepository;
+		this.transactionManager = transactionManager;
+		this.batchSize = batchSize;
+		this.maxDelayNanos = unit.toNanos(maxDelay);
+		this.queue = new ArrayBlockingQueue<>(batchSize * QUEUED_BATCHES);
+
+		this.queueDepth = metrics.counter(METRIC_NAME_QUEUE_DEPTH);
+		this.flushLatency = metrics.timer(METRIC_NAME_FLUSH_LATENCY);
+		this.failedRecords = metrics.counter(METRIC_NAME_FAILED_RECORDS);
+
+		this.flusher = new Thread(this::runFlusher, WriteBehindImageRepository.class.getSimpleName() + " flusher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	private void runFlusher() {
+		while (!closed) {
+			awaitFlush();
+			flush();
+		}
+	}
+
+	private void awaitFlush() {
+		long deadline = System.nanoTime() + maxDelayNanos;
+
+		synchronized (flushSignal) {
+			long remaining = maxDelayNanos;
+
+			while (!closed && queue.size() < batchSize && remaining > 0) {
+				try {
+					TimeUnit.NANOSECONDS.timedWait(flushSignal, remaining);
+				} catch (InterruptedException e) {
+					LOGGER.debug("Flusher interrupted");
+					return;
+				}
+
+				remaining = deadline - System.nanoTime();
+			}
+		}
+	}
+
+	private void signalFlush() {
+		synchronized (flushSignal) {
+			flushSignal.notifyAll();
+		}
+	}
+
+	/**
+	 * Queue the {@link ImageRecord} for storing. Blocks if the queue is full. Once the repository is closed, records
+	 * are written directly to the delegate.
+	 * 
+	 * @param image
+	 *            to store
+	 * @throws RepositoryException
+	 *             if interrupted while waiting for space in the queue, or the direct write failed
+	 */
+	@Override
+	public void store(ImageRecord image) throws RepositoryException {
+		if (closed) {
+			imageRepository.store(image);
+			return;
+		}
+
+		try {
+			queue.put(image);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RepositoryException("Interrupted while queueing image " + image.getPath(), e);
+		}
+
+		queueDepth.inc();
+
+		if (closed) {
+			// close() may have done its final flush between the check above and the put
+			flush();
+		} else if (queue.size() >= batchSize) {
+			signalFlush();
+		}
+	}
+
+	/**
+	 * Write all queued records to the delegate, one transaction per batch. Records that fail to store are logged and
+	 * discarded.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			List<ImageRecord> batch = new ArrayList<>(batchSize);
+
+			while (queue.drainTo(batch, batchSize) > 0) {
+				queueDepth.dec(batch.size());
+				writeBatch(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private void writeBatch(List<ImageRecord> batch) {
+		long start = System.nanoTime();
+
+		Callable<Void> storeBatch = () -> {
+			for (ImageRecord image : batch) {
+				imageRepository.store(image);
+			}
+
+			return null;
+		};
+
+		try {
+			if (imageRepository instanceof ObservableImageRepository) {
+				((ObservableImageRepository) imageRepository).callInTransaction(transactionManager, storeBatch);
+			} else {
+				transactionManager.callInTransaction(storeBatch);
+			}
+		} catch (SQLException e) {
+			LOGGER.warn("Failed to store batch of {} images, storing individually: {}", batch.size(), e.toString());
+			storeIndividually(batch);
+		}
+
+		flushLatency.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		LOGGER.trace("Flushed {} images", batch.size());
+	}
+
+	private void storeIndividually(List<ImageRecord> batch) {
+		for (ImageRecord image : batch) {
+			try {
+				imageRepository.store(image);
+			} catch (RepositoryException e) {
+				failedRecords.inc();
+				LOGGER.warn("Failed to store image {}: {}", image.getPath(), e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Stop the background flusher and write all queued records. Records stored after closing are written directly to
+	 * the delegate. Stores that are queued while closing are flushed by the storing thread, so no record is lost.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		signalFlush();
+
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.warn("Interrupted while waiting for the flusher to stop");
+		}
+
+		flush();
+	}
+
+	/**
+	 * Get the number of records waiting to be written.
+	 * 
+	 * @return number of queued records
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * Get the timer that tracks the time taken to write a batch.
+	 * 
+	 * @return the flush latency timer
+	 */
+	public Timer getFlushLatency() {
+		return flushLatency;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<ImageRecord> getByHash(long hash) throws RepositoryException {
+		flush();
+		return imageRepository.getByHash(hash);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ImageRecord getByPath(Path path) throws RepositoryException {
+		flush();
+		return imageRepository.getByPath(path);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<ImageRecord> startsWithPath(Path directory) throws RepositoryException {
+		flush();
+		return imageRepository.startsWithPath(directory);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void remove(ImageRecord image) throws RepositoryException {
+		flush();
+		imageRepository.remove(image);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void remove(Collection<ImageRecord> images) throws RepositoryException {
+		flush();
+		imageRepository.remove(images);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<ImageRecord> getAll() throws RepositoryException {
+		flush();
+		return imageRepository.getAll();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<ImageRecord> getAllWithoutIgnored() throws RepositoryException {
+		flush();
+		return imageRepository.getAllWithoutIgnored();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<ImageRecord> getAllWithoutIgnored(Path directory) throws RepositoryException {
+		flush();
+		return imageRepository.getAllWithoutIgnored(directory);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CloseableIterator<ImageRecord> iterateAll() throws RepositoryException {
+		flush();
+		return imageRepository.iterateAll();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CloseableIterator<ImageRecord> iterateStartsWithPath(Path directory) throws RepositoryException {
+		flush();
+		return imageRepository.iterateStartsWithPath(directory);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CloseableIterator<ImageRecord> iterateAllWithoutIgnored() throws RepositoryException {
+		flush();
+		return imageRepository.iterateAllWithoutIgnored();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CloseableIterator<ImageRecord> iterateAllWithoutIgnored(Path directory) throws RepositoryException {
+		flush();
+		return imageRepository.iterateAllWithoutIgnored(directory);
+	}
+}
@@ -26,6 +26,7 @@ import com.github.dozedoff.similarImage.db.IgnoreRecord;
 import com.github.dozedoff.similarImage.db.ImageRecord;
 import com.github.dozedoff.similarImage.db.repository.ImageRepository;
 import com.github.dozedoff.similarImage.db.repository.RepositoryException;
+import com.j256.ormlite.dao.CloseableIterator;
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.stmt.PreparedQuery;
 import com.j256.ormlite.stmt.QueryBuilder;
@@ -35,6 +36,7 @@ public class OrmliteImageRepository implements ImageRepository {
 	private static final String STRING_QUERY_WILDCARD = "%";
 	private final Dao<ImageRecord, String> imageDao;
 
+	private PreparedQuery<ImageRecord> queryAll;
 	private PreparedQuery<ImageRecord> queryStartsWithPath;
 	private PreparedQuery<ImageRecord> queryNotIgnored;
 	private PreparedQuery<ImageRecord> queryNotIgnoredWithPath;
@@ -56,6 +58,7 @@ public class OrmliteImageRepository implements ImageRepository {
 		argStartsWithPath = new SelectArg();
 
 		try {
+			queryAll = imageDao.queryBuilder().prepare();
 			queryStartsWithPath = imageDao.queryBuilder().where().like(ImageRecord.PATH_COLUMN_NAME, argStartsWithPath)
 					.prepare();
 			QueryBuilder<IgnoreRecord, String> ignored = ignoreDao.queryBuilder();
@@ -179,4 +182,58 @@ public class OrmliteImageRepository implements ImageRepository {
 			throw new RepositoryException("Failed to query for non-ignored with path", e);
 		}
 	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CloseableIterator<ImageRecord> iterateAll() throws RepositoryException {
+		try {
+			return imageDao.iterator(queryAll);
+		} catch (SQLException e) {
+			throw new RepositoryException("Failed to iterate all", e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized CloseableIterator<ImageRecord> iterateStartsWithPath(Path directory)
+			throws RepositoryException {
+		argStartsWithPath.setValue(directory.toString() + STRING_QUERY_WILDCARD);
+
+		try {
+			return imageDao.iterator(queryStartsWithPath);
+		} catch (SQLException e) {
+			throw new RepositoryException("Failed to iterate starts with path", e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CloseableIterator<ImageRecord> iterateAllWithoutIgnored() throws RepositoryException {
+		try {
+			return imageDao.iterator(queryNotIgnored);
+		} catch (SQLException e) {
+			throw new RepositoryException("Failed to iterate non-ignored", e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized CloseableIterator<ImageRecord> iterateAllWithoutIgnored(Path directory)
+			throws RepositoryException {
+		argStartsWithPath.setValue(directory.toString() + STRING_QUERY_WILDCARD);
+
+		try {
+			return imageDao.iterator(queryNotIgnoredWithPath);
+		} catch (SQLException e) {
+			throw new RepositoryException("Failed to iterate non-ignored with path", e);
+		}
+	}
 }
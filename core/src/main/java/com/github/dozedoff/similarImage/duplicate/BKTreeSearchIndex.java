@@ -0,0 +1,59 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+import org.everpeace.search.BKTree;
+
+/**
+ * {@link SearchIndex} backed by a {@link BKTree}.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class BKTreeSearchIndex implements SearchIndex {
+	private BKTree<Long> bkTree;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void build(Collection<Long> hashes) {
+		if (hashes.isEmpty()) {
+			bkTree = null;
+			return;
+		}
+
+		bkTree = BKTree.build(hashes, new CompareHammingDistance());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Set<Long> searchWithin(long hash, long hammingDistance) {
+		if (bkTree == null) {
+			return Collections.emptySet();
+		}
+
+		return bkTree.searchWithin(hash, (double) hammingDistance);
+	}
+}
@@ -0,0 +1,157 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+/**
+ * Detects degenerate hashes, that carry too little information to be useful in a similarity search. Blank, solid
+ * colour and very small images produce hashes with almost all bits set or unset, such as 0 and -1. Such hashes are
+ * shared by a large number of unrelated images, and at a distance greater than 0 every one of them ends up in the
+ * neighbouring groups.
+ * <p>
+ * A hash is degenerate if it's bit balance, the smaller of the number of set and unset bits, is below the minimum, or
+ * if more records than the maximum population share the hash.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class DegenerateHashFilter {
+	private static final int HASH_BITS = Long.SIZE;
+
+	/**
+	 * Default minimum bit balance, hashes with fewer than 8 set or unset bits are degenerate.
+	 */
+	public static final int DEFAULT_MIN_BIT_BALANCE = 8;
+	/**
+	 * Default maximum population, hashes shared by more than 1000 records are degenerate.
+	 */
+	public static final int DEFAULT_MAX_POPULATION = 1000;
+	/**
+	 * Population limit that does not limit the records per hash.
+	 */
+	public static final int NO_POPULATION_LIMIT = Integer.MAX_VALUE;
+
+	private final int minBitBalance;
+	private final int maxPopulation;
+
+	/**
+	 * Create a filter with a minimum bit balance of {@value #DEFAULT_MIN_BIT_BALANCE} and a maximum population of
+	 * {@value #DEFAULT_MAX_POPULATION}.
+	 */
+	public DegenerateHashFilter() {
+		this(DEFAULT_MIN_BIT_BALANCE, DEFAULT_MAX_POPULATION);
+	}
+
+	/**
+	 * Create a filter with the given limits.
+	 * 
+	 * @param minBitBalance
+	 *            hashes with fewer set or unset bits are degenerate, from 0 to 32, 0 to disable
+	 * @param maxPopulation
+	 *            hashes shared by more records are degenerate, {@link #NO_POPULATION_LIMIT} to disable
+	 * @throws IllegalArgumentException
+	 *             if a limit is out of range
+	 */
+	public DegenerateHashFilter(int minBitBalance, int maxPopulation) throws IllegalArgumentException {
+		if (minBitBalance < 0 || minBitBalance > HASH_BITS / 2) {
+			throw new IllegalArgumentException("Minimum bit balance must be between 0 and " + HASH_BITS / 2);
+		}
+
+		if (maxPopulation < 1) {
+			throw new IllegalArgumentException("Maximum population must be 1 or greater");
+		}
+
+		this.minBitBalance = minBitBalance;
+		this.maxPopulation = maxPopulation;
+	}
+
+	/**
+	 * Get the bit balance of a hash, the smaller of the number of set and unset bits.
+	 * 
+	 * @param hash
+	 *            to check
+	 * @return the bit balance, from 0 to 32
+	 */
+	public static int bitBalance(long hash) {
+		int setBits = Long.bitCount(hash);
+		return Math.min(setBits, HASH_BITS - setBits);
+	}
+
+	/**
+	 * Check if the hash has too few set or unset bits.
+	 * 
+	 * @param hash
+	 *            to check
+	 * @return true if the bit balance is below the minimum
+	 */
+	public boolean isLowEntropy(long hash) {
+		return bitBalance(hash) < minBitBalance;
+	}
+
+	/**
+	 * Check if the hash is degenerate.
+	 * 
+	 * @param hash
+	 *            to check
+	 * @param population
+	 *            number of records with this hash
+	 * @return true if the hash has a low entropy or is shared by too many records
+	 */
+	public boolean isDegenerate(long hash, int population) {
+		return isLowEntropy(hash) || population > maxPopulation;
+	}
+
+	/**
+	 * Select the groups with a degenerate hash.
+	 * 
+	 * @param groups
+	 *            records grouped by hash
+	 * @return the groups with degenerate hashes
+	 */
+	public HashGroups selectDegenerate(HashGroups groups) {
+		return groups.select(i -> isDegenerate(groups.hashAt(i), groups.groupAt(i).size()));
+	}
+
+	/**
+	 * Select the groups that can be searched, the groups whose hash is not degenerate.
+	 * 
+	 * @param groups
+	 *            records grouped by hash
+	 * @return the groups without degenerate hashes
+	 */
+	public HashGroups selectSearchable(HashGroups groups) {
+		return groups.select(i -> !isDegenerate(groups.hashAt(i), groups.groupAt(i).size()));
+	}
+
+	/**
+	 * Get the minimum bit balance.
+	 * 
+	 * @return hashes with fewer set or unset bits are degenerate
+	 */
+	public int getMinBitBalance() {
+		return minBitBalance;
+	}
+
+	/**
+	 * Get the maximum population.
+	 * 
+	 * @return hashes shared by more records are degenerate
+	 */
+	public int getMaxPopulation() {
+		return maxPopulation;
+	}
+}
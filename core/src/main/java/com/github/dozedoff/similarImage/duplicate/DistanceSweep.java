@@ -0,0 +1,213 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.util.TaskProgress;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.MultimapBuilder;
+
+/**
+ * Matches of every hash for all distances up to a maximum, found with a single query per hash. The groups for any
+ * distance up to the maximum can be created without searching again. Groups are nested, the group of a hash at a
+ * distance contains all images of the group at a smaller distance.
+ * <p>
+ * The matches of every hash are stored sorted by distance, as positions in the {@link HashGroups} that were searched.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public final class DistanceSweep {
+	/**
+	 * Number of hashes that are sorted between checks for cancellation.
+	 */
+	private static final int CHECK_INTERVAL = 1024;
+	/**
+	 * Name of the sorting step in progress updates.
+	 */
+	public static final String STAGE_SWEEP = "sweep";
+
+	private final HashGroups groups;
+	private final int maxDistance;
+	private final int[] matchStart;
+	private final int[] matchIndex;
+	private final byte[] matchDistance;
+
+	private DistanceSweep(HashGroups groups, int maxDistance, int[] matchStart, int[] matchIndex,
+			byte[] matchDistance) {
+		this.groups = groups;
+		this.maxDistance = maxDistance;
+		this.matchStart = matchStart;
+		this.matchIndex = matchIndex;
+		this.matchDistance = matchDistance;
+	}
+
+	/**
+	 * Search matches for all hashes of the {@link RecordSearch} at the maximum distance. The search must have been
+	 * built.
+	 * 
+	 * @param recordSearch
+	 *            to query for matches
+	 * @param maxDistance
+	 *            the largest distance groups can be created for
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * @return the matches of every hash
+	 * @throws IllegalArgumentException
+	 *             if the maximum distance is negative or larger than the hash size
+	 * @throws CancellationException
+	 *             if the sweep was cancelled
+	 */
+	public static DistanceSweep sweep(RecordSearch recordSearch, int maxDistance, TaskProgress progress)
+			throws IllegalArgumentException, CancellationException {
+		if (maxDistance < 0 || maxDistance > Long.SIZE) {
+			throw new IllegalArgumentException("Maximum distance must be between 0 and " + Long.SIZE);
+		}
+
+		HashGroups groups = recordSearch.getGroups();
+		int distinct = groups.distinctHashes();
+		Map<Long, Set<Long>> matches = recordSearch.distanceMatchHashes(groups.hashes(), maxDistance, progress);
+
+		int[] matchStart = new int[distinct + 1];
+
+		for (int i = 0; i < distinct; i++) {
+			matchStart[i + 1] = matchStart[i] + hashMatches(matches, groups.hashAt(i)).size();
+		}
+
+		int[] matchIndex = new int[matchStart[distinct]];
+		byte[] matchDistance = new byte[matchStart[distinct]];
+
+		for (int i = 0; i < distinct; i++) {
+			if (i % CHECK_INTERVAL == 0) {
+				progress.checkCancelled();
+				progress.update(STAGE_SWEEP, i, distinct);
+			}
+
+			sortByDistance(groups, groups.hashAt(i), hashMatches(matches, groups.hashAt(i)), matchStart[i],
+					matchIndex, matchDistance);
+		}
+
+		progress.update(STAGE_SWEEP, 1);
+		return new DistanceSweep(groups, maxDistance, matchStart, matchIndex, matchDistance);
+	}
+
+	private static Set<Long> hashMatches(Map<Long, Set<Long>> matches, long hash) {
+		return matches.getOrDefault(hash, Collections.emptySet());
+	}
+
+	/**
+	 * Distance and position are packed into a single long, so the matches can be sorted as primitives.
+	 */
+	private static void sortByDistance(HashGroups groups, long hash, Set<Long> matches, int offset, int[] matchIndex,
+			byte[] matchDistance) {
+		long[] packed = new long[matches.size()];
+		int i = 0;
+
+		for (long match : matches) {
+			long distance = Long.bitCount(hash ^ match);
+			packed[i++] = distance << Integer.SIZE | groups.indexOf(match);
+		}
+
+		Arrays.sort(packed);
+
+		for (i = 0; i < packed.length; i++) {
+			matchDistance[offset + i] = (byte) (packed[i] >>> Integer.SIZE);
+			matchIndex[offset + i] = (int) packed[i];
+		}
+	}
+
+	/**
+	 * Create the groups for the given distance. The result is the same as grouping at that distance with
+	 * {@link RecordSearch#distanceMatchHashes(long, long)}.
+	 * 
+	 * @param distance
+	 *            to group images with, from 0 to the maximum distance
+	 * @return a {@link Multimap} with a group for every hash
+	 * @throws IllegalArgumentException
+	 *             if the distance is outside of the swept range
+	 */
+	public Multimap<Long, ImageRecord> groupsAt(int distance) throws IllegalArgumentException {
+		checkDistance(distance);
+
+		int distinct = groups.distinctHashes();
+		Multimap<Long, ImageRecord> resultMap = MultimapBuilder.hashKeys(distinct).hashSetValues().build();
+
+		for (int i = 0; i < distinct; i++) {
+			long hash = groups.hashAt(i);
+
+			for (int m = matchStart[i]; m < matchStart[i + 1] && matchDistance[m] <= distance; m++) {
+				resultMap.putAll(hash, groups.groupAt(matchIndex[m]));
+			}
+		}
+
+		return resultMap;
+	}
+
+	/**
+	 * Count the pairs of distinct hashes that are at or within the given distance. Every pair is counted once.
+	 * 
+	 * @param distance
+	 *            to count pairs for, from 0 to the maximum distance
+	 * @return number of matching hash pairs
+	 * @throws IllegalArgumentException
+	 *             if the distance is outside of the swept range
+	 */
+	public long pairsWithin(int distance) throws IllegalArgumentException {
+		checkDistance(distance);
+
+		long pairs = 0;
+
+		for (int m = 0; m < matchDistance.length; m++) {
+			if (matchDistance[m] > 0 && matchDistance[m] <= distance) {
+				pairs++;
+			}
+		}
+
+		return pairs / 2;
+	}
+
+	private void checkDistance(int distance) throws IllegalArgumentException {
+		if (distance < 0 || distance > maxDistance) {
+			throw new IllegalArgumentException("Distance must be between 0 and " + maxDistance);
+		}
+	}
+
+	/**
+	 * Get the largest distance groups can be created for.
+	 * 
+	 * @return the distance used for searching
+	 */
+	public int getMaxDistance() {
+		return maxDistance;
+	}
+
+	/**
+	 * Get the records that were searched.
+	 * 
+	 * @return the searched records grouped by hash
+	 */
+	public HashGroups getGroups() {
+		return groups;
+	}
+}
@@ -19,10 +19,9 @@ package com.github.dozedoff.similarImage.duplicate;
 
 import java.math.BigInteger;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.Objects;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,15 +72,17 @@ public abstract class DuplicateUtil {
 	}
 
 	/**
-	 * Remove results of queries with the same set of resulting hashes.
+	 * Remove results of queries with the same set of resulting hashes. Groups are compared by an order independent
+	 * fingerprint, the records are only compared if the fingerprints match.
 	 * 
 	 * @param records
 	 *            to scan and merge if needed
+	 * @return the number of groups that were removed
 	 */
-	public static void removeDuplicateSets(Multimap<Long, ImageRecord> records) {
+	public static long removeDuplicateSets(Multimap<Long, ImageRecord> records) {
 		logger.info("Checking {} groups for duplicates", records.keySet().size());
 		Stopwatch sw = Stopwatch.createStarted();
-		Set<Collection<ImageRecord>> uniqueRecords = new HashSet<Collection<ImageRecord>>(records.keySet().size());
+		UniqueGroups uniqueRecords = new UniqueGroups(records.keySet().size());
 
 		Iterator<Collection<ImageRecord>> recordIter = records.asMap().values().iterator();
 		long removedGroups = 0;
@@ -95,7 +96,80 @@ public abstract class DuplicateUtil {
 			}
 		}
 
-		logger.info("Checked groups in {}, removed {} identical groups", sw, removedGroups);
+		logger.info("Checked groups in {}, removed {} identical groups, {} fingerprint collisions", sw, removedGroups,
+				uniqueRecords.getFingerprintCollisions());
+
+		return removedGroups;
+	}
+
+	/**
+	 * Calculate a 128 bit fingerprint for the group, that does not depend on the order of the records. Groups with
+	 * the same records always have the same fingerprint.
+	 * 
+	 * @param group
+	 *            records to fingerprint
+	 * @return the fingerprint of the group
+	 */
+	protected static GroupFingerprint fingerprint(Collection<ImageRecord> group) {
+		long low = 0;
+		long high = 0;
+
+		for (ImageRecord record : group) {
+			long key = 0;
+
+			if (record != null) {
+				key = record.getpHash() * 0x9E3779B97F4A7C15L + Objects.hashCode(record.getPath());
+			}
+
+			low += mix(key);
+			high += mix(key ^ 0xC2B2AE3D27D4EB4FL);
+		}
+
+		return new GroupFingerprint(low, high, group.size());
+	}
+
+	/**
+	 * 64 bit finalizer from SplitMix64.
+	 */
+	private static long mix(long value) {
+		long z = value + 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Order independent fingerprint of a group of records.
+	 */
+	protected static final class GroupFingerprint {
+		private final long low;
+		private final long high;
+		private final int size;
+
+		private GroupFingerprint(long low, long high, int size) {
+			this.low = low;
+			this.high = high;
+			this.size = size;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (low ^ (low >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+
+			if (!(obj instanceof GroupFingerprint)) {
+				return false;
+			}
+
+			GroupFingerprint other = (GroupFingerprint) obj;
+			return low == other.low && high == other.high && size == other.size;
+		}
 	}
 
 	protected static final BigInteger hashSum(Collection<Long> hashes) {
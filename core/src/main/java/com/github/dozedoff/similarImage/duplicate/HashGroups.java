@@ -0,0 +1,528 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.IntPredicate;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.MultimapBuilder;
+
+/**
+ * Compact, read-only grouping of {@link ImageRecord}s by hash. Records are stored in a single array sorted by hash, so
+ * every group is a range in that array. Ranges are found with an open-addressing table keyed on the primitive hash, so
+ * neither the hashes nor the groups need to be boxed or wrapped in collections.
+ * <p>
+ * Records are sorted by hash with a {@link HashRadixSort} on the primitive hashes, only records within a group are
+ * compared by path.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public final class HashGroups {
+	private static final Comparator<ImageRecord> BY_PATH = Comparator.comparing(ImageRecord::getPath,
+			Comparator.nullsFirst(Comparator.naturalOrder()));
+
+	/**
+	 * Approximate size of an object reference, assumes 64 bit references without compression.
+	 */
+	private static final int REFERENCE_BYTES = 8;
+	private static final int EMPTY_SLOT = 0;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final ImageRecord[] records;
+	private final long[] hashes;
+	/**
+	 * Records with the hash at index i are stored from groupStart[i] (inclusive) to groupStart[i + 1] (exclusive).
+	 */
+	private final int[] groupStart;
+	/**
+	 * Open addressing table, contains the index of the hash + 1, or {@value #EMPTY_SLOT} for empty slots.
+	 */
+	private final int[] table;
+	private final int tableMask;
+
+	private HashGroups(ImageRecord[] records, long[] hashes, int[] groupStart, int distinctHashes) {
+		this.records = records;
+		this.hashes = hashes;
+		this.groupStart = groupStart;
+
+		int capacity = Integer.highestOneBit(Math.max(2, distinctHashes) * 2 - 1) << 1;
+		this.table = new int[capacity];
+		this.tableMask = capacity - 1;
+
+		for (int i = 0; i < distinctHashes; i++) {
+			int slot = slot(hashes[i]);
+
+			while (table[slot] != EMPTY_SLOT) {
+				slot = (slot + 1) & tableMask;
+			}
+
+			table[slot] = i + 1;
+		}
+	}
+
+	/**
+	 * Group the records by hash. Identical records are only included once.
+	 * 
+	 * @param dbRecords
+	 *            records to group
+	 * @return the records grouped by hash
+	 */
+	public static HashGroups group(Collection<ImageRecord> dbRecords) {
+		ImageRecord[] collected = dbRecords.toArray(new ImageRecord[dbRecords.size()]);
+		return groupRecords(collected, collected.length);
+	}
+
+	/**
+	 * Group the records by hash, consuming the iterator. The records are collected directly into the grouping
+	 * structure, so no intermediate collection is created. Identical records are only included once.
+	 * 
+	 * @param dbRecords
+	 *            records to group, the iterator will be exhausted
+	 * @return the records grouped by hash
+	 */
+	public static HashGroups group(Iterator<ImageRecord> dbRecords) {
+		ImageRecord[] collected = new ImageRecord[INITIAL_CAPACITY];
+		int length = 0;
+
+		while (dbRecords.hasNext()) {
+			if (length == collected.length) {
+				collected = Arrays.copyOf(collected, collected.length + (collected.length >> 1));
+			}
+
+			collected[length++] = dbRecords.next();
+		}
+
+		return groupRecords(collected, length);
+	}
+
+	private static HashGroups groupRecords(ImageRecord[] collected, int length) {
+		long[] sortedHashes = new long[length];
+
+		for (int i = 0; i < length; i++) {
+			sortedHashes[i] = collected[i].getpHash();
+		}
+
+		int[] order = HashRadixSort.sort(sortedHashes);
+		ImageRecord[] sorted = new ImageRecord[length];
+
+		for (int i = 0; i < length; i++) {
+			sorted[i] = collected[order[i]];
+		}
+
+		int unique = 0;
+
+		for (int runStart = 0; runStart < length;) {
+			int runEnd = runStart + 1;
+
+			while (runEnd < length && sortedHashes[runEnd] == sortedHashes[runStart]) {
+				runEnd++;
+			}
+
+			if (runEnd - runStart > 1) {
+				Arrays.sort(sorted, runStart, runEnd, BY_PATH);
+			}
+
+			int groupStart = unique;
+
+			for (int i = runStart; i < runEnd; i++) {
+				if (unique > groupStart && sorted[i].equals(sorted[unique - 1])) {
+					continue;
+				}
+
+				sorted[unique++] = sorted[i];
+			}
+
+			runStart = runEnd;
+		}
+
+		return fromSorted(unique == sorted.length ? sorted : Arrays.copyOf(sorted, unique));
+	}
+
+	/**
+	 * Create the grouping for records that are sorted by hash, and by path within a hash, without duplicates.
+	 */
+	private static HashGroups fromSorted(ImageRecord[] records) {
+		int distinct = 0;
+
+		for (int i = 0; i < records.length; i++) {
+			if (i == 0 || records[i].getpHash() != records[i - 1].getpHash()) {
+				distinct++;
+			}
+		}
+
+		long[] hashes = new long[distinct];
+		int[] groupStart = new int[distinct + 1];
+		int group = -1;
+
+		for (int i = 0; i < records.length; i++) {
+			if (group < 0 || records[i].getpHash() != hashes[group]) {
+				group++;
+				hashes[group] = records[i].getpHash();
+				groupStart[group] = i;
+			}
+		}
+
+		groupStart[distinct] = records.length;
+
+		return new HashGroups(records, hashes, groupStart, distinct);
+	}
+
+	private int slot(long hash) {
+		long mixed = hash * 0x9E3779B97F4A7C15L;
+		return (int) (mixed ^ (mixed >>> 32)) & tableMask;
+	}
+
+	/**
+	 * Get the position of the hash in {@link #hashes()}.
+	 * 
+	 * @param hash
+	 *            to look up
+	 * @return the index of the hash, or -1 if there are no records with this hash
+	 */
+	public int indexOf(long hash) {
+		int slot = slot(hash);
+
+		while (table[slot] != EMPTY_SLOT) {
+			int index = table[slot] - 1;
+
+			if (hashes[index] == hash) {
+				return index;
+			}
+
+			slot = (slot + 1) & tableMask;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Check if there are records with the given hash.
+	 * 
+	 * @param hash
+	 *            to check
+	 * @return true if at least one record has this hash
+	 */
+	public boolean contains(long hash) {
+		return indexOf(hash) >= 0;
+	}
+
+	/**
+	 * Get all records with the given hash.
+	 * 
+	 * @param hash
+	 *            to look up
+	 * @return a read-only view of the records, empty if there are none
+	 */
+	public List<ImageRecord> get(long hash) {
+		int index = indexOf(hash);
+
+		if (index < 0) {
+			return Collections.emptyList();
+		}
+
+		return groupAt(index);
+	}
+
+	/**
+	 * Get the number of records with the given hash.
+	 * 
+	 * @param hash
+	 *            to look up
+	 * @return number of records with this hash
+	 */
+	public int count(long hash) {
+		int index = indexOf(hash);
+
+		if (index < 0) {
+			return 0;
+		}
+
+		return groupStart[index + 1] - groupStart[index];
+	}
+
+	/**
+	 * Get the records for the hash at the given position in {@link #hashes()}.
+	 * 
+	 * @param index
+	 *            of the hash
+	 * @return a read-only view of the records
+	 */
+	public List<ImageRecord> groupAt(int index) {
+		return Collections.unmodifiableList(Arrays.asList(records).subList(groupStart[index], groupStart[index + 1]));
+	}
+
+	/**
+	 * Get the hash at the given position, hashes are sorted in ascending order.
+	 * 
+	 * @param index
+	 *            of the hash
+	 * @return the hash
+	 */
+	public long hashAt(int index) {
+		return hashes[index];
+	}
+
+	/**
+	 * A read-only view of the distinct hashes, in ascending order.
+	 * 
+	 * @return the distinct hashes
+	 */
+	public List<Long> hashes() {
+		return new HashList(hashes);
+	}
+
+	/**
+	 * Read-only view of the sorted hashes.
+	 */
+	private static final class HashList extends AbstractList<Long> implements RandomAccess {
+		private final long[] hashes;
+
+		HashList(long[] hashes) {
+			this.hashes = hashes;
+		}
+
+		@Override
+		public Long get(int index) {
+			return hashes[index];
+		}
+
+		@Override
+		public int size() {
+			return hashes.length;
+		}
+	}
+
+	/**
+	 * The number of distinct hashes.
+	 * 
+	 * @return number of groups
+	 */
+	public int distinctHashes() {
+		return hashes.length;
+	}
+
+	/**
+	 * The number of records in all groups.
+	 * 
+	 * @return total number of records
+	 */
+	public int size() {
+		return records.length;
+	}
+
+	/**
+	 * Check if there are any records.
+	 * 
+	 * @return true if there are no records
+	 */
+	public boolean isEmpty() {
+		return records.length == 0;
+	}
+
+	/**
+	 * Approximate memory used by this structure, excluding the {@link ImageRecord}s themselves.
+	 * 
+	 * @return size in bytes
+	 */
+	public long estimatedBytes() {
+		return (long) records.length * REFERENCE_BYTES + (long) hashes.length * Long.BYTES
+				+ (long) groupStart.length * Integer.BYTES + (long) table.length * Integer.BYTES;
+	}
+
+	/**
+	 * Approximate memory used per record, see {@link #estimatedBytes()}.
+	 * 
+	 * @return bytes per record, 0 if empty
+	 */
+	public double bytesPerRecord() {
+		if (isEmpty()) {
+			return 0;
+		}
+
+		return (double) estimatedBytes() / records.length;
+	}
+
+	/**
+	 * Create a new grouping that only contains the selected groups. The order of hashes and records is kept.
+	 * 
+	 * @param selected
+	 *            tests the position of a hash, see {@link #hashAt(int)}, and returns true if the group should be kept
+	 * @return the selected groups
+	 */
+	public HashGroups select(IntPredicate selected) {
+		int selectedHashes = 0;
+		int selectedRecords = 0;
+
+		for (int i = 0; i < hashes.length; i++) {
+			if (selected.test(i)) {
+				selectedHashes++;
+				selectedRecords += groupStart[i + 1] - groupStart[i];
+			}
+		}
+
+		ImageRecord[] selectedRecordArray = new ImageRecord[selectedRecords];
+		long[] selectedHashArray = new long[selectedHashes];
+		int[] selectedGroupStart = new int[selectedHashes + 1];
+		int group = 0;
+		int record = 0;
+
+		for (int i = 0; i < hashes.length; i++) {
+			if (!selected.test(i)) {
+				continue;
+			}
+
+			int length = groupStart[i + 1] - groupStart[i];
+			System.arraycopy(records, groupStart[i], selectedRecordArray, record, length);
+			selectedHashArray[group] = hashes[i];
+			selectedGroupStart[group] = record;
+
+			group++;
+			record += length;
+		}
+
+		selectedGroupStart[selectedHashes] = selectedRecords;
+
+		return new HashGroups(selectedRecordArray, selectedHashArray, selectedGroupStart, selectedHashes);
+	}
+
+	/**
+	 * Create a new grouping with the changes applied. The records of this grouping are already sorted, so only the
+	 * added records are sorted and then merged with the remaining records, instead of grouping all records again.
+	 * 
+	 * @param removed
+	 *            records to remove, records that are not in this grouping are ignored
+	 * @param added
+	 *            records to add, identical records are only included once
+	 * @return the updated grouping
+	 */
+	public HashGroups update(Collection<ImageRecord> removed, Collection<ImageRecord> added) {
+		BitSet dropped = new BitSet(records.length);
+
+		for (ImageRecord image : removed) {
+			int index = indexOf(image.getpHash());
+
+			if (index < 0) {
+				continue;
+			}
+
+			for (int i = groupStart[index]; i < groupStart[index + 1]; i++) {
+				if (records[i].equals(image)) {
+					dropped.set(i);
+					break;
+				}
+			}
+		}
+
+		ImageRecord[] addedRecords = group(added).records;
+		ImageRecord[] merged = new ImageRecord[records.length - dropped.cardinality() + addedRecords.length];
+		int length = 0;
+		int next = dropped.nextClearBit(0);
+		int nextAdded = 0;
+
+		while (next < records.length || nextAdded < addedRecords.length) {
+			ImageRecord image;
+
+			if (nextAdded == addedRecords.length
+					|| (next < records.length && compare(records[next], addedRecords[nextAdded]) <= 0)) {
+				image = records[next];
+				next = dropped.nextClearBit(next + 1);
+			} else {
+				image = addedRecords[nextAdded++];
+			}
+
+			if (length > 0 && image.equals(merged[length - 1])) {
+				continue;
+			}
+
+			merged[length++] = image;
+		}
+
+		return fromSorted(length == merged.length ? merged : Arrays.copyOf(merged, length));
+	}
+
+	private static int compare(ImageRecord a, ImageRecord b) {
+		int byHash = Long.compare(a.getpHash(), b.getpHash());
+		return byHash != 0 ? byHash : BY_PATH.compare(a, b);
+	}
+
+	/**
+	 * A read-only view of all records, sorted by hash. The view can be passed to stages that expect a list of records,
+	 * {@link RecordSearch} will use the grouping of the view instead of grouping the records again.
+	 * 
+	 * @return all records sorted by hash
+	 */
+	public GroupedRecords records() {
+		return new GroupedRecords(this);
+	}
+
+	/**
+	 * Read-only list of the records of a {@link HashGroups}, sorted by hash.
+	 */
+	public static final class GroupedRecords extends AbstractList<ImageRecord> {
+		private final HashGroups groups;
+
+		private GroupedRecords(HashGroups groups) {
+			this.groups = groups;
+		}
+
+		/**
+		 * Get the grouping this list is a view of.
+		 * 
+		 * @return the records grouped by hash
+		 */
+		public HashGroups getGroups() {
+			return groups;
+		}
+
+		@Override
+		public ImageRecord get(int index) {
+			return groups.records[index];
+		}
+
+		@Override
+		public int size() {
+			return groups.records.length;
+		}
+	}
+
+	/**
+	 * Copy the groups into a {@link Multimap}.
+	 * 
+	 * @return a new {@link Multimap} containing all groups
+	 */
+	public Multimap<Long, ImageRecord> toMultimap() {
+		Multimap<Long, ImageRecord> multimap = MultimapBuilder.hashKeys(hashes.length).hashSetValues().build();
+
+		for (int i = 0; i < hashes.length; i++) {
+			multimap.putAll(hashes[i], groupAt(i));
+		}
+
+		return multimap;
+	}
+}
@@ -0,0 +1,184 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Stable least significant digit radix sort for hashes, that also returns the original position of every hash. Used
+ * to group records by exact hash without comparing objects.
+ * <p>
+ * Every pass sorts by one byte of the hash. Passes where all hashes share the same byte are skipped, so hashes that
+ * only differ in a few bytes need fewer passes. Large inputs are split into chunks that are counted and scattered in
+ * parallel. Each chunk writes to its own range of every bucket, so the sort stays stable.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public final class HashRadixSort {
+	private static final int DIGIT_BITS = 8;
+	private static final int BUCKETS = 1 << DIGIT_BITS;
+	private static final int DIGIT_MASK = BUCKETS - 1;
+	/**
+	 * Inputs smaller than this are sorted by a single thread.
+	 */
+	static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	private HashRadixSort() {
+	}
+
+	/**
+	 * Sort the hashes in ascending order. The order of equal hashes is kept.
+	 * 
+	 * @param hashes
+	 *            to sort, will be sorted in place
+	 * @return the original position of every sorted hash
+	 */
+	public static int[] sort(long[] hashes) {
+		int chunks = hashes.length < PARALLEL_THRESHOLD ? 1 : ForkJoinPool.getCommonPoolParallelism();
+		return sort(hashes, Math.max(1, chunks));
+	}
+
+	/**
+	 * Sort the hashes in ascending order, using the given number of chunks. The order of equal hashes is kept.
+	 * 
+	 * @param hashes
+	 *            to sort, will be sorted in place
+	 * @param chunks
+	 *            number of chunks that are sorted in parallel, 1 to sort with a single thread
+	 * @return the original position of every sorted hash
+	 * @throws IllegalArgumentException
+	 *             if the number of chunks is less than 1
+	 */
+	public static int[] sort(long[] hashes, int chunks) throws IllegalArgumentException {
+		if (chunks < 1) {
+			throw new IllegalArgumentException("Number of chunks must be 1 or greater");
+		}
+
+		int length = hashes.length;
+		int chunkSize = Math.max(1, (length + chunks - 1) / chunks);
+		int usedChunks = Math.max(1, (length + chunkSize - 1) / chunkSize);
+
+		long[] keys = hashes;
+		long[] keyBuffer = new long[length];
+		int[] positions = new int[length];
+		int[] positionBuffer = new int[length];
+
+		for (int i = 0; i < length; i++) {
+			// flip the sign bit, so unsigned byte order matches the signed order of the hashes
+			keys[i] ^= Long.MIN_VALUE;
+			positions[i] = i;
+		}
+
+		for (int shift = 0; shift < Long.SIZE; shift += DIGIT_BITS) {
+			int[][] counts = countDigits(keys, shift, chunkSize, usedChunks);
+
+			if (isSingleBucket(counts, length)) {
+				continue;
+			}
+
+			toOffsets(counts);
+			scatter(keys, positions, keyBuffer, positionBuffer, counts, shift, chunkSize, usedChunks);
+
+			long[] swapKeys = keys;
+			keys = keyBuffer;
+			keyBuffer = swapKeys;
+
+			int[] swapPositions = positions;
+			positions = positionBuffer;
+			positionBuffer = swapPositions;
+		}
+
+		for (int i = 0; i < length; i++) {
+			hashes[i] = keys[i] ^ Long.MIN_VALUE;
+		}
+
+		return positions;
+	}
+
+	private static int digit(long key, int shift) {
+		return (int) (key >>> shift) & DIGIT_MASK;
+	}
+
+	private static int[][] countDigits(long[] keys, int shift, int chunkSize, int chunks) {
+		int[][] counts = new int[chunks][BUCKETS];
+
+		chunkStream(chunks).forEach(chunk -> {
+			int[] chunkCounts = counts[chunk];
+			int end = Math.min(keys.length, (chunk + 1) * chunkSize);
+
+			for (int i = chunk * chunkSize; i < end; i++) {
+				chunkCounts[digit(keys[i], shift)]++;
+			}
+		});
+
+		return counts;
+	}
+
+	private static boolean isSingleBucket(int[][] counts, int length) {
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			int total = 0;
+
+			for (int[] chunkCounts : counts) {
+				total += chunkCounts[bucket];
+			}
+
+			if (total != 0) {
+				return total == length;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Replace the counts with the position the chunk starts writing to in each bucket. Buckets are in ascending order,
+	 * within a bucket the chunks are in ascending order.
+	 */
+	private static void toOffsets(int[][] counts) {
+		int offset = 0;
+
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			for (int[] chunkCounts : counts) {
+				int count = chunkCounts[bucket];
+				chunkCounts[bucket] = offset;
+				offset += count;
+			}
+		}
+	}
+
+	private static void scatter(long[] keys, int[] positions, long[] keyTarget, int[] positionTarget,
+			int[][] offsets, int shift, int chunkSize, int chunks) {
+		chunkStream(chunks).forEach(chunk -> {
+			int[] chunkOffsets = offsets[chunk];
+			int end = Math.min(keys.length, (chunk + 1) * chunkSize);
+
+			for (int i = chunk * chunkSize; i < end; i++) {
+				int target = chunkOffsets[digit(keys[i], shift)]++;
+				keyTarget[target] = keys[i];
+				positionTarget[target] = positions[i];
+			}
+		});
+	}
+
+	private static IntStream chunkStream(int chunks) {
+		IntStream stream = IntStream.range(0, chunks);
+		return chunks > 1 ? stream.parallel() : stream;
+	}
+}
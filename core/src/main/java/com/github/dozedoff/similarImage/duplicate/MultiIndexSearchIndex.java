@@ -0,0 +1,292 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link SearchIndex} using multi-index hashing. The 64 bit hash is split into substrings, each substring is indexed
+ * in it's own table. If two hashes are within a hamming distance of r, then at least one of the m substrings is within
+ * a distance of r / m. Queries therefore only need to probe the tables with a small radius and verify the candidates,
+ * instead of visiting most of the hashes like a tree does for larger distances.
+ * <p>
+ * Batched queries group the probes by substring, so the substring values within the radius are enumerated and their
+ * buckets are read once for all probes that share a substring.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class MultiIndexSearchIndex implements SearchIndex {
+	private static final int HASH_BITS = Long.SIZE;
+	/**
+	 * Default number of substrings, results in 16 bit substrings.
+	 */
+	public static final int DEFAULT_SUBSTRINGS = 4;
+	private static final int MIN_SUBSTRINGS = 4;
+
+	private final int substrings;
+	private final int[] shift;
+	private final int[] width;
+
+	/**
+	 * For each table, the start offset of a substring value in {@link #tableHashes}. Hashes with the substring value v
+	 * are stored from offsets[v] (inclusive) to offsets[v + 1] (exclusive).
+	 */
+	private int[][] tableOffsets;
+	private long[][] tableHashes;
+
+	/**
+	 * Create a new index using {@value #DEFAULT_SUBSTRINGS} substrings.
+	 */
+	public MultiIndexSearchIndex() {
+		this(DEFAULT_SUBSTRINGS);
+	}
+
+	/**
+	 * Create a new index that splits the hash into the given number of substrings.
+	 * 
+	 * @param substrings
+	 *            number of substrings to split the hash into, from {@value #MIN_SUBSTRINGS} to 64
+	 * @throws IllegalArgumentException
+	 *             if the number of substrings is out of range
+	 */
+	public MultiIndexSearchIndex(int substrings) throws IllegalArgumentException {
+		if (substrings < MIN_SUBSTRINGS || substrings > HASH_BITS) {
+			throw new IllegalArgumentException("Number of substrings must be between " + MIN_SUBSTRINGS + " and "
+					+ HASH_BITS);
+		}
+
+		this.substrings = substrings;
+		this.shift = new int[substrings];
+		this.width = new int[substrings];
+
+		int nextShift = 0;
+
+		for (int i = 0; i < substrings; i++) {
+			width[i] = HASH_BITS / substrings + (i < HASH_BITS % substrings ? 1 : 0);
+			shift[i] = nextShift;
+			nextShift += width[i];
+		}
+
+		build(new HashSet<Long>());
+	}
+
+	private int substring(long hash, int table) {
+		return (int) ((hash >>> shift[table]) & ((1L << width[table]) - 1));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void build(Collection<Long> hashes) {
+		tableOffsets = new int[substrings][];
+		tableHashes = new long[substrings][];
+
+		for (int table = 0; table < substrings; table++) {
+			buildTable(table, hashes);
+		}
+	}
+
+	private void buildTable(int table, Collection<Long> hashes) {
+		int[] offsets = new int[(1 << width[table]) + 1];
+		long[] sorted = new long[hashes.size()];
+
+		for (long hash : hashes) {
+			offsets[substring(hash, table) + 1]++;
+		}
+
+		for (int i = 1; i < offsets.length; i++) {
+			offsets[i] += offsets[i - 1];
+		}
+
+		int[] insert = new int[offsets.length - 1];
+		System.arraycopy(offsets, 0, insert, 0, insert.length);
+
+		for (long hash : hashes) {
+			sorted[insert[substring(hash, table)]++] = hash;
+		}
+
+		tableOffsets[table] = offsets;
+		tableHashes[table] = sorted;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Set<Long> searchWithin(long hash, long hammingDistance) {
+		Set<Long> result = new HashSet<Long>();
+
+		if (hammingDistance < 0) {
+			return result;
+		}
+
+		int substringDistance = (int) Math.min(hammingDistance / substrings, HASH_BITS);
+
+		for (int table = 0; table < substrings; table++) {
+			probe(table, substring(hash, table), Math.min(substringDistance, width[table]), 0, hash, hammingDistance,
+					result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Search all probes, sharing the enumeration of substring values and the bucket reads between probes with the same
+	 * substring.
+	 * 
+	 * @param probes
+	 *            the hashes to search
+	 * @param hammingDistance
+	 *            the maximum hamming distance to match hashes for (up to and including)
+	 * @return matching hashes for every distinct probe, empty sets for probes without matches
+	 */
+	@Override
+	public Map<Long, Set<Long>> searchWithin(long[] probes, long hammingDistance) {
+		long[] distinct = Arrays.stream(probes).distinct().toArray();
+		Map<Long, Set<Long>> result = new HashMap<Long, Set<Long>>(distinct.length * 2);
+		@SuppressWarnings("unchecked")
+		Set<Long>[] matches = new Set[distinct.length];
+
+		for (int i = 0; i < distinct.length; i++) {
+			matches[i] = new HashSet<Long>();
+			result.put(distinct[i], matches[i]);
+		}
+
+		if (hammingDistance < 0) {
+			return result;
+		}
+
+		int substringDistance = (int) Math.min(hammingDistance / substrings, HASH_BITS);
+		long[] bySubstring = new long[distinct.length];
+
+		for (int table = 0; table < substrings; table++) {
+			for (int i = 0; i < distinct.length; i++) {
+				bySubstring[i] = (long) substring(distinct[i], table) << Integer.SIZE | i;
+			}
+
+			Arrays.sort(bySubstring);
+
+			for (int start = 0; start < bySubstring.length;) {
+				int substring = (int) (bySubstring[start] >>> Integer.SIZE);
+				int end = start + 1;
+
+				while (end < bySubstring.length && (int) (bySubstring[end] >>> Integer.SIZE) == substring) {
+					end++;
+				}
+
+				int radius = Math.min(substringDistance, width[table]);
+
+				if (end - start == 1) {
+					int index = (int) bySubstring[start];
+					probe(table, substring, radius, 0, distinct[index], hammingDistance, matches[index]);
+				} else {
+					ProbeGroup group = new ProbeGroup(distinct, bySubstring, start, end, matches, hammingDistance);
+					probe(table, substring, radius, 0, group);
+				}
+
+				start = end;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Probes that share a substring value in a table.
+	 */
+	private static final class ProbeGroup {
+		private final long[] probes;
+		private final Set<Long>[] matches;
+		private final long hammingDistance;
+
+		ProbeGroup(long[] distinct, long[] bySubstring, int start, int end, Set<Long>[] allMatches,
+				long hammingDistance) {
+			this.hammingDistance = hammingDistance;
+			this.probes = new long[end - start];
+			@SuppressWarnings("unchecked")
+			Set<Long>[] groupMatches = new Set[end - start];
+			this.matches = groupMatches;
+
+			for (int i = start; i < end; i++) {
+				int index = (int) bySubstring[i];
+				probes[i - start] = distinct[index];
+				matches[i - start] = allMatches[index];
+			}
+		}
+
+		void check(long hash) {
+			for (int i = 0; i < probes.length; i++) {
+				if (CompareHammingDistance.getHammingDistance(probes[i], hash) <= hammingDistance) {
+					matches[i].add(hash);
+				}
+			}
+		}
+	}
+
+	private void probe(int table, int substring, int radius, int startBit, ProbeGroup group) {
+		int[] offsets = tableOffsets[table];
+		long[] hashes = tableHashes[table];
+
+		for (int i = offsets[substring]; i < offsets[substring + 1]; i++) {
+			group.check(hashes[i]);
+		}
+
+		if (radius == 0) {
+			return;
+		}
+
+		for (int bit = startBit; bit < width[table]; bit++) {
+			probe(table, substring ^ (1 << bit), radius - 1, bit + 1, group);
+		}
+	}
+
+	/**
+	 * Check the bucket for the substring, then recursively flip every combination of the remaining bits up to the
+	 * given radius. Every substring value within the radius is visited exactly once.
+	 */
+	private void probe(int table, int substring, int radius, int startBit, long hash, long hammingDistance,
+			Set<Long> result) {
+		checkBucket(table, substring, hash, hammingDistance, result);
+
+		if (radius == 0) {
+			return;
+		}
+
+		for (int bit = startBit; bit < width[table]; bit++) {
+			probe(table, substring ^ (1 << bit), radius - 1, bit + 1, hash, hammingDistance, result);
+		}
+	}
+
+	private void checkBucket(int table, int substring, long hash, long hammingDistance, Set<Long> result) {
+		int[] offsets = tableOffsets[table];
+		long[] hashes = tableHashes[table];
+
+		for (int i = offsets[substring]; i < offsets[substring + 1]; i++) {
+			if (CompareHammingDistance.getHammingDistance(hash, hashes[i]) <= hammingDistance) {
+				result.add(hashes[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.LongToIntFunction;
+
+/**
+ * Finds the k nearest hashes by hamming distance. The hashes are kept sorted as unsigned values, which makes the array
+ * an implicit binary trie: all hashes with a common prefix form a continuous range. The trie is traversed best-first,
+ * ordered by the number of prefix bits that differ from the query. That number is a lower bound for the distance of
+ * every hash in the range, so ranges are only expanded when they can still contain one of the k nearest hashes, and
+ * the search stops as soon as k hashes have been found. Small ranges are scanned directly. The search can also be
+ * limited to a maximum distance, ranges beyond it are never expanded.
+ * <p>
+ * If the query is far away from all hashes, the prefixes do not prune anything. Once the traversal has done a fraction
+ * of the work of a linear scan, it falls back to a linear scan that selects by distance with a counting sort.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class NearestHashSearch {
+	private static final int HASH_BITS = Long.SIZE;
+	/**
+	 * Ranges up to this size are scanned directly instead of being split further.
+	 */
+	private static final int SCAN_SIZE = 16;
+	/**
+	 * The traversal may cost this fraction of a linear scan before falling back to one.
+	 */
+	private static final int SCAN_BUDGET_DIVISOR = 4;
+
+	private final long[] sorted;
+
+	/**
+	 * Create a new search for the given hashes. Duplicate hashes are only included once.
+	 * 
+	 * @param hashes
+	 *            to search
+	 */
+	public NearestHashSearch(Collection<Long> hashes) {
+		long[] flipped = new long[hashes.size()];
+		int i = 0;
+
+		for (Long hash : hashes) {
+			flipped[i++] = hash ^ Long.MIN_VALUE;
+		}
+
+		Arrays.sort(flipped);
+
+		int unique = 0;
+
+		for (int j = 0; j < flipped.length; j++) {
+			if (unique == 0 || flipped[j] != flipped[unique - 1]) {
+				flipped[unique++] = flipped[j];
+			}
+		}
+
+		this.sorted = new long[unique];
+
+		for (int j = 0; j < unique; j++) {
+			sorted[j] = flipped[j] ^ Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * A range of hashes that share the first depth bits, or a single hash with the exact distance.
+	 */
+	private static final class Node implements Comparable<Node> {
+		private final int start;
+		private final int end;
+		private final int depth;
+		private final int distance;
+
+		Node(int start, int end, int depth, int distance) {
+			this.start = start;
+			this.end = end;
+			this.depth = depth;
+			this.distance = distance;
+		}
+
+		boolean isLeaf() {
+			return depth == HASH_BITS;
+		}
+
+		@Override
+		public int compareTo(Node other) {
+			int byDistance = Integer.compare(distance, other.distance);
+
+			if (byDistance != 0) {
+				return byDistance;
+			}
+
+			return Integer.compare(other.depth, depth);
+		}
+	}
+
+	/**
+	 * Find the k nearest hashes. Hashes with the same distance are returned in no particular order.
+	 * 
+	 * @param hash
+	 *            to search for
+	 * @param k
+	 *            maximum number of hashes to return
+	 * @return up to k hashes, ordered by ascending hamming distance
+	 * @throws IllegalArgumentException
+	 *             if k is less than 1
+	 */
+	public List<Long> nearest(long hash, int k) throws IllegalArgumentException {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be 1 or greater");
+		}
+
+		return nearestWithin(hash, HASH_BITS, k, match -> 1);
+	}
+
+	/**
+	 * Find the nearest hashes within the given distance, until the weight of the found hashes reaches the limit. Ranges
+	 * that are further away than the distance are not expanded, and the search stops as soon as the limit is reached.
+	 * Hashes with the same distance are returned in no particular order.
+	 * 
+	 * @param hash
+	 *            to search for
+	 * @param maxDistance
+	 *            maximum hamming distance of returned hashes (up to and including)
+	 * @param limit
+	 *            stop once the returned hashes have at least this total weight
+	 * @param weight
+	 *            of a hash, for example the number of records with that hash
+	 * @return hashes ordered by ascending hamming distance
+	 * @throws IllegalArgumentException
+	 *             if the limit is less than 1
+	 */
+	public List<Long> nearestWithin(long hash, int maxDistance, int limit, LongToIntFunction weight)
+			throws IllegalArgumentException {
+		if (limit < 1) {
+			throw new IllegalArgumentException("Limit must be 1 or greater");
+		}
+
+		List<Long> result = new ArrayList<>();
+
+		if (sorted.length == 0) {
+			return result;
+		}
+
+		PriorityQueue<Node> queue = new PriorityQueue<>();
+		int budget = sorted.length / SCAN_BUDGET_DIVISOR;
+		budget -= addRange(queue, hash, maxDistance, 0, sorted.length, 0, 0);
+		long total = 0;
+
+		while (!queue.isEmpty() && total < limit) {
+			Node node = queue.poll();
+
+			if (node.isLeaf()) {
+				result.add(sorted[node.start]);
+				total += weight.applyAsInt(sorted[node.start]);
+				continue;
+			}
+
+			if (budget < 0) {
+				return scan(hash, maxDistance, limit, weight);
+			}
+
+			int shift = HASH_BITS - 1 - node.depth;
+			int split = firstWithBitSet(node.start, node.end, shift);
+			int queryBit = (int) ((hash >>> shift) & 1);
+
+			if (split > node.start) {
+				budget -= addRange(queue, hash, maxDistance, node.start, split, node.depth + 1,
+						node.distance + queryBit);
+			}
+
+			if (split < node.end) {
+				budget -= addRange(queue, hash, maxDistance, split, node.end, node.depth + 1,
+						node.distance + (queryBit ^ 1));
+			}
+		}
+
+		return result;
+	}
+
+	private List<Long> scan(long hash, int maxDistance, int limit, LongToIntFunction weight) {
+		int[] counts = new int[HASH_BITS + 1];
+		long[] weights = new long[HASH_BITS + 1];
+
+		for (long candidate : sorted) {
+			int distance = Long.bitCount(hash ^ candidate);
+
+			if (distance <= maxDistance) {
+				counts[distance]++;
+				weights[distance] += weight.applyAsInt(candidate);
+			}
+		}
+
+		int[] offsets = new int[HASH_BITS + 1];
+		int selectedCount = 0;
+		long total = 0;
+		int lastDistance = 0;
+
+		for (int distance = 0; distance <= maxDistance && total < limit; distance++) {
+			offsets[distance] = selectedCount;
+			selectedCount += counts[distance];
+			total += weights[distance];
+			lastDistance = distance;
+		}
+
+		long[] selected = new long[selectedCount];
+
+		for (long candidate : sorted) {
+			int distance = Long.bitCount(hash ^ candidate);
+
+			if (distance <= lastDistance) {
+				selected[offsets[distance]++] = candidate;
+			}
+		}
+
+		List<Long> result = new ArrayList<>();
+		total = 0;
+
+		for (int i = 0; i < selected.length && total < limit; i++) {
+			result.add(selected[i]);
+			total += weight.applyAsInt(selected[i]);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Add a range to the queue, scanning it if it is small enough. Ranges and hashes beyond the maximum distance are
+	 * dropped.
+	 * 
+	 * @return the number of nodes added or hashes scanned
+	 */
+	private int addRange(PriorityQueue<Node> queue, long hash, int maxDistance, int start, int end, int depth,
+			int distance) {
+		if (distance > maxDistance) {
+			return 0;
+		}
+
+		if (end - start > SCAN_SIZE) {
+			queue.add(new Node(start, end, depth, distance));
+			return 1;
+		}
+
+		for (int i = start; i < end; i++) {
+			int hashDistance = Long.bitCount(hash ^ sorted[i]);
+
+			if (hashDistance <= maxDistance) {
+				queue.add(new Node(i, i + 1, HASH_BITS, hashDistance));
+			}
+		}
+
+		return end - start;
+	}
+
+	/**
+	 * All hashes in the range share the bits above the shift, so hashes with the bit cleared come first.
+	 */
+	private int firstWithBitSet(int start, int end, int shift) {
+		int low = start;
+		int high = end;
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+
+			if (((sorted[middle] >>> shift) & 1) == 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Get the number of distinct hashes that can be searched.
+	 * 
+	 * @return number of hashes
+	 */
+	public int size() {
+		return sorted.length;
+	}
+}
@@ -0,0 +1,481 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.primitives.Longs;
+
+/**
+ * {@link SearchIndex} that splits the hash space into shards by the leading bits of the hash. Every shard has it's own
+ * index, that is built and queried independently. Two hashes within a hamming distance of r have prefixes within a
+ * distance of r, so a query only needs to search the shards whose prefix is within the query distance, and merges
+ * their results.
+ * <p>
+ * Shards only depend on their own hashes, so they can be built and queried independently. Building the index only
+ * partitions the hashes, the index of a shard is built when it is first searched. A batch search with
+ * {@link #searchWithin(long[], long)} builds one shard at a time, searches every probe that can reach it and releases
+ * it before the next shard is built, so only one shard index is in memory at a time. Shards searched with
+ * {@link #searchWithin(long, long)} are kept until the index is rebuilt, as single queries would otherwise build the
+ * same shards over and over.
+ * <p>
+ * If the hashes are passed as a sorted {@link RandomAccess} list, such as {@link HashGroups#hashes()}, every shard is
+ * a contiguous range of the list and is built from a view of that range, without copying the hashes. The list must
+ * not be modified until the index is rebuilt.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class PartitionedSearchIndex implements SearchIndex {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PartitionedSearchIndex.class);
+
+	/**
+	 * Maximum number of shards.
+	 */
+	public static final int MAX_SHARDS = 1 << 16;
+	/**
+	 * Number of probes of a batch that are searched together in one shard, chunks are searched in parallel.
+	 */
+	private static final int PROBE_CHUNK_SIZE = 4096;
+
+	private final int prefixBits;
+	private final Supplier<SearchIndex> shardIndex;
+	/**
+	 * Shards built for single queries, null if the shard is not built.
+	 */
+	private final AtomicReferenceArray<SearchIndex> shards;
+	private final List<List<Long>> shardHashes;
+
+	/**
+	 * All prefix masks, ordered by the number of set bits. XOR with a prefix gives the prefixes within a distance.
+	 */
+	private final int[] masks;
+	/**
+	 * For each distance, the number of masks with that many or fewer set bits.
+	 */
+	private final int[] masksWithin;
+
+	/**
+	 * Create a new index with the given number of shards, using a {@link BKTreeSearchIndex} for every shard.
+	 * 
+	 * @param shards
+	 *            number of shards, must be a power of 2 from 1 to {@value #MAX_SHARDS}
+	 * @throws IllegalArgumentException
+	 *             if the number of shards is invalid
+	 */
+	public PartitionedSearchIndex(int shards) throws IllegalArgumentException {
+		this(shards, BKTreeSearchIndex::new);
+	}
+
+	/**
+	 * Create a new index with the given number of shards.
+	 * 
+	 * @param shards
+	 *            number of shards, must be a power of 2 from 1 to {@value #MAX_SHARDS}
+	 * @param shardIndex
+	 *            supplier for the index of a shard
+	 * @throws IllegalArgumentException
+	 *             if the number of shards is invalid
+	 */
+	public PartitionedSearchIndex(int shards, Supplier<SearchIndex> shardIndex) throws IllegalArgumentException {
+		if (!isValidShardCount(shards)) {
+			throw new IllegalArgumentException("Number of shards must be a power of 2 from 1 to " + MAX_SHARDS);
+		}
+
+		this.prefixBits = Integer.numberOfTrailingZeros(shards);
+		this.shardIndex = shardIndex;
+		this.shards = new AtomicReferenceArray<SearchIndex>(shards);
+		this.shardHashes = new ArrayList<List<Long>>(Collections.nCopies(shards, Collections.emptyList()));
+		this.masks = new int[shards];
+		this.masksWithin = new int[prefixBits + 1];
+
+		int count = 0;
+
+		for (int distance = 0; distance <= prefixBits; distance++) {
+			for (int mask = 0; mask < shards; mask++) {
+				if (Integer.bitCount(mask) == distance) {
+					masks[count++] = mask;
+				}
+			}
+
+			masksWithin[distance] = count;
+		}
+	}
+
+	/**
+	 * Check if the number of shards can be used for an index.
+	 * 
+	 * @param shards
+	 *            number of shards
+	 * @return true if the number is a power of 2 from 1 to {@value #MAX_SHARDS}
+	 */
+	public static boolean isValidShardCount(int shards) {
+		return shards >= 1 && shards <= MAX_SHARDS && Integer.bitCount(shards) == 1;
+	}
+
+	/**
+	 * Get the shard a hash belongs to.
+	 * 
+	 * @param hash
+	 *            to get the shard for
+	 * @return index of the shard
+	 */
+	public int shardOf(long hash) {
+		if (prefixBits == 0) {
+			return 0;
+		}
+
+		return (int) (hash >>> (Long.SIZE - prefixBits));
+	}
+
+	/**
+	 * Partition the given hashes into shards, any previous state is discarded. The index of a shard is built when the
+	 * shard is searched.
+	 * 
+	 * @param hashes
+	 *            distinct hashes to index
+	 */
+	@Override
+	public void build(Collection<Long> hashes) {
+		for (int shard = 0; shard < shards.length(); shard++) {
+			shards.set(shard, null);
+		}
+
+		if (hashes instanceof List && hashes instanceof RandomAccess && partitionRanges((List<Long>) hashes)) {
+			LOGGER.debug("Partitioned {} sorted hashes into {} shards", hashes.size(), shards.length());
+			return;
+		}
+
+		long[][] partitions = partition(hashes);
+
+		for (int shard = 0; shard < shards.length(); shard++) {
+			shardHashes.set(shard, Longs.asList(partitions[shard]));
+		}
+
+		LOGGER.debug("Partitioned {} hashes into {} shards", hashes.size(), shards.length());
+	}
+
+	/**
+	 * Use a view of the range of hashes with its prefix for every shard.
+	 * 
+	 * @return false if the hashes of a shard are not contiguous, no shard is changed in that case
+	 */
+	private boolean partitionRanges(List<Long> hashes) {
+		int[] rangeStart = new int[shards.length()];
+		int[] rangeEnd = new int[shards.length()];
+		int current = -1;
+
+		for (int i = 0; i < hashes.size(); i++) {
+			int shard = shardOf(hashes.get(i));
+
+			if (shard == current) {
+				continue;
+			}
+
+			if (rangeEnd[shard] != 0) {
+				return false;
+			}
+
+			if (current >= 0) {
+				rangeEnd[current] = i;
+			}
+
+			rangeStart[shard] = i;
+			rangeEnd[shard] = i + 1;
+			current = shard;
+		}
+
+		if (current >= 0) {
+			rangeEnd[current] = hashes.size();
+		}
+
+		for (int shard = 0; shard < shards.length(); shard++) {
+			shardHashes.set(shard, hashes.subList(rangeStart[shard], rangeEnd[shard]));
+		}
+
+		return true;
+	}
+
+	private long[][] partition(Collection<Long> hashes) {
+		int[] counts = new int[shards.length()];
+
+		for (long hash : hashes) {
+			counts[shardOf(hash)]++;
+		}
+
+		long[][] partitions = new long[shards.length()][];
+
+		for (int shard = 0; shard < shards.length(); shard++) {
+			partitions[shard] = new long[counts[shard]];
+			counts[shard] = 0;
+		}
+
+		for (long hash : hashes) {
+			int shard = shardOf(hash);
+			partitions[shard][counts[shard]++] = hash;
+		}
+
+		return partitions;
+	}
+
+	/**
+	 * Build the index for the hashes of a shard.
+	 * 
+	 * @return the index, or null if the shard has no hashes
+	 */
+	private SearchIndex buildShard(int shard) {
+		List<Long> hashes = shardHashes.get(shard);
+
+		if (hashes.isEmpty()) {
+			return null;
+		}
+
+		SearchIndex index = shardIndex.get();
+		index.build(hashes);
+
+		return index;
+	}
+
+	/**
+	 * Get the index of a shard for single queries, building it if needed.
+	 */
+	private SearchIndex cachedShard(int shard) {
+		SearchIndex index = shards.get(shard);
+
+		if (index == null && !shardHashes.get(shard).isEmpty()) {
+			synchronized (shards) {
+				index = shards.get(shard);
+
+				if (index == null) {
+					index = buildShard(shard);
+					shards.set(shard, index);
+				}
+			}
+		}
+
+		return index;
+	}
+
+	/**
+	 * Find all indexed hashes within the distance, only searching shards that can contain matches.
+	 * 
+	 * @param hash
+	 *            the hash to search
+	 * @param hammingDistance
+	 *            the maximum hamming distance to match hashes for (up to and including)
+	 * @return a set of matching hashes, empty if there are no matches
+	 */
+	@Override
+	public Set<Long> searchWithin(long hash, long hammingDistance) {
+		if (hammingDistance < 0) {
+			return Collections.emptySet();
+		}
+
+		Set<Long> result = new HashSet<Long>();
+		int prefix = shardOf(hash);
+		int reachable = masksWithin[(int) Math.min(hammingDistance, prefixBits)];
+
+		for (int i = 0; i < reachable; i++) {
+			SearchIndex index = cachedShard(prefix ^ masks[i]);
+
+			if (index != null) {
+				result.addAll(index.searchWithin(hash, hammingDistance));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Search all probes, shards are searched one after another. A shard is searched once with all probes that can
+	 * reach it, split into chunks that are searched in parallel. Shards that were not built for single queries are
+	 * built for the search and released afterwards, so only one of them is in memory at a time. The probes should be
+	 * passed in one call, as shards are built again for every call.
+	 * 
+	 * @param probes
+	 *            the hashes to search
+	 * @param hammingDistance
+	 *            the maximum hamming distance to match hashes for (up to and including)
+	 * @return matching hashes for every distinct probe, empty sets for probes without matches
+	 */
+	@Override
+	public Map<Long, Set<Long>> searchWithin(long[] probes, long hammingDistance) {
+		long[] distinct = Arrays.stream(probes).distinct().toArray();
+		Map<Long, Set<Long>> result = new HashMap<Long, Set<Long>>(distinct.length * 2);
+
+		for (long probe : distinct) {
+			result.put(probe, new HashSet<Long>());
+		}
+
+		if (hammingDistance < 0) {
+			return result;
+		}
+
+		int reachable = masksWithin[(int) Math.min(hammingDistance, prefixBits)];
+		int[] shardProbes = new int[shards.length()];
+
+		for (long probe : distinct) {
+			int prefix = shardOf(probe);
+
+			for (int i = 0; i < reachable; i++) {
+				shardProbes[prefix ^ masks[i]]++;
+			}
+		}
+
+		long[][] batches = new long[shards.length()][];
+
+		for (int shard = 0; shard < shards.length(); shard++) {
+			batches[shard] = new long[shardHashes.get(shard).isEmpty() ? 0 : shardProbes[shard]];
+			shardProbes[shard] = 0;
+		}
+
+		for (long probe : distinct) {
+			int prefix = shardOf(probe);
+
+			for (int i = 0; i < reachable; i++) {
+				int shard = prefix ^ masks[i];
+
+				if (batches[shard].length != 0) {
+					batches[shard][shardProbes[shard]++] = probe;
+				}
+			}
+		}
+
+		for (int shard = 0; shard < shards.length(); shard++) {
+			if (batches[shard].length == 0) {
+				continue;
+			}
+
+			SearchIndex index = shards.get(shard);
+
+			if (index == null) {
+				index = buildShard(shard);
+			}
+
+			searchShard(index, batches[shard], hammingDistance, result);
+			batches[shard] = null;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Search the probes of a shard in parallel chunks. The probes are distinct, so every result set is only changed by
+	 * one chunk.
+	 */
+	private void searchShard(SearchIndex index, long[] probes, long hammingDistance, Map<Long, Set<Long>> result) {
+		int chunks = (probes.length + PROBE_CHUNK_SIZE - 1) / PROBE_CHUNK_SIZE;
+
+		IntStream.range(0, chunks).parallel().forEach(chunk -> {
+			long[] chunkProbes = Arrays.copyOfRange(probes, chunk * PROBE_CHUNK_SIZE,
+					Math.min(probes.length, (chunk + 1) * PROBE_CHUNK_SIZE));
+
+			for (Map.Entry<Long, Set<Long>> matches : index.searchWithin(chunkProbes, hammingDistance).entrySet()) {
+				result.get(matches.getKey()).addAll(matches.getValue());
+			}
+		});
+	}
+
+	/**
+	 * Check if all probes should be passed in one call to {@link #searchWithin(long[], long)}.
+	 * 
+	 * @return true, as shards are built for every batch
+	 */
+	@Override
+	public boolean isSingleBatch() {
+		return true;
+	}
+
+	/**
+	 * Get the shards that can contain hashes within the distance of the query hash.
+	 * 
+	 * @param hash
+	 *            the hash to search
+	 * @param hammingDistance
+	 *            the maximum hamming distance of matching hashes
+	 * @return the indices of all shards that need to be searched, closest prefixes first
+	 */
+	public List<Integer> reachableShards(long hash, long hammingDistance) {
+		List<Integer> reachable = new ArrayList<Integer>();
+
+		if (hammingDistance < 0) {
+			return reachable;
+		}
+
+		int prefix = shardOf(hash);
+		int count = masksWithin[(int) Math.min(hammingDistance, prefixBits)];
+
+		for (int i = 0; i < count; i++) {
+			reachable.add(prefix ^ masks[i]);
+		}
+
+		return reachable;
+	}
+
+	/**
+	 * Get the number of shards.
+	 * 
+	 * @return the shard count
+	 */
+	public int getShardCount() {
+		return shards.length();
+	}
+
+	/**
+	 * Get the number of hashes in a shard.
+	 * 
+	 * @param shard
+	 *            index of the shard
+	 * @return number of hashes in the shard
+	 */
+	public int getShardSize(int shard) {
+		return shardHashes.get(shard).size();
+	}
+
+	/**
+	 * Get the number of shards that are built for single queries and kept in memory.
+	 * 
+	 * @return number of built shards
+	 */
+	public int getBuiltShardCount() {
+		int built = 0;
+
+		for (int shard = 0; shard < shards.length(); shard++) {
+			if (shards.get(shard) != null) {
+				built++;
+			}
+		}
+
+		return built;
+	}
+}
@@ -19,16 +19,24 @@
 package com.github.dozedoff.similarImage.duplicate;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
-import org.everpeace.search.BKTree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.util.TaskProgress;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.MultimapBuilder;
 
@@ -41,52 +49,209 @@ import com.google.common.collect.MultimapBuilder;
  */
 public class RecordSearch {
 	private static final Logger logger = LoggerFactory.getLogger(RecordSearch.class);
-	private Multimap<Long, ImageRecord> imagesGroupedByHash;
-	private BKTree<Long> bkTree;
+	/**
+	 * Record limit for queries that should not be limited.
+	 */
+	public static final int UNLIMITED_RECORDS = Integer.MAX_VALUE;
+	/**
+	 * Name of the build stage in progress updates.
+	 */
+	public static final String STAGE_BUILD = "build";
+	/**
+	 * Name of the batched search in progress updates.
+	 */
+	public static final String STAGE_MATCH = "match";
+	/**
+	 * Fraction of the build that is done once the records are grouped.
+	 */
+	private static final double GROUPED_FRACTION = 0.5;
+	/**
+	 * Number of probes that are searched together by {@link #distanceMatchHashes(Collection, long, TaskProgress)}.
+	 */
+	private static final int PROBE_BATCH_SIZE = 4096;
+	private HashGroups imagesGroupedByHash;
+	private HashGroups degenerateGroups;
+	private final SearchIndex searchIndex;
+	private final DegenerateHashFilter degenerateFilter;
+	private NearestHashSearch nearestSearch;
 
+	/**
+	 * Create a new {@link RecordSearch} that uses a {@link BKTreeSearchIndex} for queries.
+	 */
 	public RecordSearch() {
-		imagesGroupedByHash = MultimapBuilder.hashKeys().hashSetValues().build();
-		bkTree = new BKTree<Long>(new CompareHammingDistance(), 0L);
+		this(new BKTreeSearchIndex());
 	}
 
 	/**
-	 * Sort the given records into groups and build a tree to query them.
+	 * Create a new {@link RecordSearch} that uses the given index for queries.
+	 * 
+	 * @param searchIndex
+	 *            index used for hamming distance queries
+	 */
+	public RecordSearch(SearchIndex searchIndex) {
+		this(searchIndex, null);
+	}
+
+	/**
+	 * Create a new {@link RecordSearch} that uses the given index for queries. Records with degenerate hashes are
+	 * excluded from the index and kept in a separate group, see {@link #getDegenerateGroups()}.
+	 * 
+	 * @param searchIndex
+	 *            index used for hamming distance queries
+	 * @param degenerateFilter
+	 *            detects hashes that should not be searched, or null to search all hashes
+	 */
+	public RecordSearch(SearchIndex searchIndex, DegenerateHashFilter degenerateFilter) {
+		this.imagesGroupedByHash = HashGroups.group(Collections.emptyList());
+		this.degenerateGroups = imagesGroupedByHash;
+		this.searchIndex = searchIndex;
+		this.degenerateFilter = degenerateFilter;
+	}
+
+	/**
+	 * Sort the given records into groups and build an index to query them.
 	 * 
 	 * @param dbRecords
 	 *            that should eventually be queried.
 	 */
 	public void build(Collection<ImageRecord> dbRecords) {
+		build(dbRecords, new TaskProgress());
+	}
+
+	/**
+	 * Sort the given records into groups and build an index to query them. The build is checked for cancellation
+	 * between grouping and building the index, the index itself is built in one step. Records from
+	 * {@link HashGroups#records()} are not grouped again.
+	 * 
+	 * @param dbRecords
+	 *            that should eventually be queried.
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * @throws CancellationException
+	 *             if the build was cancelled
+	 */
+	public void build(Collection<ImageRecord> dbRecords, TaskProgress progress) throws CancellationException {
 		logger.info("Building Record search from {} records...", dbRecords.size());
 
-		groupRecords(dbRecords);
-		buildBkTree();
+		progress.checkCancelled();
+		progress.update(STAGE_BUILD, 0);
+		groupRecords(dbRecords, true);
+
+		progress.checkCancelled();
+		progress.update(STAGE_BUILD, GROUPED_FRACTION);
+		buildSearchIndex();
+
+		progress.checkCancelled();
+		progress.update(STAGE_BUILD, 1);
 	}
 
-	private void groupRecords(Collection<ImageRecord> dbRecords) {
+	/**
+	 * Sort the given records into groups for exact matches, without building the search index. Until the search is
+	 * built, only queries with a hamming distance of 0 return matches. Degenerate hashes are not excluded, as exact
+	 * matches do not suffer from their false positives.
+	 * 
+	 * @param dbRecords
+	 *            that should eventually be queried.
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * @throws CancellationException
+	 *             if the grouping was cancelled
+	 */
+	public void buildExact(Collection<ImageRecord> dbRecords, TaskProgress progress) throws CancellationException {
+		logger.info("Grouping {} records for exact matches...", dbRecords.size());
+
+		progress.checkCancelled();
+		progress.update(STAGE_BUILD, 0);
+		groupRecords(dbRecords, false);
+		searchIndex.build(Collections.emptySet());
+
+		progress.checkCancelled();
+		progress.update(STAGE_BUILD, 1);
+	}
+
+	/**
+	 * Build an index to query the already grouped records.
+	 * 
+	 * @param groups
+	 *            records grouped by hash, that should eventually be queried
+	 */
+	public void build(HashGroups groups) {
+		logger.info("Building Record search from {} grouped records...", groups.size());
+
+		quarantineDegenerateHashes(groups, true);
+		this.nearestSearch = null;
+		buildSearchIndex();
+	}
+
+	private void groupRecords(Collection<ImageRecord> dbRecords, boolean quarantine) {
 		Stopwatch swGroup = Stopwatch.createStarted();
-		this.imagesGroupedByHash = DuplicateUtil.groupByHash(dbRecords);
+
+		if (dbRecords instanceof HashGroups.GroupedRecords) {
+			quarantineDegenerateHashes(((HashGroups.GroupedRecords) dbRecords).getGroups(), quarantine);
+		} else {
+			quarantineDegenerateHashes(HashGroups.group(dbRecords), quarantine);
+		}
+
+		this.nearestSearch = null;
 		swGroup.stop();
 
-		logger.info("Grouped records into {} groups in {}", numberOfHashes(), swGroup);
+		logger.info("Grouped records into {} groups in {}, using ~{} bytes per record", numberOfHashes(), swGroup,
+				String.format("%.1f", imagesGroupedByHash.bytesPerRecord()));
 	}
 
-	private void buildBkTree() {
-		if (imagesGroupedByHash.isEmpty()) {
-			logger.warn("No hashes provided, cannot build BK tree!");
+	private void quarantineDegenerateHashes(HashGroups groups, boolean quarantine) {
+		if (degenerateFilter == null || !quarantine) {
+			this.imagesGroupedByHash = groups;
+			this.degenerateGroups = HashGroups.group(Collections.emptyList());
 			return;
 		}
 
-		logger.info("Building BK-Tree from {} hashes", numberOfHashes());
+		this.imagesGroupedByHash = degenerateFilter.selectSearchable(groups);
+		this.degenerateGroups = degenerateFilter.selectDegenerate(groups);
+
+		if (!degenerateGroups.isEmpty()) {
+			logger.info("Excluded {} records with {} degenerate hashes from the search", degenerateGroups.size(),
+					degenerateGroups.distinctHashes());
+		}
+	}
+
+	private void buildSearchIndex() {
+		if (imagesGroupedByHash.isEmpty()) {
+			logger.warn("No hashes provided, search index will be empty!");
+		}
+
+		String indexName = searchIndex.getClass().getSimpleName();
+		logger.info("Building {} from {} hashes", indexName, numberOfHashes());
 
-		Stopwatch swBuildTree = Stopwatch.createStarted();
-		bkTree = BKTree.build(imagesGroupedByHash.keySet(), new CompareHammingDistance());
-		swBuildTree.stop();
+		Stopwatch swBuildIndex = Stopwatch.createStarted();
+		searchIndex.build(imagesGroupedByHash.hashes());
+		swBuildIndex.stop();
 
-		logger.info("Took {} to build BK-tree with {} hashes", swBuildTree, numberOfHashes());
+		logger.info("Took {} to build {} with {} hashes", swBuildIndex, indexName, numberOfHashes());
 	}
 
 	private int numberOfHashes() {
-		return imagesGroupedByHash.keySet().size();
+		return imagesGroupedByHash.distinctHashes();
+	}
+
+	/**
+	 * Get the records grouped by hash, as used for queries.
+	 * 
+	 * @return the records of the last build, grouped by hash
+	 */
+	public HashGroups getGroups() {
+		return imagesGroupedByHash;
+	}
+
+	/**
+	 * Get the records with degenerate hashes, that were excluded from the last build. These records are not returned
+	 * by any query.
+	 * 
+	 * @return the excluded records grouped by hash, empty if no filter is set or the records were grouped with
+	 *         {@link #buildExact(Collection, TaskProgress)}
+	 */
+	public HashGroups getDegenerateGroups() {
+		return degenerateGroups;
 	}
 
 	/**
@@ -95,8 +260,184 @@ public class RecordSearch {
 	 * @return distinct list of matches
 	 */
 	public List<Long> exactMatch() {
-		DuplicateUtil.removeSingleImageGroups(imagesGroupedByHash);
-		return new ArrayList<>(imagesGroupedByHash.keySet());
+		List<Long> matches = new ArrayList<>();
+
+		for (int i = 0; i < imagesGroupedByHash.distinctHashes(); i++) {
+			if (imagesGroupedByHash.groupAt(i).size() > 1) {
+				matches.add(imagesGroupedByHash.hashAt(i));
+			}
+		}
+
+		return matches;
+	}
+
+	/**
+	 * For the given hash, return all hashes that are at or within the given hamming distance. Use
+	 * {@link #getGroups()} to get the images for the hashes. Exact matches are looked up in the grouped records
+	 * without searching the index.
+	 * 
+	 * @param hash
+	 *            the hash to search
+	 * @param hammingDistance
+	 *            the maximum hamming distance to match hashes for (up to and including)
+	 * @return a set of matching hashes
+	 */
+	public Set<Long> distanceMatchHashes(long hash, long hammingDistance) {
+		if (hammingDistance == 0) {
+			return exactMatchHashes(hash);
+		}
+
+		return searchIndex.searchWithin(hash, hammingDistance);
+	}
+
+	private Set<Long> exactMatchHashes(long hash) {
+		if (imagesGroupedByHash.contains(hash)) {
+			return Collections.singleton(hash);
+		}
+
+		return Collections.emptySet();
+	}
+
+	/**
+	 * For each of the probe hashes, find all hashes that are at or within the given hamming distance. See
+	 * {@link #distanceMatchHashes(Collection, long, TaskProgress)}.
+	 * 
+	 * @param probes
+	 *            the hashes to search, may contain duplicates
+	 * @param hammingDistance
+	 *            the maximum hamming distance to match hashes for (up to and including)
+	 * @return matching hashes for every distinct probe hash
+	 */
+	public Map<Long, Set<Long>> distanceMatchHashes(Collection<Long> probes, long hammingDistance) {
+		return distanceMatchHashes(probes, hammingDistance, new TaskProgress());
+	}
+
+	/**
+	 * For each of the probe hashes, find all hashes that are at or within the given hamming distance. Use
+	 * {@link #getGroups()} to get the images for the hashes.
+	 * <p>
+	 * Every distinct probe is only searched once. Exact matches are looked up in the grouped records without searching
+	 * the index. Otherwise the probes are split into batches that are searched in parallel with
+	 * {@link SearchIndex#searchWithin(long[], long)}, so indexes that support it can share work between the probes of
+	 * a batch. Indexes that want all probes at once get a single batch, see {@link SearchIndex#isSingleBatch()}.
+	 * 
+	 * @param probes
+	 *            the hashes to search, may contain duplicates
+	 * @param hammingDistance
+	 *            the maximum hamming distance to match hashes for (up to and including)
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * @return matching hashes for every distinct probe hash
+	 * @throws CancellationException
+	 *             if the search was cancelled
+	 */
+	public Map<Long, Set<Long>> distanceMatchHashes(Collection<Long> probes, long hammingDistance,
+			TaskProgress progress) throws CancellationException {
+		long[] distinct = probes.stream().mapToLong(Long::longValue).distinct().toArray();
+
+		Stopwatch sw = Stopwatch.createStarted();
+		AtomicInteger searched = new AtomicInteger();
+		int batchSize = searchIndex.isSingleBatch() && hammingDistance != 0 ? Math.max(1, distinct.length)
+				: PROBE_BATCH_SIZE;
+		int batches = Math.max(1, (distinct.length + batchSize - 1) / batchSize);
+
+		Map<Long, Set<Long>> matches = IntStream.range(0, batches).parallel().collect(HashMap::new, (map, batch) -> {
+			progress.checkCancelled();
+			long[] batchProbes = Arrays.copyOfRange(distinct, Math.min(distinct.length, batch * batchSize),
+					Math.min(distinct.length, (batch + 1) * batchSize));
+
+			map.putAll(searchBatch(batchProbes, hammingDistance));
+			progress.update(STAGE_MATCH, searched.addAndGet(batchProbes.length), distinct.length);
+		}, Map::putAll);
+
+		logger.info("Searched {} distinct of {} probe hashes in {} batch(es) in {}", distinct.length, probes.size(),
+				batches, sw);
+
+		return matches;
+	}
+
+	private Map<Long, Set<Long>> searchBatch(long[] probes, long hammingDistance) {
+		if (hammingDistance == 0) {
+			Map<Long, Set<Long>> matches = new HashMap<>(probes.length * 2);
+
+			for (long probe : probes) {
+				matches.put(probe, exactMatchHashes(probe));
+			}
+
+			return matches;
+		}
+
+		return searchIndex.searchWithin(probes, hammingDistance);
+	}
+
+	/**
+	 * For the given hash, return all hashes that are at or within the given hamming distance, keyed by their distance
+	 * to the query hash. Distances are in ascending order. Use {@link #getGroups()} to get the images for the hashes.
+	 * <p>
+	 * Without a limit, the index is queried once for the full distance and the matches are bucketed by their distance.
+	 * If the records are limited, the hashes are searched best-first with {@link NearestHashSearch}, and the search
+	 * stops once the found hashes contain at least that many records. The closest matches are always included, hashes
+	 * with the same distance as the last included hash may be dropped.
+	 * 
+	 * @param hash
+	 *            the hash to search
+	 * @param hammingDistance
+	 *            the maximum hamming distance to match hashes for (up to and including)
+	 * @param maxRecords
+	 *            stop adding hashes once they contain this many records, {@link #UNLIMITED_RECORDS} to return all
+	 *            matches
+	 * @return matching hashes keyed by hamming distance
+	 * @throws IllegalArgumentException
+	 *             if the record limit is less than 1
+	 */
+	public ListMultimap<Integer, Long> distanceMatchHashesByDistance(long hash, long hammingDistance, int maxRecords)
+			throws IllegalArgumentException {
+		if (maxRecords < 1) {
+			throw new IllegalArgumentException("Record limit must be 1 or greater");
+		}
+
+		Collection<Long> matches;
+
+		if (maxRecords == UNLIMITED_RECORDS) {
+			matches = distanceMatchHashes(hash, hammingDistance);
+		} else {
+			matches = nearestSearch().nearestWithin(hash, (int) Math.min(hammingDistance, Long.SIZE), maxRecords,
+					imagesGroupedByHash::count);
+		}
+
+		ListMultimap<Integer, Long> byDistance = MultimapBuilder.treeKeys().arrayListValues().build();
+
+		for (long match : matches) {
+			byDistance.put(Long.bitCount(hash ^ match), match);
+		}
+
+		return byDistance;
+	}
+
+	/**
+	 * For the given hash, return the k nearest hashes ordered by hamming distance. Use {@link #getGroups()} to get the
+	 * images for the hashes. The structure for the search is created on the first query after a build.
+	 * 
+	 * @param hash
+	 *            the hash to search
+	 * @param k
+	 *            the maximum number of hashes to return
+	 * @return up to k hashes, ordered by ascending hamming distance
+	 * @throws IllegalArgumentException
+	 *             if k is less than 1
+	 */
+	public List<Long> nearestHashes(long hash, int k) throws IllegalArgumentException {
+		return nearestSearch().nearest(hash, k);
+	}
+
+	private synchronized NearestHashSearch nearestSearch() {
+		if (nearestSearch == null) {
+			Stopwatch sw = Stopwatch.createStarted();
+			nearestSearch = new NearestHashSearch(imagesGroupedByHash.hashes());
+			logger.info("Built nearest hash search with {} hashes in {}", nearestSearch.size(), sw);
+		}
+
+		return nearestSearch;
 	}
 
 	/**
@@ -111,7 +452,7 @@ public class RecordSearch {
 	public Multimap<Long, ImageRecord> distanceMatch(long hash, long hammingDistance) {
 		Multimap<Long, ImageRecord> searchResult = MultimapBuilder.hashKeys().hashSetValues().build();
 
-		Set<Long> resultKeys = bkTree.searchWithin(hash, (double) hammingDistance);
+		Set<Long> resultKeys = distanceMatchHashes(hash, hammingDistance);
 
 		for (Long key : resultKeys) {
 			searchResult.putAll(key, imagesGroupedByHash.get(key));
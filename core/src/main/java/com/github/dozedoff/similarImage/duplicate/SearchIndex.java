@@ -0,0 +1,83 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index over distinct hashes, that can be queried for hashes within a given hamming distance.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public interface SearchIndex {
+	/**
+	 * Build the index from the given hashes. Any previous state of the index is discarded.
+	 * 
+	 * @param hashes
+	 *            distinct hashes to index
+	 */
+	void build(Collection<Long> hashes);
+
+	/**
+	 * Find all indexed hashes that are at or within the given hamming distance of the query hash.
+	 * 
+	 * @param hash
+	 *            the hash to search
+	 * @param hammingDistance
+	 *            the maximum hamming distance to match hashes for (up to and including)
+	 * @return a set of matching hashes, empty if there are no matches
+	 */
+	Set<Long> searchWithin(long hash, long hammingDistance);
+
+	/**
+	 * Find all indexed hashes that are at or within the given hamming distance of each probe hash. Implementations
+	 * may share work between probes, by default every probe is searched with {@link #searchWithin(long, long)}.
+	 * 
+	 * @param probes
+	 *            the hashes to search
+	 * @param hammingDistance
+	 *            the maximum hamming distance to match hashes for (up to and including)
+	 * @return matching hashes for every distinct probe, empty sets for probes without matches
+	 */
+	default Map<Long, Set<Long>> searchWithin(long[] probes, long hammingDistance) {
+		Map<Long, Set<Long>> result = new HashMap<Long, Set<Long>>(probes.length * 2);
+
+		for (long probe : probes) {
+			if (!result.containsKey(probe)) {
+				result.put(probe, searchWithin(probe, hammingDistance));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Check if all probes should be passed in one call to {@link #searchWithin(long[], long)}, instead of being split
+	 * into smaller batches that are searched in parallel. Indexes that build part of the index for every call should
+	 * return true and search the probes in parallel themselves.
+	 * 
+	 * @return true if all probes should be searched at once, false by default
+	 */
+	default boolean isSingleBatch() {
+		return false;
+	}
+}
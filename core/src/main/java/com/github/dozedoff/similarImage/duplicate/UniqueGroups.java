@@ -0,0 +1,126 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.duplicate.DuplicateUtil.GroupFingerprint;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.MultimapBuilder;
+
+/**
+ * Tracks which groups of records have already been seen. Groups are compared by an order independent fingerprint,
+ * the records are only compared if the fingerprints match. Only the fingerprint and a reference to the first group
+ * with that fingerprint are kept.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class UniqueGroups {
+	private final Map<GroupFingerprint, Collection<ImageRecord>> seen;
+	private Multimap<GroupFingerprint, Collection<ImageRecord>> collisions;
+	private long fingerprintCollisions;
+
+	/**
+	 * Create a new, empty instance.
+	 */
+	public UniqueGroups() {
+		this(16);
+	}
+
+	/**
+	 * Create a new, empty instance.
+	 * 
+	 * @param expectedGroups
+	 *            number of groups that are expected to be added
+	 */
+	public UniqueGroups(int expectedGroups) {
+		this.seen = new HashMap<>(expectedGroups * 2);
+	}
+
+	/**
+	 * Add the group if no group with the same records has been added before.
+	 * 
+	 * @param group
+	 *            to add
+	 * @return true if the group was added, false if a group with the same records was already added
+	 */
+	public boolean add(Collection<ImageRecord> group) {
+		GroupFingerprint fingerprint = DuplicateUtil.fingerprint(group);
+		Collection<ImageRecord> existing = seen.putIfAbsent(fingerprint, group);
+
+		if (existing == null) {
+			return true;
+		}
+
+		if (sameRecords(existing, group)) {
+			return false;
+		}
+
+		if (collisions == null) {
+			collisions = MultimapBuilder.hashKeys().arrayListValues().build();
+		}
+
+		for (Collection<ImageRecord> candidate : collisions.get(fingerprint)) {
+			if (sameRecords(candidate, group)) {
+				return false;
+			}
+		}
+
+		collisions.put(fingerprint, group);
+		fingerprintCollisions++;
+
+		return true;
+	}
+
+	/**
+	 * Compare the records of the groups as sets, so lists are not searched for every record.
+	 */
+	private static boolean sameRecords(Collection<ImageRecord> a, Collection<ImageRecord> b) {
+		if (a.size() != b.size()) {
+			return false;
+		}
+
+		Set<ImageRecord> recordsA = asSet(a);
+		Set<ImageRecord> recordsB = asSet(b);
+
+		return recordsA.size() == recordsB.size() && recordsA.containsAll(recordsB);
+	}
+
+	private static Set<ImageRecord> asSet(Collection<ImageRecord> records) {
+		if (records instanceof Set) {
+			return (Set<ImageRecord>) records;
+		}
+
+		return new HashSet<>(records);
+	}
+
+	/**
+	 * Get the number of distinct groups that had the same fingerprint as another group.
+	 * 
+	 * @return number of fingerprint collisions
+	 */
+	public long getFingerprintCollisions() {
+		return fingerprintCollisions;
+	}
+}
@@ -17,7 +17,9 @@
  */
 package com.github.dozedoff.similarImage.handler;
 
+import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
@@ -26,9 +28,11 @@ import org.slf4j.LoggerFactory;
 
 import com.github.dozedoff.commonj.hash.ImagePHash;
 import com.github.dozedoff.similarImage.io.HashAttribute;
+import com.github.dozedoff.similarImage.util.ImageUtil;
 
 /**
  * Reads extended attributes from files. If the data is missing or invalid, the hash will be calculated and stored.
+ * Images can optionally be decoded at a reduced resolution for hashing, see {@link #setSubsampled(boolean)}.
  * 
  * @author Nicholas Wright
  *
@@ -38,6 +42,7 @@ public class ExtendedAttributeUpdateHandler implements HashHandler {
 
 	private final HashAttribute hashAttribute;
 	private final ImagePHash hasher;
+	private boolean subsampled;
 
 	/**
 	 * Create a instance that can read an write extended attributes, as well as calculate hashes using the provided
@@ -53,6 +58,18 @@ public class ExtendedAttributeUpdateHandler implements HashHandler {
 		this.hasher = hasher;
 	}
 
+	/**
+	 * Decode images at a reduced resolution before hashing, see {@link ImageUtil#HASH_DECODE_SIZE}. This is faster for
+	 * large images, but the hashes of photos differ from a full decode by a few bits, so they should not be mixed with
+	 * hashes of fully decoded images. Disabled by default.
+	 * 
+	 * @param subsampled
+	 *            if true, images are decoded at a reduced resolution
+	 */
+	public final void setSubsampled(boolean subsampled) {
+		this.subsampled = subsampled;
+	}
+
 	/**
 	 * Read the extended attributes from the file and update them if needed.
 	 * 
@@ -64,8 +81,7 @@ public class ExtendedAttributeUpdateHandler implements HashHandler {
 	public boolean handle(Path file) {
 		if (!hashAttribute.areAttributesValid(file)) {
 			try {
-				long hash = hasher.getLongHash(Files.newInputStream(file));
-				hashAttribute.writeHash(file, hash);
+				hashAttribute.writeHash(file, hash(file));
 			} catch (IOException e) {
 				LOGGER.warn("Failed to hash {}, {}", file, e.toString());
 				return false;
@@ -74,4 +90,18 @@ public class ExtendedAttributeUpdateHandler implements HashHandler {
 
 		return true;
 	}
+
+	private long hash(Path file) throws IOException {
+		if (subsampled) {
+			BufferedImage image = ImageUtil.loadImageSubsampled(file, ImageUtil.HASH_DECODE_SIZE);
+
+			if (image != null) {
+				return hasher.getLongHash(image);
+			}
+		}
+
+		try (InputStream is = Files.newInputStream(file)) {
+			return hasher.getLongHash(is);
+		}
+	}
 }
@@ -28,4 +28,6 @@ public class HashNames {
 	}
 
 	public static final String DEFAULT_DCT_HASH_2 = "default_dct_2";
+	public static final String AVERAGE_HASH_8 = "average_8";
+	public static final String DIFFERENCE_HASH_8 = "difference_8";
 }
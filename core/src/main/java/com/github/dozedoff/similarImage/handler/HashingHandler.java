@@ -18,19 +18,31 @@
 package com.github.dozedoff.similarImage.handler;
 
 import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.dozedoff.commonj.hash.ImagePHash;
 import com.github.dozedoff.similarImage.db.repository.ImageRepository;
+import com.github.dozedoff.similarImage.db.repository.WriteBehindImageRepository;
+import com.github.dozedoff.similarImage.image.ImageHasher;
 import com.github.dozedoff.similarImage.io.HashAttribute;
 import com.github.dozedoff.similarImage.io.Statistics;
+import com.github.dozedoff.similarImage.thread.HashPipeline;
 import com.github.dozedoff.similarImage.thread.ImageHashJob;
+import com.github.dozedoff.similarImage.thread.MultiHashJob;
+import com.github.dozedoff.similarImage.util.ImageUtil;
 
 /**
- * Creates hashing jobs for files using the given hasher.
+ * Creates hashing jobs for files using the given hasher, or passes them to a {@link HashPipeline}. If a limit for
+ * queued jobs is set, {@link #handle(Path)} blocks until a running job finishes, throttling the caller. The number of
+ * queued jobs and the time spent waiting are tracked by {@link Statistics}.
  * 
  * @author Nicholas Wright
  *
@@ -43,6 +55,10 @@ public class HashingHandler implements HashHandler {
 	private final Statistics statistics;
 	private final HashAttribute hashAttribute;
 	private final ExecutorService threadPool;
+	private Semaphore queuePermits;
+	private HashPipeline pipeline;
+	private boolean subsampled;
+	private final Map<HashAttribute, ImageHasher> additionalHashes = new LinkedHashMap<>();
 
 	/**
 	 * Setup the handler so it can hash files and update the database.
@@ -53,7 +69,8 @@ public class HashingHandler implements HashHandler {
 	 * @param hasher
 	 *            class that does the hash computation
 	 * @param imageRepository
-	 *            access to the image datasource
+	 *            access to the image datasource, use the {@link WriteBehindImageRepository} provided by the
+	 *            repository node module to store results in batches
 	 * @param statistics
 	 *            tracking file stats
 	 * @param hashAttribute
@@ -69,19 +86,153 @@ public class HashingHandler implements HashHandler {
 	}
 
 	/**
-	 * Create a new {@link ImageHashJob} and execute it.
+	 * Limit the number of jobs that are queued or running at the same time. Once the limit is reached,
+	 * {@link #handle(Path)} blocks until a job finishes. Must be set before files are handled.
+	 * 
+	 * @param maxQueuedJobs
+	 *            maximum number of jobs that are queued or running, must be at least 1
+	 */
+	public final void setMaxQueuedJobs(int maxQueuedJobs) {
+		if (maxQueuedJobs < 1) {
+			throw new IllegalArgumentException("Max queued jobs must be at least 1");
+		}
+
+		this.queuePermits = new Semaphore(maxQueuedJobs);
+	}
+
+	/**
+	 * Calculate an additional hash from the same decoded image and write it as an extended attribute. Once a hash is
+	 * added, files are hashed with a {@link MultiHashJob}. Additional hashes are not calculated by a
+	 * {@link HashPipeline}. Must be set before files are handled.
+	 * 
+	 * @param attribute
+	 *            to write the hash to
+	 * @param imageHasher
+	 *            that calculates the hash
+	 */
+	public final void addHash(HashAttribute attribute, ImageHasher imageHasher) {
+		additionalHashes.put(attribute, imageHasher);
+	}
+
+	/**
+	 * Decode images at a reduced resolution before hashing, see {@link ImageUtil#HASH_DECODE_SIZE}. This is faster for
+	 * large images, but the hashes of photos differ from a full decode by a few bits, so they should not be mixed with
+	 * hashes of fully decoded images. Does not apply to a {@link HashPipeline}, which is configured on its own.
+	 * Disabled by default, must be set before files are handled.
+	 * 
+	 * @param subsampled
+	 *            if true, images are decoded at a reduced resolution
+	 */
+	public final void setSubsampled(boolean subsampled) {
+		this.subsampled = subsampled;
+	}
+
+	/**
+	 * Hash files with a {@link HashPipeline} instead of running an {@link ImageHashJob} per file on the thread pool.
+	 * The pipeline uses its own threads, repository and hash attribute, and blocks {@link #handle(Path)} while its
+	 * stages are full, even if no queued job limit is set. Must be set before files are handled.
+	 * 
+	 * @param pipeline
+	 *            to submit files to, or null to use the thread pool
+	 */
+	public final void setPipeline(HashPipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * Create a new {@link ImageHashJob} and execute it, or submit the file to the pipeline if one is set. If the
+	 * queued job limit is reached, blocks until a job finishes.
 	 * 
 	 * @param file
 	 *            the image to hash
-	 * @return this handler will always return true
+	 * @return true if the job was submitted, false if interrupted while waiting to submit
 	 */
 	@Override
 	public boolean handle(Path file) {
 		LOGGER.trace("Handling {} with {}", file, HashingHandler.class.getSimpleName());
 
-		ImageHashJob job = new ImageHashJob(file, hasher, imageRepository, statistics);
-		job.setHashAttribute(hashAttribute);
-		threadPool.execute(job);
+		if (queuePermits == null) {
+			if (pipeline != null) {
+				pipeline.submit(file);
+			} else {
+				threadPool.execute(createJob(file));
+			}
+
+			return true;
+		}
+
+		try {
+			acquirePermit();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.warn("Interrupted while waiting to queue {}", file);
+			return false;
+		}
+
+		statistics.incrementQueuedJobs();
+
+		try {
+			if (pipeline != null) {
+				pipeline.submit(file).whenComplete((result, e) -> releasePermit());
+			} else {
+				threadPool.execute(new QueuedJob(createJob(file)));
+			}
+		} catch (RejectedExecutionException e) {
+			releasePermit();
+			throw e;
+		}
+
 		return true;
 	}
+
+	private Runnable createJob(Path file) {
+		if (additionalHashes.isEmpty()) {
+			ImageHashJob job = new ImageHashJob(file, hasher, imageRepository, statistics);
+			job.setHashAttribute(hashAttribute);
+			job.setSubsampled(subsampled);
+			return job;
+		}
+
+		MultiHashJob job = new MultiHashJob(file, hasher, imageRepository, statistics);
+		job.setHashAttribute(hashAttribute);
+		job.setSubsampled(subsampled);
+
+		for (Entry<HashAttribute, ImageHasher> additional : additionalHashes.entrySet()) {
+			job.addHash(additional.getKey(), additional.getValue());
+		}
+
+		return job;
+	}
+
+	private void acquirePermit() throws InterruptedException {
+		if (queuePermits.tryAcquire()) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		queuePermits.acquire();
+		statistics.addSubmitWait(System.nanoTime() - start);
+	}
+
+	private void releasePermit() {
+		statistics.decrementQueuedJobs();
+		queuePermits.release();
+	}
+
+	private class QueuedJob implements Runnable {
+		private final Runnable job;
+
+		public QueuedJob(Runnable job) {
+			this.job = job;
+		}
+
+		@Override
+		public void run() {
+			try {
+				job.run();
+			} finally {
+				releasePermit();
+			}
+		}
+	}
 }
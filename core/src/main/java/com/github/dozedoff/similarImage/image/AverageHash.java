@@ -0,0 +1,61 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+
+import com.github.dozedoff.similarImage.util.ImageUtil;
+
+/**
+ * Average hash, the image is scaled to 8x8 grayscale and a bit is set for every pixel that is brighter than the mean.
+ * Much cheaper than a DCT hash, but less robust against changes in contrast.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class AverageHash implements ImageHasher {
+	private static final int SIZE = 8;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long hash(BufferedImage image) {
+		Raster raster = ImageUtil.resizeGray(image, SIZE, SIZE).getRaster();
+		int[] pixels = raster.getPixels(0, 0, SIZE, SIZE, (int[]) null);
+
+		long sum = 0;
+
+		for (int pixel : pixels) {
+			sum += pixel;
+		}
+
+		long hash = 0;
+
+		for (int pixel : pixels) {
+			hash <<= 1;
+
+			if ((long) pixel * pixels.length > sum) {
+				hash |= 1;
+			}
+		}
+
+		return hash;
+	}
+}
@@ -0,0 +1,60 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+
+import com.github.dozedoff.similarImage.util.ImageUtil;
+
+/**
+ * Difference hash, the image is scaled to 9x8 grayscale and a bit is set for every pixel that is brighter than its
+ * right neighbour. Cheap to compute and robust against changes in brightness and contrast.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class DifferenceHash implements ImageHasher {
+	private static final int WIDTH = 9;
+	private static final int HEIGHT = 8;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long hash(BufferedImage image) {
+		Raster raster = ImageUtil.resizeGray(image, WIDTH, HEIGHT).getRaster();
+		int[] pixels = raster.getPixels(0, 0, WIDTH, HEIGHT, (int[]) null);
+
+		long hash = 0;
+
+		for (int y = 0; y < HEIGHT; y++) {
+			int row = y * WIDTH;
+
+			for (int x = 0; x < WIDTH - 1; x++) {
+				hash <<= 1;
+
+				if (pixels[row + x] > pixels[row + x + 1]) {
+					hash |= 1;
+				}
+			}
+		}
+
+		return hash;
+	}
+}
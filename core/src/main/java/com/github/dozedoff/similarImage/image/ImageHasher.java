@@ -0,0 +1,40 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.image;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Calculates a 64 bit perceptual hash from a decoded image.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public interface ImageHasher {
+	/**
+	 * Calculate the hash of the image.
+	 * 
+	 * @param image
+	 *            to hash
+	 * @return the hash of the image
+	 * @throws IOException
+	 *             if the image could not be processed
+	 */
+	long hash(BufferedImage image) throws IOException;
+}
@@ -18,18 +18,22 @@
 package com.github.dozedoff.similarImage.io;
 
 import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Statistics {
 	private final AtomicInteger foundFiles = new AtomicInteger();
 	private final AtomicInteger processedFiles = new AtomicInteger();
 	private final AtomicInteger failedFiles = new AtomicInteger();
 	private final AtomicInteger skippedFiles = new AtomicInteger();
+	private final AtomicInteger queuedJobs = new AtomicInteger();
+	private final AtomicLong submitWaitNanos = new AtomicLong();
 
 	private LinkedList<StatisticsChangedListener> statisticsChangedListners = new LinkedList<>();
 
 	public enum StatisticsEvent {
-		FOUND_FILES, PROCESSED_FILES, FAILED_FILES, SKIPPED_FILES
+		FOUND_FILES, PROCESSED_FILES, FAILED_FILES, SKIPPED_FILES, QUEUED_JOBS, SUBMIT_WAIT
 	}
 
 	public int getFoundFiles() {
@@ -64,11 +68,52 @@ public class Statistics {
 		dispatchEvent(StatisticsEvent.SKIPPED_FILES, skippedFiles.incrementAndGet());
 	}
 
+	/**
+	 * Get the number of jobs that have been submitted for execution, but have not finished yet.
+	 * 
+	 * @return number of queued or running jobs
+	 */
+	public int getQueuedJobs() {
+		return queuedJobs.get();
+	}
+
+	public void incrementQueuedJobs() {
+		dispatchEvent(StatisticsEvent.QUEUED_JOBS, queuedJobs.incrementAndGet());
+	}
+
+	public void decrementQueuedJobs() {
+		dispatchEvent(StatisticsEvent.QUEUED_JOBS, queuedJobs.decrementAndGet());
+	}
+
+	/**
+	 * Get the total time spent waiting to submit jobs, because too many jobs were queued.
+	 * 
+	 * @param unit
+	 *            of the returned time
+	 * @return the total wait time
+	 */
+	public long getSubmitWait(TimeUnit unit) {
+		return unit.convert(submitWaitNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Add time spent waiting to submit a job. Listeners receive the total wait time in milliseconds.
+	 * 
+	 * @param waitNanos
+	 *            time waited in nanoseconds
+	 */
+	public void addSubmitWait(long waitNanos) {
+		long total = submitWaitNanos.addAndGet(waitNanos);
+		dispatchEvent(StatisticsEvent.SUBMIT_WAIT,
+				(int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(total)));
+	}
+
 	public void reset() {
 		foundFiles.set(0);
 		failedFiles.set(0);
 		processedFiles.set(0);
 		skippedFiles.set(0);
+		submitWaitNanos.set(0);
 	}
 
 	public void addStatisticsListener(StatisticsChangedListener listener) {
@@ -61,6 +61,9 @@ public class Cfg4jModule {
 
 		props.put("all.threads", Runtime.getRuntime().availableProcessors());
 		props.put("all.includeIgnoredImages", false);
+		props.put("all.searchShards", 1);
+		props.put("all.degenerateBitBalance", 0);
+		props.put("all.degenerateHashPopulation", 0);
 
 		return props;
 	}
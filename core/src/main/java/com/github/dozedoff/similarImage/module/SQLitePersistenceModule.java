@@ -24,10 +24,14 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import com.github.dozedoff.similarImage.db.Database;
+import com.github.dozedoff.similarImage.db.ImageChangeLog;
+import com.github.dozedoff.similarImage.db.LiveImageIndex;
+import com.github.dozedoff.similarImage.db.PersistedHashIndex;
 import com.github.dozedoff.similarImage.db.SQLiteDatabase;
 import com.github.dozedoff.similarImage.db.repository.FilterRepository;
 import com.github.dozedoff.similarImage.db.repository.IgnoreRepository;
 import com.github.dozedoff.similarImage.db.repository.ImageRepository;
+import com.github.dozedoff.similarImage.db.repository.ObservableImageRepository;
 import com.github.dozedoff.similarImage.db.repository.PendingHashImageRepository;
 import com.github.dozedoff.similarImage.db.repository.Repository;
 import com.github.dozedoff.similarImage.db.repository.RepositoryException;
@@ -77,10 +81,34 @@ public class SQLitePersistenceModule {
 		return new OrmliteRepositoryFactory(database);
 	}
 
+	@Singleton
+	@Provides
+	public PersistedHashIndex providePersistedHashIndex() {
+		return new PersistedHashIndex(databasePath);
+	}
+
+	@Singleton
+	@Provides
+	public LiveImageIndex provideLiveImageIndex(RepositoryFactory repositoryFactory) {
+		try {
+			return new LiveImageIndex(repositoryFactory.buildImageRepository());
+		} catch (RepositoryException e) {
+			throw runtimeException(ImageRepository.class, e);
+		}
+	}
+
+	@Singleton
+	@Provides
+	public ImageChangeLog provideImageChangeLog() {
+		return new ImageChangeLog();
+	}
+
 	@Provides
-	public ImageRepository provideImageRepository(RepositoryFactory repositoryFactory) {
+	public ImageRepository provideImageRepository(RepositoryFactory repositoryFactory,
+			PersistedHashIndex persistedHashIndex, LiveImageIndex liveImageIndex, ImageChangeLog imageChangeLog) {
 		try {
-			return repositoryFactory.buildImageRepository();
+			return new ObservableImageRepository(repositoryFactory.buildImageRepository(), persistedHashIndex,
+					liveImageIndex, imageChangeLog);
 		} catch (RepositoryException e) {
 			throw runtimeException(ImageRepository.class, e);
 		}
@@ -33,9 +33,11 @@ public class Result {
 
 	private final ResultGroup parentGroup;
 	private final ImageRecord imageRecord;
+	private final int distance;
 
 	/**
-	 * Create a new {@link Result} with the given image and a reference to the parent.
+	 * Create a new {@link Result} with the given image and a reference to the parent. The distance is calculated from
+	 * the hash of the parent.
 	 * 
 	 * @param parentGroup
 	 *            of this result
@@ -43,8 +45,24 @@ public class Result {
 	 *            this result represents
 	 */
 	public Result(ResultGroup parentGroup, ImageRecord imageRecord) {
+		this(parentGroup, imageRecord, Long.bitCount(parentGroup.getHash() ^ imageRecord.getpHash()));
+	}
+
+	/**
+	 * Create a new {@link Result} with the given image, a reference to the parent and the hamming distance between
+	 * the image and the hash of the parent.
+	 * 
+	 * @param parentGroup
+	 *            of this result
+	 * @param imageRecord
+	 *            this result represents
+	 * @param distance
+	 *            hamming distance to the hash of the parent
+	 */
+	public Result(ResultGroup parentGroup, ImageRecord imageRecord, int distance) {
 		this.parentGroup = parentGroup;
 		this.imageRecord = imageRecord;
+		this.distance = distance;
 	}
 
 	/**
@@ -56,6 +74,15 @@ public class Result {
 		return imageRecord;
 	}
 
+	/**
+	 * Get the hamming distance between the image and the hash of the parent {@link ResultGroup}.
+	 * 
+	 * @return the hamming distance
+	 */
+	public int getDistance() {
+		return distance;
+	}
+
 	/**
 	 * Remove this result from the parent {@link ResultGroup}.
 	 */
@@ -72,7 +99,7 @@ public class Result {
 	@Override
 	public String toString() {
 		return MoreObjects.toStringHelper(Result.class).add("parent", parentGroup.getHash())
-				.add("ImageRecord", imageRecord.toString()).toString();
+				.add("ImageRecord", imageRecord.toString()).add("distance", distance).toString();
 	}
 
 	/**
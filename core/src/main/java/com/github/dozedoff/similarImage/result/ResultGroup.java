@@ -18,6 +18,7 @@
 package com.github.dozedoff.similarImage.result;
 
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
@@ -38,7 +39,8 @@ public class ResultGroup {
 	private final List<Result> results;
 
 	/**
-	 * Create a new {@link ResultGroup} with the given {@link ImageRecord}s.
+	 * Create a new {@link ResultGroup} with the given {@link ImageRecord}s. The results are ordered by ascending
+	 * hamming distance to the hash.
 	 * 
 	 * @param parent
 	 *            {@link GroupList} that manages this group
@@ -59,8 +61,10 @@ public class ResultGroup {
 
 	private void buildResults(Collection<ImageRecord> records) {
 		for (ImageRecord record : records) {
-			results.add(new Result(this, record));
+			results.add(new Result(this, record, Long.bitCount(hash ^ record.getpHash())));
 		}
+
+		results.sort(Comparator.comparingInt(Result::getDistance));
 	}
 
 	/**
@@ -81,6 +85,21 @@ public class ResultGroup {
 		return results;
 	}
 
+	/**
+	 * Get the largest hamming distance between the hash and a result of this group.
+	 * 
+	 * @return the largest distance, 0 if the group has no results
+	 */
+	public int getMaxDistance() {
+		int max = 0;
+
+		for (Result result : results) {
+			max = Math.max(max, result.getDistance());
+		}
+
+		return max;
+	}
+
 	/**
 	 * Remove the result from this group and notify the {@link GroupList} of the removal.
 	 * 
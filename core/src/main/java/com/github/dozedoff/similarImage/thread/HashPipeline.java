@@ -0,0 +1,327 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.imageio.IIOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.dozedoff.commonj.hash.ImagePHash;
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.db.repository.ImageRepository;
+import com.github.dozedoff.similarImage.db.repository.RepositoryException;
+import com.github.dozedoff.similarImage.io.HashAttribute;
+import com.github.dozedoff.similarImage.io.Statistics;
+import com.github.dozedoff.similarImage.util.ImageUtil;
+
+import at.dhyan.open_imaging.GifDecoder;
+
+/**
+ * Hashes images in three stages, each with its own thread pool. The read stage loads the file into memory, the hash
+ * stage decodes and hashes the image, and the persist stage stores the result in the database and as an extended
+ * attribute. This allows the I/O bound read stage to be sized for the storage, while the CPU bound hash stage is sized
+ * for the available cores.
+ * <p>
+ * Each stage has a bounded queue. When it is full, the previous stage waits for space, and once the read stage is full
+ * {@link #submit(Path)} blocks. This limits the number of files held in memory when reading is faster than hashing.
+ * <p>
+ * For every stage, the time taken per file is added to a timer, and the number of files still waiting when the stage
+ * starts on a file is added to a histogram. The metrics are named after the class, stage and metric,
+ * for example {@code HashPipeline.read.time}, prefixed with the package.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class HashPipeline {
+	private static final Logger LOGGER = LoggerFactory.getLogger(HashPipeline.class);
+	private static final String EXCEPTION_STACKTRACE = "Trace for {} {}";
+
+	public static final String STAGE_READ = "read";
+	public static final String STAGE_HASH = "hash";
+	public static final String STAGE_PERSIST = "persist";
+
+	/**
+	 * Timer for the time a stage takes per file.
+	 */
+	public static final String METRIC_TIME = "time";
+	/**
+	 * Histogram of the number of files waiting for a stage when it starts on a file.
+	 */
+	public static final String METRIC_QUEUE = "queue";
+
+	/**
+	 * Number of files per thread that can wait for a stage before the previous stage blocks.
+	 */
+	public static final int QUEUED_FILES_PER_THREAD = 4;
+
+	private final ImagePHash hasher;
+	private final ImageRepository imageRepository;
+	private final Statistics statistics;
+	private final HashAttribute hashAttribute;
+	private final MetricRegistry metrics;
+
+	private final ThreadPoolExecutor readPool;
+	private final ThreadPoolExecutor hashPool;
+	private final ThreadPoolExecutor persistPool;
+	private volatile boolean subsampled;
+
+	/**
+	 * Create a pipeline with the given number of threads per stage.
+	 * 
+	 * @param hasher
+	 *            class that does the hash computation
+	 * @param imageRepository
+	 *            access to the image datasource
+	 * @param statistics
+	 *            tracking file stats
+	 * @param hashAttribute
+	 *            used to store hashes as extended attributes, can be null
+	 * @param readThreads
+	 *            number of threads reading files
+	 * @param hashThreads
+	 *            number of threads decoding and hashing images, usually the number of cores
+	 * @param persistThreads
+	 *            number of threads storing results
+	 * @param metrics
+	 *            for tracking stage times and queue depths
+	 */
+	public HashPipeline(ImagePHash hasher, ImageRepository imageRepository, Statistics statistics,
+			HashAttribute hashAttribute, int readThreads, int hashThreads, int persistThreads,
+			MetricRegistry metrics) {
+		this.hasher = hasher;
+		this.imageRepository = imageRepository;
+		this.statistics = statistics;
+		this.hashAttribute = hashAttribute;
+		this.metrics = metrics;
+
+		this.readPool = createPool(STAGE_READ, readThreads);
+		this.hashPool = createPool(STAGE_HASH, hashThreads);
+		this.persistPool = createPool(STAGE_PERSIST, persistThreads);
+	}
+
+	private static ThreadPoolExecutor createPool(String stage, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Stage " + stage + " needs at least 1 thread");
+		}
+
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(threads * QUEUED_FILES_PER_THREAD),
+				new NamedThreadFactory(HashPipeline.class.getSimpleName() + " " + stage), HashPipeline::awaitSpace);
+	}
+
+	private static void awaitSpace(Runnable task, ThreadPoolExecutor pool) {
+		if (pool.isShutdown()) {
+			throw new RejectedExecutionException("Stage has been shut down");
+		}
+
+		try {
+			pool.getQueue().put(task);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for space in the stage queue", e);
+		}
+
+		if (pool.isShutdown() && pool.remove(task)) {
+			throw new RejectedExecutionException("Stage has been shut down");
+		}
+	}
+
+	/**
+	 * Decode images at a reduced resolution before hashing, see {@link ImageUtil#HASH_DECODE_SIZE}. This is faster for
+	 * large images, but the hashes of photos differ from a full decode by a few bits, so they should not be mixed with
+	 * hashes of fully decoded images. Disabled by default, must be set before files are submitted.
+	 * 
+	 * @param subsampled
+	 *            if true, images are decoded at a reduced resolution
+	 */
+	public final void setSubsampled(boolean subsampled) {
+		this.subsampled = subsampled;
+	}
+
+	/**
+	 * Submit a file to the pipeline. Failures are logged and counted in the {@link Statistics}, the returned future
+	 * always completes normally. Blocks while the queue of the read stage is full.
+	 * 
+	 * @param file
+	 *            to hash
+	 * @return a future that completes when the file has left the pipeline
+	 */
+	public CompletableFuture<Void> submit(Path file) {
+		return CompletableFuture.supplyAsync(stage(STAGE_READ, readPool, () -> read(file)), readPool)
+				.thenApplyAsync(data -> stage(STAGE_HASH, hashPool, () -> hash(file, data)).get(), hashPool)
+				.thenAcceptAsync(hash -> stage(STAGE_PERSIST, persistPool, () -> persist(file, hash)).get(),
+						persistPool)
+				.exceptionally(e -> {
+					onFailure(file, e instanceof CompletionException ? e.getCause() : e);
+					return null;
+				});
+	}
+
+	private <T> Supplier<T> stage(String stage, ThreadPoolExecutor pool, Supplier<T> task) {
+		return () -> {
+			metrics.histogram(MetricRegistry.name(HashPipeline.class, stage, METRIC_QUEUE))
+					.update(pool.getQueue().size());
+			long start = System.nanoTime();
+
+			try {
+				return task.get();
+			} finally {
+				metrics.timer(MetricRegistry.name(HashPipeline.class, stage, METRIC_TIME))
+						.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			}
+		};
+	}
+
+	private byte[] read(Path file) {
+		statistics.incrementProcessedFiles();
+
+		try {
+			return Files.readAllBytes(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private long hash(Path file, byte[] data) {
+		try {
+			Path filename = file.getFileName();
+
+			if (filename != null && filename.toString().toLowerCase().endsWith(".gif")) {
+				return hasher.getLongHash(GifDecoder.read(new ByteArrayInputStream(data)).getFrame(0));
+			}
+
+			if (subsampled) {
+				BufferedImage image = ImageUtil.readSubsampled(new ByteArrayInputStream(data),
+						ImageUtil.HASH_DECODE_SIZE);
+
+				if (image != null) {
+					return hasher.getLongHash(image);
+				}
+			}
+
+			return hasher.getLongHash(new ByteArrayInputStream(data));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private Void persist(Path file, long hash) {
+		try {
+			imageRepository.store(new ImageRecord(file.toString(), hash));
+		} catch (RepositoryException e) {
+			throw new CompletionException(e);
+		}
+
+		if (hashAttribute != null) {
+			hashAttribute.writeHash(file, hash);
+		}
+
+		return null;
+	}
+
+	private void onFailure(Path file, Throwable e) {
+		Throwable cause = e instanceof UncheckedIOException ? e.getCause() : e;
+
+		if (cause instanceof IIOException) {
+			LOGGER.warn("Failed to process image {} (IIO Error): {}", file, cause.toString());
+			LOGGER.debug(EXCEPTION_STACKTRACE, file, cause);
+		} else if (cause instanceof IOException) {
+			LOGGER.warn("Failed to load file {}: {}", file, cause.toString());
+		} else if (cause instanceof RepositoryException) {
+			LOGGER.warn("Failed to query repository for {}: {}", file, cause.toString());
+		} else {
+			LOGGER.error("Failed to process image {}: {}", file, cause.toString());
+			LOGGER.debug(EXCEPTION_STACKTRACE, file, cause);
+		}
+
+		statistics.incrementFailedFiles();
+	}
+
+	/**
+	 * Get the number of files waiting for a stage.
+	 * 
+	 * @param stage
+	 *            one of {@link #STAGE_READ}, {@link #STAGE_HASH} or {@link #STAGE_PERSIST}
+	 * @return number of files queued for the stage
+	 */
+	public int getQueueDepth(String stage) {
+		return pool(stage).getQueue().size();
+	}
+
+	/**
+	 * Get the number of threads of a stage.
+	 * 
+	 * @param stage
+	 *            one of {@link #STAGE_READ}, {@link #STAGE_HASH} or {@link #STAGE_PERSIST}
+	 * @return number of threads of the stage
+	 */
+	public int getThreads(String stage) {
+		return pool(stage).getCorePoolSize();
+	}
+
+	private ThreadPoolExecutor pool(String stage) {
+		switch (stage) {
+		case STAGE_READ:
+			return readPool;
+		case STAGE_HASH:
+			return hashPool;
+		case STAGE_PERSIST:
+			return persistPool;
+		default:
+			throw new IllegalArgumentException("Unknown stage " + stage);
+		}
+	}
+
+	/**
+	 * Stop accepting files and wait for the submitted files to pass through all stages.
+	 * 
+	 * @param timeout
+	 *            maximum time to wait per stage
+	 * @param unit
+	 *            of the timeout
+	 * @return true if all stages terminated
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		readPool.shutdown();
+		boolean terminated = readPool.awaitTermination(timeout, unit);
+		hashPool.shutdown();
+		terminated &= hashPool.awaitTermination(timeout, unit);
+		persistPool.shutdown();
+		terminated &= persistPool.awaitTermination(timeout, unit);
+
+		return terminated;
+	}
+}
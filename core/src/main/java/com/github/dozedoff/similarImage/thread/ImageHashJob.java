@@ -17,6 +17,7 @@
  */
 package com.github.dozedoff.similarImage.thread;
 
+import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -34,12 +35,14 @@ import com.github.dozedoff.similarImage.db.repository.ImageRepository;
 import com.github.dozedoff.similarImage.db.repository.RepositoryException;
 import com.github.dozedoff.similarImage.io.HashAttribute;
 import com.github.dozedoff.similarImage.io.Statistics;
+import com.github.dozedoff.similarImage.util.ImageUtil;
 
 import at.dhyan.open_imaging.GifDecoder;
 import at.dhyan.open_imaging.GifDecoder.GifImage;
 
 /**
- * Load an image and calculate the hash, then store the result in the database and as an extended attribute.
+ * Load an image and calculate the hash, then store the result in the database and as an extended attribute. Images
+ * can optionally be decoded at a reduced resolution, see {@link #setSubsampled(boolean)}.
  * 
  * @author Nicholas Wright
  *
@@ -53,6 +56,7 @@ public class ImageHashJob implements Runnable {
 	private final ImagePHash hasher;
 	private final Statistics statistics;
 	private HashAttribute hashAttribute;
+	private boolean subsampled;
 
 	/**
 	 * Create a class that will hash an image an store the result.
@@ -83,6 +87,18 @@ public class ImageHashJob implements Runnable {
 		this.hashAttribute = hashAttribute;
 	}
 
+	/**
+	 * Decode images at a reduced resolution before hashing, see {@link ImageUtil#HASH_DECODE_SIZE}. This is faster for
+	 * large images, but the hashes of photos differ from a full decode by a few bits, so they should not be mixed with
+	 * hashes of fully decoded images. Disabled by default.
+	 * 
+	 * @param subsampled
+	 *            if true, images are decoded at a reduced resolution
+	 */
+	public final void setSubsampled(boolean subsampled) {
+		this.subsampled = subsampled;
+	}
+
 	@Override
 	public void run() {
 		try {
@@ -112,22 +128,32 @@ public class ImageHashJob implements Runnable {
 		statistics.incrementProcessedFiles();
 
 		Path filename = next.getFileName();
-		try (InputStream bis = new BufferedInputStream(Files.newInputStream(next))) {
-			if (filename != null && filename.toString().toLowerCase().endsWith(".gif")) {
+
+		if (filename != null && filename.toString().toLowerCase().endsWith(".gif")) {
+			try (InputStream bis = new BufferedInputStream(Files.newInputStream(next))) {
 				GifImage gi = GifDecoder.read(bis);
+				return storeHash(next, hasher.getLongHash(gi.getFrame(0)));
+			}
+		}
 
-				long hash = hasher.getLongHash(gi.getFrame(0));
-				imageRepository.store(new ImageRecord(next.toString(), hash));
-				return hash;
-			} else {
+		if (subsampled) {
+			BufferedImage image = ImageUtil.loadImageSubsampled(next, ImageUtil.HASH_DECODE_SIZE);
 
-				return doHash(next, bis);
+			if (image != null) {
+				return storeHash(next, hasher.getLongHash(image));
 			}
 		}
+
+		try (InputStream bis = new BufferedInputStream(Files.newInputStream(next))) {
+			return doHash(next, bis);
+		}
 	}
 
 	private long doHash(Path next, InputStream is) throws IOException, RepositoryException {
-		long hash = hasher.getLongHash(is);
+		return storeHash(next, hasher.getLongHash(is));
+	}
+
+	private long storeHash(Path next, long hash) throws RepositoryException {
 		imageRepository.store(new ImageRecord(next.toString(), hash));
 		return hash;
 	}
@@ -0,0 +1,189 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.imageio.IIOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.dozedoff.commonj.hash.ImagePHash;
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.db.repository.ImageRepository;
+import com.github.dozedoff.similarImage.db.repository.RepositoryException;
+import com.github.dozedoff.similarImage.image.ImageHasher;
+import com.github.dozedoff.similarImage.io.HashAttribute;
+import com.github.dozedoff.similarImage.io.Statistics;
+import com.github.dozedoff.similarImage.util.ImageUtil;
+
+import at.dhyan.open_imaging.GifDecoder;
+
+/**
+ * Load an image once and calculate several hashes from the decoded image. The DCT hash is stored in the database and
+ * optionally as an extended attribute, additional hashes are written as extended attributes under their own name.
+ * Images can optionally be decoded at a reduced resolution, see {@link #setSubsampled(boolean)}. If no reader can
+ * decode the image, only the DCT hash is calculated from the file stream, as {@link ImageHashJob} does.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class MultiHashJob implements Runnable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MultiHashJob.class);
+	private static final String EXCEPTION_STACKTRACE = "Trace for {} {}";
+
+	private final ImageRepository imageRepository;
+	private final Path image;
+	private final ImagePHash hasher;
+	private final Statistics statistics;
+	private final Map<HashAttribute, ImageHasher> additionalHashes;
+	private HashAttribute hashAttribute;
+	private boolean subsampled;
+
+	/**
+	 * Create a class that will hash an image with several hashers and store the results.
+	 * 
+	 * @param image
+	 *            to hash
+	 * @param hasher
+	 *            class that does the DCT hash computation, the result is stored in the database
+	 * @param imageRepository
+	 *            access to the image datasource
+	 * @param statistics
+	 *            tracking file stats
+	 */
+	public MultiHashJob(Path image, ImagePHash hasher, ImageRepository imageRepository, Statistics statistics) {
+		this.image = image;
+		this.hasher = hasher;
+		this.statistics = statistics;
+		this.imageRepository = imageRepository;
+		this.additionalHashes = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Set a {@link HashAttribute} to additionally write the DCT hash as an extended attribute.
+	 * 
+	 * @param hashAttribute
+	 *            to use for writing extended attributes
+	 */
+	public final void setHashAttribute(HashAttribute hashAttribute) {
+		this.hashAttribute = hashAttribute;
+	}
+
+	/**
+	 * Decode images at a reduced resolution before hashing, see {@link ImageUtil#HASH_DECODE_SIZE}. This is faster for
+	 * large images, but the hashes of photos differ from a full decode by a few bits, so they should not be mixed with
+	 * hashes of fully decoded images. Disabled by default.
+	 * 
+	 * @param subsampled
+	 *            if true, images are decoded at a reduced resolution
+	 */
+	public final void setSubsampled(boolean subsampled) {
+		this.subsampled = subsampled;
+	}
+
+	/**
+	 * Add a hash that is calculated from the same decoded image and written as an extended attribute.
+	 * 
+	 * @param attribute
+	 *            to write the hash to
+	 * @param imageHasher
+	 *            that calculates the hash
+	 */
+	public final void addHash(HashAttribute attribute, ImageHasher imageHasher) {
+		additionalHashes.put(attribute, imageHasher);
+	}
+
+	@Override
+	public void run() {
+		try {
+			processFile(image);
+		} catch (IIOException e) {
+			LOGGER.warn("Failed to process image {} (IIO Error): {}", image, e.toString());
+			LOGGER.debug(EXCEPTION_STACKTRACE, image, e);
+			statistics.incrementFailedFiles();
+		} catch (IOException e) {
+			LOGGER.warn("Failed to load file {}: {}", image, e.toString());
+			statistics.incrementFailedFiles();
+		} catch (RepositoryException e) {
+			LOGGER.warn("Failed to query repository for {}: {}", image, e.toString());
+			statistics.incrementFailedFiles();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			LOGGER.error("Failed to process image {}: {}", image, e.toString());
+			LOGGER.debug(EXCEPTION_STACKTRACE, image, e);
+			statistics.incrementFailedFiles();
+		}
+	}
+
+	private void processFile(Path next) throws RepositoryException, IOException {
+		statistics.incrementProcessedFiles();
+
+		BufferedImage decoded = decode(next);
+
+		if (decoded == null) {
+			LOGGER.warn("No reader found for {}, hashing the file stream without additional hashes", next);
+			storeHash(next, streamHash(next));
+			return;
+		}
+
+		storeHash(next, hasher.getLongHash(decoded));
+
+		for (Entry<HashAttribute, ImageHasher> additional : additionalHashes.entrySet()) {
+			additional.getKey().writeHash(next, additional.getValue().hash(decoded));
+		}
+	}
+
+	private void storeHash(Path next, long hash) throws RepositoryException {
+		imageRepository.store(new ImageRecord(next.toString(), hash));
+
+		if (hashAttribute != null) {
+			hashAttribute.writeHash(next, hash);
+		}
+	}
+
+	private BufferedImage decode(Path next) throws IOException {
+		Path filename = next.getFileName();
+
+		if (filename != null && filename.toString().toLowerCase().endsWith(".gif")) {
+			try (InputStream bis = new BufferedInputStream(Files.newInputStream(next))) {
+				return GifDecoder.read(bis).getFrame(0);
+			}
+		}
+
+		if (subsampled) {
+			return ImageUtil.loadImageSubsampled(next, ImageUtil.HASH_DECODE_SIZE);
+		}
+
+		return ImageUtil.loadImage(next);
+	}
+
+	private long streamHash(Path next) throws IOException {
+		try (InputStream bis = new BufferedInputStream(Files.newInputStream(next))) {
+			return hasher.getLongHash(bis);
+		}
+	}
+}
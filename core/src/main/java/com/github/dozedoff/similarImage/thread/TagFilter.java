@@ -17,8 +17,14 @@
  */
 package com.github.dozedoff.similarImage.thread;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,10 +34,13 @@ import com.github.dozedoff.similarImage.db.ImageRecord;
 import com.github.dozedoff.similarImage.db.Tag;
 import com.github.dozedoff.similarImage.db.repository.FilterRepository;
 import com.github.dozedoff.similarImage.db.repository.RepositoryException;
+import com.github.dozedoff.similarImage.duplicate.BKTreeSearchIndex;
+import com.github.dozedoff.similarImage.duplicate.HashGroups;
 import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+import com.github.dozedoff.similarImage.duplicate.SearchIndex;
+import com.github.dozedoff.similarImage.util.TaskProgress;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.MultimapBuilder;
-import com.google.common.collect.Multimaps;
 
 /**
  * Filter the result set so it only contains hashes from tagged images that are in range.
@@ -42,6 +51,15 @@ import com.google.common.collect.Multimaps;
 public class TagFilter {
 	private static final Logger LOGGER = LoggerFactory.getLogger(TagFilter.class);
 
+	/**
+	 * Name of the image scan in progress updates.
+	 */
+	public static final String STAGE_SCAN = "tag scan";
+	/**
+	 * Number of distinct image hashes that are scanned between checks for cancellation.
+	 */
+	private static final int CHECK_INTERVAL = 1024;
+
 	private final FilterRepository filterRepository;
 
 	/**
@@ -67,24 +85,145 @@ public class TagFilter {
 	 */
 	public Multimap<Long, ImageRecord> getFilterMatches(RecordSearch recordSearch, Tag tagToMatch,
 			int hammingDistance) {
-		Multimap<Long, ImageRecord> uniqueGroups = MultimapBuilder.hashKeys().hashSetValues().build();
+		return getFilterMatches(recordSearch, tagToMatch, hammingDistance, new TaskProgress());
+	}
+
+	/**
+	 * Query the the records for matches against tagged hashes, reporting the fraction of searched hashes. The tagged
+	 * hashes are searched as one batch.
+	 * 
+	 * @param recordSearch
+	 *            the images to filter
+	 * @param tagToMatch
+	 *            hashes that have this tag will be used for filtering
+	 * @param hammingDistance
+	 *            all hashes within the distance of the query hash will be considered a match
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * @return a {@link Multimap} containing the search results
+	 * @throws CancellationException
+	 *             if the query was cancelled
+	 */
+	public Multimap<Long, ImageRecord> getFilterMatches(RecordSearch recordSearch, Tag tagToMatch,
+			int hammingDistance, TaskProgress progress) throws CancellationException {
+		return getFilterMatches(recordSearch, getTagHashes(tagToMatch), hammingDistance, progress);
+	}
+
+	/**
+	 * Get the distinct hashes that have the tag. Errors are logged and result in no hashes.
+	 * 
+	 * @param tag
+	 *            to get the hashes for
+	 * @return distinct hashes with the tag, empty if they could not be loaded
+	 */
+	public Set<Long> getTagHashes(Tag tag) {
 		List<FilterRecord> matchingFilters = Collections.emptyList();
 
 		try {
-			matchingFilters = FilterRecord.getTags(filterRepository, tagToMatch);
-			LOGGER.info("Found {} filters for tag {}", matchingFilters.size(), tagToMatch.getTag());
+			matchingFilters = FilterRecord.getTags(filterRepository, tag);
+			LOGGER.info("Found {} filters for tag {}", matchingFilters.size(), tag.getTag());
 		} catch (RepositoryException e) {
-			LOGGER.error("Failed to query hashes for tag {}, reason: {}, cause: {}", tagToMatch.getTag(), e.toString(),
+			LOGGER.error("Failed to query hashes for tag {}, reason: {}, cause: {}", tag.getTag(), e.toString(),
 					e.getCause());
 		}
 
-		Multimap<Long, ImageRecord> parallelGroups = Multimaps.synchronizedMultimap(uniqueGroups);
+		return matchingFilters.stream().map(FilterRecord::getpHash).collect(Collectors.toSet());
+	}
+
+	/**
+	 * Query the indexed records for matches against the tagged hashes. The tagged hashes are searched as one batch.
+	 * 
+	 * @param recordSearch
+	 *            the images to filter
+	 * @param tagHashes
+	 *            the hashes used for filtering
+	 * @param hammingDistance
+	 *            all hashes within the distance of the query hash will be considered a match
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * @return a {@link Multimap} containing the search results
+	 * @throws CancellationException
+	 *             if the query was cancelled
+	 */
+	public Multimap<Long, ImageRecord> getFilterMatches(RecordSearch recordSearch, Collection<Long> tagHashes,
+			int hammingDistance, TaskProgress progress) throws CancellationException {
+		Multimap<Long, ImageRecord> uniqueGroups = MultimapBuilder.hashKeys().hashSetValues().build();
+		HashGroups groups = recordSearch.getGroups();
+		Map<Long, Set<Long>> matches = recordSearch.distanceMatchHashes(tagHashes, hammingDistance, progress);
+
+		for (Entry<Long, Set<Long>> probe : matches.entrySet()) {
+			for (long match : probe.getValue()) {
+				uniqueGroups.putAll(probe.getKey(), groups.get(match));
+			}
+		}
+
+		return uniqueGroups;
+	}
 
-		matchingFilters.parallelStream().forEach(filter -> {
-			Multimap<Long, ImageRecord> match = recordSearch.distanceMatch(filter.getpHash(), hammingDistance);
-			parallelGroups.putAll(filter.getpHash(), match.values());
-		});
+	/**
+	 * Match the images against the tagged hashes, without indexing the images. A {@link BKTreeSearchIndex} is built
+	 * over the tagged hashes, and every image is searched in it once. Use this if there are far fewer tagged hashes
+	 * than images.
+	 * 
+	 * @param images
+	 *            the images to filter
+	 * @param tagHashes
+	 *            the hashes used for filtering
+	 * @param hammingDistance
+	 *            all hashes within the distance of the query hash will be considered a match
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * @return a {@link Multimap} containing the search results
+	 * @throws CancellationException
+	 *             if the query was cancelled
+	 */
+	public Multimap<Long, ImageRecord> scanFilterMatches(Collection<ImageRecord> images, Collection<Long> tagHashes,
+			int hammingDistance, TaskProgress progress) throws CancellationException {
+		return scanFilterMatches(HashGroups.group(images), tagHashes, hammingDistance, new BKTreeSearchIndex(),
+				progress);
+	}
+
+	/**
+	 * Match the grouped images against the tagged hashes, without indexing the images. The given index is built over
+	 * the tagged hashes, and every distinct image hash is searched in it once. Use this if there are far fewer tagged
+	 * hashes than images.
+	 * 
+	 * @param groups
+	 *            the images to filter, grouped by hash
+	 * @param tagHashes
+	 *            the hashes used for filtering
+	 * @param hammingDistance
+	 *            all hashes within the distance of the query hash will be considered a match
+	 * @param tagIndex
+	 *            a new, empty index for the tagged hashes
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * @return a {@link Multimap} containing the search results
+	 * @throws CancellationException
+	 *             if the query was cancelled
+	 */
+	public Multimap<Long, ImageRecord> scanFilterMatches(HashGroups groups, Collection<Long> tagHashes,
+			int hammingDistance, SearchIndex tagIndex, TaskProgress progress) throws CancellationException {
+		Multimap<Long, ImageRecord> uniqueGroups = MultimapBuilder.hashKeys().hashSetValues().build();
+
+		if (tagHashes.isEmpty()) {
+			return uniqueGroups;
+		}
+
+		tagIndex.build(tagHashes);
+
+		for (int i = 0; i < groups.distinctHashes(); i++) {
+			if (i % CHECK_INTERVAL == 0) {
+				progress.checkCancelled();
+				progress.update(STAGE_SCAN, i, groups.distinctHashes());
+			}
+
+			for (long tagHash : tagIndex.searchWithin(groups.hashAt(i), hammingDistance)) {
+				uniqueGroups.putAll(tagHash, groups.groupAt(i));
+			}
+		}
 
+		progress.update(STAGE_SCAN, 1);
 		return uniqueGroups;
 	}
 }
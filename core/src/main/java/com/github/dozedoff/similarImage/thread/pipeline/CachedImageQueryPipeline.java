@@ -0,0 +1,111 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.Function;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.util.TaskProgress;
+import com.google.common.collect.Multimap;
+
+/**
+ * {@link ImageQueryPipeline} that answers queries from a {@link ImageQueryResultCache} where possible.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class CachedImageQueryPipeline extends ImageQueryPipeline {
+	private final ImageQueryResultCache resultCache;
+	private final String configuration;
+	private final boolean excludeIgnored;
+
+	/**
+	 * Create a new pipeline that uses the given stages for processing queries, and caches the results.
+	 * 
+	 * @param imageQueryStage
+	 *            how images will be queried from a datasource
+	 * @param imageGrouper
+	 *            how images will be grouped, must group images by hash
+	 * @param postProcessingStages
+	 *            stages for performing post-processing
+	 * @param metrics
+	 *            used to measure the stages
+	 * @param resultCache
+	 *            cache for query results
+	 * @param configuration
+	 *            description of the pipeline configuration, used as part of the cache key
+	 * @param excludeIgnored
+	 *            if the image query stage excludes ignored images
+	 */
+	public CachedImageQueryPipeline(Function<Path, List<ImageRecord>> imageQueryStage,
+			Function<Collection<ImageRecord>, Multimap<Long, ImageRecord>> imageGrouper,
+			Collection<Function<Multimap<Long, ImageRecord>, Multimap<Long, ImageRecord>>> postProcessingStages,
+			PipelineMetrics metrics, ImageQueryResultCache resultCache, String configuration, boolean excludeIgnored) {
+		super(imageQueryStage, imageGrouper, postProcessingStages, metrics);
+
+		this.resultCache = resultCache;
+		this.configuration = configuration;
+		this.excludeIgnored = excludeIgnored;
+	}
+
+	/**
+	 * Get the result for the path from the cache, or query images with the path and apply all pipeline stages.
+	 * 
+	 * @param path
+	 *            to limit the images by scope, if null, all images will be used
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * 
+	 * @return images grouped by hash
+	 * @throws CancellationException
+	 *             if the pipeline was cancelled, the result is not cached
+	 */
+	@Override
+	public Multimap<Long, ImageRecord> apply(Path path, TaskProgress progress) throws CancellationException {
+		PipelineMetrics.Run run = getMetrics().startRun();
+
+		try {
+			return resultCache.query(configuration, path, excludeIgnored, scope -> group(scope, run, progress),
+					groups -> postProcessing(groups, run, progress));
+		} finally {
+			run.finish();
+		}
+	}
+
+	/**
+	 * Get the configuration used as part of the cache key.
+	 * 
+	 * @return description of the pipeline configuration
+	 */
+	public String getConfiguration() {
+		return configuration;
+	}
+
+	/**
+	 * Get the cache used for query results.
+	 * 
+	 * @return the result cache
+	 */
+	public ImageQueryResultCache getResultCache() {
+		return resultCache;
+	}
+}
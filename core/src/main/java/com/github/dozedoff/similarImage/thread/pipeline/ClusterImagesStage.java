@@ -0,0 +1,346 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.duplicate.HashGroups;
+import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+import com.github.dozedoff.similarImage.util.TaskProgress;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.MultimapBuilder;
+
+/**
+ * Stage to group images into disjoint clusters. Hashes within the hamming distance of each other are linked, every
+ * connected set of hashes forms a cluster. Unlike {@link GroupImagesStage}, every image is in exactly one group, so
+ * there are no overlapping groups to remove.
+ * <p>
+ * Optionally, the diameter of a cluster can be limited. Two clusters are then only joined if no pair of hashes in the
+ * combined cluster is further apart than the maximum diameter. Hashes are linked in ascending order, so the result is
+ * deterministic.
+ * </p>
+ * <p>
+ * Every cluster tracks a center hash and a radius that bounds the distance from the center to any member. Two clusters
+ * whose combined bound is within the maximum diameter are joined without comparing their members. Otherwise the
+ * members are only compared pairwise if the clusters are small, see {@link #EXACT_CHECK_PAIRS}; larger clusters are
+ * not joined. The check never creates a cluster that exceeds the maximum diameter, but may keep clusters apart that
+ * could have been joined.
+ * </p>
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class ClusterImagesStage
+		implements ProgressStage<Collection<ImageRecord>, Multimap<Long, ImageRecord>>, QuarantineStage {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ClusterImagesStage.class);
+	private static final int NO_DIAMETER_LIMIT = -1;
+	/**
+	 * Number of hashes that are queried between checks for cancellation.
+	 */
+	private static final int CHECK_INTERVAL = 256;
+	/**
+	 * Name of the clustering stage in progress updates.
+	 */
+	public static final String STAGE_CLUSTER = "cluster";
+	/**
+	 * Maximum number of member pairs compared when the bounds of two clusters are not sufficient to join them.
+	 */
+	public static final int EXACT_CHECK_PAIRS = 4096;
+
+	private final RecordSearch rs;
+	private final int hammingDistance;
+	private final int maxDiameter;
+
+	private int[] parent;
+	private int[] clusterSize;
+	/**
+	 * Circular list of cluster members, used to check the diameter when clusters are joined.
+	 */
+	private int[] nextMember;
+	/**
+	 * Center hash of the cluster, only valid for roots.
+	 */
+	private long[] center;
+	/**
+	 * Upper bound of the distance between the center and any member of the cluster, only valid for roots.
+	 */
+	private int[] radius;
+	private long rejectedLinks;
+
+	/**
+	 * Cluster images by hashes that are within the given hamming distance, without limiting the cluster size.
+	 * 
+	 * @param hammingDistance
+	 *            link all hashes within this distance
+	 * @param recordSearch
+	 *            used to build the index and query for matches
+	 */
+	public ClusterImagesStage(int hammingDistance, RecordSearch recordSearch) {
+		this.hammingDistance = hammingDistance;
+		this.rs = recordSearch;
+		this.maxDiameter = NO_DIAMETER_LIMIT;
+	}
+
+	/**
+	 * Cluster images by hashes that are within the given hamming distance. Clusters will not be joined if that would
+	 * exceed the maximum diameter.
+	 * 
+	 * @param hammingDistance
+	 *            link all hashes within this distance
+	 * @param recordSearch
+	 *            used to build the index and query for matches
+	 * @param maxDiameter
+	 *            maximum hamming distance between any two hashes in a cluster
+	 * @throws IllegalArgumentException
+	 *             if the maximum diameter is negative
+	 */
+	public ClusterImagesStage(int hammingDistance, RecordSearch recordSearch, int maxDiameter)
+			throws IllegalArgumentException {
+		if (maxDiameter < 0) {
+			throw new IllegalArgumentException("Maximum diameter must be 0 or greater");
+		}
+
+		this.hammingDistance = hammingDistance;
+		this.rs = recordSearch;
+		this.maxDiameter = maxDiameter;
+	}
+
+	/**
+	 * Cluster the images. Every cluster is keyed by its lowest hash.
+	 * 
+	 * @param toGroup
+	 *            images to cluster
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * @return a {@link Multimap} of disjoint clusters
+	 * @throws CancellationException
+	 *             if the clustering was cancelled
+	 */
+	@Override
+	public Multimap<Long, ImageRecord> apply(Collection<ImageRecord> toGroup, TaskProgress progress)
+			throws CancellationException {
+		if (hammingDistance == 0) {
+			rs.buildExact(toGroup, progress);
+		} else {
+			rs.build(toGroup, progress);
+		}
+
+		Stopwatch sw = Stopwatch.createStarted();
+		HashGroups groups = rs.getGroups();
+		int distinct = groups.distinctHashes();
+
+		initClusters(groups);
+
+		try {
+			linkMatches(groups, progress);
+		} catch (CancellationException e) {
+			releaseClusters();
+			throw e;
+		}
+
+		Multimap<Long, ImageRecord> resultMap = MultimapBuilder.hashKeys().hashSetValues().build();
+
+		int[] lowestMember = new int[distinct];
+		Arrays.fill(lowestMember, -1);
+
+		for (int i = 0; i < distinct; i++) {
+			int root = find(i);
+
+			if (lowestMember[root] < 0) {
+				lowestMember[root] = i;
+			}
+
+			resultMap.putAll(groups.hashAt(lowestMember[root]), groups.groupAt(i));
+		}
+
+		LOGGER.info("Clustered {} distinct hashes into {} clusters in {}, using hamming distance {}", distinct,
+				resultMap.keySet().size(), sw, hammingDistance);
+
+		if (maxDiameter != NO_DIAMETER_LIMIT) {
+			LOGGER.info("Rejected {} links that would exceed the maximum diameter of {}", rejectedLinks, maxDiameter);
+		}
+
+		releaseClusters();
+
+		return resultMap;
+	}
+
+	private void linkMatches(HashGroups groups, TaskProgress progress) throws CancellationException {
+		int distinct = groups.distinctHashes();
+
+		for (int i = 0; i < distinct; i++) {
+			if (i % CHECK_INTERVAL == 0) {
+				progress.checkCancelled();
+				progress.update(STAGE_CLUSTER, i, distinct);
+			}
+
+			for (long match : rs.distanceMatchHashes(groups.hashAt(i), hammingDistance)) {
+				int j = groups.indexOf(match);
+
+				if (j > i) {
+					link(i, j, groups);
+				}
+			}
+		}
+
+		progress.update(STAGE_CLUSTER, 1);
+	}
+
+	private void releaseClusters() {
+		parent = null;
+		clusterSize = null;
+		nextMember = null;
+		center = null;
+		radius = null;
+	}
+
+	private void initClusters(HashGroups groups) {
+		int distinct = groups.distinctHashes();
+
+		parent = new int[distinct];
+		clusterSize = new int[distinct];
+		nextMember = new int[distinct];
+		center = new long[distinct];
+		radius = new int[distinct];
+		rejectedLinks = 0;
+
+		for (int i = 0; i < distinct; i++) {
+			parent[i] = i;
+			clusterSize[i] = 1;
+			nextMember[i] = i;
+			center[i] = groups.hashAt(i);
+		}
+	}
+
+	private int find(int index) {
+		int current = index;
+
+		while (parent[current] != current) {
+			parent[current] = parent[parent[current]];
+			current = parent[current];
+		}
+
+		return current;
+	}
+
+	private void link(int a, int b, HashGroups groups) {
+		int rootA = find(a);
+		int rootB = find(b);
+
+		if (rootA == rootB) {
+			return;
+		}
+
+		if (maxDiameter != NO_DIAMETER_LIMIT && exceedsDiameter(rootA, rootB, groups)) {
+			rejectedLinks++;
+			return;
+		}
+
+		if (clusterSize[rootA] < clusterSize[rootB]) {
+			int swap = rootA;
+			rootA = rootB;
+			rootB = swap;
+		}
+
+		parent[rootB] = rootA;
+		clusterSize[rootA] += clusterSize[rootB];
+		radius[rootA] = Math.max(radius[rootA], centerDistance(rootA, rootB) + radius[rootB]);
+
+		int next = nextMember[rootA];
+		nextMember[rootA] = nextMember[rootB];
+		nextMember[rootB] = next;
+	}
+
+	private int centerDistance(int rootA, int rootB) {
+		return Long.bitCount(center[rootA] ^ center[rootB]);
+	}
+
+	private boolean exceedsDiameter(int rootA, int rootB, HashGroups groups) {
+		if (radius[rootA] + centerDistance(rootA, rootB) + radius[rootB] <= maxDiameter) {
+			return false;
+		}
+
+		if ((long) clusterSize[rootA] * clusterSize[rootB] > EXACT_CHECK_PAIRS) {
+			return true;
+		}
+
+		int memberA = rootA;
+
+		do {
+			long hashA = groups.hashAt(memberA);
+			int memberB = rootB;
+
+			do {
+				if (Long.bitCount(hashA ^ groups.hashAt(memberB)) > maxDiameter) {
+					return true;
+				}
+
+				memberB = nextMember[memberB];
+			} while (memberB != rootB);
+
+			memberA = nextMember[memberA];
+		} while (memberA != rootA);
+
+		return false;
+	}
+
+	/**
+	 * Get the hamming distance used to link hashes.
+	 * 
+	 * @return the set hamming distance
+	 */
+	public int getHammingDistance() {
+		return hammingDistance;
+	}
+
+	/**
+	 * Get the records with degenerate hashes that were not searched during the last grouping.
+	 * 
+	 * @return the excluded records grouped by hash, empty if degenerate hashes are searched
+	 */
+	@Override
+	public HashGroups getDegenerateGroups() {
+		return rs.getDegenerateGroups();
+	}
+
+	/**
+	 * Get the maximum diameter of a cluster.
+	 * 
+	 * @return the maximum diameter, or -1 if the diameter is not limited
+	 */
+	public int getMaxDiameter() {
+		return maxDiameter;
+	}
+
+	/**
+	 * Get the number of links that were rejected during the last clustering, because the cluster would have exceeded
+	 * the maximum diameter.
+	 * 
+	 * @return number of rejected links
+	 */
+	public long getRejectedLinks() {
+		return rejectedLinks;
+	}
+}
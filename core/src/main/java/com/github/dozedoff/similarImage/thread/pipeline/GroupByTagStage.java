@@ -18,15 +18,25 @@
 package com.github.dozedoff.similarImage.thread.pipeline;
 
 import java.util.Collection;
-import java.util.function.Function;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.github.dozedoff.similarImage.db.ImageRecord;
 import com.github.dozedoff.similarImage.db.Tag;
 import com.github.dozedoff.similarImage.db.repository.FilterRepository;
+import com.github.dozedoff.similarImage.duplicate.BKTreeSearchIndex;
+import com.github.dozedoff.similarImage.duplicate.DegenerateHashFilter;
+import com.github.dozedoff.similarImage.duplicate.HashGroups;
 import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+import com.github.dozedoff.similarImage.duplicate.SearchIndex;
 import com.github.dozedoff.similarImage.thread.TagFilter;
+import com.github.dozedoff.similarImage.util.TaskProgress;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.MultimapBuilder;
 
 /**
  * Group images based on hashes assigned to a tag.
@@ -34,11 +44,42 @@ import com.google.common.collect.MultimapBuilder;
  * @author Nicholas Wright
  *
  */
-public class GroupByTagStage implements Function<Collection<ImageRecord>, Multimap<Long, ImageRecord>> {
+public class GroupByTagStage
+		implements ProgressStage<Collection<ImageRecord>, Multimap<Long, ImageRecord>>, QuarantineStage {
+	private static final Logger LOGGER = LoggerFactory.getLogger(GroupByTagStage.class);
+
+	/**
+	 * With {@link Strategy#AUTO}, the tagged hashes are indexed if there are at least this many images per tagged hash.
+	 */
+	public static final int IMAGES_PER_TAG_HASH = 64;
+
+	/**
+	 * How tagged hashes are matched against the images.
+	 */
+	public enum Strategy {
+		/**
+		 * Build a {@link RecordSearch} over the images and search it for every tagged hash.
+		 */
+		INDEX_IMAGES,
+		/**
+		 * Build a small index over the tagged hashes and search it once for every image.
+		 */
+		INDEX_TAGS,
+		/**
+		 * Select a strategy based on the number of images and tagged hashes.
+		 */
+		AUTO
+	}
+
 	private final Tag tag;
 	private final int hammingDistance;
 	private final FilterRepository filterRepository;
 	private final RecordSearch rs;
+	private final Strategy strategy;
+	private final Supplier<SearchIndex> tagIndex;
+	private final DegenerateHashFilter degenerateFilter;
+	private Strategy lastStrategy;
+	private HashGroups degenerateGroups;
 
 	/**
 	 * Create a grouper that will only group images that match tagged hashs.
@@ -51,10 +92,77 @@ public class GroupByTagStage implements Function<Collection<ImageRecord>, Multim
 	 *            in which hashes are considered a match
 	 */
 	public GroupByTagStage(FilterRepository filterRepository, Tag tag, int hammingDistance) {
+		this(filterRepository, tag, hammingDistance, new RecordSearch());
+	}
+
+	/**
+	 * Create a grouper that will only group images that match tagged hashs, using the given {@link RecordSearch} for
+	 * queries. The strategy is selected automatically.
+	 * 
+	 * @param filterRepository
+	 *            to access the filter datasource
+	 * @param tag
+	 *            to use for hash query
+	 * @param hammingDistance
+	 *            in which hashes are considered a match
+	 * @param recordSearch
+	 *            used to build the index and query for matches
+	 */
+	public GroupByTagStage(FilterRepository filterRepository, Tag tag, int hammingDistance,
+			RecordSearch recordSearch) {
+		this(filterRepository, tag, hammingDistance, recordSearch, Strategy.AUTO);
+	}
+
+	/**
+	 * Create a grouper that will only group images that match tagged hashs, using the given strategy.
+	 * 
+	 * @param filterRepository
+	 *            to access the filter datasource
+	 * @param tag
+	 *            to use for hash query
+	 * @param hammingDistance
+	 *            in which hashes are considered a match
+	 * @param recordSearch
+	 *            used to build the index and query for matches, if the images are indexed
+	 * @param strategy
+	 *            how tagged hashes are matched against images
+	 */
+	public GroupByTagStage(FilterRepository filterRepository, Tag tag, int hammingDistance, RecordSearch recordSearch,
+			Strategy strategy) {
+		this(filterRepository, tag, hammingDistance, recordSearch, strategy, BKTreeSearchIndex::new, null);
+	}
+
+	/**
+	 * Create a grouper that will only group images that match tagged hashs, using the given strategy. The tagged
+	 * hashes are indexed with the given index and images with degenerate hashes are only matched exactly, this should
+	 * match the configuration of the {@link RecordSearch} so both strategies return the same groups.
+	 * 
+	 * @param filterRepository
+	 *            to access the filter datasource
+	 * @param tag
+	 *            to use for hash query
+	 * @param hammingDistance
+	 *            in which hashes are considered a match
+	 * @param recordSearch
+	 *            used to build the index and query for matches, if the images are indexed
+	 * @param strategy
+	 *            how tagged hashes are matched against images
+	 * @param tagIndex
+	 *            supplier for a new, empty index, used if the tagged hashes are indexed
+	 * @param degenerateFilter
+	 *            detects image hashes that should not be searched if the tagged hashes are indexed, or null to search
+	 *            all hashes
+	 */
+	public GroupByTagStage(FilterRepository filterRepository, Tag tag, int hammingDistance, RecordSearch recordSearch,
+			Strategy strategy, Supplier<SearchIndex> tagIndex, DegenerateHashFilter degenerateFilter) {
 		this.filterRepository = filterRepository;
 		this.tag = tag;
 		this.hammingDistance = hammingDistance;
-		this.rs = new RecordSearch();
+		this.rs = recordSearch;
+		this.strategy = strategy;
+		this.tagIndex = tagIndex;
+		this.degenerateFilter = degenerateFilter;
+		this.degenerateGroups = HashGroups.group(Collections.emptyList());
 	}
 
 	/**
@@ -74,18 +182,112 @@ public class GroupByTagStage implements Function<Collection<ImageRecord>, Multim
 	 * 
 	 * @param t
 	 *            images to group
+	 * @param progress
+	 *            to report progress to and check for cancellation
 	 * 
 	 * @return a {@link Multimap} of grouped images
+	 * @throws CancellationException
+	 *             if the grouping was cancelled
 	 */
 	@Override
-	public Multimap<Long, ImageRecord> apply(Collection<ImageRecord> t) {
-		Multimap<Long, ImageRecord> result = MultimapBuilder.hashKeys().hashSetValues().build();
-		
-		rs.build(t);
-		
+	public Multimap<Long, ImageRecord> apply(Collection<ImageRecord> t, TaskProgress progress)
+			throws CancellationException {
 		TagFilter tagFilter = new TagFilter(filterRepository);
-		result = tagFilter.getFilterMatches(rs, tag, hammingDistance);
+		Set<Long> tagHashes = tagFilter.getTagHashes(tag);
+
+		lastStrategy = selectStrategy(t.size(), tagHashes.size());
+		LOGGER.info("Matching {} images against {} tagged hashes using {}", t.size(), tagHashes.size(), lastStrategy);
+
+		Multimap<Long, ImageRecord> matches;
+
+		if (lastStrategy == Strategy.INDEX_TAGS) {
+			HashGroups groups = groupImages(t);
+
+			if (degenerateFilter == null || hammingDistance == 0) {
+				degenerateGroups = HashGroups.group(Collections.emptyList());
+			} else {
+				degenerateGroups = degenerateFilter.selectDegenerate(groups);
+				groups = degenerateFilter.selectSearchable(groups);
+			}
+
+			matches = tagFilter.scanFilterMatches(groups, tagHashes, hammingDistance, tagIndex.get(), progress);
+		} else {
+			if (hammingDistance == 0) {
+				rs.buildExact(t, progress);
+			} else {
+				rs.build(t, progress);
+			}
+
+			degenerateGroups = rs.getDegenerateGroups();
+			matches = tagFilter.getFilterMatches(rs, tagHashes, hammingDistance, progress);
+		}
+
+		addExactMatches(matches, tagHashes);
+		return matches;
+	}
+
+	/**
+	 * Records that are already grouped, such as {@link HashGroups#records()}, are not grouped again.
+	 */
+	private static HashGroups groupImages(Collection<ImageRecord> images) {
+		if (images instanceof HashGroups.GroupedRecords) {
+			return ((HashGroups.GroupedRecords) images).getGroups();
+		}
+
+		return HashGroups.group(images);
+	}
 
-		return result;
+	/**
+	 * Images with degenerate hashes are not searched, but still match a tagged hash that is identical.
+	 */
+	private void addExactMatches(Multimap<Long, ImageRecord> matches, Set<Long> tagHashes) {
+		for (int i = 0; i < degenerateGroups.distinctHashes(); i++) {
+			long hash = degenerateGroups.hashAt(i);
+
+			if (tagHashes.contains(hash)) {
+				matches.putAll(hash, degenerateGroups.groupAt(i));
+			}
+		}
+	}
+
+	private Strategy selectStrategy(int images, int tagHashes) {
+		if (strategy != Strategy.AUTO) {
+			return strategy;
+		}
+
+		if ((long) tagHashes * IMAGES_PER_TAG_HASH <= images) {
+			return Strategy.INDEX_TAGS;
+		}
+
+		return Strategy.INDEX_IMAGES;
+	}
+
+	/**
+	 * Get the configured strategy.
+	 * 
+	 * @return the strategy used to match tagged hashes
+	 */
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * Get the records with degenerate hashes that were not searched during the last grouping. They are only matched
+	 * against identical tagged hashes.
+	 * 
+	 * @return the excluded records grouped by hash, empty if degenerate hashes are searched
+	 */
+	@Override
+	public HashGroups getDegenerateGroups() {
+		return degenerateGroups;
+	}
+
+	/**
+	 * Get the strategy that was used for the last grouping, this is never {@link Strategy#AUTO}.
+	 * 
+	 * @return the strategy of the last grouping, or null if nothing was grouped yet
+	 */
+	public Strategy getLastStrategy() {
+		return lastStrategy;
 	}
 }
@@ -18,14 +18,22 @@
 package com.github.dozedoff.similarImage.thread.pipeline;
 
 import java.util.Collection;
-import java.util.function.Consumer;
-import java.util.function.Function;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.duplicate.HashGroups;
 import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+import com.github.dozedoff.similarImage.util.TaskProgress;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.MultimapBuilder;
@@ -36,11 +44,28 @@ import com.google.common.collect.MultimapBuilder;
  * @author Nicholas Wright
  *
  */
-public class GroupImagesStage implements Function<Collection<ImageRecord>, Multimap<Long, ImageRecord>> {
+public class GroupImagesStage
+		implements ProgressStage<Collection<ImageRecord>, Multimap<Long, ImageRecord>>, QuarantineStage {
 	private static final Logger LOGGER = LoggerFactory.getLogger(GroupImagesStage.class);
+	/**
+	 * Number of distinct hashes below which a parallel task is no longer split.
+	 */
+	private static final int SPLIT_THRESHOLD = 1024;
+	/**
+	 * Number of hashes that are queried between checks for cancellation.
+	 */
+	private static final int CHECK_INTERVAL = 256;
+	/**
+	 * Name of the grouping stage in progress updates.
+	 */
+	public static final String STAGE_GROUP = "group";
 
 	private final RecordSearch rs;
 	private final int hammingDistance;
+	private final int parallelism;
+	private final int maxMatchesPerGroup;
+	private long skippedQueries;
+	private final LongAdder cappedGroups = new LongAdder();
 
 	/**
 	 * Groups images by hashes that are a exact match, i.e. have a hamming distance of 0;
@@ -56,36 +81,300 @@ public class GroupImagesStage implements Function<Collection<ImageRecord>, Multi
 	 *            group all images within this distance
 	 */
 	public GroupImagesStage(int hammingDistance) {
+		this(hammingDistance, new RecordSearch());
+	}
+
+	/**
+	 * Groups images by hashes that are within the given hamming distance, using the given {@link RecordSearch} for
+	 * queries.
+	 * 
+	 * @param hammingDistance
+	 *            group all images within this distance
+	 * @param recordSearch
+	 *            used to build the index and query for matches
+	 */
+	public GroupImagesStage(int hammingDistance, RecordSearch recordSearch) {
+		this(hammingDistance, recordSearch, 1);
+	}
+
+	/**
+	 * Groups images by hashes that are within the given hamming distance, using the given {@link RecordSearch} for
+	 * queries. If the parallelism is greater than 1, the distinct hashes are split across a {@link ForkJoinPool} with
+	 * that many threads.
+	 * 
+	 * @param hammingDistance
+	 *            group all images within this distance
+	 * @param recordSearch
+	 *            used to build the index and query for matches
+	 * @param parallelism
+	 *            number of threads to use for grouping, 1 for sequential grouping
+	 * @throws IllegalArgumentException
+	 *             if the parallelism is less than 1
+	 */
+	public GroupImagesStage(int hammingDistance, RecordSearch recordSearch, int parallelism)
+			throws IllegalArgumentException {
+		this(hammingDistance, recordSearch, parallelism, RecordSearch.UNLIMITED_RECORDS);
+	}
+
+	/**
+	 * Groups images by hashes that are within the given hamming distance, using the given {@link RecordSearch} for
+	 * queries. If the parallelism is greater than 1, the distinct hashes are split across a {@link ForkJoinPool} with
+	 * that many threads. Each group is limited to the given number of matches, the closest matches are kept and the
+	 * search for a group stops once the limit is reached.
+	 * 
+	 * @param hammingDistance
+	 *            group all images within this distance
+	 * @param recordSearch
+	 *            used to build the index and query for matches
+	 * @param parallelism
+	 *            number of threads to use for grouping, 1 for sequential grouping
+	 * @param maxMatchesPerGroup
+	 *            maximum number of images per group, {@link RecordSearch#UNLIMITED_RECORDS} for no limit
+	 * @throws IllegalArgumentException
+	 *             if the parallelism or the match limit is less than 1
+	 */
+	public GroupImagesStage(int hammingDistance, RecordSearch recordSearch, int parallelism, int maxMatchesPerGroup)
+			throws IllegalArgumentException {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be 1 or greater");
+		}
+
+		if (maxMatchesPerGroup < 1) {
+			throw new IllegalArgumentException("Match limit must be 1 or greater");
+		}
+
 		this.hammingDistance = hammingDistance;
-		this.rs = new RecordSearch();
+		this.rs = recordSearch;
+		this.parallelism = parallelism;
+		this.maxMatchesPerGroup = maxMatchesPerGroup;
 	}
 
 	/**
-	 * Group images by hash. The group will contain a distinct set of images.
+	 * Group images by hash. The group will contain a distinct set of images. Every distinct hash is only queried once,
+	 * the result is shared by all images with that hash. The grouping reports the fraction of queried hashes, and is
+	 * checked for cancellation while the hashes are queried. With a hamming distance of 0, no search index is built and
+	 * the groups are taken directly from the records sorted by hash.
 	 * 
 	 * @param toGroup
 	 *            imagese to group
+	 * @param progress
+	 *            to report progress to and check for cancellation
 	 * @return a {@link Multimap} of grouped images
+	 * @throws CancellationException
+	 *             if the grouping was cancelled
 	 */
 	@Override
-	public Multimap<Long, ImageRecord> apply(Collection<ImageRecord> toGroup) {
-		Multimap<Long, ImageRecord> resultMap = MultimapBuilder.hashKeys().hashSetValues().build();
-		rs.build(toGroup);
+	public Multimap<Long, ImageRecord> apply(Collection<ImageRecord> toGroup, TaskProgress progress)
+			throws CancellationException {
+		cappedGroups.reset();
+
+		if (hammingDistance == 0) {
+			rs.buildExact(toGroup, progress);
+		} else {
+			rs.build(toGroup, progress);
+		}
 
 		Stopwatch sw = Stopwatch.createStarted();
-		toGroup.forEach(new Consumer<ImageRecord>() {
-			@Override
-			public void accept(ImageRecord t) {
-				resultMap.putAll(t.getpHash(), rs.distanceMatch(t.getpHash(), hammingDistance).values());
+		Multimap<Long, ImageRecord> resultMap;
+
+		if (hammingDistance == 0) {
+			resultMap = groupExact(progress);
+		} else if (parallelism > 1) {
+			resultMap = groupParallel(progress);
+		} else {
+			resultMap = groupSequential(progress);
+		}
+
+		skippedQueries = rs.getGroups().size() - rs.getGroups().distinctHashes();
+
+		LOGGER.info("Built result map with {} pairs in {}, using hamming distance {} and {} thread(s)",
+				resultMap.size(), sw, hammingDistance, parallelism);
+		LOGGER.info("Queried {} distinct hashes, skipped {} queries for records with the same hash",
+				rs.getGroups().distinctHashes(), skippedQueries);
+
+		if (isCapped()) {
+			LOGGER.info("Limited {} group(s) to {} matches", cappedGroups.sum(), maxMatchesPerGroup);
+		}
+
+		if (!rs.getDegenerateGroups().isEmpty()) {
+			LOGGER.info("Did not search {} records with degenerate hashes", rs.getDegenerateGroups().size());
+		}
+
+		return resultMap;
+	}
+
+	private boolean isCapped() {
+		return maxMatchesPerGroup != RecordSearch.UNLIMITED_RECORDS;
+	}
+
+	private void addMatches(long hash, HashGroups groups, Multimap<Long, ImageRecord> resultMap) {
+		if (!isCapped()) {
+			for (long match : rs.distanceMatchHashes(hash, hammingDistance)) {
+				resultMap.putAll(hash, groups.get(match));
+			}
+
+			return;
+		}
+
+		int remaining = maxMatchesPerGroup;
+
+		// one more than the limit, to tell if matches were dropped
+		for (long match : rs.distanceMatchHashesByDistance(hash, hammingDistance, maxMatchesPerGroup + 1).values()) {
+			List<ImageRecord> records = groups.get(match);
+
+			if (records.size() > remaining) {
+				resultMap.putAll(hash, records.subList(0, remaining));
+				cappedGroups.increment();
+				return;
+			}
+
+			resultMap.putAll(hash, records);
+			remaining -= records.size();
+		}
+	}
+
+	/**
+	 * Every group only contains the images with the same hash, so the groups are taken directly from the sorted
+	 * records without querying.
+	 */
+	private Multimap<Long, ImageRecord> groupExact(TaskProgress progress) {
+		HashGroups groups = rs.getGroups();
+		int distinct = groups.distinctHashes();
+		Multimap<Long, ImageRecord> resultMap = MultimapBuilder.hashKeys(distinct).hashSetValues().build();
+
+		for (int i = 0; i < distinct; i++) {
+			if (i % CHECK_INTERVAL == 0) {
+				progress.checkCancelled();
+				progress.update(STAGE_GROUP, i, distinct);
+			}
+
+			List<ImageRecord> group = groups.groupAt(i);
+
+			if (isCapped() && group.size() > maxMatchesPerGroup) {
+				group = group.subList(0, maxMatchesPerGroup);
+				cappedGroups.increment();
+			}
+
+			resultMap.putAll(groups.hashAt(i), group);
+		}
+
+		progress.update(STAGE_GROUP, 1);
+		return resultMap;
+	}
+
+	private Multimap<Long, ImageRecord> groupSequential(TaskProgress progress) {
+		HashGroups groups = rs.getGroups();
+		int distinct = groups.distinctHashes();
+		Multimap<Long, ImageRecord> resultMap = MultimapBuilder.hashKeys(distinct).hashSetValues().build();
+
+		for (int i = 0; i < distinct; i++) {
+			if (i % CHECK_INTERVAL == 0) {
+				progress.checkCancelled();
+				progress.update(STAGE_GROUP, i, distinct);
 			}
-		});
 
-		LOGGER.info("Built result map with {} pairs in {}, using hamming distance {}", resultMap.size(), sw,
-				hammingDistance);
+			addMatches(groups.hashAt(i), groups, resultMap);
+		}
 
+		progress.update(STAGE_GROUP, 1);
 		return resultMap;
 	}
 
+	private Multimap<Long, ImageRecord> groupParallel(TaskProgress progress) {
+		HashGroups groups = rs.getGroups();
+		Map<Thread, Multimap<Long, ImageRecord>> workerResults = new ConcurrentHashMap<>();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		GroupingProgress groupingProgress = new GroupingProgress(progress, groups.distinctHashes());
+
+		try {
+			pool.invoke(new GroupHashesTask(groups, 0, groups.distinctHashes(), workerResults, groupingProgress));
+		} finally {
+			pool.shutdown();
+		}
+
+		Multimap<Long, ImageRecord> resultMap = MultimapBuilder.hashKeys(groups.distinctHashes()).hashSetValues()
+				.build();
+
+		for (Multimap<Long, ImageRecord> workerResult : workerResults.values()) {
+			resultMap.putAll(workerResult);
+		}
+
+		LOGGER.debug("Merged results of {} worker(s)", workerResults.size());
+
+		progress.update(STAGE_GROUP, 1);
+		return resultMap;
+	}
+
+	/**
+	 * Progress of a parallel grouping, shared by all tasks.
+	 */
+	private static class GroupingProgress {
+		private final TaskProgress progress;
+		private final int total;
+		private final AtomicInteger processed = new AtomicInteger();
+
+		public GroupingProgress(TaskProgress progress, int total) {
+			this.progress = progress;
+			this.total = total;
+		}
+
+		public void checkCancelled() throws CancellationException {
+			progress.checkCancelled();
+		}
+
+		public void processed(int hashes) {
+			progress.update(STAGE_GROUP, processed.addAndGet(hashes), total);
+		}
+	}
+
+	/**
+	 * Groups a range of the distinct hashes. Ranges are split until they are small enough, each worker thread
+	 * accumulates into it's own map. As every hash is only processed once, the maps have disjoint keys.
+	 */
+	private class GroupHashesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final HashGroups groups;
+		private final int start;
+		private final int end;
+		private final Map<Thread, Multimap<Long, ImageRecord>> workerResults;
+		private final GroupingProgress progress;
+
+		public GroupHashesTask(HashGroups groups, int start, int end,
+				Map<Thread, Multimap<Long, ImageRecord>> workerResults, GroupingProgress progress) {
+			this.groups = groups;
+			this.start = start;
+			this.end = end;
+			this.workerResults = workerResults;
+			this.progress = progress;
+		}
+
+		@Override
+		protected void compute() {
+			progress.checkCancelled();
+
+			if (end - start > SPLIT_THRESHOLD) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new GroupHashesTask(groups, start, middle, workerResults, progress),
+						new GroupHashesTask(groups, middle, end, workerResults, progress));
+				return;
+			}
+
+			Multimap<Long, ImageRecord> resultMap = workerResults.computeIfAbsent(Thread.currentThread(),
+					k -> MultimapBuilder.hashKeys().hashSetValues().build());
+
+			for (int i = start; i < end; i++) {
+				if ((i - start) % CHECK_INTERVAL == CHECK_INTERVAL - 1) {
+					progress.checkCancelled();
+				}
+
+				addMatches(groups.hashAt(i), groups, resultMap);
+			}
+
+			progress.processed(end - start);
+		}
+	}
+
 	/**
 	 * Get the hamming distance set for this grouping function.
 	 * 
@@ -94,4 +383,51 @@ public class GroupImagesStage implements Function<Collection<ImageRecord>, Multi
 	public int getHammingDistance() {
 		return hammingDistance;
 	}
+
+	/**
+	 * Get the number of queries that were skipped during the last grouping, because the hash had already been queried
+	 * for another image.
+	 * 
+	 * @return number of skipped queries
+	 */
+	public long getSkippedQueries() {
+		return skippedQueries;
+	}
+
+	/**
+	 * Get the records with degenerate hashes that were not searched during the last grouping.
+	 * 
+	 * @return the excluded records grouped by hash, empty if degenerate hashes are searched
+	 */
+	@Override
+	public HashGroups getDegenerateGroups() {
+		return rs.getDegenerateGroups();
+	}
+
+	/**
+	 * Get the maximum number of matches per group.
+	 * 
+	 * @return the match limit, {@link RecordSearch#UNLIMITED_RECORDS} if groups are not limited
+	 */
+	public int getMaxMatchesPerGroup() {
+		return maxMatchesPerGroup;
+	}
+
+	/**
+	 * Get the number of groups that had matches dropped because of the match limit during the last grouping.
+	 * 
+	 * @return number of limited groups
+	 */
+	public long getCappedGroups() {
+		return cappedGroups.sum();
+	}
+
+	/**
+	 * Get the number of threads used for grouping.
+	 * 
+	 * @return the number of threads, 1 if grouping is sequential
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
 }
@@ -20,10 +20,16 @@ package com.github.dozedoff.similarImage.thread.pipeline;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.function.Function;
 
 import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.db.PersistedHashIndex;
+import com.github.dozedoff.similarImage.duplicate.DegenerateHashFilter;
+import com.github.dozedoff.similarImage.duplicate.DistanceSweep;
+import com.github.dozedoff.similarImage.util.TaskProgress;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Multimap;
 
 /**
@@ -39,10 +45,24 @@ import com.google.common.collect.Multimap;
  *
  */
 public class ImageQueryPipeline implements Function<Path, Multimap<Long, ImageRecord>> {
+	/**
+	 * Name of the image query stage in the {@link PipelineMetrics}.
+	 */
+	public static final String STAGE_QUERY = "query";
+	/**
+	 * Name of the grouping stage in the {@link PipelineMetrics}.
+	 */
+	public static final String STAGE_GROUP = "group";
+	/**
+	 * Prefix for the post-processing stages in the {@link PipelineMetrics}, followed by the class name of the stage.
+	 */
+	public static final String STAGE_POST_PREFIX = "post.";
+
 	private final Function<Path, List<ImageRecord>> imageQueryStage;
 	private final Function<Collection<ImageRecord>, Multimap<Long, ImageRecord>> imageGrouper;
 	private Collection<Function<Multimap<Long, ImageRecord>, Multimap<Long, ImageRecord>>> postProcessingStages;
-	
+	private final PipelineMetrics metrics;
+
 	/**
 	 * Create a new pipeline that uses the given stages for processing queries.
 	 * 
@@ -56,9 +76,30 @@ public class ImageQueryPipeline implements Function<Path, Multimap<Long, ImageRe
 	public ImageQueryPipeline(Function<Path, List<ImageRecord>> imageQueryStage,
 			Function<Collection<ImageRecord>, Multimap<Long, ImageRecord>> imageGrouper,
 			Collection<Function<Multimap<Long, ImageRecord>, Multimap<Long, ImageRecord>>> postProcessingStages) {
+		this(imageQueryStage, imageGrouper, postProcessingStages, new PipelineMetrics(ImageQueryPipeline.class));
+	}
+
+	/**
+	 * Create a new pipeline that uses the given stages for processing queries, and measures the stages with the given
+	 * metrics.
+	 * 
+	 * @param imageQueryStage
+	 *            how images will be queried from a datasource
+	 * @param imageGrouper
+	 *            how images will be grouped
+	 * @param postProcessingStages
+	 *            stages for performing post-processing
+	 * @param metrics
+	 *            used to measure the stages
+	 */
+	public ImageQueryPipeline(Function<Path, List<ImageRecord>> imageQueryStage,
+			Function<Collection<ImageRecord>, Multimap<Long, ImageRecord>> imageGrouper,
+			Collection<Function<Multimap<Long, ImageRecord>, Multimap<Long, ImageRecord>>> postProcessingStages,
+			PipelineMetrics metrics) {
 		this.imageQueryStage = imageQueryStage;
 		this.imageGrouper = imageGrouper;
 		this.postProcessingStages = postProcessingStages;
+		this.metrics = metrics;
 	}
 
 	/**
@@ -71,21 +112,168 @@ public class ImageQueryPipeline implements Function<Path, Multimap<Long, ImageRe
 	 */
 	@Override
 	public Multimap<Long, ImageRecord> apply(Path path) {
-		List<ImageRecord> images = imageQueryStage.apply(path);
-		Multimap<Long, ImageRecord> groups = imageGrouper.apply(images);
-		return postProcessing(groups);
+		return apply(path, new TaskProgress());
+	}
+
+	/**
+	 * Query images with the path and apply all pipeline stages. The pipeline is checked for cancellation between
+	 * stages, stages that implement {@link ProgressStage} report their progress and are also checked while they are
+	 * running.
+	 * 
+	 * @param path
+	 *            to limit the images by scope, if null, all images will be used
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * 
+	 * @return images grouped by hash
+	 * @throws CancellationException
+	 *             if the pipeline was cancelled
+	 */
+	public Multimap<Long, ImageRecord> apply(Path path, TaskProgress progress) throws CancellationException {
+		PipelineMetrics.Run run = metrics.startRun();
+
+		try {
+			Multimap<Long, ImageRecord> groups = group(path, run, progress);
+			return postProcessing(groups, run, progress);
+		} finally {
+			run.finish();
+		}
+	}
+
+	/**
+	 * Query images with the path and group them, without post-processing.
+	 * 
+	 * @param path
+	 *            to limit the images by scope, if null, all images will be used
+	 * @param run
+	 *            to measure the stages with
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * @return images grouped by hash
+	 * @throws CancellationException
+	 *             if the pipeline was cancelled
+	 */
+	protected Multimap<Long, ImageRecord> group(Path path, PipelineMetrics.Run run, TaskProgress progress)
+			throws CancellationException {
+		progress.checkCancelled();
+		progress.update(STAGE_QUERY, 0);
+		List<ImageRecord> images = run.measure(STAGE_QUERY, PipelineMetrics.UNKNOWN,
+				() -> applyStage(imageQueryStage, path, progress), List::size);
+		progress.update(STAGE_QUERY, 1);
+
+		try {
+			progress.checkCancelled();
+			return run.measure(STAGE_GROUP, images.size(), () -> applyStage(imageGrouper, images, progress),
+					ImageQueryPipeline::groupCount);
+		} finally {
+			PersistedHashIndex.release(images);
+		}
+	}
+
+	/**
+	 * Group the images of the last query at a different distance and apply all post-processing stages. The images are
+	 * not queried or searched again, the groups are created from the matches found by the last query.
+	 * 
+	 * @param hammingDistance
+	 *            distance to group the images with, up to the distance of the grouping stage
+	 * @return images grouped by hash
+	 * @throws IllegalStateException
+	 *             if the pipeline does not group with a {@link SweepImagesStage}, or no query has been run
+	 * @throws IllegalArgumentException
+	 *             if the distance is outside of the swept range
+	 */
+	public Multimap<Long, ImageRecord> regroup(int hammingDistance)
+			throws IllegalStateException, IllegalArgumentException {
+		if (!(imageGrouper instanceof SweepImagesStage)) {
+			throw new IllegalStateException("Pipeline does not group images with a distance sweep");
+		}
+
+		DistanceSweep sweep = ((SweepImagesStage) imageGrouper).getLastSweep();
+
+		if (sweep == null) {
+			throw new IllegalStateException("No query has been run");
+		}
+
+		return postProcessing(sweep.groupsAt(hammingDistance));
 	}
 
-	private Multimap<Long, ImageRecord> postProcessing(Multimap<Long, ImageRecord> groups) {
+	/**
+	 * Apply all post-processing stages to the groups.
+	 * 
+	 * @param groups
+	 *            to process
+	 * @return the processed groups
+	 */
+	protected Multimap<Long, ImageRecord> postProcessing(Multimap<Long, ImageRecord> groups) {
+		return postProcessing(groups, new TaskProgress());
+	}
+
+	/**
+	 * Apply all post-processing stages to the groups, checking for cancellation between stages.
+	 * 
+	 * @param groups
+	 *            to process
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * @return the processed groups
+	 * @throws CancellationException
+	 *             if the post-processing was cancelled
+	 */
+	protected Multimap<Long, ImageRecord> postProcessing(Multimap<Long, ImageRecord> groups, TaskProgress progress)
+			throws CancellationException {
+		PipelineMetrics.Run run = metrics.startRun();
+
+		try {
+			return postProcessing(groups, run, progress);
+		} finally {
+			run.finish();
+		}
+	}
+
+	/**
+	 * Apply all post-processing stages to the groups, measuring them as part of the run.
+	 * 
+	 * @param groups
+	 *            to process
+	 * @param run
+	 *            to measure the stages with
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * @return the processed groups
+	 * @throws CancellationException
+	 *             if the post-processing was cancelled
+	 */
+	protected Multimap<Long, ImageRecord> postProcessing(Multimap<Long, ImageRecord> groups, PipelineMetrics.Run run,
+			TaskProgress progress) throws CancellationException {
 		Multimap<Long, ImageRecord> step = groups;
 
 		for (Function<Multimap<Long, ImageRecord>, Multimap<Long, ImageRecord>> ppStage : postProcessingStages) {
-			step = ppStage.apply(step);
+			String stage = STAGE_POST_PREFIX + ppStage.getClass().getSimpleName();
+			Multimap<Long, ImageRecord> input = step;
+
+			progress.checkCancelled();
+			progress.update(stage, 0);
+			step = run.measure(stage, groupCount(input), () -> applyStage(ppStage, input, progress),
+					ImageQueryPipeline::groupCount);
+			progress.update(stage, 1);
 		}
 
 		return step;
 	}
 
+	@SuppressWarnings("unchecked")
+	private static <T, R> R applyStage(Function<T, R> stage, T input, TaskProgress progress) {
+		if (stage instanceof ProgressStage) {
+			return ((ProgressStage<T, R>) stage).apply(input, progress);
+		}
+
+		return stage.apply(input);
+	}
+
+	private static long groupCount(Multimap<Long, ImageRecord> groups) {
+		return groups.keySet().size();
+	}
+
 	/**
 	 * Returns the post-processing stages of this pipeline.
 	 * 
@@ -103,4 +291,57 @@ public class ImageQueryPipeline implements Function<Path, Multimap<Long, ImageRe
 	public Function<Collection<ImageRecord>, Multimap<Long, ImageRecord>> getImageGrouper() {
 		return imageGrouper;
 	}
+
+	/**
+	 * Returns the records with degenerate hashes that were excluded from the distance search of the last query, see
+	 * {@link ImageQueryPipelineBuilder#degenerateHashFilter(DegenerateHashFilter)}. They are not part of the groups
+	 * returned by the query.
+	 * 
+	 * @return the excluded records grouped by hash, empty if the grouping stage does not exclude records
+	 */
+	public Multimap<Long, ImageRecord> getDegenerateGroups() {
+		if (imageGrouper instanceof QuarantineStage) {
+			return ((QuarantineStage) imageGrouper).getDegenerateGroups().toMultimap();
+		}
+
+		return ImmutableMultimap.of();
+	}
+
+	/**
+	 * Returns the records with degenerate hashes of the last query with all post-processing stages applied, so they
+	 * can be shown with the groups of the query. The stages are not measured, see {@link #getDegenerateGroups()}.
+	 * 
+	 * @return the processed groups of excluded records, empty if the grouping stage does not exclude records
+	 */
+	public Multimap<Long, ImageRecord> getProcessedDegenerateGroups() {
+		Multimap<Long, ImageRecord> step = getDegenerateGroups();
+
+		for (Function<Multimap<Long, ImageRecord>, Multimap<Long, ImageRecord>> ppStage : postProcessingStages) {
+			if (step.isEmpty()) {
+				break;
+			}
+
+			step = ppStage.apply(step);
+		}
+
+		return step;
+	}
+
+	/**
+	 * Returns the metrics used to measure the stages of this pipeline.
+	 * 
+	 * @return the pipeline metrics
+	 */
+	public PipelineMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the image query stage function
+	 * 
+	 * @return image query stage for this instance
+	 */
+	public Function<Path, List<ImageRecord>> getImageQueryStage() {
+		return imageQueryStage;
+	}
 }
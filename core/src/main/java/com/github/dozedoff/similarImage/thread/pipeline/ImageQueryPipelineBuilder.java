@@ -19,17 +19,29 @@ package com.github.dozedoff.similarImage.thread.pipeline;
 
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.db.LiveImageIndex;
+import com.github.dozedoff.similarImage.db.PersistedHashIndex;
 import com.github.dozedoff.similarImage.db.Tag;
 import com.github.dozedoff.similarImage.db.repository.FilterRepository;
 import com.github.dozedoff.similarImage.db.repository.ImageRepository;
+import com.github.dozedoff.similarImage.duplicate.BKTreeSearchIndex;
+import com.github.dozedoff.similarImage.duplicate.DegenerateHashFilter;
+import com.github.dozedoff.similarImage.duplicate.PartitionedSearchIndex;
+import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+import com.github.dozedoff.similarImage.duplicate.SearchIndex;
+import com.github.dozedoff.similarImage.duplicate.UniqueGroups;
 import com.google.common.collect.Multimap;
 
 /**
@@ -46,8 +58,19 @@ public class ImageQueryPipelineBuilder {
 
 	private Function<Path, List<ImageRecord>> imageQuery;
 	private List<Function<Multimap<Long, ImageRecord>, Multimap<Long, ImageRecord>>> postProcessing;
+	private List<Supplier<Predicate<Collection<ImageRecord>>>> groupFilters;
 	private int hammingDistance;
 	private Function<Collection<ImageRecord>, Multimap<Long, ImageRecord>> imageGrouper;
+	private Supplier<SearchIndex> searchIndex;
+	private int searchShards;
+	private DegenerateHashFilter degenerateFilter;
+	private int groupingThreads;
+	private int maxMatchesPerGroup;
+	private boolean ignoredExcluded;
+	private PersistedHashIndex persistedIndex;
+	private LiveImageIndex liveIndex;
+	private ImageQueryResultCache resultCache;
+	private PipelineMetrics metrics;
 
 	/**
 	 * Create a new builder that can be used to create {@link ImageQueryPipeline}.
@@ -62,7 +85,12 @@ public class ImageQueryPipelineBuilder {
 		this.filterRepository = filterRepository;
 		this.imageQuery = new ImageQueryStage(imageRepository);
 		this.postProcessing = new LinkedList<>();
+		this.groupFilters = new LinkedList<>();
 		this.hammingDistance = 0;
+		this.searchIndex = BKTreeSearchIndex::new;
+		this.searchShards = 1;
+		this.groupingThreads = 1;
+		this.maxMatchesPerGroup = RecordSearch.UNLIMITED_RECORDS;
 	}
 
 	/**
@@ -84,6 +112,8 @@ public class ImageQueryPipelineBuilder {
 	 * @return instance of this builder for method chaining
 	 */
 	public ImageQueryPipelineBuilder excludeIgnored(boolean exclude) {
+		this.ignoredExcluded = exclude;
+
 		if (exclude) {
 			this.imageQuery = new IgnoredImageQueryStage(imageRepository);
 		} else {
@@ -100,6 +130,7 @@ public class ImageQueryPipelineBuilder {
 	 */
 	public ImageQueryPipelineBuilder removeSingleImageGroups() {
 		this.postProcessing.add(new RemoveSingleImageSetStage());
+		this.groupFilters.add(() -> group -> group.size() > 1);
 		return this;
 	}
 
@@ -110,6 +141,7 @@ public class ImageQueryPipelineBuilder {
 	 */
 	public ImageQueryPipelineBuilder removeDuplicateGroups() {
 		this.postProcessing.add(new RemoveDuplicateSetStage());
+		this.groupFilters.add(() -> new UniqueGroups()::add);
 		return this;
 	}
 
@@ -132,6 +164,171 @@ public class ImageQueryPipelineBuilder {
 		return this;
 	}
 
+	/**
+	 * Set the index used for hamming distance queries. Must be set before the grouping stage is selected. By default
+	 * a {@link BKTreeSearchIndex} is used.
+	 * 
+	 * @param searchIndex
+	 *            supplier for a new, empty index
+	 * 
+	 * @return instance of this builder for method chaining
+	 */
+	public ImageQueryPipelineBuilder searchIndex(Supplier<SearchIndex> searchIndex) {
+		this.searchIndex = searchIndex;
+		return this;
+	}
+
+	/**
+	 * Split the hash space into shards by hash prefix, each shard uses it's own index as set with
+	 * {@link #searchIndex(Supplier)}. Queries only search the shards that can contain matches. Must be set before the
+	 * grouping stage is selected. By default a single index is used.
+	 * 
+	 * @param shards
+	 *            number of shards, must be a power of 2, 1 to disable partitioning
+	 * 
+	 * @return instance of this builder for method chaining
+	 * @throws IllegalArgumentException
+	 *             if the number of shards is invalid
+	 */
+	public ImageQueryPipelineBuilder shards(int shards) throws IllegalArgumentException {
+		if (!PartitionedSearchIndex.isValidShardCount(shards)) {
+			throw new IllegalArgumentException(
+					"Number of shards must be a power of 2 from 1 to " + PartitionedSearchIndex.MAX_SHARDS);
+		}
+
+		this.searchShards = shards;
+		return this;
+	}
+
+	/**
+	 * Exclude records with degenerate hashes, such as blank or single colored images, from the distance search. Exact
+	 * matches with a distance of 0 are not affected. The excluded records of the last query can be retrieved with
+	 * {@link ImageQueryPipeline#getDegenerateGroups()}. Must be set before the grouping stage is selected. By default
+	 * all hashes are searched.
+	 * 
+	 * @param degenerateFilter
+	 *            used to detect degenerate hashes, null to search all hashes
+	 * 
+	 * @return instance of this builder for method chaining
+	 */
+	public ImageQueryPipelineBuilder degenerateHashFilter(DegenerateHashFilter degenerateFilter) {
+		this.degenerateFilter = degenerateFilter;
+		return this;
+	}
+
+	/**
+	 * Set the number of threads used to group images. Must be set before the grouping stage is selected. By default
+	 * images are grouped sequentially.
+	 * 
+	 * @param threads
+	 *            number of threads to use, 1 for sequential grouping
+	 * 
+	 * @return instance of this builder for method chaining
+	 * @throws IllegalArgumentException
+	 *             if the number of threads is less than 1
+	 */
+	public ImageQueryPipelineBuilder parallel(int threads) throws IllegalArgumentException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Thread count must be 1 or greater");
+		}
+
+		this.groupingThreads = threads;
+		return this;
+	}
+
+	/**
+	 * Limit the number of matches per group, keeping the closest matches. The search for a group stops once the limit
+	 * is reached. Only applies to {@link #groupAll()} and must be set before the grouping stage is selected. By
+	 * default groups are not limited.
+	 * 
+	 * @param maxMatches
+	 *            maximum number of images per group
+	 * 
+	 * @return instance of this builder for method chaining
+	 * @throws IllegalArgumentException
+	 *             if the limit is less than 1
+	 */
+	public ImageQueryPipelineBuilder maxMatchesPerGroup(int maxMatches) throws IllegalArgumentException {
+		if (maxMatches < 1) {
+			throw new IllegalArgumentException("Match limit must be 1 or greater");
+		}
+
+		this.maxMatchesPerGroup = maxMatches;
+		return this;
+	}
+
+	/**
+	 * Use a persisted index to load images if the query is not limited to a path. The index will be updated if it is
+	 * out of date. By default images are always loaded from the repository.
+	 * 
+	 * @param persistedIndex
+	 *            index to load images from, or null to disable
+	 * 
+	 * @return instance of this builder for method chaining
+	 */
+	public ImageQueryPipelineBuilder persistedIndex(PersistedHashIndex persistedIndex) {
+		this.persistedIndex = persistedIndex;
+		return this;
+	}
+
+	/**
+	 * Load images from an in-memory index that is kept up to date with repository changes. The index is not aware of
+	 * ignored images, so it is only used if ignored images are included. Takes precedence over a persisted index.
+	 * 
+	 * @param liveIndex
+	 *            index to load images from, or null to disable
+	 * 
+	 * @return instance of this builder for method chaining
+	 */
+	public ImageQueryPipelineBuilder liveIndex(LiveImageIndex liveIndex) {
+		this.liveIndex = liveIndex;
+		return this;
+	}
+
+	/**
+	 * Cache the results of pipelines that group matches for every image with {@link #groupAll()}, and do not limit the
+	 * matches per group or exclude degenerate hashes. By default results are not cached.
+	 * 
+	 * @param resultCache
+	 *            cache for query results, or null to disable
+	 * 
+	 * @return instance of this builder for method chaining
+	 */
+	public ImageQueryPipelineBuilder resultCache(ImageQueryResultCache resultCache) {
+		this.resultCache = resultCache;
+		return this;
+	}
+
+	/**
+	 * Measure the stages of built pipelines with the given metrics. By default every pipeline uses its own metrics,
+	 * that are not added to a registry.
+	 * 
+	 * @param metrics
+	 *            used to measure pipeline stages, or null for the default
+	 * 
+	 * @return instance of this builder for method chaining
+	 */
+	public ImageQueryPipelineBuilder metrics(PipelineMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	private PipelineMetrics pipelineMetrics() {
+		if (metrics == null) {
+			return new PipelineMetrics(ImageQueryPipeline.class);
+		}
+
+		return metrics;
+	}
+
+	private RecordSearch newRecordSearch() {
+		if (searchShards > 1) {
+			return new RecordSearch(new PartitionedSearchIndex(searchShards, searchIndex), degenerateFilter);
+		}
+
+		return new RecordSearch(searchIndex.get(), degenerateFilter);
+	}
+
 	/**
 	 * Group images by hashes that are tagged with the given tag.
 	 * 
@@ -140,7 +337,8 @@ public class ImageQueryPipelineBuilder {
 	 * @return instance of this builder for method chaining
 	 */
 	public ImageQueryPipelineBuilder groupByTag(Tag tag) {
-		this.imageGrouper = new GroupByTagStage(filterRepository, tag, hammingDistance);
+		this.imageGrouper = new GroupByTagStage(filterRepository, tag, hammingDistance, newRecordSearch(),
+				GroupByTagStage.Strategy.AUTO, searchIndex, degenerateFilter);
 		return this;
 	}
 
@@ -150,7 +348,45 @@ public class ImageQueryPipelineBuilder {
 	 * @return instance of this builder for method chaining
 	 */
 	public ImageQueryPipelineBuilder groupAll() {
-		this.imageGrouper = new GroupImagesStage(hammingDistance);
+		this.imageGrouper = new GroupImagesStage(hammingDistance, newRecordSearch(), groupingThreads,
+				maxMatchesPerGroup);
+		return this;
+	}
+
+	/**
+	 * Group matches for every image, and keep the matches for all distances up to the set distance, see
+	 * {@link SweepImagesStage}. The groups for a smaller distance can then be created with
+	 * {@link ImageQueryPipeline#regroup(int)}.
+	 * 
+	 * @return instance of this builder for method chaining
+	 */
+	public ImageQueryPipelineBuilder groupSweep() {
+		this.imageGrouper = new SweepImagesStage(hammingDistance, newRecordSearch());
+		return this;
+	}
+
+	/**
+	 * Group images into disjoint clusters of linked hashes, see {@link ClusterImagesStage}.
+	 * 
+	 * @return instance of this builder for method chaining
+	 */
+	public ImageQueryPipelineBuilder groupClusters() {
+		this.imageGrouper = new ClusterImagesStage(hammingDistance, newRecordSearch());
+		return this;
+	}
+
+	/**
+	 * Group images into disjoint clusters of linked hashes, see {@link ClusterImagesStage}. Clusters are limited to
+	 * the given diameter.
+	 * 
+	 * @param maxDiameter
+	 *            maximum hamming distance between any two hashes in a cluster
+	 * @return instance of this builder for method chaining
+	 * @throws IllegalArgumentException
+	 *             if the maximum diameter is negative
+	 */
+	public ImageQueryPipelineBuilder groupClusters(int maxDiameter) throws IllegalArgumentException {
+		this.imageGrouper = new ClusterImagesStage(hammingDistance, newRecordSearch(), maxDiameter);
 		return this;
 	}
 
@@ -161,11 +397,72 @@ public class ImageQueryPipelineBuilder {
 	 */
 	public ImageQueryPipeline build() {
 		if (imageGrouper == null) {
-			imageGrouper = new GroupImagesStage(hammingDistance);
+			imageGrouper = new GroupImagesStage(hammingDistance, newRecordSearch(), groupingThreads,
+					maxMatchesPerGroup);
 			LOGGER.warn("No image group stage set, using {}", imageGrouper.getClass().getSimpleName());
 		}
 
-		return new ImageQueryPipeline(imageQuery, imageGrouper, postProcessing);
+		if (resultCache != null && imageGrouper instanceof GroupImagesStage) {
+			GroupImagesStage grouper = (GroupImagesStage) imageGrouper;
+
+			if (grouper.getMaxMatchesPerGroup() == RecordSearch.UNLIMITED_RECORDS && degenerateFilter == null) {
+				return new CachedImageQueryPipeline(buildImageQuery(), imageGrouper, postProcessing,
+						pipelineMetrics(), resultCache, cacheConfiguration(grouper), ignoredExcluded);
+			}
+		}
+
+		return new ImageQueryPipeline(buildImageQuery(), imageGrouper, postProcessing, pipelineMetrics());
+	}
+
+	/**
+	 * Post-processing stages are idempotent, so stages that were added more than once only count once.
+	 */
+	private String cacheConfiguration(GroupImagesStage grouper) {
+		Set<String> stages = new LinkedHashSet<>();
+
+		for (Function<Multimap<Long, ImageRecord>, Multimap<Long, ImageRecord>> stage : postProcessing) {
+			stages.add(stage.getClass().getSimpleName());
+		}
+
+		return String.format("%s distance=%d excludeIgnored=%b post=%s", grouper.getClass().getSimpleName(),
+				grouper.getHammingDistance(), ignoredExcluded, stages);
+	}
+
+	private Function<Path, List<ImageRecord>> buildImageQuery() {
+		if (liveIndex != null && !ignoredExcluded) {
+			return new LiveIndexQueryStage(liveIndex);
+		} else if (persistedIndex != null) {
+			return new PersistedIndexQueryStage(imageQuery, persistedIndex, ignoredExcluded ? "not-ignored" : "all",
+					!ignoredExcluded);
+		}
+
+		return imageQuery;
+	}
+
+	/**
+	 * Build a {@link NearestImageQuery} that finds the k images closest to a hash. Uses the image query, search index
+	 * and persisted or live index of this builder, grouping and post-processing are not used.
+	 * 
+	 * @param k
+	 *            maximum number of images to return per query
+	 * @return the configured {@link NearestImageQuery}
+	 * @throws IllegalArgumentException
+	 *             if k is less than 1
+	 */
+	public NearestImageQuery buildNearest(int k) throws IllegalArgumentException {
+		return new NearestImageQuery(buildImageQuery(), newRecordSearch(), k);
+	}
+
+	/**
+	 * Build a {@link StreamingImageQueryPipeline} with the configuration of this builder. Records are streamed from
+	 * the repository and post-processing is applied to each group as it is created. The streaming pipeline always
+	 * groups matches for every image, as with {@link #groupAll()}, and does not use the persisted or live index.
+	 * 
+	 * @return the configured {@link StreamingImageQueryPipeline}
+	 */
+	public StreamingImageQueryPipeline buildStreaming() {
+		return new StreamingImageQueryPipeline(new StreamingImageQueryStage(imageRepository, ignoredExcluded),
+				newRecordSearch(), hammingDistance, groupFilters);
 	}
 
 	/**
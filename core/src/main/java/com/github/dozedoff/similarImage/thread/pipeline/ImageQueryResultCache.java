@@ -0,0 +1,385 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.dozedoff.similarImage.db.IgnoreRecord;
+import com.github.dozedoff.similarImage.db.ImageChangeLog;
+import com.github.dozedoff.similarImage.db.ImageChangeLog.Change;
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.db.repository.IgnoreRepository;
+import com.github.dozedoff.similarImage.db.repository.RepositoryException;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.MultimapBuilder;
+
+/**
+ * Caches the results of {@link ImageQueryPipeline}s that group images by hash. Results are keyed on the pipeline
+ * configuration and the scope of the query, and are valid for the change count of the {@link ImageChangeLog} at the
+ * time of the query.
+ * <p>
+ * Both the grouped images before post-processing and the post-processed result are cached. When a cached result is out
+ * of date and the only changes are removed or newly ignored images, the images are removed from the cached groups and
+ * post-processing is applied to them again. Groups are keyed by a hash that every member is within the query distance
+ * of, so removing images yields the same groups as grouping the remaining images, and post-processing them yields the
+ * same result as a full run. This requires a grouping that does not limit or exclude groups based on their size.
+ * Stored images, images that are no longer ignored, changes that are no longer in the log and deltas larger than a
+ * fraction of the cached result cause a full run.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class ImageQueryResultCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ImageQueryResultCache.class);
+
+	/**
+	 * Default number of results to cache.
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 8;
+	/**
+	 * Default fraction of the cached records that may be removed before a full run is done.
+	 */
+	public static final double DEFAULT_MAX_DELTA_FRACTION = 0.05;
+	/**
+	 * Deltas up to this size are always applied, regardless of the size of the result.
+	 */
+	private static final int MIN_DELTA = 100;
+
+	private final ImageChangeLog changeLog;
+	private final IgnoreRepository ignoreRepository;
+	private final double maxDeltaFraction;
+	private final Map<Key, Entry> entries;
+
+	private long hits;
+	private long deltaHits;
+	private long misses;
+
+	private static final class Key {
+		private final String configuration;
+		private final Path scope;
+
+		Key(String configuration, Path scope) {
+			this.configuration = configuration;
+			this.scope = scope;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(configuration, scope);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj instanceof Key) {
+				Key other = (Key) obj;
+				return Objects.equals(configuration, other.configuration) && Objects.equals(scope, other.scope);
+			}
+
+			return false;
+		}
+	}
+
+	private static final class Entry {
+		/**
+		 * Images grouped by hash, before post-processing.
+		 */
+		private final Multimap<Long, ImageRecord> groups;
+		private final Multimap<Long, ImageRecord> result;
+		private final long changeCount;
+		private final Set<String> ignoredPaths;
+
+		Entry(Multimap<Long, ImageRecord> groups, Multimap<Long, ImageRecord> result, long changeCount,
+				Set<String> ignoredPaths) {
+			this.groups = groups;
+			this.result = result;
+			this.changeCount = changeCount;
+			this.ignoredPaths = ignoredPaths;
+		}
+	}
+
+	/**
+	 * Create a new cache with {@link #DEFAULT_MAX_ENTRIES} and {@link #DEFAULT_MAX_DELTA_FRACTION}.
+	 * 
+	 * @param changeLog
+	 *            used to validate cached results and find removed images
+	 * @param ignoreRepository
+	 *            used to find newly ignored images
+	 */
+	public ImageQueryResultCache(ImageChangeLog changeLog, IgnoreRepository ignoreRepository) {
+		this(changeLog, ignoreRepository, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_DELTA_FRACTION);
+	}
+
+	/**
+	 * Create a new cache.
+	 * 
+	 * @param changeLog
+	 *            used to validate cached results and find removed images
+	 * @param ignoreRepository
+	 *            used to find newly ignored images
+	 * @param maxEntries
+	 *            maximum number of results to cache, the least recently used result is dropped first
+	 * @param maxDeltaFraction
+	 *            fraction of the cached records that may be removed before a full run is done
+	 * @throws IllegalArgumentException
+	 *             if the number of entries is less than 1 or the fraction is negative
+	 */
+	public ImageQueryResultCache(ImageChangeLog changeLog, IgnoreRepository ignoreRepository, int maxEntries,
+			double maxDeltaFraction) throws IllegalArgumentException {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("Maximum entries must be 1 or greater");
+		}
+
+		if (maxDeltaFraction < 0) {
+			throw new IllegalArgumentException("Maximum delta fraction must be 0 or greater");
+		}
+
+		this.changeLog = changeLog;
+		this.ignoreRepository = ignoreRepository;
+		this.maxDeltaFraction = maxDeltaFraction;
+		this.entries = new LinkedHashMap<Key, Entry>(maxEntries, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Get the result for the query from the cache, updating it if needed, or run the query and cache the result.
+	 * 
+	 * @param configuration
+	 *            of the pipeline, queries with the same configuration and scope share results
+	 * @param scope
+	 *            of the query
+	 * @param excludeIgnored
+	 *            if the pipeline excludes ignored images
+	 * @param groupQuery
+	 *            that queries and groups the images, without post-processing
+	 * @param postProcessing
+	 *            that is applied to the grouped images
+	 * @return images grouped by hash, the caller may modify the result
+	 */
+	public Multimap<Long, ImageRecord> query(String configuration, Path scope, boolean excludeIgnored,
+			Function<Path, Multimap<Long, ImageRecord>> groupQuery,
+			Function<Multimap<Long, ImageRecord>, Multimap<Long, ImageRecord>> postProcessing) {
+		Key key = new Key(configuration, scope);
+		long changeCount = changeLog.getChangeCount();
+		Set<String> ignoredPaths = Collections.emptySet();
+
+		if (excludeIgnored) {
+			ignoredPaths = loadIgnoredPaths();
+
+			if (ignoredPaths == null) {
+				return postProcessing.apply(groupQuery.apply(scope));
+			}
+		}
+
+		Entry cached;
+
+		synchronized (this) {
+			cached = entries.get(key);
+		}
+
+		if (cached != null) {
+			Entry updated = update(cached, ignoredPaths, postProcessing);
+
+			if (updated != null) {
+				synchronized (this) {
+					entries.put(key, updated);
+				}
+
+				return copy(updated.result);
+			}
+		}
+
+		synchronized (this) {
+			misses++;
+		}
+
+		Multimap<Long, ImageRecord> groups = groupQuery.apply(scope);
+		Multimap<Long, ImageRecord> cachedGroups = copy(groups);
+		Multimap<Long, ImageRecord> result = postProcessing.apply(groups);
+
+		synchronized (this) {
+			entries.put(key, new Entry(cachedGroups, copy(result), changeCount, ignoredPaths));
+		}
+
+		return result;
+	}
+
+	private Set<String> loadIgnoredPaths() {
+		try {
+			Set<String> paths = new HashSet<>();
+
+			for (IgnoreRecord ignored : ignoreRepository.getAll()) {
+				paths.add(ignored.getImage().getPath());
+			}
+
+			return paths;
+		} catch (RepositoryException e) {
+			LOGGER.error("Failed to load ignored images, bypassing cache: {}, cause: {}", e.toString(), e.getCause());
+			return null;
+		}
+	}
+
+	private Entry update(Entry cached, Set<String> ignoredPaths,
+			Function<Multimap<Long, ImageRecord>, Multimap<Long, ImageRecord>> postProcessing) {
+		List<Change> changes = changeLog.changesSince(cached.changeCount);
+
+		if (changes == null) {
+			LOGGER.info("Changes since cached result are no longer available, re-running query");
+			return null;
+		}
+
+		if (!ignoredPaths.containsAll(cached.ignoredPaths)) {
+			LOGGER.info("Images are no longer ignored, re-running query");
+			return null;
+		}
+
+		Set<String> removedPaths = new HashSet<>();
+
+		for (Change change : changes) {
+			if (change.isStored()) {
+				LOGGER.info("Images were added or updated, re-running query");
+				return null;
+			}
+
+			removedPaths.add(change.getImage().getPath());
+		}
+
+		for (String ignored : ignoredPaths) {
+			if (!cached.ignoredPaths.contains(ignored)) {
+				removedPaths.add(ignored);
+			}
+		}
+
+		long newChangeCount = cached.changeCount + changes.size();
+
+		if (removedPaths.isEmpty()) {
+			synchronized (this) {
+				hits++;
+			}
+
+			return new Entry(cached.groups, cached.result, newChangeCount, ignoredPaths);
+		}
+
+		double maxDelta = Math.max(MIN_DELTA, cached.groups.size() * maxDeltaFraction);
+
+		if (removedPaths.size() > maxDelta) {
+			LOGGER.info("{} images were removed, more than the limit of {}, re-running query", removedPaths.size(),
+					(long) maxDelta);
+			return null;
+		}
+
+		Stopwatch sw = Stopwatch.createStarted();
+		Multimap<Long, ImageRecord> groups = removeImages(copy(cached.groups), removedPaths);
+		Multimap<Long, ImageRecord> result = postProcessing.apply(copy(groups));
+
+		LOGGER.info("Removed {} images from cached result in {}", removedPaths.size(), sw);
+
+		synchronized (this) {
+			deltaHits++;
+		}
+
+		return new Entry(groups, copy(result), newChangeCount, ignoredPaths);
+	}
+
+	/**
+	 * Remove the images from all groups. Groups without an image matching their hash are removed, as a full run would
+	 * not have queried that hash.
+	 */
+	private Multimap<Long, ImageRecord> removeImages(Multimap<Long, ImageRecord> groups, Set<String> removedPaths) {
+		List<Long> hashes = new ArrayList<>(groups.keySet());
+
+		for (Long hash : hashes) {
+			Collection<ImageRecord> group = groups.get(hash);
+			group.removeIf(image -> removedPaths.contains(image.getPath()));
+
+			if (group.stream().noneMatch(image -> image.getpHash() == hash)) {
+				groups.removeAll(hash);
+			}
+		}
+
+		return groups;
+	}
+
+	private static Multimap<Long, ImageRecord> copy(Multimap<Long, ImageRecord> groups) {
+		Multimap<Long, ImageRecord> copy = MultimapBuilder.hashKeys(groups.keySet().size()).hashSetValues().build();
+		copy.putAll(groups);
+		return copy;
+	}
+
+	/**
+	 * Remove all cached results.
+	 */
+	public synchronized void invalidate() {
+		entries.clear();
+	}
+
+	/**
+	 * Get the number of cached results.
+	 * 
+	 * @return number of cached results
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the number of queries that were answered with an unchanged cached result.
+	 * 
+	 * @return number of cache hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of queries that were answered by removing images from a cached result.
+	 * 
+	 * @return number of updated cache hits
+	 */
+	public synchronized long getDeltaHits() {
+		return deltaHits;
+	}
+
+	/**
+	 * Get the number of queries that required a full run.
+	 * 
+	 * @return number of cache misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
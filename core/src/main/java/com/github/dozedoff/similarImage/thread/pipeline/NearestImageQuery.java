@@ -0,0 +1,118 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.db.PersistedHashIndex;
+import com.github.dozedoff.similarImage.duplicate.HashGroups;
+import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+
+/**
+ * Query for the k images with the hashes closest to a given hash. Images are loaded and indexed on the first query,
+ * subsequent queries reuse the index until {@link #reload()} is called.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class NearestImageQuery implements Function<Long, List<ImageRecord>> {
+	private final Function<Path, List<ImageRecord>> imageQueryStage;
+	private final RecordSearch recordSearch;
+	private final int k;
+	private boolean loaded;
+
+	/**
+	 * Create a new query for the k nearest images.
+	 * 
+	 * @param imageQueryStage
+	 *            how images will be queried from a datasource
+	 * @param recordSearch
+	 *            used to build the index and query for matches
+	 * @param k
+	 *            maximum number of images to return
+	 * @throws IllegalArgumentException
+	 *             if k is less than 1
+	 */
+	public NearestImageQuery(Function<Path, List<ImageRecord>> imageQueryStage, RecordSearch recordSearch, int k)
+			throws IllegalArgumentException {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be 1 or greater");
+		}
+
+		this.imageQueryStage = imageQueryStage;
+		this.recordSearch = recordSearch;
+		this.k = k;
+	}
+
+	/**
+	 * Find the k images closest to the hash.
+	 * 
+	 * @param hash
+	 *            to search for
+	 * @return up to k images, ordered by ascending hamming distance
+	 */
+	@Override
+	public synchronized List<ImageRecord> apply(Long hash) {
+		if (!loaded) {
+			List<ImageRecord> images = imageQueryStage.apply(null);
+
+			try {
+				recordSearch.build(images);
+			} finally {
+				PersistedHashIndex.release(images);
+			}
+
+			loaded = true;
+		}
+
+		HashGroups groups = recordSearch.getGroups();
+		List<ImageRecord> result = new ArrayList<>(k);
+
+		for (long match : recordSearch.nearestHashes(hash, k)) {
+			for (ImageRecord image : groups.get(match)) {
+				if (result.size() == k) {
+					return result;
+				}
+
+				result.add(image);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Reload the images on the next query.
+	 */
+	public synchronized void reload() {
+		loaded = false;
+	}
+
+	/**
+	 * Get the maximum number of images returned by a query.
+	 * 
+	 * @return the number of images
+	 */
+	public int getK() {
+		return k;
+	}
+}
@@ -0,0 +1,127 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.db.PersistedHashIndex;
+
+/**
+ * Stage that loads unscoped queries from a {@link PersistedHashIndex} if it is up to date. Otherwise the query is
+ * delegated and the result is persisted for the next run. Queries limited to a path are always delegated.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class PersistedIndexQueryStage implements Function<Path, List<ImageRecord>> {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PersistedIndexQueryStage.class);
+
+	private final Function<Path, List<ImageRecord>> imageQuery;
+	private final PersistedHashIndex persistedIndex;
+	private final String queryName;
+	private final boolean complete;
+
+	/**
+	 * Create a new stage that uses the persisted index for the query.
+	 * 
+	 * @param imageQuery
+	 *            stage to use if there is no valid index
+	 * @param persistedIndex
+	 *            index to load and store query results
+	 * @param queryName
+	 *            name of the query, used to identify the index file
+	 */
+	public PersistedIndexQueryStage(Function<Path, List<ImageRecord>> imageQuery, PersistedHashIndex persistedIndex,
+			String queryName) {
+		this(imageQuery, persistedIndex, queryName, true);
+	}
+
+	/**
+	 * Create a new stage that uses the persisted index for the query.
+	 * 
+	 * @param imageQuery
+	 *            stage to use if there is no valid index
+	 * @param persistedIndex
+	 *            index to load and store query results
+	 * @param queryName
+	 *            name of the query, used to identify the index file
+	 * @param complete
+	 *            true if the unscoped query returns every record of the database, so changes can be appended to the
+	 *            index instead of discarding it
+	 */
+	public PersistedIndexQueryStage(Function<Path, List<ImageRecord>> imageQuery, PersistedHashIndex persistedIndex,
+			String queryName, boolean complete) {
+		this.imageQuery = imageQuery;
+		this.persistedIndex = persistedIndex;
+		this.queryName = queryName;
+		this.complete = complete;
+	}
+
+	/**
+	 * Query for the given path.
+	 * 
+	 * @param path
+	 *            path to limit query. If null or empty, the persisted index will be used if possible.
+	 * 
+	 * @return a list of images
+	 */
+	@Override
+	public List<ImageRecord> apply(Path path) {
+		if (path != null && !Paths.get("").equals(path)) {
+			return imageQuery.apply(path);
+		}
+
+		if (persistedIndex.isValid(queryName)) {
+			try {
+				return persistedIndex.read(queryName);
+			} catch (IOException e) {
+				LOGGER.warn("Failed to read persisted index {}, querying database: {}", queryName, e.toString());
+			}
+		}
+
+		PersistedHashIndex.Version version = persistedIndex.currentVersion();
+		List<ImageRecord> result = imageQuery.apply(path);
+
+		if (!result.isEmpty()) {
+			try {
+				persistedIndex.write(queryName, result, version, complete);
+			} catch (IOException e) {
+				LOGGER.warn("Failed to write persisted index {}: {}", queryName, e.toString());
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Get the name of the query.
+	 * 
+	 * @return name used for the index file
+	 */
+	public final String getQueryName() {
+		return queryName;
+	}
+}
@@ -0,0 +1,320 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Measures the stages of a pipeline run. For every stage the wall time, the number of input and output elements and
+ * the bytes allocated by the calling thread are recorded. If a {@link MetricRegistry} is set, the measurements are
+ * added to a timer and histograms named {@code <pipeline>.<stage>.<metric>}. The measurements of the last finished run
+ * are kept for display.
+ * <p>
+ * Allocated bytes only include the thread that runs the pipeline, work done on other threads, such as parallel
+ * grouping, is not counted. If the JVM does not support allocation tracking, the allocated bytes are -1.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class PipelineMetrics {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PipelineMetrics.class);
+
+	/**
+	 * Timer for the wall time of a stage.
+	 */
+	public static final String METRIC_TIME = "time";
+	/**
+	 * Histogram of the number of input elements of a stage.
+	 */
+	public static final String METRIC_INPUT = "input";
+	/**
+	 * Histogram of the number of output elements of a stage.
+	 */
+	public static final String METRIC_OUTPUT = "output";
+	/**
+	 * Histogram of the bytes allocated during a stage.
+	 */
+	public static final String METRIC_ALLOCATED = "allocated-bytes";
+
+	/**
+	 * Value for unknown cardinalities and allocations.
+	 */
+	public static final long UNKNOWN = -1;
+
+	private final MetricRegistry registry;
+	private final Class<?> pipeline;
+	private final com.sun.management.ThreadMXBean threadBean;
+	private List<StageMeasurement> lastRun;
+
+	/**
+	 * The measurements of a single stage.
+	 */
+	public static final class StageMeasurement {
+		private final String stage;
+		private final long nanos;
+		private final long input;
+		private final long output;
+		private final long allocatedBytes;
+
+		StageMeasurement(String stage, long nanos, long input, long output, long allocatedBytes) {
+			this.stage = stage;
+			this.nanos = nanos;
+			this.input = input;
+			this.output = output;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		/**
+		 * Get the name of the stage.
+		 * 
+		 * @return the stage name
+		 */
+		public String getStage() {
+			return stage;
+		}
+
+		/**
+		 * Get the wall time of the stage.
+		 * 
+		 * @return time in nanoseconds
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * Get the number of elements passed to the stage.
+		 * 
+		 * @return number of input elements, or {@link PipelineMetrics#UNKNOWN}
+		 */
+		public long getInput() {
+			return input;
+		}
+
+		/**
+		 * Get the number of elements returned by the stage.
+		 * 
+		 * @return number of output elements
+		 */
+		public long getOutput() {
+			return output;
+		}
+
+		/**
+		 * Get the number of bytes allocated by the calling thread during the stage.
+		 * 
+		 * @return allocated bytes, or {@link PipelineMetrics#UNKNOWN}
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		/**
+		 * A short summary of the measurement, e.g. {@code group 120 ms (5000 -> 300)}.
+		 * 
+		 * @return the measurement formatted as a {@link String}
+		 */
+		@Override
+		public String toString() {
+			String in = input == UNKNOWN ? "" : String.valueOf(input);
+
+			return String.format("%s %d ms (%s -> %d)", stage, TimeUnit.NANOSECONDS.toMillis(nanos), in, output);
+		}
+	}
+
+	/**
+	 * A single run of a pipeline. Stages are measured in the order they are run.
+	 */
+	public final class Run {
+		private final List<StageMeasurement> stages = new ArrayList<>();
+
+		private Run() {
+		}
+
+		/**
+		 * Run and measure a stage.
+		 * 
+		 * @param stage
+		 *            name of the stage
+		 * @param inputSize
+		 *            number of elements passed to the stage, or {@link PipelineMetrics#UNKNOWN}
+		 * @param stageCall
+		 *            that runs the stage
+		 * @param outputSize
+		 *            function to get the number of elements in the result
+		 * @return the result of the stage
+		 */
+		public <R> R measure(String stage, long inputSize, Supplier<R> stageCall, ToLongFunction<R> outputSize) {
+			long allocatedBefore = allocatedBytes();
+			long start = System.nanoTime();
+
+			R result = stageCall.get();
+
+			long nanos = System.nanoTime() - start;
+			long allocatedAfter = allocatedBytes();
+			long allocated = allocatedBefore == UNKNOWN ? UNKNOWN : allocatedAfter - allocatedBefore;
+
+			StageMeasurement measurement = new StageMeasurement(stage, nanos, inputSize,
+					outputSize.applyAsLong(result), allocated);
+			stages.add(measurement);
+			record(measurement);
+
+			return result;
+		}
+
+		/**
+		 * Finish the run, making the measurements available via {@link PipelineMetrics#getLastRun()}. Must also be
+		 * called if the run was cancelled or failed, the measurements then only contain the stages that completed.
+		 */
+		public void finish() {
+			LOGGER.info("Pipeline stages: {}", summary(stages));
+			publish(stages);
+		}
+	}
+
+	/**
+	 * Measure stages without adding the measurements to a registry.
+	 * 
+	 * @param pipeline
+	 *            class of the measured pipeline
+	 */
+	public PipelineMetrics(Class<?> pipeline) {
+		this(pipeline, null);
+	}
+
+	/**
+	 * Measure stages and add the measurements to the registry.
+	 * 
+	 * @param pipeline
+	 *            class of the measured pipeline, used for metric names
+	 * @param registry
+	 *            to add the measurements to, or null to only keep the last run
+	 */
+	public PipelineMetrics(Class<?> pipeline, MetricRegistry registry) {
+		this.pipeline = pipeline;
+		this.registry = registry;
+		this.threadBean = allocationTracker();
+		this.lastRun = Collections.emptyList();
+	}
+
+	private static com.sun.management.ThreadMXBean allocationTracker() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+
+			if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+				return sunBean;
+			}
+		}
+
+		LOGGER.debug("Thread allocation tracking is not supported");
+		return null;
+	}
+
+	private long allocatedBytes() {
+		if (threadBean == null) {
+			return UNKNOWN;
+		}
+
+		return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Start measuring a new run.
+	 * 
+	 * @return a new run
+	 */
+	public Run startRun() {
+		return new Run();
+	}
+
+	private void record(StageMeasurement measurement) {
+		if (registry == null) {
+			return;
+		}
+
+		String stage = measurement.getStage();
+
+		registry.timer(MetricRegistry.name(pipeline, stage, METRIC_TIME)).update(measurement.getNanos(),
+				TimeUnit.NANOSECONDS);
+		registry.histogram(MetricRegistry.name(pipeline, stage, METRIC_OUTPUT)).update(measurement.getOutput());
+
+		if (measurement.getInput() != UNKNOWN) {
+			registry.histogram(MetricRegistry.name(pipeline, stage, METRIC_INPUT)).update(measurement.getInput());
+		}
+
+		if (measurement.getAllocatedBytes() != UNKNOWN) {
+			registry.histogram(MetricRegistry.name(pipeline, stage, METRIC_ALLOCATED))
+					.update(measurement.getAllocatedBytes());
+		}
+	}
+
+	private synchronized void publish(List<StageMeasurement> stages) {
+		this.lastRun = Collections.unmodifiableList(new ArrayList<>(stages));
+	}
+
+	/**
+	 * Get the measurements of the last finished run.
+	 * 
+	 * @return the stage measurements in the order the stages were run, empty if there was no run
+	 */
+	public synchronized List<StageMeasurement> getLastRun() {
+		return lastRun;
+	}
+
+	/**
+	 * Get a short summary of the last finished run, e.g. {@code query 40 ms ( -> 5000), group 120 ms (5000 -> 300)}.
+	 * 
+	 * @return the stages of the last run formatted as a {@link String}
+	 */
+	public String getLastRunSummary() {
+		return summary(getLastRun());
+	}
+
+	private static String summary(List<StageMeasurement> stages) {
+		StringJoiner joiner = new StringJoiner(", ");
+
+		for (StageMeasurement stage : stages) {
+			joiner.add(stage.toString());
+		}
+
+		return joiner.toString();
+	}
+
+	/**
+	 * Get the registry the measurements are added to.
+	 * 
+	 * @return the registry, or null if measurements are not added to a registry
+	 */
+	public MetricRegistry getRegistry() {
+		return registry;
+	}
+}
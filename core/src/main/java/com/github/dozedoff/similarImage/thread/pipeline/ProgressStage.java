@@ -0,0 +1,59 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import java.util.function.Function;
+
+import com.github.dozedoff.similarImage.util.TaskProgress;
+
+/**
+ * A pipeline stage that reports its progress and can be cancelled while it is running.
+ * 
+ * @author Nicholas Wright
+ *
+ * @param <T>
+ *            the input of the stage
+ * @param <R>
+ *            the result of the stage
+ */
+public interface ProgressStage<T, R> extends Function<T, R> {
+	/**
+	 * Run the stage, reporting progress and checking for cancellation.
+	 * 
+	 * @param input
+	 *            of the stage
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * @return the result of the stage
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the stage was cancelled
+	 */
+	R apply(T input, TaskProgress progress);
+
+	/**
+	 * Run the stage without reporting progress.
+	 * 
+	 * @param input
+	 *            of the stage
+	 * @return the result of the stage
+	 */
+	@Override
+	default R apply(T input) {
+		return apply(input, new TaskProgress());
+	}
+}
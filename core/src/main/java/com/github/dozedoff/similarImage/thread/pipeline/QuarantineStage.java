@@ -0,0 +1,36 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import com.github.dozedoff.similarImage.duplicate.HashGroups;
+
+/**
+ * A grouping stage that excludes records with degenerate hashes from the distance search. The excluded records are
+ * not part of the groups, they are kept as a separate result.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public interface QuarantineStage {
+	/**
+	 * Get the records with degenerate hashes that were not searched during the last grouping.
+	 * 
+	 * @return the excluded records grouped by hash, empty if degenerate hashes are searched
+	 */
+	HashGroups getDegenerateGroups();
+}
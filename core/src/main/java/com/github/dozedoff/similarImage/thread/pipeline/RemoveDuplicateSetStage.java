@@ -17,10 +17,12 @@
  */
 package com.github.dozedoff.similarImage.thread.pipeline;
 
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 import com.github.dozedoff.similarImage.db.ImageRecord;
 import com.github.dozedoff.similarImage.duplicate.DuplicateUtil;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.Multimap;
 
 /**
@@ -30,6 +32,9 @@ import com.google.common.collect.Multimap;
  *
  */
 public class RemoveDuplicateSetStage implements Function<Multimap<Long, ImageRecord>, Multimap<Long, ImageRecord>> {
+	private long removedGroups;
+	private long elapsedMillis;
+
 	/**
 	 * Remove groups with duplicate image groups. The operation is performed on the parameter.
 	 * 
@@ -39,7 +44,28 @@ public class RemoveDuplicateSetStage implements Function<Multimap<Long, ImageRec
 	 */
 	@Override
 	public Multimap<Long, ImageRecord> apply(Multimap<Long, ImageRecord> toPrune) {
-		DuplicateUtil.removeDuplicateSets(toPrune);
+		Stopwatch sw = Stopwatch.createStarted();
+		removedGroups = DuplicateUtil.removeDuplicateSets(toPrune);
+		elapsedMillis = sw.elapsed(TimeUnit.MILLISECONDS);
+
 		return toPrune;
 	}
+
+	/**
+	 * Get the number of groups removed during the last run.
+	 * 
+	 * @return number of removed groups
+	 */
+	public long getRemovedGroups() {
+		return removedGroups;
+	}
+
+	/**
+	 * Get the time taken by the last run.
+	 * 
+	 * @return duration in milliseconds
+	 */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
 }
@@ -0,0 +1,165 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.duplicate.HashGroups;
+import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.MultimapBuilder;
+
+/**
+ * Pipeline variant that streams records from the query into the search index and filters every group as it is
+ * produced. Unlike {@link ImageQueryPipeline}, no intermediate list or map of all groups is created, only groups that
+ * pass all filters are added to the result.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class StreamingImageQueryPipeline implements Function<Path, Multimap<Long, ImageRecord>> {
+	private static final Logger LOGGER = LoggerFactory.getLogger(StreamingImageQueryPipeline.class);
+
+	private final Function<Path, HashGroups> imageQueryStage;
+	private final RecordSearch recordSearch;
+	private final int hammingDistance;
+	private final List<Supplier<Predicate<Collection<ImageRecord>>>> groupFilters;
+
+	/**
+	 * Create a new pipeline that uses the given stages for processing queries.
+	 * 
+	 * @param imageQueryStage
+	 *            how images will be streamed from a datasource
+	 * @param recordSearch
+	 *            used to build the index and query for matches
+	 * @param hammingDistance
+	 *            group all images within this distance
+	 * @param groupFilters
+	 *            create a new filter for every query, a group is only included if all filters accept it
+	 */
+	public StreamingImageQueryPipeline(Function<Path, HashGroups> imageQueryStage, RecordSearch recordSearch,
+			int hammingDistance, List<Supplier<Predicate<Collection<ImageRecord>>>> groupFilters) {
+		this.imageQueryStage = imageQueryStage;
+		this.recordSearch = recordSearch;
+		this.hammingDistance = hammingDistance;
+		this.groupFilters = ImmutableList.copyOf(groupFilters);
+	}
+
+	/**
+	 * Query images with the path, group them and filter the groups.
+	 * 
+	 * @param path
+	 *            to limit the images by scope, if null, all images will be used
+	 * 
+	 * @return images grouped by hash
+	 */
+	@Override
+	public Multimap<Long, ImageRecord> apply(Path path) {
+		HashGroups groups = imageQueryStage.apply(path);
+		recordSearch.build(groups);
+
+		List<Predicate<Collection<ImageRecord>>> filters = new ArrayList<>(groupFilters.size());
+
+		for (Supplier<Predicate<Collection<ImageRecord>>> filter : groupFilters) {
+			filters.add(filter.get());
+		}
+
+		Stopwatch sw = Stopwatch.createStarted();
+		Multimap<Long, ImageRecord> result = MultimapBuilder.hashKeys().hashSetValues().build();
+		long filteredGroups = 0;
+
+		for (int i = 0; i < groups.distinctHashes(); i++) {
+			long hash = groups.hashAt(i);
+			Collection<ImageRecord> group = matches(hash, groups);
+
+			if (accept(group, filters)) {
+				result.putAll(hash, group);
+			} else {
+				filteredGroups++;
+			}
+		}
+
+		LOGGER.info("Grouped {} distinct hashes in {}, kept {} groups and filtered {} groups",
+				groups.distinctHashes(), sw, result.keySet().size(), filteredGroups);
+
+		return result;
+	}
+
+	private Collection<ImageRecord> matches(long hash, HashGroups groups) {
+		if (hammingDistance == 0) {
+			return groups.get(hash);
+		}
+
+		List<ImageRecord> group = new ArrayList<>();
+
+		for (long match : recordSearch.distanceMatchHashes(hash, hammingDistance)) {
+			group.addAll(groups.get(match));
+		}
+
+		return group;
+	}
+
+	private boolean accept(Collection<ImageRecord> group, List<Predicate<Collection<ImageRecord>>> filters) {
+		for (Predicate<Collection<ImageRecord>> filter : filters) {
+			if (!filter.test(group)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the group filters of this pipeline.
+	 * 
+	 * @return an immutable list of suppliers for the group filters
+	 */
+	public List<Supplier<Predicate<Collection<ImageRecord>>>> getGroupFilters() {
+		return groupFilters;
+	}
+
+	/**
+	 * Returns the image query stage function
+	 * 
+	 * @return image query stage for this instance
+	 */
+	public Function<Path, HashGroups> getImageQueryStage() {
+		return imageQueryStage;
+	}
+
+	/**
+	 * Get the hamming distance used for grouping.
+	 * 
+	 * @return the set hamming distance
+	 */
+	public int getHammingDistance() {
+		return hammingDistance;
+	}
+}
@@ -0,0 +1,116 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.db.repository.ImageRepository;
+import com.github.dozedoff.similarImage.db.repository.RepositoryException;
+import com.github.dozedoff.similarImage.duplicate.HashGroups;
+import com.j256.ormlite.dao.CloseableIterator;
+
+/**
+ * Stage to stream image records from the repository directly into {@link HashGroups}, without creating an
+ * intermediate list.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class StreamingImageQueryStage implements Function<Path, HashGroups> {
+	private static final Logger LOGGER = LoggerFactory.getLogger(StreamingImageQueryStage.class);
+
+	private final ImageRepository imageRepository;
+	private final boolean excludeIgnored;
+
+	/**
+	 * Create a new stage to stream images based on path.
+	 * 
+	 * @param imageRepository
+	 *            datasource to query for images
+	 * @param excludeIgnored
+	 *            if true, ignored images will not be included in the result
+	 */
+	public StreamingImageQueryStage(ImageRepository imageRepository, boolean excludeIgnored) {
+		this.imageRepository = imageRepository;
+		this.excludeIgnored = excludeIgnored;
+	}
+
+	/**
+	 * Query for the given path.
+	 * 
+	 * @param path
+	 *            path to limit query. If null or empty, all images will be returned.
+	 * 
+	 * @return the images grouped by hash
+	 */
+	@Override
+	public HashGroups apply(Path path) {
+		CloseableIterator<ImageRecord> iterator = null;
+
+		try {
+			iterator = openIterator(path);
+			return HashGroups.group(iterator);
+		} catch (RepositoryException e) {
+			LOGGER.error("Failed to query images: {}, cause: {}", e.toString(), e.getCause());
+		} finally {
+			close(iterator);
+		}
+
+		return HashGroups.group(Collections.<ImageRecord> emptyList());
+	}
+
+	private CloseableIterator<ImageRecord> openIterator(Path path) throws RepositoryException {
+		boolean allImages = path == null || Paths.get("").equals(path);
+
+		if (excludeIgnored) {
+			return allImages ? imageRepository.iterateAllWithoutIgnored()
+					: imageRepository.iterateAllWithoutIgnored(path);
+		} else {
+			return allImages ? imageRepository.iterateAll() : imageRepository.iterateStartsWithPath(path);
+		}
+	}
+
+	private void close(CloseableIterator<ImageRecord> iterator) {
+		if (iterator == null) {
+			return;
+		}
+
+		try {
+			iterator.close();
+		} catch (SQLException e) {
+			LOGGER.warn("Failed to close query iterator: {}", e.toString());
+		}
+	}
+
+	/**
+	 * Check if ignored images are excluded.
+	 * 
+	 * @return true if ignored images are not queried
+	 */
+	public boolean isExcludeIgnored() {
+		return excludeIgnored;
+	}
+}
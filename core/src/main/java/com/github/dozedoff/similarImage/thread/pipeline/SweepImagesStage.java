@@ -0,0 +1,123 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.duplicate.DistanceSweep;
+import com.github.dozedoff.similarImage.duplicate.HashGroups;
+import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+import com.github.dozedoff.similarImage.util.TaskProgress;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Multimap;
+
+/**
+ * Stage to group images for all distances up to the hamming distance in one pass. The result is the same as
+ * {@link GroupImagesStage} at the hamming distance. The matches of the last grouping are kept in a
+ * {@link DistanceSweep}, so the groups for a smaller distance can be created without querying again, see
+ * {@link ImageQueryPipeline#regroup(int)}.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class SweepImagesStage
+		implements ProgressStage<Collection<ImageRecord>, Multimap<Long, ImageRecord>>, QuarantineStage {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SweepImagesStage.class);
+
+	private final RecordSearch rs;
+	private final int hammingDistance;
+
+	private volatile DistanceSweep lastSweep;
+
+	/**
+	 * Group images for all distances up to the given hamming distance.
+	 * 
+	 * @param hammingDistance
+	 *            the largest distance to group images with
+	 * @param recordSearch
+	 *            used to build the index and query for matches
+	 */
+	public SweepImagesStage(int hammingDistance, RecordSearch recordSearch) {
+		this.hammingDistance = hammingDistance;
+		this.rs = recordSearch;
+	}
+
+	/**
+	 * Search the matches for all images and group them at the hamming distance.
+	 * 
+	 * @param toGroup
+	 *            images to group
+	 * @param progress
+	 *            to report progress to and check for cancellation
+	 * @return a {@link Multimap} of grouped images
+	 * @throws CancellationException
+	 *             if the grouping was cancelled
+	 */
+	@Override
+	public Multimap<Long, ImageRecord> apply(Collection<ImageRecord> toGroup, TaskProgress progress)
+			throws CancellationException {
+		if (hammingDistance == 0) {
+			rs.buildExact(toGroup, progress);
+		} else {
+			rs.build(toGroup, progress);
+		}
+
+		Stopwatch sw = Stopwatch.createStarted();
+		DistanceSweep sweep = DistanceSweep.sweep(rs, hammingDistance, progress);
+		Multimap<Long, ImageRecord> resultMap = sweep.groupsAt(hammingDistance);
+		lastSweep = sweep;
+
+		LOGGER.info("Swept {} distinct hashes for distances 0 to {} in {}, found {} pairs",
+				sweep.getGroups().distinctHashes(), hammingDistance, sw, sweep.pairsWithin(hammingDistance));
+
+		return resultMap;
+	}
+
+	/**
+	 * Get the matches of the last grouping.
+	 * 
+	 * @return the last sweep, or null if no images have been grouped yet
+	 */
+	public DistanceSweep getLastSweep() {
+		return lastSweep;
+	}
+
+	/**
+	 * Get the largest hamming distance images are grouped with.
+	 * 
+	 * @return the set hamming distance
+	 */
+	public int getHammingDistance() {
+		return hammingDistance;
+	}
+
+	/**
+	 * Get the records with degenerate hashes that were not searched during the last grouping.
+	 * 
+	 * @return the excluded records grouped by hash, empty if degenerate hashes are searched
+	 */
+	@Override
+	public HashGroups getDegenerateGroups() {
+		return rs.getDegenerateGroups();
+	}
+}
@@ -17,6 +17,8 @@
  */
 package com.github.dozedoff.similarImage.util;
 
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
@@ -25,12 +27,23 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Iterator;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 import at.dhyan.open_imaging.GifDecoder;
 
 public abstract class ImageUtil {
+	/**
+	 * Minimum width and height of images that are decoded at a reduced resolution for hashing. Hashes are calculated
+	 * from a 32x32 image, at this size the hash of a subsampled photo is usually within 6 bits of a full decode, but
+	 * not the same.
+	 */
+	public static final int HASH_DECODE_SIZE = 256;
+
 	/**
 	 * Create an image from a byte array.
 	 * 
@@ -84,4 +97,102 @@ public abstract class ImageUtil {
 			return bi;
 		}
 	}
+
+	/**
+	 * Calculate the subsampling factor, so that the image is at least as large as the minimum size in both dimensions.
+	 * 
+	 * @param width
+	 *            of the full image
+	 * @param height
+	 *            of the full image
+	 * @param minSize
+	 *            minimum width and height of the subsampled image
+	 * @return every n-th pixel that should be read, 1 to read all pixels
+	 */
+	public static int subsampling(int width, int height, int minSize) {
+		return Math.max(1, Math.min(width, height) / Math.max(1, minSize));
+	}
+
+	/**
+	 * Read a reduced resolution image from the stream. Only every n-th pixel and row is read, so that the image is
+	 * at least as large as the minimum size in both dimensions. Images that are already smaller are read at full
+	 * resolution. The stream is not closed.
+	 * 
+	 * @param is
+	 *            stream to read the image from
+	 * @param minSize
+	 *            minimum width and height of the image
+	 * @return the image, or null if there is no reader for the image format
+	 * @throws IOException
+	 *             if there is an error reading the image
+	 */
+	public static BufferedImage readSubsampled(InputStream is, int minSize) throws IOException {
+		try (ImageInputStream iis = ImageIO.createImageInputStream(is)) {
+			if (iis == null) {
+				return null;
+			}
+
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+
+			if (!readers.hasNext()) {
+				return null;
+			}
+
+			ImageReader reader = readers.next();
+
+			try {
+				reader.setInput(iis, true, true);
+
+				int factor = subsampling(reader.getWidth(0), reader.getHeight(0), minSize);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(factor, factor, 0, 0);
+
+				return reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Load a reduced resolution image from the given path, see {@link #readSubsampled(InputStream, int)}.
+	 * 
+	 * @param path
+	 *            to the image to load
+	 * @param minSize
+	 *            minimum width and height of the image
+	 * @return the image, or null if there is no reader for the image format
+	 * @throws IOException
+	 *             if there is an error reading the image
+	 */
+	public static BufferedImage loadImageSubsampled(Path path, int minSize) throws IOException {
+		try (InputStream is = new BufferedInputStream(Files.newInputStream(path))) {
+			return readSubsampled(is, minSize);
+		}
+	}
+
+	/**
+	 * Scale the image to the given size and convert it to 8 bit grayscale.
+	 * 
+	 * @param image
+	 *            to scale
+	 * @param width
+	 *            of the scaled image
+	 * @param height
+	 *            of the scaled image
+	 * @return a grayscale image with the given size
+	 */
+	public static BufferedImage resizeGray(BufferedImage image, int width, int height) {
+		BufferedImage gray = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D graphics = gray.createGraphics();
+
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			graphics.dispose();
+		}
+
+		return gray;
+	}
 }
@@ -0,0 +1,146 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.util;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Tracks the progress of a long running task and allows it to be cancelled. The task reports the fraction of the
+ * current stage that is done, and calls {@link #checkCancelled()} at regular intervals so it can be stopped. Listeners
+ * are only notified when the progress of a stage changes by at least one percent.
+ * <p>
+ * The task may report progress from several threads, so listeners need to be thread safe.
+ * 
+ * @author Nicholas Wright
+ *
+ */
+public class TaskProgress {
+	private static final int PERCENT = 100;
+
+	private final Listener listener;
+	private volatile boolean cancelled;
+	private String lastStage;
+	private int lastPercent;
+
+	/**
+	 * Receives progress updates of a task.
+	 */
+	public interface Listener {
+		/**
+		 * Called when the progress of a task changes.
+		 * 
+		 * @param stage
+		 *            name of the stage that is running
+		 * @param fraction
+		 *            how much of the stage is done, between 0 and 1
+		 */
+		void progressChanged(String stage, double fraction);
+	}
+
+	/**
+	 * Track a task that can be cancelled, but does not report progress.
+	 */
+	public TaskProgress() {
+		this((stage, fraction) -> {
+		});
+	}
+
+	/**
+	 * Track a task that can be cancelled, and report the progress to the listener.
+	 * 
+	 * @param listener
+	 *            to notify of progress changes
+	 */
+	public TaskProgress(Listener listener) {
+		this.listener = listener;
+		this.lastPercent = -1;
+	}
+
+	/**
+	 * Request that the task stops. The task will stop at the next check.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Check if the task has been cancelled, or the calling thread has been interrupted.
+	 * 
+	 * @return true if the task should stop
+	 */
+	public boolean isCancelled() {
+		if (Thread.currentThread().isInterrupted()) {
+			cancelled = true;
+		}
+
+		return cancelled;
+	}
+
+	/**
+	 * Stop the task if it has been cancelled, or the calling thread has been interrupted.
+	 * 
+	 * @throws CancellationException
+	 *             if the task has been cancelled
+	 */
+	public void checkCancelled() throws CancellationException {
+		if (isCancelled()) {
+			throw new CancellationException("Task was cancelled");
+		}
+	}
+
+	/**
+	 * Report the progress of a stage.
+	 * 
+	 * @param stage
+	 *            name of the stage that is running
+	 * @param fraction
+	 *            how much of the stage is done, values outside of 0 and 1 are clamped
+	 */
+	public void update(String stage, double fraction) {
+		double clamped = Math.min(1.0, Math.max(0.0, fraction));
+		int percent = (int) (clamped * PERCENT);
+
+		synchronized (this) {
+			if (stage.equals(lastStage) && percent == lastPercent) {
+				return;
+			}
+
+			lastStage = stage;
+			lastPercent = percent;
+			listener.progressChanged(stage, clamped);
+		}
+	}
+
+	/**
+	 * Report the progress of a stage as processed out of total elements.
+	 * 
+	 * @param stage
+	 *            name of the stage that is running
+	 * @param processed
+	 *            number of elements that have been processed
+	 * @param total
+	 *            total number of elements of the stage, if 0 the stage is done
+	 */
+	public void update(String stage, long processed, long total) {
+		if (total <= 0) {
+			update(stage, 1.0);
+		} else {
+			update(stage, (double) processed / total);
+		}
+	}
+}
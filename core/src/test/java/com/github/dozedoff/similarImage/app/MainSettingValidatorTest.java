@@ -33,6 +33,7 @@ public class MainSettingValidatorTest {
 	@Before
 	public void setup() {
 		when(mainSetting.threads()).thenReturn(1);
+		when(mainSetting.searchShards()).thenReturn(1);
 	}
 
 	@Test
@@ -53,4 +54,54 @@ public class MainSettingValidatorTest {
 
 		MainSettingValidator.validate(mainSetting);
 	}
+
+	@Test
+	public void testValidateShards() throws Exception {
+		when(mainSetting.searchShards()).thenReturn(16);
+
+		MainSettingValidator.validate(mainSetting);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testValidateZeroShards() throws Exception {
+		when(mainSetting.searchShards()).thenReturn(0);
+
+		MainSettingValidator.validate(mainSetting);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testValidateShardsNotPowerOfTwo() throws Exception {
+		when(mainSetting.searchShards()).thenReturn(3);
+
+		MainSettingValidator.validate(mainSetting);
+	}
+
+	@Test
+	public void testValidateDegenerateLimits() throws Exception {
+		when(mainSetting.degenerateBitBalance()).thenReturn(32);
+		when(mainSetting.degenerateHashPopulation()).thenReturn(1000);
+
+		MainSettingValidator.validate(mainSetting);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testValidateNegativeBitBalance() throws Exception {
+		when(mainSetting.degenerateBitBalance()).thenReturn(-1);
+
+		MainSettingValidator.validate(mainSetting);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testValidateBitBalanceTooLarge() throws Exception {
+		when(mainSetting.degenerateBitBalance()).thenReturn(33);
+
+		MainSettingValidator.validate(mainSetting);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testValidateNegativePopulation() throws Exception {
+		when(mainSetting.degenerateHashPopulation()).thenReturn(-1);
+
+		MainSettingValidator.validate(mainSetting);
+	}
 }
@@ -0,0 +1,170 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.db;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.dozedoff.similarImage.db.ImageChangeLog.Change;
+
+public class ImageChangeLogTest {
+	private static final int CAPACITY = 2;
+
+	private ImageRecord imageA;
+	private ImageRecord imageB;
+	private ImageRecord imageC;
+
+	private ImageChangeLog cut;
+
+	@Before
+	public void setUp() throws Exception {
+		imageA = new ImageRecord("a", 1L);
+		imageB = new ImageRecord("b", 2L);
+		imageC = new ImageRecord("c", 3L);
+
+		cut = new ImageChangeLog(CAPACITY);
+	}
+
+	@Test
+	public void testInitialChangeCount() throws Exception {
+		assertThat(cut.getChangeCount(), is(0L));
+	}
+
+	@Test
+	public void testStoreCounted() throws Exception {
+		cut.imageStored(imageA);
+
+		assertThat(cut.getChangeCount(), is(1L));
+	}
+
+	@Test
+	public void testRemoveCounted() throws Exception {
+		cut.imageRemoved(imageA);
+
+		assertThat(cut.getChangeCount(), is(1L));
+	}
+
+	@Test
+	public void testNoChangesSinceCurrent() throws Exception {
+		cut.imageStored(imageA);
+
+		assertThat(cut.changesSince(1L), is(empty()));
+	}
+
+	@Test
+	public void testChangesSinceImage() throws Exception {
+		cut.imageStored(imageA);
+		cut.imageRemoved(imageB);
+
+		List<Change> changes = cut.changesSince(1L);
+
+		assertThat(changes.get(0).getImage(), is(imageB));
+	}
+
+	@Test
+	public void testChangesSinceRemoved() throws Exception {
+		cut.imageRemoved(imageB);
+
+		assertThat(cut.changesSince(0L).get(0).isStored(), is(false));
+	}
+
+	@Test
+	public void testChangesSinceStored() throws Exception {
+		cut.imageStored(imageB);
+
+		assertThat(cut.changesSince(0L).get(0).isStored(), is(true));
+	}
+
+	@Test
+	public void testChangesSinceOldestFirst() throws Exception {
+		cut.imageStored(imageA);
+		cut.imageStored(imageB);
+
+		List<Change> changes = cut.changesSince(0L);
+
+		assertThat(changes.get(1).getImage(), is(imageB));
+	}
+
+	@Test
+	public void testChangesNoLongerInLog() throws Exception {
+		cut.imageStored(imageA);
+		cut.imageStored(imageB);
+		cut.imageStored(imageC);
+
+		assertThat(cut.changesSince(0L), is(nullValue()));
+	}
+
+	@Test
+	public void testChangesStillInLog() throws Exception {
+		cut.imageStored(imageA);
+		cut.imageStored(imageB);
+		cut.imageStored(imageC);
+
+		assertThat(cut.changesSince(1L).size(), is(CAPACITY));
+	}
+
+	@Test
+	public void testChangesSinceFutureCount() throws Exception {
+		assertThat(cut.changesSince(1L), is(nullValue()));
+	}
+
+	@Test
+	public void testZeroCapacityCountsChanges() throws Exception {
+		cut = new ImageChangeLog(0);
+
+		cut.imageStored(imageA);
+
+		assertThat(cut.getChangeCount(), is(1L));
+	}
+
+	@Test
+	public void testZeroCapacityKeepsNoChanges() throws Exception {
+		cut = new ImageChangeLog(0);
+
+		cut.imageStored(imageA);
+
+		assertThat(cut.changesSince(0L), is(nullValue()));
+	}
+
+	@Test
+	public void testChangesSinceImages() throws Exception {
+		cut.imageStored(imageA);
+		cut.imageRemoved(imageB);
+
+		List<Change> changes = cut.changesSince(0L);
+
+		assertThat(changes.stream().map(Change::getImage).toArray(), is(new Object[] { imageA, imageB }));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidCapacity() throws Exception {
+		new ImageChangeLog(-1);
+	}
+
+	@Test
+	public void testNoChangesInitially() throws Exception {
+		assertThat(cut.changesSince(0L), is(empty()));
+	}
+}
@@ -0,0 +1,257 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.db;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.github.dozedoff.similarImage.db.repository.ImageRepository;
+import com.github.dozedoff.similarImage.db.repository.RepositoryException;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LiveImageIndexTest {
+	private static final long HASH_A = 1L;
+	private static final long HASH_B = 2L;
+
+	@Mock
+	private ImageRepository imageRepository;
+
+	private ImageRecord imageA;
+	private ImageRecord imageB;
+	private ImageRecord imageC;
+
+	private LiveImageIndex cut;
+
+	@Before
+	public void setUp() throws Exception {
+		imageA = new ImageRecord(Paths.get("foo", "a").toString(), HASH_A);
+		imageB = new ImageRecord(Paths.get("foo", "b").toString(), HASH_B);
+		imageC = new ImageRecord(Paths.get("bar", "c").toString(), HASH_A);
+
+		when(imageRepository.getAll()).thenReturn(Arrays.asList(imageA, imageB));
+
+		cut = new LiveImageIndex(imageRepository);
+	}
+
+	@Test
+	public void testNotLoadedInitially() throws Exception {
+		assertThat(cut.isLoaded(), is(false));
+	}
+
+	@Test
+	public void testLoad() throws Exception {
+		cut.load();
+
+		assertThat(cut.isLoaded(), is(true));
+	}
+
+	@Test
+	public void testLoadedOnlyOnce() throws Exception {
+		cut.getAll();
+		cut.getAll();
+
+		verify(imageRepository, times(1)).getAll();
+	}
+
+	@Test
+	public void testGetAll() throws Exception {
+		assertThat(cut.getAll(), containsInAnyOrder(imageA, imageB));
+	}
+
+	@Test
+	public void testSize() throws Exception {
+		cut.load();
+
+		assertThat(cut.size(), is(2));
+	}
+
+	@Test
+	public void testStoredImageIsAdded() throws Exception {
+		cut.load();
+
+		cut.imageStored(imageC);
+
+		assertThat(cut.getAll(), containsInAnyOrder(imageA, imageB, imageC));
+	}
+
+	@Test
+	public void testStoredImageUpdatesHash() throws Exception {
+		cut.load();
+
+		cut.imageStored(new ImageRecord(imageA.getPath(), HASH_B));
+
+		assertThat(cut.getByHash(HASH_A), is(empty()));
+	}
+
+	@Test
+	public void testRemovedImageIsRemoved() throws Exception {
+		cut.load();
+
+		cut.imageRemoved(imageA);
+
+		assertThat(cut.getAll(), containsInAnyOrder(imageB));
+	}
+
+	@Test
+	public void testRemovedImageIsRemovedFromHash() throws Exception {
+		cut.load();
+
+		cut.imageRemoved(imageA);
+
+		assertThat(cut.getByHash(HASH_A), is(empty()));
+	}
+
+	@Test
+	public void testChangesBeforeLoadAreIgnored() throws Exception {
+		cut.imageStored(imageC);
+
+		assertThat(cut.getAll(), containsInAnyOrder(imageA, imageB));
+	}
+
+	@Test
+	public void testChangesDuringLoadAreApplied() throws Exception {
+		when(imageRepository.getAll()).thenAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				cut.imageStored(imageC);
+				cut.imageRemoved(imageB);
+				return Arrays.asList(imageA, imageB);
+			}
+		});
+
+		assertThat(cut.getAll(), containsInAnyOrder(imageA, imageC));
+	}
+
+	@Test
+	public void testGetByHash() throws Exception {
+		cut.load();
+		cut.imageStored(imageC);
+
+		assertThat(cut.getByHash(HASH_A), containsInAnyOrder(imageA, imageC));
+	}
+
+	@Test
+	public void testGetGroups() throws Exception {
+		assertThat(cut.getGroups().get(HASH_A), containsInAnyOrder(imageA));
+	}
+
+	@Test
+	public void testGetGroupsIncludesStoredImage() throws Exception {
+		cut.getGroups();
+		cut.imageStored(imageC);
+
+		assertThat(cut.getGroups().get(HASH_A), containsInAnyOrder(imageA, imageC));
+	}
+
+	@Test
+	public void testGetGroupsExcludesRemovedImage() throws Exception {
+		cut.getGroups();
+		cut.imageRemoved(imageA);
+
+		assertThat(cut.getGroups().contains(HASH_A), is(false));
+	}
+
+	@Test
+	public void testGetGroupsIncludesReplacedImage() throws Exception {
+		ImageRecord replaced = new ImageRecord(imageA.getPath(), HASH_B);
+
+		cut.getGroups();
+		cut.imageStored(replaced);
+
+		assertThat(cut.getGroups().contains(HASH_A), is(false));
+		assertThat(cut.getGroups().get(HASH_B), containsInAnyOrder(imageB, replaced));
+	}
+
+	@Test
+	public void testGetGroupsExcludesStoredThenRemovedImage() throws Exception {
+		cut.getGroups();
+		cut.imageStored(imageC);
+		cut.imageRemoved(imageC);
+
+		assertThat(cut.getGroups().get(HASH_A), containsInAnyOrder(imageA));
+	}
+
+	@Test
+	public void testGetGroupsIncludesRemovedThenStoredImage() throws Exception {
+		cut.getGroups();
+		cut.imageRemoved(imageA);
+		cut.imageStored(imageA);
+
+		assertThat(cut.getGroups().get(HASH_A), containsInAnyOrder(imageA));
+	}
+
+	@Test
+	public void testGetGroupsSameAsAll() throws Exception {
+		cut.getGroups();
+		cut.imageStored(imageC);
+		cut.imageStored(new ImageRecord(imageC.getPath(), HASH_B));
+		cut.imageRemoved(imageB);
+
+		assertThat(cut.getGroups().records(), containsInAnyOrder(cut.getAll().toArray()));
+	}
+
+	@Test
+	public void testGetGroupsReusedWithoutChanges() throws Exception {
+		assertThat(cut.getGroups(), is(sameInstance(cut.getGroups())));
+	}
+
+	@Test
+	public void testStartsWithPath() throws Exception {
+		cut.load();
+		cut.imageStored(imageC);
+
+		assertThat(cut.startsWithPath(Paths.get("foo")), containsInAnyOrder(imageA, imageB));
+	}
+
+	@Test(expected = RepositoryException.class)
+	public void testLoadFailure() throws Exception {
+		when(imageRepository.getAll()).thenThrow(new RepositoryException("test"));
+
+		cut.load();
+	}
+
+	@Test
+	public void testNotLoadedAfterFailure() throws Exception {
+		when(imageRepository.getAll()).thenThrow(new RepositoryException("test"));
+
+		try {
+			cut.load();
+		} catch (RepositoryException e) {
+			// expected
+		}
+
+		assertThat(cut.isLoaded(), is(false));
+	}
+}
@@ -0,0 +1,354 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.db;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PersistedHashIndexTest {
+	private static final String QUERY = "all";
+
+	private Path tempDirectory;
+	private Path databaseFile;
+	private List<ImageRecord> records;
+
+	private PersistedHashIndex cut;
+
+	@Before
+	public void setUp() throws Exception {
+		tempDirectory = Files.createTempDirectory(PersistedHashIndexTest.class.getSimpleName());
+		databaseFile = tempDirectory.resolve("test.db");
+		Files.write(databaseFile, new byte[] { 1, 2, 3 });
+
+		records = Arrays.asList(new ImageRecord("foo", 42L), new ImageRecord("bar", 42L),
+				new ImageRecord("\u00e4\u00f6\u00fc", -1L), new ImageRecord("baz", 7L));
+
+		cut = new PersistedHashIndex(databaseFile);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		try (Stream<Path> files = Files.list(tempDirectory)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Files.delete(file);
+			}
+		}
+
+		Files.delete(tempDirectory);
+	}
+
+	private void writeIndex() throws IOException {
+		cut.write(QUERY, records, cut.currentVersion());
+	}
+
+	@Test
+	public void testIndexFileIsNextToDatabase() throws Exception {
+		assertThat(cut.indexFile(QUERY), is(tempDirectory.resolve("test.db.all.idx")));
+	}
+
+	@Test
+	public void testIsValidNoIndex() throws Exception {
+		assertThat(cut.isValid(QUERY), is(false));
+	}
+
+	@Test
+	public void testWrite() throws Exception {
+		assertThat(cut.write(QUERY, records, cut.currentVersion()), is(true));
+	}
+
+	@Test
+	public void testIsValidAfterWrite() throws Exception {
+		writeIndex();
+
+		assertThat(cut.isValid(QUERY), is(true));
+	}
+
+	@Test
+	public void testReadRecords() throws Exception {
+		writeIndex();
+
+		assertThat(cut.read(QUERY), containsInAnyOrder(records.toArray(new ImageRecord[0])));
+	}
+
+	@Test
+	public void testReadRecordsSortedByHash() throws Exception {
+		writeIndex();
+
+		List<ImageRecord> result = cut.read(QUERY);
+
+		assertThat(result.get(0).getpHash(), is(-1L));
+		assertThat(result.get(3).getpHash(), is(42L));
+	}
+
+	@Test
+	public void testReadEmptyIndex() throws Exception {
+		cut.write(QUERY, Collections.emptyList(), cut.currentVersion());
+
+		assertThat(cut.read(QUERY), is(empty()));
+	}
+
+	@Test
+	public void testDatabaseModified() throws Exception {
+		writeIndex();
+
+		Files.setLastModifiedTime(databaseFile, FileTime.fromMillis(0));
+
+		assertThat(cut.isValid(QUERY), is(false));
+	}
+
+	@Test
+	public void testDatabaseSizeChanged() throws Exception {
+		writeIndex();
+		FileTime modified = Files.getLastModifiedTime(databaseFile);
+
+		Files.write(databaseFile, new byte[] { 1, 2, 3, 4 });
+		Files.setLastModifiedTime(databaseFile, modified);
+
+		assertThat(cut.isValid(QUERY), is(false));
+	}
+
+	@Test(expected = IOException.class)
+	public void testReadOutdatedIndex() throws Exception {
+		writeIndex();
+		Files.setLastModifiedTime(databaseFile, FileTime.fromMillis(0));
+
+		cut.read(QUERY);
+	}
+
+	@Test
+	public void testImageStoredIsAppended() throws Exception {
+		writeIndex();
+
+		cut.imageStored(new ImageRecord("qux", 1L));
+
+		assertThat(cut.isValid(QUERY), is(true));
+		assertThat(cut.read(QUERY), hasItem(new ImageRecord("qux", 1L)));
+	}
+
+	@Test
+	public void testImageStoredReplacesRecord() throws Exception {
+		writeIndex();
+
+		cut.imageStored(new ImageRecord("foo", 1L));
+
+		List<ImageRecord> result = cut.read(QUERY);
+
+		assertThat(result, hasSize(4));
+		assertThat(result, hasItem(new ImageRecord("foo", 1L)));
+		assertThat(result, not(hasItem(new ImageRecord("foo", 42L))));
+	}
+
+	@Test
+	public void testImageRemovedIsAppended() throws Exception {
+		writeIndex();
+
+		cut.imageRemoved(new ImageRecord("foo", 42L));
+
+		assertThat(cut.isValid(QUERY), is(true));
+		assertThat(cut.read(QUERY), containsInAnyOrder(new ImageRecord("bar", 42L),
+				new ImageRecord("\u00e4\u00f6\u00fc", -1L), new ImageRecord("baz", 7L)));
+	}
+
+	@Test
+	public void testStoredAndRemovedImage() throws Exception {
+		writeIndex();
+
+		cut.imageStored(new ImageRecord("qux", 1L));
+		cut.imageRemoved(new ImageRecord("qux", 1L));
+
+		assertThat(cut.read(QUERY), containsInAnyOrder(records.toArray(new ImageRecord[0])));
+	}
+
+	@Test
+	public void testImageStoredDeletesIncompleteIndex() throws Exception {
+		cut.write(QUERY, records, cut.currentVersion(), false);
+
+		cut.imageStored(new ImageRecord("qux", 1L));
+
+		assertThat(Files.exists(cut.indexFile(QUERY)), is(false));
+	}
+
+	@Test
+	public void testImageRemovedDeletesIncompleteIndex() throws Exception {
+		cut.write(QUERY, records, cut.currentVersion(), false);
+
+		cut.imageRemoved(new ImageRecord("foo", 42L));
+
+		assertThat(cut.isValid(QUERY), is(false));
+	}
+
+	@Test
+	public void testTooManyChangesDeletesIndex() throws Exception {
+		writeIndex();
+
+		for (int i = 0; i < 10; i++) {
+			cut.imageStored(new ImageRecord("qux" + i, i));
+		}
+
+		assertThat(Files.exists(cut.indexFile(QUERY)), is(false));
+	}
+
+	@Test
+	public void testReadAfterReplace() throws Exception {
+		writeIndex();
+		List<ImageRecord> result = cut.read(QUERY);
+
+		writeIndex();
+
+		assertThat(result, containsInAnyOrder(records.toArray(new ImageRecord[0])));
+	}
+
+	@Test
+	public void testReadAfterDelete() throws Exception {
+		writeIndex();
+		List<ImageRecord> result = cut.read(QUERY);
+
+		cut.invalidate();
+
+		assertThat(result, containsInAnyOrder(records.toArray(new ImageRecord[0])));
+	}
+
+	@Test
+	public void testReadAfterReplaceAndReleaseFails() throws Exception {
+		writeIndex();
+		List<ImageRecord> result = cut.read(QUERY);
+
+		writeIndex();
+		PersistedHashIndex.release(result);
+
+		try {
+			result.get(0);
+			fail("Replaced index should no longer be readable");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testReleaseBeforeReplace() throws Exception {
+		writeIndex();
+		List<ImageRecord> result = cut.read(QUERY);
+
+		PersistedHashIndex.release(result);
+		writeIndex();
+
+		try {
+			result.get(0);
+			fail("Replaced index should no longer be readable");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testReleaseOtherList() throws Exception {
+		PersistedHashIndex.release(records);
+
+		assertThat(records, hasSize(4));
+	}
+
+	@Test
+	public void testUnchangedIndexValidAfterRestart() throws Exception {
+		writeIndex();
+
+		PersistedHashIndex restarted = new PersistedHashIndex(databaseFile);
+
+		assertThat(restarted.isValid(QUERY), is(true));
+	}
+
+	@Test
+	public void testAppendedIndexInvalidAfterRestart() throws Exception {
+		writeIndex();
+		cut.imageStored(new ImageRecord("qux", 1L));
+
+		PersistedHashIndex restarted = new PersistedHashIndex(databaseFile);
+
+		assertThat(restarted.isValid(QUERY), is(false));
+	}
+
+	@Test
+	public void testAppendedIndexValidAfterRead() throws Exception {
+		writeIndex();
+		cut.imageStored(new ImageRecord("qux", 1L));
+		PersistedHashIndex.release(cut.read(QUERY));
+
+		cut.imageStored(new ImageRecord("quux", 2L));
+
+		assertThat(cut.read(QUERY), hasItem(new ImageRecord("quux", 2L)));
+	}
+
+	@Test
+	public void testWriteLargerThanBuffer() throws Exception {
+		List<ImageRecord> many = new ArrayList<>();
+
+		for (int i = 0; i < 100000; i++) {
+			many.add(new ImageRecord("/some/long/path/to/an/image/" + i + ".jpg", i));
+		}
+
+		cut.write(QUERY, many, cut.currentVersion());
+		List<ImageRecord> result = cut.read(QUERY);
+
+		assertThat(result, hasSize(many.size()));
+		assertThat(result.get(99999), is(many.get(99999)));
+	}
+
+	@Test
+	public void testInvalidateIncrementsChangeCount() throws Exception {
+		cut.invalidate();
+
+		assertThat(cut.getChangeCount(), is(1L));
+	}
+
+	@Test
+	public void testWriteSkippedIfChangedDuringQuery() throws Exception {
+		PersistedHashIndex.Version version = cut.currentVersion();
+		cut.imageStored(new ImageRecord("foo", 1L));
+
+		assertThat(cut.write(QUERY, records, version), is(false));
+	}
+
+	@Test
+	public void testNoIndexWrittenIfChangedDuringQuery() throws Exception {
+		PersistedHashIndex.Version version = cut.currentVersion();
+		cut.imageStored(new ImageRecord("foo", 1L));
+
+		cut.write(QUERY, records, version);
+
+		assertThat(Files.exists(cut.indexFile(QUERY)), is(false));
+	}
+}
@@ -0,0 +1,232 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.db.repository;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.j256.ormlite.misc.TransactionManager;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ObservableImageRepositoryTest {
+	private static final Path PATH = Paths.get("foo");
+
+	@Mock
+	private ImageRepository imageRepository;
+
+	@Mock
+	private ImageRepositoryListener listener;
+
+	@Mock
+	private ImageRepositoryListener otherListener;
+
+	@Mock
+	private TransactionManager transactionManager;
+
+	private ImageRecord image;
+	private ImageRecord otherImage;
+	private List<ImageRecord> images;
+
+	private ObservableImageRepository cut;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setUp() throws Exception {
+		when(transactionManager.callInTransaction(any(Callable.class)))
+				.thenAnswer(invocation -> ((Callable<?>) invocation.getArguments()[0]).call());
+
+		image = new ImageRecord("foo", 1L);
+		otherImage = new ImageRecord("bar", 2L);
+		images = Arrays.asList(image, otherImage);
+
+		cut = new ObservableImageRepository(imageRepository, listener);
+	}
+
+	@Test
+	public void testStoreDelegated() throws Exception {
+		cut.store(image);
+
+		verify(imageRepository).store(image);
+	}
+
+	@Test
+	public void testStoreNotifiesListener() throws Exception {
+		cut.store(image);
+
+		verify(listener).imageStored(image);
+	}
+
+	@Test
+	public void testFailedStoreDoesNotNotify() throws Exception {
+		doThrow(new RepositoryException("test")).when(imageRepository).store(image);
+
+		try {
+			cut.store(image);
+		} catch (RepositoryException e) {
+			// expected
+		}
+
+		verify(listener, never()).imageStored(any(ImageRecord.class));
+	}
+
+	@Test
+	public void testRemoveNotifiesListener() throws Exception {
+		cut.remove(image);
+
+		verify(listener).imageRemoved(image);
+	}
+
+	@Test
+	public void testRemoveCollectionNotifiesForEachImage() throws Exception {
+		cut.remove(images);
+
+		verify(imageRepository).remove(images);
+		verify(listener).imageRemoved(image);
+		verify(listener).imageRemoved(otherImage);
+	}
+
+	@Test
+	public void testAddListener() throws Exception {
+		cut.addListener(otherListener);
+
+		cut.store(image);
+
+		verify(otherListener).imageStored(image);
+	}
+
+	@Test
+	public void testRemoveListener() throws Exception {
+		cut.removeListener(listener);
+
+		cut.store(image);
+
+		verify(listener, never()).imageStored(image);
+	}
+
+	@Test
+	public void testGetAllDelegated() throws Exception {
+		when(imageRepository.getAll()).thenReturn(images);
+
+		assertThat(cut.getAll(), is(images));
+	}
+
+	@Test
+	public void testStartsWithPathDelegated() throws Exception {
+		when(imageRepository.startsWithPath(PATH)).thenReturn(Collections.singletonList(image));
+
+		assertThat(cut.startsWithPath(PATH), is(Collections.singletonList(image)));
+	}
+
+	@Test
+	public void testGetAllWithoutIgnoredDelegated() throws Exception {
+		when(imageRepository.getAllWithoutIgnored()).thenReturn(images);
+
+		assertThat(cut.getAllWithoutIgnored(), is(images));
+	}
+
+	@Test
+	public void testIterateAllDelegated() throws Exception {
+		cut.iterateAll();
+
+		verify(imageRepository).iterateAll();
+	}
+
+	@Test
+	public void testIterateAllWithoutIgnoredDelegated() throws Exception {
+		cut.iterateAllWithoutIgnored(PATH);
+
+		verify(imageRepository).iterateAllWithoutIgnored(PATH);
+	}
+
+	@Test
+	public void testTransactionNotifiesAfterCommit() throws Exception {
+		cut.callInTransaction(transactionManager, () -> {
+			cut.store(image);
+			verify(listener, never()).imageStored(any(ImageRecord.class));
+			return null;
+		});
+
+		verify(listener).imageStored(image);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testRolledBackTransactionDoesNotNotify() throws Exception {
+		when(transactionManager.callInTransaction(any(Callable.class))).thenAnswer(invocation -> {
+			((Callable<?>) invocation.getArguments()[0]).call();
+			throw new SQLException("testing");
+		});
+
+		try {
+			cut.callInTransaction(transactionManager, () -> {
+				cut.store(image);
+				cut.remove(otherImage);
+				return null;
+			});
+		} catch (SQLException e) {
+			// expected
+		}
+
+		verify(listener, never()).imageStored(any(ImageRecord.class));
+		verify(listener, never()).imageRemoved(any(ImageRecord.class));
+	}
+
+	@Test
+	public void testStoreAfterTransactionNotifiesDirectly() throws Exception {
+		cut.callInTransaction(transactionManager, () -> null);
+
+		cut.store(image);
+
+		verify(listener).imageStored(image);
+	}
+
+	@Test
+	public void testNestedTransactionNotifiesAfterOuterCommit() throws Exception {
+		cut.callInTransaction(transactionManager, () -> {
+			cut.callInTransaction(transactionManager, () -> {
+				cut.store(image);
+				return null;
+			});
+
+			verify(listener, never()).imageStored(any(ImageRecord.class));
+			return null;
+		});
+
+		verify(listener).imageStored(image);
+	}
+}
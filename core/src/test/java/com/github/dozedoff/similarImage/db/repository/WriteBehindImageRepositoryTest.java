@@ -0,0 +1,331 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.db.repository;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.j256.ormlite.misc.TransactionManager;
+
+@RunWith(MockitoJUnitRunner.class)
+public class WriteBehindImageRepositoryTest {
+	private static final int BATCH_SIZE = 3;
+	private static final long LONG_DELAY = 1;
+	private static final long SHORT_DELAY = 50;
+	private static final long VERIFY_TIMEOUT = 2000;
+	private static final int STORE_THREADS = 4;
+	private static final int STORES_PER_THREAD = 1000;
+	private static final Path PATH = Paths.get("foo");
+
+	@Mock
+	private ImageRepository imageRepository;
+
+	@Mock
+	private TransactionManager transactionManager;
+
+	private ImageRecord image;
+	private ImageRecord otherImage;
+	private MetricRegistry metrics;
+
+	private WriteBehindImageRepository cut;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setUp() throws Exception {
+		image = new ImageRecord("foo", 1L);
+		otherImage = new ImageRecord("bar", 2L);
+		metrics = new MetricRegistry();
+
+		when(transactionManager.callInTransaction(any(Callable.class)))
+				.thenAnswer(invocation -> ((Callable<?>) invocation.getArguments()[0]).call());
+
+		cut = new WriteBehindImageRepository(imageRepository, transactionManager, BATCH_SIZE, LONG_DELAY,
+				TimeUnit.HOURS, metrics);
+	}
+
+	@After
+	public void tearDown() {
+		cut.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBatchSize() throws Exception {
+		new WriteBehindImageRepository(imageRepository, transactionManager, 0, LONG_DELAY, TimeUnit.HOURS);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidDelay() throws Exception {
+		new WriteBehindImageRepository(imageRepository, transactionManager, BATCH_SIZE, 0, TimeUnit.HOURS);
+	}
+
+	@Test
+	public void testStoreIsDeferred() throws Exception {
+		cut.store(image);
+
+		verify(imageRepository, never()).store(image);
+	}
+
+	@Test
+	public void testQueueDepth() throws Exception {
+		cut.store(image);
+		cut.store(otherImage);
+
+		assertThat(cut.getQueueDepth(), is(2));
+	}
+
+	@Test
+	public void testQueueDepthMetric() throws Exception {
+		cut.store(image);
+		cut.store(otherImage);
+
+		assertThat(metrics.counter(WriteBehindImageRepository.METRIC_NAME_QUEUE_DEPTH).getCount(), is(2L));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testFlushStoresInOneTransaction() throws Exception {
+		cut.store(image);
+		cut.store(otherImage);
+
+		cut.flush();
+
+		verify(transactionManager).callInTransaction(any(Callable.class));
+		verify(imageRepository).store(image);
+		verify(imageRepository).store(otherImage);
+	}
+
+	@Test
+	public void testFlushEmptiesQueue() throws Exception {
+		cut.store(image);
+		cut.store(otherImage);
+
+		cut.flush();
+
+		assertThat(cut.getQueueDepth(), is(0));
+		assertThat(metrics.counter(WriteBehindImageRepository.METRIC_NAME_QUEUE_DEPTH).getCount(), is(0L));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testFlushSplitsIntoBatches() throws Exception {
+		for (int i = 0; i < BATCH_SIZE * 2; i++) {
+			cut.store(new ImageRecord("foo" + i, i));
+		}
+
+		cut.flush();
+
+		verify(transactionManager, times(2)).callInTransaction(any(Callable.class));
+	}
+
+	@Test
+	public void testFlushLatencyRecorded() throws Exception {
+		cut.store(image);
+
+		cut.flush();
+
+		assertThat(cut.getFlushLatency().getCount(), is(1L));
+	}
+
+	@Test
+	public void testFlushOnBatchSize() throws Exception {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			cut.store(new ImageRecord("foo" + i, i));
+		}
+
+		verify(imageRepository, timeout(VERIFY_TIMEOUT).times(BATCH_SIZE)).store(any(ImageRecord.class));
+	}
+
+	@Test
+	public void testFlushOnDelay() throws Exception {
+		cut.close();
+		cut = new WriteBehindImageRepository(imageRepository, transactionManager, BATCH_SIZE, SHORT_DELAY,
+				TimeUnit.MILLISECONDS);
+
+		cut.store(image);
+
+		verify(imageRepository, timeout(VERIFY_TIMEOUT)).store(image);
+	}
+
+	@Test
+	public void testCloseFlushes() throws Exception {
+		cut.store(image);
+
+		cut.close();
+
+		verify(imageRepository).store(image);
+	}
+
+	@Test
+	public void testStoreAfterCloseIsDirect() throws Exception {
+		cut.close();
+
+		cut.store(image);
+
+		verify(imageRepository).store(image);
+	}
+
+	@Test
+	public void testStoreWhileClosingNotLost() throws Exception {
+		AtomicInteger stored = new AtomicInteger();
+		doAnswer(invocation -> stored.incrementAndGet()).when(imageRepository).store(any(ImageRecord.class));
+		ExecutorService storers = Executors.newFixedThreadPool(STORE_THREADS);
+		CountDownLatch started = new CountDownLatch(STORE_THREADS);
+
+		for (int i = 0; i < STORE_THREADS; i++) {
+			storers.submit(() -> {
+				started.countDown();
+
+				for (int j = 0; j < STORES_PER_THREAD; j++) {
+					cut.store(image);
+				}
+
+				return null;
+			});
+		}
+
+		started.await();
+		cut.close();
+		storers.shutdown();
+
+		assertThat(storers.awaitTermination(VERIFY_TIMEOUT, TimeUnit.MILLISECONDS), is(true));
+		assertThat(stored.get(), is(STORE_THREADS * STORES_PER_THREAD));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testTransactionFailureStoresIndividually() throws Exception {
+		when(transactionManager.callInTransaction(any(Callable.class))).thenThrow(new SQLException("testing"));
+		cut.store(image);
+		cut.store(otherImage);
+
+		cut.flush();
+
+		verify(imageRepository).store(image);
+		verify(imageRepository).store(otherImage);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testFailedRecordsCounted() throws Exception {
+		when(transactionManager.callInTransaction(any(Callable.class))).thenThrow(new SQLException("testing"));
+		doThrow(new RepositoryException("testing")).when(imageRepository).store(image);
+		cut.store(image);
+		cut.store(otherImage);
+
+		cut.flush();
+
+		assertThat(metrics.counter(WriteBehindImageRepository.METRIC_NAME_FAILED_RECORDS).getCount(), is(1L));
+		verify(imageRepository).store(otherImage);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testListenersNotifiedAfterCommit() throws Exception {
+		ImageRepositoryListener listener = mock(ImageRepositoryListener.class);
+		doAnswer(invocation -> {
+			((Callable<?>) invocation.getArguments()[0]).call();
+			verify(listener, never()).imageStored(any(ImageRecord.class));
+			return null;
+		}).when(transactionManager).callInTransaction(any(Callable.class));
+		cut.close();
+		cut = new WriteBehindImageRepository(new ObservableImageRepository(imageRepository, listener),
+				transactionManager, BATCH_SIZE, LONG_DELAY, TimeUnit.HOURS, metrics);
+		cut.store(image);
+
+		cut.flush();
+
+		verify(listener).imageStored(image);
+	}
+
+	@Test
+	public void testGetByPathFlushesFirst() throws Exception {
+		cut.store(image);
+
+		cut.getByPath(PATH);
+
+		InOrder inOrder = inOrder(imageRepository);
+		inOrder.verify(imageRepository).store(image);
+		inOrder.verify(imageRepository).getByPath(PATH);
+	}
+
+	@Test
+	public void testGetAllFlushesFirst() throws Exception {
+		cut.store(image);
+
+		cut.getAll();
+
+		InOrder inOrder = inOrder(imageRepository);
+		inOrder.verify(imageRepository).store(image);
+		inOrder.verify(imageRepository).getAll();
+	}
+
+	@Test
+	public void testRemoveFlushesFirst() throws Exception {
+		cut.store(image);
+
+		cut.remove(image);
+
+		InOrder inOrder = inOrder(imageRepository);
+		inOrder.verify(imageRepository).store(image);
+		inOrder.verify(imageRepository).remove(image);
+	}
+
+	@Test
+	public void testGetByHashDelegated() throws Exception {
+		cut.getByHash(1L);
+
+		verify(imageRepository).getByHash(1L);
+	}
+
+	@Test
+	public void testIterateAllDelegated() throws Exception {
+		cut.iterateAll();
+
+		verify(imageRepository).iterateAll();
+	}
+}
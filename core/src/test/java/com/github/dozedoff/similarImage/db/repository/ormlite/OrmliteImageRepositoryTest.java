@@ -34,6 +34,7 @@ import org.junit.Test;
 
 import com.github.dozedoff.similarImage.db.IgnoreRecord;
 import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.j256.ormlite.dao.CloseableIterator;
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.dao.DaoManager;
 import com.j256.ormlite.table.TableUtils;
@@ -170,4 +171,53 @@ public class OrmliteImageRepositoryTest extends OrmliteRepositoryBaseTest {
 
 		assertThat(result, is(empty()));
 	}
+
+	private List<ImageRecord> drain(CloseableIterator<ImageRecord> iterator) throws Exception {
+		List<ImageRecord> result = new LinkedList<ImageRecord>();
+
+		try {
+			while (iterator.hasNext()) {
+				result.add(iterator.next());
+			}
+		} finally {
+			iterator.close();
+		}
+
+		return result;
+	}
+
+	@Test
+	public void testIterateAll() throws Exception {
+		imageDao.create(imageNew);
+
+		assertThat(drain(cut.iterateAll()), containsInAnyOrder(imageExisting, imageNew));
+	}
+
+	@Test
+	public void testIterateStartsWithPath() throws Exception {
+		imageDao.create(imageNew);
+
+		assertThat(drain(cut.iterateStartsWithPath(Paths.get("exi"))), containsInAnyOrder(imageExisting));
+	}
+
+	@Test
+	public void testIterateAllWithoutIgnored() throws Exception {
+		imageDao.create(imageNew);
+
+		assertThat(drain(cut.iterateAllWithoutIgnored()), containsInAnyOrder(imageNew));
+	}
+
+	@Test
+	public void testIterateAllWithoutIgnoredPath() throws Exception {
+		imageDao.create(imageNew);
+
+		assertThat(drain(cut.iterateAllWithoutIgnored(Paths.get(pathNew))), containsInAnyOrder(imageNew));
+	}
+
+	@Test
+	public void testIterateAllWithoutIgnoredPathNoMatch() throws Exception {
+		imageDao.create(imageNew);
+
+		assertThat(drain(cut.iterateAllWithoutIgnored(Paths.get(pathExisting))), is(empty()));
+	}
 }
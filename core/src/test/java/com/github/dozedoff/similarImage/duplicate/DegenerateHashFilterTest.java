@@ -0,0 +1,136 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+
+public class DegenerateHashFilterTest {
+	private static final int MIN_BIT_BALANCE = 4;
+	private static final int MAX_POPULATION = 10;
+	private static final long BALANCED_HASH = 0x00FF00FF00FF00FFL;
+
+	private DegenerateHashFilter cut;
+
+	@Before
+	public void setUp() throws Exception {
+		cut = new DegenerateHashFilter(MIN_BIT_BALANCE, MAX_POPULATION);
+	}
+
+	@Test
+	public void testBitBalanceAllUnset() throws Exception {
+		assertThat(DegenerateHashFilter.bitBalance(0L), is(0));
+	}
+
+	@Test
+	public void testBitBalanceAllSet() throws Exception {
+		assertThat(DegenerateHashFilter.bitBalance(-1L), is(0));
+	}
+
+	@Test
+	public void testBitBalanceFewUnset() throws Exception {
+		assertThat(DegenerateHashFilter.bitBalance(~0x7L), is(3));
+	}
+
+	@Test
+	public void testBitBalanceEven() throws Exception {
+		assertThat(DegenerateHashFilter.bitBalance(BALANCED_HASH), is(32));
+	}
+
+	@Test
+	public void testAllUnsetIsDegenerate() throws Exception {
+		assertThat(cut.isDegenerate(0L, 1), is(true));
+	}
+
+	@Test
+	public void testAllSetIsDegenerate() throws Exception {
+		assertThat(cut.isDegenerate(-1L, 1), is(true));
+	}
+
+	@Test
+	public void testBelowBitBalanceIsDegenerate() throws Exception {
+		assertThat(cut.isDegenerate(0x7L, 1), is(true));
+	}
+
+	@Test
+	public void testMinimumBitBalanceIsNotDegenerate() throws Exception {
+		assertThat(cut.isDegenerate(0xFL, 1), is(false));
+	}
+
+	@Test
+	public void testMaximumPopulationIsNotDegenerate() throws Exception {
+		assertThat(cut.isDegenerate(BALANCED_HASH, MAX_POPULATION), is(false));
+	}
+
+	@Test
+	public void testAbovePopulationIsDegenerate() throws Exception {
+		assertThat(cut.isDegenerate(BALANCED_HASH, MAX_POPULATION + 1), is(true));
+	}
+
+	@Test
+	public void testZeroBitBalanceDisablesCheck() throws Exception {
+		cut = new DegenerateHashFilter(0, MAX_POPULATION);
+
+		assertThat(cut.isDegenerate(0L, 1), is(false));
+	}
+
+	@Test
+	public void testDefaultLimits() throws Exception {
+		cut = new DegenerateHashFilter();
+
+		assertThat(cut.getMinBitBalance(), is(DegenerateHashFilter.DEFAULT_MIN_BIT_BALANCE));
+		assertThat(cut.getMaxPopulation(), is(DegenerateHashFilter.DEFAULT_MAX_POPULATION));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeBitBalance() throws Exception {
+		new DegenerateHashFilter(-1, MAX_POPULATION);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBitBalanceTooLarge() throws Exception {
+		new DegenerateHashFilter(33, MAX_POPULATION);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroPopulation() throws Exception {
+		new DegenerateHashFilter(MIN_BIT_BALANCE, 0);
+	}
+
+	private HashGroups groups() {
+		return HashGroups.group(Arrays.asList(new ImageRecord("blank", 0L), new ImageRecord("balanced", BALANCED_HASH)));
+	}
+
+	@Test
+	public void testSelectDegenerate() throws Exception {
+		assertThat(cut.selectDegenerate(groups()).hashes(), contains(0L));
+	}
+
+	@Test
+	public void testSelectSearchable() throws Exception {
+		assertThat(cut.selectSearchable(groups()).hashes(), contains(BALANCED_HASH));
+	}
+}
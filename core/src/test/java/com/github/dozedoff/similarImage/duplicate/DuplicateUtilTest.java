@@ -18,6 +18,7 @@
 package com.github.dozedoff.similarImage.duplicate;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.Matchers.hasItem;
 import static org.junit.Assert.assertThat;
 
@@ -30,6 +31,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.MultimapBuilder;
 
@@ -143,4 +145,52 @@ public class DuplicateUtilTest {
 
 		assertThat(DuplicateUtil.hashSum(hashes), is(new BigInteger("5")));
 	}
+
+	@Test
+	public void testRemoveDuplicateSetsRemovedCount() throws Exception {
+		Multimap<Long, ImageRecord> map = MultimapBuilder.hashKeys().hashSetValues().build();
+		map.putAll(1L, records);
+		map.putAll(2L, records);
+		map.putAll(3L, records);
+
+		assertThat(DuplicateUtil.removeDuplicateSets(map), is(2L));
+	}
+
+	@Test
+	public void testRemoveDuplicateSetsDifferentOrder() throws Exception {
+		Multimap<Long, ImageRecord> map = MultimapBuilder.hashKeys().arrayListValues().build();
+		map.putAll(1L, records);
+		map.putAll(2L, Lists.reverse(records));
+
+		DuplicateUtil.removeDuplicateSets(map);
+
+		assertThat(map.keySet().size(), is(1));
+	}
+
+	@Test
+	public void testFingerprintOrderIndependent() throws Exception {
+		assertThat(DuplicateUtil.fingerprint(records), is(DuplicateUtil.fingerprint(Lists.reverse(records))));
+	}
+
+	@Test
+	public void testFingerprintDifferentPath() throws Exception {
+		List<ImageRecord> other = new LinkedList<>(records);
+		other.set(0, new ImageRecord("bar", records.get(0).getpHash()));
+
+		assertThat(DuplicateUtil.fingerprint(records), is(not(DuplicateUtil.fingerprint(other))));
+	}
+
+	@Test
+	public void testFingerprintDifferentHash() throws Exception {
+		List<ImageRecord> other = new LinkedList<>(records);
+		other.set(0, new ImageRecord(records.get(0).getPath(), 42L));
+
+		assertThat(DuplicateUtil.fingerprint(records), is(not(DuplicateUtil.fingerprint(other))));
+	}
+
+	@Test
+	public void testFingerprintSubset() throws Exception {
+		assertThat(DuplicateUtil.fingerprint(records),
+				is(not(DuplicateUtil.fingerprint(records.subList(1, records.size())))));
+	}
 }
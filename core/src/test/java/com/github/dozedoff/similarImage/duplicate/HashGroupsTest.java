@@ -0,0 +1,290 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.google.common.collect.Multimap;
+
+public class HashGroupsTest {
+	private static final int NUM_OF_RECORDS = 10;
+
+	private List<ImageRecord> records;
+	private HashGroups cut;
+
+	@Before
+	public void setUp() throws Exception {
+		records = new LinkedList<ImageRecord>();
+
+		for (int i = 0; i < NUM_OF_RECORDS; i++) {
+			records.add(new ImageRecord(Integer.toString(i), i));
+		}
+
+		records.add(new ImageRecord("foo", 2));
+		records.add(new ImageRecord("42", 5));
+		records.add(new ImageRecord("43", 5));
+		records.add(new ImageRecord("negative", -1));
+
+		cut = HashGroups.group(records);
+	}
+
+	@Test
+	public void testDistinctHashes() throws Exception {
+		assertThat(cut.distinctHashes(), is(11));
+	}
+
+	@Test
+	public void testSize() throws Exception {
+		assertThat(cut.size(), is(14));
+	}
+
+	@Test
+	public void testGroupSize() throws Exception {
+		assertThat(cut.get(5L), containsInAnyOrder(new ImageRecord("5", 5), new ImageRecord("42", 5),
+				new ImageRecord("43", 5)));
+	}
+
+	@Test
+	public void testCount() throws Exception {
+		assertThat(cut.count(2L), is(2));
+	}
+
+	@Test
+	public void testContains() throws Exception {
+		assertThat(cut.contains(-1L), is(true));
+	}
+
+	@Test
+	public void testDoesNotContain() throws Exception {
+		assertThat(cut.contains(42L), is(false));
+	}
+
+	@Test
+	public void testGetUnknownHash() throws Exception {
+		assertThat(cut.get(42L), is(empty()));
+	}
+
+	@Test
+	public void testHashesSorted() throws Exception {
+		assertThat(cut.hashes(), contains(-1L, 0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L));
+	}
+
+	@Test
+	public void testIdenticalRecordsIncludedOnce() throws Exception {
+		cut = HashGroups.group(Arrays.asList(new ImageRecord("1", 1), new ImageRecord("1", 1)));
+
+		assertThat(cut.get(1L), contains(new ImageRecord("1", 1)));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testGroupIsReadOnly() throws Exception {
+		cut.get(2L).clear();
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		cut = HashGroups.group(Collections.emptyList());
+
+		assertThat(cut.isEmpty(), is(true));
+	}
+
+	@Test
+	public void testEmptyGet() throws Exception {
+		cut = HashGroups.group(Collections.emptyList());
+
+		assertThat(cut.get(0L), is(empty()));
+	}
+
+	@Test
+	public void testEstimatedBytes() throws Exception {
+		assertThat(cut.estimatedBytes(), is(greaterThan(0L)));
+	}
+
+	@Test
+	public void testToMultimap() throws Exception {
+		Multimap<Long, ImageRecord> multimap = cut.toMultimap();
+
+		assertThat(multimap.get(2L), containsInAnyOrder(new ImageRecord("2", 2), new ImageRecord("foo", 2)));
+	}
+
+	@Test
+	public void testManyHashes() throws Exception {
+		List<ImageRecord> many = new LinkedList<ImageRecord>();
+
+		for (long i = 0; i < 10000; i++) {
+			many.add(new ImageRecord(Long.toString(i), i * 31));
+		}
+
+		cut = HashGroups.group(many);
+
+		for (long i = 0; i < 10000; i++) {
+			assertThat(cut.count(i * 31), is(1));
+		}
+	}
+
+	@Test
+	public void testGroupFromIterator() throws Exception {
+		HashGroups fromIterator = HashGroups.group(records.iterator());
+
+		assertThat(fromIterator.hashes(), is(cut.hashes()));
+	}
+
+	@Test
+	public void testGroupFromIteratorSize() throws Exception {
+		assertThat(HashGroups.group(records.iterator()).size(), is(cut.size()));
+	}
+
+	@Test
+	public void testGroupFromLargeIterator() throws Exception {
+		List<ImageRecord> large = new LinkedList<ImageRecord>();
+
+		for (int i = 0; i < 5000; i++) {
+			large.add(new ImageRecord(Integer.toString(i), i % 100));
+		}
+
+		assertThat(HashGroups.group(large.iterator()).count(42L), is(50));
+	}
+
+	@Test
+	public void testGroupFromEmptyIterator() throws Exception {
+		assertThat(HashGroups.group(Collections.<ImageRecord> emptyIterator()).isEmpty(), is(true));
+	}
+
+	@Test
+	public void testIndexOf() throws Exception {
+		assertThat(cut.hashAt(cut.indexOf(5L)), is(5L));
+	}
+
+	@Test
+	public void testIndexOfNotFound() throws Exception {
+		assertThat(cut.indexOf(42L), is(-1));
+	}
+
+	@Test
+	public void testSelectSize() throws Exception {
+		assertThat(cut.select(i -> cut.hashAt(i) == 5L).size(), is(3));
+	}
+
+	@Test
+	public void testSelectGroups() throws Exception {
+		HashGroups selected = cut.select(i -> cut.hashAt(i) == 2L || cut.hashAt(i) == -1L);
+
+		assertThat(selected.hashes(), contains(-1L, 2L));
+	}
+
+	@Test
+	public void testSelectKeepsRecords() throws Exception {
+		assertThat(cut.select(i -> cut.hashAt(i) == 2L).get(2L),
+				containsInAnyOrder(new ImageRecord("2", 2), new ImageRecord("foo", 2)));
+	}
+
+	@Test
+	public void testSelectNone() throws Exception {
+		assertThat(cut.select(i -> false).isEmpty(), is(true));
+	}
+
+	@Test
+	public void testRecordsSortedByHash() throws Exception {
+		List<ImageRecord> records = cut.records();
+
+		assertThat(records.get(0).getpHash(), is(cut.hashAt(0)));
+		assertThat(records.get(records.size() - 1).getpHash(), is(cut.hashAt(cut.distinctHashes() - 1)));
+	}
+
+	@Test
+	public void testRecordsSize() throws Exception {
+		assertThat(cut.records().size(), is(cut.size()));
+	}
+
+	@Test
+	public void testRecordsViewOfGroups() throws Exception {
+		assertThat(cut.records().getGroups(), is(cut));
+	}
+
+	@Test
+	public void testUpdateAddsRecords() throws Exception {
+		HashGroups updated = cut.update(Collections.emptyList(),
+				Arrays.asList(new ImageRecord("bar", 5), new ImageRecord("new", 42)));
+
+		assertThat(updated.get(5L), contains(new ImageRecord("42", 5), new ImageRecord("43", 5),
+				new ImageRecord("5", 5), new ImageRecord("bar", 5)));
+		assertThat(updated.get(42L), contains(new ImageRecord("new", 42)));
+	}
+
+	@Test
+	public void testUpdateRemovesRecords() throws Exception {
+		HashGroups updated = cut.update(Arrays.asList(new ImageRecord("foo", 2), new ImageRecord("negative", -1)),
+				Collections.emptyList());
+
+		assertThat(updated.get(2L), contains(new ImageRecord("2", 2)));
+		assertThat(updated.contains(-1L), is(false));
+	}
+
+	@Test
+	public void testUpdateIgnoresUnknownRemovedRecords() throws Exception {
+		HashGroups updated = cut.update(Arrays.asList(new ImageRecord("foo", 3), new ImageRecord("bar", 42)),
+				Collections.emptyList());
+
+		assertThat(updated.size(), is(cut.size()));
+	}
+
+	@Test
+	public void testUpdateIdenticalRecordsIncludedOnce() throws Exception {
+		HashGroups updated = cut.update(Collections.emptyList(), Arrays.asList(new ImageRecord("foo", 2)));
+
+		assertThat(updated.get(2L), contains(new ImageRecord("2", 2), new ImageRecord("foo", 2)));
+	}
+
+	@Test
+	public void testUpdateDoesNotChangeOriginal() throws Exception {
+		cut.update(Arrays.asList(new ImageRecord("foo", 2)), Arrays.asList(new ImageRecord("bar", 42)));
+
+		assertThat(cut.size(), is(14));
+		assertThat(cut.contains(42L), is(false));
+	}
+
+	@Test
+	public void testUpdateSameAsGrouping() throws Exception {
+		List<ImageRecord> removed = Arrays.asList(new ImageRecord("3", 3), new ImageRecord("42", 5));
+		List<ImageRecord> added = Arrays.asList(new ImageRecord("3", 4), new ImageRecord("bar", -5),
+				new ImageRecord("baz", 100));
+
+		records.removeAll(removed);
+		records.addAll(added);
+
+		HashGroups updated = cut.update(removed, added);
+		HashGroups grouped = HashGroups.group(records);
+
+		assertThat(updated.hashes(), is(grouped.hashes()));
+		assertThat(updated.records(), is(grouped.records()));
+	}
+}
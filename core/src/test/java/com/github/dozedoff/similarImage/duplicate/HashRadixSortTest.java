@@ -0,0 +1,113 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashRadixSortTest {
+	private static final int NUMBER_OF_HASHES = 10000;
+	private static final int CHUNKS = 4;
+
+	private long[] hashes;
+	private long[] original;
+
+	@Before
+	public void setUp() throws Exception {
+		Random rand = new Random(42);
+		hashes = new long[NUMBER_OF_HASHES];
+
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = i % 2 == 0 ? rand.nextLong() : rand.nextInt(10) - 5;
+		}
+
+		original = hashes.clone();
+	}
+
+	private long[] sortedCopy(long[] toSort) {
+		long[] sorted = toSort.clone();
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	@Test
+	public void testSorted() throws Exception {
+		HashRadixSort.sort(hashes, 1);
+
+		assertThat(hashes, is(sortedCopy(original)));
+	}
+
+	@Test
+	public void testSortedInChunks() throws Exception {
+		HashRadixSort.sort(hashes, CHUNKS);
+
+		assertThat(hashes, is(sortedCopy(original)));
+	}
+
+	@Test
+	public void testNegativeBeforePositive() throws Exception {
+		hashes = new long[] { 1L, -1L, Long.MIN_VALUE, 0L, Long.MAX_VALUE };
+
+		HashRadixSort.sort(hashes);
+
+		assertThat(hashes, is(new long[] { Long.MIN_VALUE, -1L, 0L, 1L, Long.MAX_VALUE }));
+	}
+
+	@Test
+	public void testPositions() throws Exception {
+		int[] positions = HashRadixSort.sort(hashes, CHUNKS);
+
+		for (int i = 0; i < hashes.length; i++) {
+			assertThat(original[positions[i]], is(hashes[i]));
+		}
+	}
+
+	@Test
+	public void testStable() throws Exception {
+		int[] positions = HashRadixSort.sort(hashes, CHUNKS);
+
+		for (int i = 1; i < hashes.length; i++) {
+			if (hashes[i] == hashes[i - 1]) {
+				assertThat(positions[i] > positions[i - 1], is(true));
+			}
+		}
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		assertThat(HashRadixSort.sort(new long[0], CHUNKS).length, is(0));
+	}
+
+	@Test
+	public void testMoreChunksThanHashes() throws Exception {
+		hashes = new long[] { 3L, 1L, 2L };
+
+		assertThat(HashRadixSort.sort(hashes, CHUNKS), is(new int[] { 1, 2, 0 }));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroChunks() throws Exception {
+		HashRadixSort.sort(hashes, 0);
+	}
+}
@@ -0,0 +1,181 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.primitives.Longs;
+
+public class MultiIndexSearchIndexTest {
+	private static final long SEED = 42L;
+	private static final int NUMBER_OF_BASE_HASHES = 200;
+	private static final int NEIGHBOURS_PER_HASH = 10;
+	private static final int MAX_FLIPPED_BITS = 10;
+	private static final int MAX_DISTANCE = 12;
+	private static final int NUMBER_OF_QUERIES = 50;
+
+	private MultiIndexSearchIndex cut;
+	private BKTreeSearchIndex bkTree;
+
+	private Random random;
+	private Set<Long> hashes;
+
+	@Before
+	public void setUp() throws Exception {
+		random = new Random(SEED);
+		hashes = new HashSet<Long>();
+
+		for (int i = 0; i < NUMBER_OF_BASE_HASHES; i++) {
+			long base = random.nextLong();
+			hashes.add(base);
+
+			for (int j = 0; j < NEIGHBOURS_PER_HASH; j++) {
+				hashes.add(flipRandomBits(base, random.nextInt(MAX_FLIPPED_BITS + 1)));
+			}
+		}
+
+		cut = new MultiIndexSearchIndex();
+		cut.build(hashes);
+
+		bkTree = new BKTreeSearchIndex();
+		bkTree.build(hashes);
+	}
+
+	private long flipRandomBits(long hash, int bits) {
+		long flipped = hash;
+
+		for (int i = 0; i < bits; i++) {
+			flipped ^= 1L << random.nextInt(Long.SIZE);
+		}
+
+		return flipped;
+	}
+
+	private void assertSameAsBkTree(MultiIndexSearchIndex index, Collection<Long> queries) {
+		for (long query : queries) {
+			for (int distance = 0; distance <= MAX_DISTANCE; distance++) {
+				Set<Long> expected = bkTree.searchWithin(query, distance);
+
+				assertThat(index.searchWithin(query, distance), is(expected));
+			}
+		}
+	}
+
+	private Set<Long> sampleQueries() {
+		Set<Long> queries = new HashSet<Long>();
+
+		for (long hash : hashes) {
+			if (queries.size() >= NUMBER_OF_QUERIES) {
+				break;
+			}
+
+			queries.add(hash);
+			queries.add(flipRandomBits(hash, random.nextInt(MAX_FLIPPED_BITS + 1)));
+		}
+
+		return queries;
+	}
+
+	@Test
+	public void testIndexedHashesMatchBkTree() throws Exception {
+		assertSameAsBkTree(cut, sampleQueries());
+	}
+
+	@Test
+	public void testBatchMatchesBkTree() throws Exception {
+		long[] queries = Longs.toArray(sampleQueries());
+
+		for (int distance = 0; distance <= MAX_DISTANCE; distance++) {
+			Map<Long, Set<Long>> matches = cut.searchWithin(queries, distance);
+
+			for (long query : queries) {
+				assertThat(matches.get(query), is(bkTree.searchWithin(query, distance)));
+			}
+		}
+	}
+
+	@Test
+	public void testBatchDuplicateProbes() throws Exception {
+		cut.build(Arrays.asList(1L, 2L, 3L));
+
+		assertThat(cut.searchWithin(new long[] { 1L, 1L }, 0).get(1L), containsInAnyOrder(1L));
+	}
+
+	@Test
+	public void testBatchNegativeDistance() throws Exception {
+		assertThat(cut.searchWithin(new long[] { 1L }, -1).get(1L), is(empty()));
+	}
+
+	@Test
+	public void testUnevenSubstringsMatchBkTree() throws Exception {
+		MultiIndexSearchIndex uneven = new MultiIndexSearchIndex(5);
+		uneven.build(hashes);
+
+		assertSameAsBkTree(uneven, sampleQueries());
+	}
+
+	@Test
+	public void testExactMatch() throws Exception {
+		cut.build(Arrays.asList(1L, 2L, 3L));
+
+		assertThat(cut.searchWithin(2L, 0), containsInAnyOrder(2L));
+	}
+
+	@Test
+	public void testDistanceOne() throws Exception {
+		cut.build(Arrays.asList(1L, 2L, 3L, 6L));
+
+		assertThat(cut.searchWithin(2L, 1), containsInAnyOrder(2L, 3L, 6L));
+	}
+
+	@Test
+	public void testEmptyIndex() throws Exception {
+		cut.build(Collections.emptyList());
+
+		assertThat(cut.searchWithin(0L, MAX_DISTANCE), is(empty()));
+	}
+
+	@Test
+	public void testFullDistance() throws Exception {
+		assertThat(cut.searchWithin(0L, Long.SIZE), is(hashes));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTooFewSubstrings() throws Exception {
+		new MultiIndexSearchIndex(3);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTooManySubstrings() throws Exception {
+		new MultiIndexSearchIndex(Long.SIZE + 1);
+	}
+}
@@ -0,0 +1,161 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class NearestHashSearchTest {
+	private static final int NUMBER_OF_RANDOM_HASHES = 2000;
+
+	private NearestHashSearch cut;
+
+	@Before
+	public void setUp() throws Exception {
+		cut = new NearestHashSearch(Arrays.asList(0b0000L, 0b0001L, 0b0011L, 0b0111L, -1L));
+	}
+
+	@Test
+	public void testNearestOrderedByDistance() throws Exception {
+		assertThat(cut.nearest(0b0000L, 4), contains(0b0000L, 0b0001L, 0b0011L, 0b0111L));
+	}
+
+	@Test
+	public void testNearestLimitedToK() throws Exception {
+		assertThat(cut.nearest(0b0000L, 2), hasSize(2));
+	}
+
+	@Test
+	public void testNearestMoreThanAvailable() throws Exception {
+		assertThat(cut.nearest(0b0000L, 100), hasSize(5));
+	}
+
+	@Test
+	public void testNearestNegativeHash() throws Exception {
+		assertThat(cut.nearest(-2L, 1), contains(-1L));
+	}
+
+	@Test
+	public void testNearestSignBit() throws Exception {
+		cut = new NearestHashSearch(Arrays.asList(0b11L, 0b111L, Long.MIN_VALUE));
+
+		assertThat(cut.nearest(Long.MIN_VALUE | 1L, 1), contains(Long.MIN_VALUE));
+	}
+
+	@Test
+	public void testDuplicateHashesIncludedOnce() throws Exception {
+		cut = new NearestHashSearch(Arrays.asList(1L, 1L, 2L));
+
+		assertThat(cut.size(), is(2));
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		cut = new NearestHashSearch(Collections.emptyList());
+
+		assertThat(cut.nearest(0L, 5), is(empty()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidK() throws Exception {
+		cut.nearest(0L, 0);
+	}
+
+	@Test
+	public void testMatchesBruteForce() throws Exception {
+		Random random = new Random(42);
+		List<Long> hashes = new ArrayList<>();
+
+		for (int i = 0; i < NUMBER_OF_RANDOM_HASHES; i++) {
+			hashes.add(random.nextLong());
+		}
+
+		cut = new NearestHashSearch(hashes);
+
+		for (int query = 0; query < 20; query++) {
+			long hash = random.nextLong();
+			List<Long> nearest = cut.nearest(hash, 10);
+			List<Integer> expected = new ArrayList<>();
+
+			for (long candidate : hashes) {
+				expected.add(Long.bitCount(hash ^ candidate));
+			}
+
+			Collections.sort(expected);
+
+			for (int i = 0; i < nearest.size(); i++) {
+				assertThat(Long.bitCount(hash ^ nearest.get(i)), is(expected.get(i)));
+			}
+		}
+	}
+
+	@Test
+	public void testNearestWithinDistance() throws Exception {
+		assertThat(cut.nearestWithin(0b0000L, 1, Integer.MAX_VALUE, hash -> 1), contains(0b0000L, 0b0001L));
+	}
+
+	@Test
+	public void testNearestWithinStopsAtLimit() throws Exception {
+		assertThat(cut.nearestWithin(0b0000L, Long.SIZE, 3, hash -> 2), contains(0b0000L, 0b0001L));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNearestWithinInvalidLimit() throws Exception {
+		cut.nearestWithin(0L, 1, 0, hash -> 1);
+	}
+
+	@Test
+	public void testNearestWithinMatchesBruteForce() throws Exception {
+		Random random = new Random(42);
+		List<Long> hashes = new ArrayList<>();
+
+		for (int i = 0; i < NUMBER_OF_RANDOM_HASHES; i++) {
+			hashes.add(random.nextLong());
+		}
+
+		cut = new NearestHashSearch(hashes);
+
+		for (int distance = 0; distance <= Long.SIZE; distance += 8) {
+			long hash = random.nextLong();
+			Set<Long> expected = new HashSet<>();
+
+			for (long candidate : hashes) {
+				if (Long.bitCount(hash ^ candidate) <= distance) {
+					expected.add(candidate);
+				}
+			}
+
+			assertThat(new HashSet<>(cut.nearestWithin(hash, distance, Integer.MAX_VALUE, match -> 1)),
+					is(expected));
+		}
+	}
+}
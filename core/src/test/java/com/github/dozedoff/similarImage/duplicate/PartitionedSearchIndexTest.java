@@ -0,0 +1,325 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.primitives.Longs;
+
+public class PartitionedSearchIndexTest {
+	private static final long SEED = 42L;
+	private static final int NUMBER_OF_BASE_HASHES = 200;
+	private static final int NEIGHBOURS_PER_HASH = 10;
+	private static final int MAX_FLIPPED_BITS = 10;
+	private static final int MAX_DISTANCE = 12;
+	private static final int NUMBER_OF_QUERIES = 50;
+	private static final int SHARDS = 16;
+
+	private static final long HASH_A = 0L;
+	private static final long HASH_B = 1L;
+	private static final long HASH_C = Long.MIN_VALUE;
+
+	private PartitionedSearchIndex cut;
+	private BKTreeSearchIndex bkTree;
+
+	private Random random;
+	private Set<Long> hashes;
+
+	private int builtShards;
+	private int liveShards;
+	private int peakLiveShards;
+
+	@Before
+	public void setUp() throws Exception {
+		random = new Random(SEED);
+		hashes = new HashSet<Long>();
+
+		for (int i = 0; i < NUMBER_OF_BASE_HASHES; i++) {
+			long base = random.nextLong();
+			hashes.add(base);
+
+			for (int j = 0; j < NEIGHBOURS_PER_HASH; j++) {
+				hashes.add(flipRandomBits(base, random.nextInt(MAX_FLIPPED_BITS + 1)));
+			}
+		}
+
+		cut = new PartitionedSearchIndex(SHARDS);
+		cut.build(hashes);
+
+		bkTree = new BKTreeSearchIndex();
+		bkTree.build(hashes);
+	}
+
+	private long flipRandomBits(long hash, int bits) {
+		long flipped = hash;
+
+		for (int i = 0; i < bits; i++) {
+			flipped ^= 1L << random.nextInt(Long.SIZE);
+		}
+
+		return flipped;
+	}
+
+	/**
+	 * Shard index that counts the shards that were built but not yet searched with a batch.
+	 */
+	private class LiveShardIndex extends BKTreeSearchIndex {
+		private boolean searched;
+
+		@Override
+		public void build(Collection<Long> hashes) {
+			super.build(hashes);
+			builtShards++;
+			liveShards++;
+			peakLiveShards = Math.max(peakLiveShards, liveShards);
+		}
+
+		@Override
+		public Map<Long, Set<Long>> searchWithin(long[] probes, long hammingDistance) {
+			Map<Long, Set<Long>> result = super.searchWithin(probes, hammingDistance);
+
+			if (!searched) {
+				searched = true;
+				liveShards--;
+			}
+
+			return result;
+		}
+	}
+
+	private void assertSameAsBkTree(SearchIndex index) {
+		Long[] all = hashes.toArray(new Long[0]);
+
+		for (int i = 0; i < NUMBER_OF_QUERIES; i++) {
+			long query = flipRandomBits(all[random.nextInt(all.length)], random.nextInt(MAX_FLIPPED_BITS));
+
+			for (int distance = 0; distance <= MAX_DISTANCE; distance++) {
+				assertThat(index.searchWithin(query, distance), is(bkTree.searchWithin(query, distance)));
+			}
+		}
+	}
+
+	@Test
+	public void testSameResultAsBkTree() throws Exception {
+		assertSameAsBkTree(cut);
+	}
+
+	@Test
+	public void testSingleShardSameResultAsBkTree() throws Exception {
+		cut = new PartitionedSearchIndex(1);
+		cut.build(hashes);
+
+		assertSameAsBkTree(cut);
+	}
+
+	@Test
+	public void testMultiIndexShardsSameResultAsBkTree() throws Exception {
+		cut = new PartitionedSearchIndex(SHARDS, MultiIndexSearchIndex::new);
+		cut.build(hashes);
+
+		assertSameAsBkTree(cut);
+	}
+
+	@Test
+	public void testSortedHashesSameResultAsBkTree() throws Exception {
+		List<Long> sorted = new ArrayList<Long>(hashes);
+		Collections.sort(sorted);
+		cut.build(sorted);
+
+		assertSameAsBkTree(cut);
+	}
+
+	@Test
+	public void testInterleavedShardsInList() throws Exception {
+		cut.build(Arrays.asList(HASH_A, HASH_C, HASH_B));
+
+		assertThat(cut.searchWithin(HASH_A, 1), containsInAnyOrder(HASH_A, HASH_B, HASH_C));
+	}
+
+	@Test
+	public void testInterleavedShardsSizes() throws Exception {
+		cut.build(Arrays.asList(HASH_A, HASH_C, HASH_B));
+
+		assertThat(cut.getShardSize(0), is(2));
+	}
+
+	@Test
+	public void testBatchSameResultAsBkTree() throws Exception {
+		cut = new PartitionedSearchIndex(SHARDS, MultiIndexSearchIndex::new);
+		cut.build(hashes);
+		long[] queries = Longs.toArray(hashes);
+
+		for (int distance = 0; distance <= MAX_DISTANCE; distance += 4) {
+			Map<Long, Set<Long>> matches = cut.searchWithin(queries, distance);
+
+			for (long query : queries) {
+				assertThat(matches.get(query), is(bkTree.searchWithin(query, distance)));
+			}
+		}
+	}
+
+	@Test
+	public void testBatchMatchAcrossShards() throws Exception {
+		cut.build(Arrays.asList(HASH_A, HASH_C));
+
+		assertThat(cut.searchWithin(new long[] { HASH_A }, 1).get(HASH_A), containsInAnyOrder(HASH_A, HASH_C));
+	}
+
+	@Test
+	public void testMatchAcrossShards() throws Exception {
+		cut.build(Arrays.asList(HASH_A, HASH_C));
+
+		assertThat(cut.searchWithin(HASH_A, 1), containsInAnyOrder(HASH_A, HASH_C));
+	}
+
+	@Test
+	public void testExactMatch() throws Exception {
+		cut.build(Arrays.asList(HASH_A, HASH_B, HASH_C));
+
+		assertThat(cut.searchWithin(HASH_B, 0), containsInAnyOrder(HASH_B));
+	}
+
+	@Test
+	public void testEmptyIndex() throws Exception {
+		cut.build(new HashSet<Long>());
+
+		assertThat(cut.searchWithin(HASH_A, MAX_DISTANCE), is(empty()));
+	}
+
+	@Test
+	public void testNegativeDistance() throws Exception {
+		assertThat(cut.searchWithin(HASH_A, -1), is(empty()));
+	}
+
+	@Test
+	public void testShardOfLeadingBits() throws Exception {
+		assertThat(cut.shardOf(HASH_C), is(SHARDS / 2));
+	}
+
+	@Test
+	public void testReachableShardsExact() throws Exception {
+		assertThat(cut.reachableShards(HASH_A, 0), containsInAnyOrder(0));
+	}
+
+	@Test
+	public void testReachableShardsOneBit() throws Exception {
+		assertThat(cut.reachableShards(HASH_A, 1), containsInAnyOrder(0, 1, 2, 4, 8));
+	}
+
+	@Test
+	public void testReachableShardsAll() throws Exception {
+		assertThat(cut.reachableShards(HASH_A, MAX_DISTANCE), hasSize(SHARDS));
+	}
+
+	@Test
+	public void testShardSizes() throws Exception {
+		int total = 0;
+
+		for (int shard = 0; shard < cut.getShardCount(); shard++) {
+			total += cut.getShardSize(shard);
+		}
+
+		assertThat(total, is(hashes.size()));
+	}
+
+	@Test
+	public void testBatchBuildsOneShardAtATime() throws Exception {
+		cut = new PartitionedSearchIndex(SHARDS, LiveShardIndex::new);
+		cut.build(hashes);
+
+		cut.searchWithin(Longs.toArray(hashes), MAX_DISTANCE);
+
+		assertThat(peakLiveShards, is(1));
+	}
+
+	@Test
+	public void testBatchBuildsEveryShard() throws Exception {
+		cut = new PartitionedSearchIndex(SHARDS, LiveShardIndex::new);
+		cut.build(hashes);
+
+		cut.searchWithin(Longs.toArray(hashes), MAX_DISTANCE);
+
+		assertThat(builtShards, is(SHARDS));
+	}
+
+	@Test
+	public void testBatchReleasesShards() throws Exception {
+		cut.searchWithin(Longs.toArray(hashes), MAX_DISTANCE);
+
+		assertThat(cut.getBuiltShardCount(), is(0));
+	}
+
+	@Test
+	public void testSingleSearchKeepsShards() throws Exception {
+		cut.searchWithin(HASH_A, MAX_DISTANCE);
+
+		assertThat(cut.getBuiltShardCount(), is(SHARDS));
+	}
+
+	@Test
+	public void testBuildReleasesShards() throws Exception {
+		cut.searchWithin(HASH_A, MAX_DISTANCE);
+
+		cut.build(hashes);
+
+		assertThat(cut.getBuiltShardCount(), is(0));
+	}
+
+	@Test
+	public void testBatchUsesShardsOfSingleSearch() throws Exception {
+		cut = new PartitionedSearchIndex(SHARDS, LiveShardIndex::new);
+		cut.build(hashes);
+		cut.searchWithin(HASH_A, MAX_DISTANCE);
+
+		cut.searchWithin(Longs.toArray(hashes), MAX_DISTANCE);
+
+		assertThat(builtShards, is(SHARDS));
+	}
+
+	@Test
+	public void testSingleBatch() throws Exception {
+		assertThat(cut.isSingleBatch(), is(true));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testShardsNotPowerOfTwo() throws Exception {
+		new PartitionedSearchIndex(3);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTooManyShards() throws Exception {
+		new PartitionedSearchIndex(PartitionedSearchIndex.MAX_SHARDS * 2);
+	}
+}
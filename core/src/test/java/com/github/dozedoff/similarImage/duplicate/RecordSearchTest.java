@@ -17,17 +17,22 @@
  */
 package com.github.dozedoff.similarImage.duplicate;
 
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
 
 import org.junit.After;
 import org.junit.Before;
@@ -36,6 +41,7 @@ import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.util.TaskProgress;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.MultimapBuilder;
 import com.google.common.jimfs.Jimfs;
@@ -162,10 +168,219 @@ public class RecordSearchTest {
 		assertThat(result.containsKey(1L), is(true));
 	}
 
+	@Test
+	public void testDistanceMatchHashesRadius1() throws Exception {
+		assertThat(cut.distanceMatchHashes(2L, 1L), containsInAnyOrder(2L, 3L, 6L));
+	}
+
+	@Test
+	public void testGroupsUsedForQueries() throws Exception {
+		assertThat(cut.getGroups().get(6L), containsInAnyOrder(records.get(6L).toArray()));
+	}
+
+	@Test
+	public void testExactMatch() throws Exception {
+		assertThat(cut.exactMatch(), containsInAnyOrder(2L, 3L, 6L));
+	}
+
 	@Test
 	public void testSortingEmptyCollection() throws Exception {
 		cut.build(Collections.emptyList());
 
 		assertThat(cut.exactMatch(), is(empty()));
 	}
+
+	@Test
+	public void testBuildFromGroups() throws Exception {
+		HashGroups groups = HashGroups.group(dbRecords);
+		cut = new RecordSearch();
+
+		cut.build(groups);
+
+		assertThat(cut.distanceMatch(6L, 0L).get(6L).size(), is(3));
+	}
+
+	@Test
+	public void testBuildFromGroupsUsesGroups() throws Exception {
+		HashGroups groups = HashGroups.group(dbRecords);
+		cut = new RecordSearch();
+
+		cut.build(groups);
+
+		assertThat(cut.getGroups(), is(sameInstance(groups)));
+	}
+
+	@Test
+	public void testBuildFromGroupedRecordsUsesGroups() throws Exception {
+		HashGroups groups = HashGroups.group(dbRecords);
+		cut = new RecordSearch();
+
+		cut.build(groups.records());
+
+		assertThat(cut.getGroups(), is(sameInstance(groups)));
+	}
+
+	@Test
+	public void testDistanceMatchHashesByDistanceKeys() throws Exception {
+		assertThat(cut.distanceMatchHashesByDistance(2L, 2L, RecordSearch.UNLIMITED_RECORDS).keySet(),
+				contains(0, 1, 2));
+	}
+
+	@Test
+	public void testDistanceMatchHashesByDistanceExact() throws Exception {
+		assertThat(cut.distanceMatchHashesByDistance(2L, 2L, RecordSearch.UNLIMITED_RECORDS).get(0), contains(2L));
+	}
+
+	@Test
+	public void testDistanceMatchHashesByDistanceRadius1() throws Exception {
+		assertThat(cut.distanceMatchHashesByDistance(2L, 2L, RecordSearch.UNLIMITED_RECORDS).get(1),
+				containsInAnyOrder(3L, 6L));
+	}
+
+	@Test
+	public void testDistanceMatchHashesByDistanceRadius2() throws Exception {
+		assertThat(cut.distanceMatchHashesByDistance(2L, 2L, RecordSearch.UNLIMITED_RECORDS).get(2), contains(1L));
+	}
+
+	@Test
+	public void testDistanceMatchHashesByDistanceStopsAtLimit() throws Exception {
+		assertThat(cut.distanceMatchHashesByDistance(2L, 2L, 2).keySet(), contains(0));
+	}
+
+	@Test
+	public void testDistanceMatchHashesByDistanceLimitWithinDistance() throws Exception {
+		assertThat(cut.distanceMatchHashesByDistance(2L, 2L, 3).values().size(), is(2));
+	}
+
+	@Test
+	public void testDistanceMatchHashesByDistanceLimitNotReached() throws Exception {
+		assertThat(cut.distanceMatchHashesByDistance(2L, 2L, 100).values().size(), is(4));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDistanceMatchHashesByDistanceInvalidLimit() throws Exception {
+		cut.distanceMatchHashesByDistance(2L, 2L, 0);
+	}
+
+	@Test
+	public void testNearestHashesExactMatchFirst() throws Exception {
+		assertThat(cut.nearestHashes(2L, 1), contains(2L));
+	}
+
+	@Test
+	public void testNearestHashesFurthestLast() throws Exception {
+		assertThat(cut.nearestHashes(2L, 4).get(3), is(1L));
+	}
+
+	@Test
+	public void testNearestHashesAfterRebuild() throws Exception {
+		cut.nearestHashes(2L, 1);
+		cut.build(Collections.singletonList(new ImageRecord("foo", 42L)));
+
+		assertThat(cut.nearestHashes(2L, 1), contains(42L));
+	}
+
+	@Test
+	public void testBatchDistinctProbes() throws Exception {
+		assertThat(cut.distanceMatchHashes(Arrays.asList(2L, 2L, 3L), 1).keySet(), containsInAnyOrder(2L, 3L));
+	}
+
+	@Test
+	public void testBatchMatches() throws Exception {
+		assertThat(cut.distanceMatchHashes(Arrays.asList(2L, 3L), 1).get(3L), containsInAnyOrder(1L, 2L, 3L));
+	}
+
+	@Test
+	public void testBatchProbeNotInRecords() throws Exception {
+		assertThat(cut.distanceMatchHashes(Arrays.asList(7L), 1).get(7L), containsInAnyOrder(3L, 6L));
+	}
+
+	@Test
+	public void testBatchExactMatch() throws Exception {
+		assertThat(cut.distanceMatchHashes(Arrays.asList(2L), 0).get(2L), containsInAnyOrder(2L));
+	}
+
+	@Test
+	public void testBatchExactNoMatch() throws Exception {
+		assertThat(cut.distanceMatchHashes(Arrays.asList(7L), 0).get(7L), is(empty()));
+	}
+
+	@Test(expected = CancellationException.class)
+	public void testBatchCancelled() throws Exception {
+		TaskProgress progress = new TaskProgress();
+		progress.cancel();
+
+		cut.distanceMatchHashes(Arrays.asList(2L, 3L), 1, progress);
+	}
+
+	private RecordSearch buildWithDegenerateFilter() {
+		RecordSearch rs = new RecordSearch(new BKTreeSearchIndex(), new DegenerateHashFilter(1, 2));
+		dbRecords.add(new ImageRecord("blank", 0L));
+		dbRecords.add(new ImageRecord("white", -1L));
+		rs.build(dbRecords);
+
+		return rs;
+	}
+
+	@Test
+	public void testDegenerateHashesNotSearched() throws Exception {
+		assertThat(buildWithDegenerateFilter().distanceMatchHashes(0L, 1L), containsInAnyOrder(1L, 2L));
+	}
+
+	@Test
+	public void testDegenerateGroups() throws Exception {
+		assertThat(buildWithDegenerateFilter().getDegenerateGroups().hashes(), contains(-1L, 0L, 6L));
+	}
+
+	@Test
+	public void testDegenerateGroupsExcludedFromGroups() throws Exception {
+		assertThat(buildWithDegenerateFilter().getGroups().hashes(), contains(1L, 2L, 3L));
+	}
+
+	@Test
+	public void testDegenerateHashesMatchedExactly() throws Exception {
+		RecordSearch rs = new RecordSearch(new BKTreeSearchIndex(), new DegenerateHashFilter(1, 2));
+		dbRecords.add(new ImageRecord("blank", 0L));
+		rs.buildExact(dbRecords, new TaskProgress());
+
+		assertThat(rs.distanceMatchHashes(0L, 0), containsInAnyOrder(0L));
+	}
+
+	@Test
+	public void testNoDegenerateGroupsForExactMatches() throws Exception {
+		RecordSearch rs = new RecordSearch(new BKTreeSearchIndex(), new DegenerateHashFilter(1, 2));
+		dbRecords.add(new ImageRecord("blank", 0L));
+		rs.buildExact(dbRecords, new TaskProgress());
+
+		assertThat(rs.getDegenerateGroups().isEmpty(), is(true));
+	}
+
+	@Test
+	public void testNoDegenerateGroupsWithoutFilter() throws Exception {
+		assertThat(cut.getDegenerateGroups().isEmpty(), is(true));
+	}
+
+	@Test
+	public void testBuildExactGroups() throws Exception {
+		cut = new RecordSearch();
+		cut.buildExact(dbRecords, new TaskProgress());
+
+		assertThat(cut.getGroups().hashes(), contains(1L, 2L, 3L, 6L));
+	}
+
+	@Test
+	public void testBuildExactMatch() throws Exception {
+		cut = new RecordSearch();
+		cut.buildExact(dbRecords, new TaskProgress());
+
+		assertThat(cut.distanceMatchHashes(2L, 0L), containsInAnyOrder(2L));
+	}
+
+	@Test
+	public void testBuildExactNoIndex() throws Exception {
+		cut = new RecordSearch();
+		cut.buildExact(dbRecords, new TaskProgress());
+
+		assertThat(cut.distanceMatchHashes(2L, 1L), is(empty()));
+	}
 }
@@ -0,0 +1,106 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.duplicate;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+
+public class UniqueGroupsTest {
+	private ImageRecord imageA;
+	private ImageRecord imageB;
+	private ImageRecord imageC;
+
+	private UniqueGroups cut;
+
+	@Before
+	public void setUp() throws Exception {
+		imageA = new ImageRecord("a", 1L);
+		imageB = new ImageRecord("b", 2L);
+		imageC = new ImageRecord("c", 3L);
+
+		cut = new UniqueGroups();
+	}
+
+	@Test
+	public void testAddNewGroup() throws Exception {
+		assertThat(cut.add(Arrays.asList(imageA, imageB)), is(true));
+	}
+
+	@Test
+	public void testAddSameGroup() throws Exception {
+		cut.add(Arrays.asList(imageA, imageB));
+
+		assertThat(cut.add(Arrays.asList(imageA, imageB)), is(false));
+	}
+
+	@Test
+	public void testAddSameGroupDifferentOrder() throws Exception {
+		cut.add(Arrays.asList(imageA, imageB));
+
+		assertThat(cut.add(Arrays.asList(imageB, imageA)), is(false));
+	}
+
+	@Test
+	public void testAddSameGroupDifferentCollection() throws Exception {
+		List<ImageRecord> group = Arrays.asList(imageA, imageB);
+		cut.add(group);
+
+		assertThat(cut.add(new HashSet<>(group)), is(false));
+	}
+
+	@Test
+	public void testAddLargeSameGroupDifferentOrder() throws Exception {
+		List<ImageRecord> group = new ArrayList<>();
+
+		for (int i = 0; i < 10000; i++) {
+			group.add(new ImageRecord(Integer.toString(i), i));
+		}
+
+		cut.add(group);
+		List<ImageRecord> reversed = new ArrayList<>(group);
+		Collections.reverse(reversed);
+
+		assertThat(cut.add(reversed), is(false));
+	}
+
+	@Test
+	public void testAddSubset() throws Exception {
+		cut.add(Arrays.asList(imageA, imageB, imageC));
+
+		assertThat(cut.add(Arrays.asList(imageA, imageB)), is(true));
+	}
+
+	@Test
+	public void testNoCollisions() throws Exception {
+		cut.add(Arrays.asList(imageA, imageB));
+		cut.add(Arrays.asList(imageA, imageC));
+
+		assertThat(cut.getFingerprintCollisions(), is(0L));
+	}
+}
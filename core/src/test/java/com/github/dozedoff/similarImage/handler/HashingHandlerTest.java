@@ -20,27 +20,41 @@ package com.github.dozedoff.similarImage.handler;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import com.github.dozedoff.commonj.hash.ImagePHash;
 import com.github.dozedoff.similarImage.db.repository.ImageRepository;
+import com.github.dozedoff.similarImage.image.AverageHash;
 import com.github.dozedoff.similarImage.io.HashAttribute;
 import com.github.dozedoff.similarImage.io.Statistics;
+import com.github.dozedoff.similarImage.thread.HashPipeline;
 import com.github.dozedoff.similarImage.thread.ImageHashJob;
+import com.github.dozedoff.similarImage.thread.MultiHashJob;
 
 @RunWith(MockitoJUnitRunner.class)
 public class HashingHandlerTest {
+	private static final long VERIFY_TIMEOUT = 2000;
+
 	@Mock
 	private HashAttribute hashAttribute;
 
@@ -56,6 +70,9 @@ public class HashingHandlerTest {
 	@Mock
 	private ExecutorService threadPool;
 
+	@Mock
+	private HashPipeline pipeline;
+
 	@InjectMocks
 	private HashingHandler cut;
 
@@ -77,4 +94,136 @@ public class HashingHandlerTest {
 
 		verify(threadPool).execute(any(ImageHashJob.class));
 	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidMaxQueuedJobs() throws Exception {
+		cut.setMaxQueuedJobs(0);
+	}
+
+	@Test
+	public void testBoundedJobIsExecuted() throws Exception {
+		cut.setMaxQueuedJobs(1);
+
+		assertThat(cut.handle(testPath), is(true));
+
+		verify(threadPool).execute(any(Runnable.class));
+	}
+
+	@Test
+	public void testBoundedJobIsQueued() throws Exception {
+		cut.setMaxQueuedJobs(1);
+
+		cut.handle(testPath);
+
+		verify(statistics).incrementQueuedJobs();
+	}
+
+	@Test
+	public void testBoundedJobFinishedIsDequeued() throws Exception {
+		cut.setMaxQueuedJobs(1);
+		cut.handle(testPath);
+
+		capturedJob().run();
+
+		verify(statistics).decrementQueuedJobs();
+	}
+
+	@Test
+	public void testBoundedInterruptedWhileFull() throws Exception {
+		cut.setMaxQueuedJobs(1);
+		cut.handle(testPath);
+
+		Thread.currentThread().interrupt();
+
+		try {
+			assertThat(cut.handle(testPath), is(false));
+		} finally {
+			Thread.interrupted();
+		}
+	}
+
+	@Test
+	public void testBoundedBlocksUntilJobFinishes() throws Exception {
+		cut.setMaxQueuedJobs(1);
+		cut.handle(testPath);
+
+		Thread blocked = new Thread(() -> cut.handle(testPath));
+		blocked.start();
+		capturedJob().run();
+		blocked.join(VERIFY_TIMEOUT);
+
+		verify(threadPool, times(2)).execute(any(Runnable.class));
+	}
+
+	@Test
+	public void testBoundedWaitTimeRecorded() throws Exception {
+		cut.setMaxQueuedJobs(1);
+		cut.handle(testPath);
+
+		Thread blocked = new Thread(() -> cut.handle(testPath));
+		blocked.start();
+		awaitWaiting(blocked);
+		capturedJob().run();
+
+		verify(statistics, timeout(VERIFY_TIMEOUT)).addSubmitWait(anyLong());
+	}
+
+	@Test
+	public void testBoundedRejectedIsDequeued() throws Exception {
+		cut.setMaxQueuedJobs(1);
+		doThrow(new RejectedExecutionException("testing")).when(threadPool).execute(any(Runnable.class));
+
+		try {
+			cut.handle(testPath);
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+
+		verify(statistics).decrementQueuedJobs();
+	}
+
+	@Test
+	public void testAdditionalHashUsesMultiHashJob() throws Exception {
+		cut.addHash(hashAttribute, new AverageHash());
+
+		cut.handle(testPath);
+
+		assertThat(capturedJob() instanceof MultiHashJob, is(true));
+	}
+
+	@Test
+	public void testPipelineUsed() throws Exception {
+		when(pipeline.submit(testPath)).thenReturn(new CompletableFuture<Void>());
+		cut.setPipeline(pipeline);
+
+		cut.handle(testPath);
+
+		verify(pipeline).submit(testPath);
+		verify(threadPool, never()).execute(any(Runnable.class));
+	}
+
+	@Test
+	public void testBoundedPipelineDequeuedOnCompletion() throws Exception {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		when(pipeline.submit(testPath)).thenReturn(future);
+		cut.setPipeline(pipeline);
+		cut.setMaxQueuedJobs(1);
+		cut.handle(testPath);
+
+		future.complete(null);
+
+		verify(statistics).decrementQueuedJobs();
+	}
+
+	private void awaitWaiting(Thread thread) throws InterruptedException {
+		while (thread.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+	}
+
+	private Runnable capturedJob() {
+		ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+		verify(threadPool).execute(captor.capture());
+		return captor.getValue();
+	}
 }
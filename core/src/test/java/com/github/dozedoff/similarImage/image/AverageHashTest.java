@@ -0,0 +1,74 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.image;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.nio.file.Paths;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AverageHashTest {
+	private static final int IMAGE_SIZE = 64;
+
+	private AverageHash cut;
+
+	@Before
+	public void setUp() throws Exception {
+		cut = new AverageHash();
+	}
+
+	@Test
+	public void testUniformImage() throws Exception {
+		BufferedImage image = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB);
+
+		assertThat(cut.hash(image), is(0L));
+	}
+
+	@Test
+	public void testLeftHalfBright() throws Exception {
+		BufferedImage image = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		graphics.setColor(Color.WHITE);
+		graphics.fillRect(0, 0, IMAGE_SIZE / 2, IMAGE_SIZE);
+		graphics.dispose();
+
+		assertThat(cut.hash(image), is(0xF0F0F0F0F0F0F0F0L));
+	}
+
+	@Test
+	public void testScaledImageSameHash() throws Exception {
+		BufferedImage image = ImageIO.read(
+				Paths.get(Thread.currentThread().getContextClassLoader().getResource("testImage.jpg").toURI())
+						.toFile());
+		BufferedImage scaled = new BufferedImage(image.getWidth() / 3, image.getHeight() / 3,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = scaled.createGraphics();
+		graphics.drawImage(image, 0, 0, scaled.getWidth(), scaled.getHeight(), null);
+		graphics.dispose();
+
+		assertThat(cut.hash(scaled), is(cut.hash(image)));
+	}
+}
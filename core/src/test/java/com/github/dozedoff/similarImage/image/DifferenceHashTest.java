@@ -0,0 +1,76 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.image;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DifferenceHashTest {
+	private static final int WIDTH = 90;
+	private static final int HEIGHT = 80;
+
+	private DifferenceHash cut;
+
+	@Before
+	public void setUp() throws Exception {
+		cut = new DifferenceHash();
+	}
+
+	private BufferedImage gradient(boolean darkening) {
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+
+		for (int x = 0; x < WIDTH; x++) {
+			int value = x * 255 / (WIDTH - 1);
+
+			if (darkening) {
+				value = 255 - value;
+			}
+
+			int rgb = new Color(value, value, value).getRGB();
+
+			for (int y = 0; y < HEIGHT; y++) {
+				image.setRGB(x, y, rgb);
+			}
+		}
+
+		return image;
+	}
+
+	@Test
+	public void testUniformImage() throws Exception {
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+
+		assertThat(cut.hash(image), is(0L));
+	}
+
+	@Test
+	public void testDarkeningGradient() throws Exception {
+		assertThat(cut.hash(gradient(true)), is(-1L));
+	}
+
+	@Test
+	public void testBrighteningGradient() throws Exception {
+		assertThat(cut.hash(gradient(false)), is(0L));
+	}
+}
@@ -7,6 +7,8 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -129,4 +131,53 @@ public class StatisticsTest {
 
 		verifyZeroInteractions(listener);
 	}
+
+	@Test
+	public void testIncrementQueuedJobsCounter() throws Exception {
+		cut.incrementQueuedJobs();
+
+		assertThat(cut.getQueuedJobs(), is(1));
+	}
+
+	@Test
+	public void testDecrementQueuedJobsCounter() throws Exception {
+		cut.incrementQueuedJobs();
+		cut.incrementQueuedJobs();
+
+		cut.decrementQueuedJobs();
+
+		assertThat(cut.getQueuedJobs(), is(1));
+	}
+
+	@Test
+	public void testDecrementQueuedJobsEvent() throws Exception {
+		cut.incrementQueuedJobs();
+		cut.decrementQueuedJobs();
+
+		verify(listener).statisticsChangedEvent(eq(StatisticsEvent.QUEUED_JOBS), eq(0));
+	}
+
+	@Test
+	public void testAddSubmitWait() throws Exception {
+		cut.addSubmitWait(TimeUnit.MILLISECONDS.toNanos(3));
+		cut.addSubmitWait(TimeUnit.MILLISECONDS.toNanos(2));
+
+		assertThat(cut.getSubmitWait(TimeUnit.MILLISECONDS), is(5L));
+	}
+
+	@Test
+	public void testAddSubmitWaitEvent() throws Exception {
+		cut.addSubmitWait(TimeUnit.MILLISECONDS.toNanos(3));
+
+		verify(listener).statisticsChangedEvent(eq(StatisticsEvent.SUBMIT_WAIT), eq(3));
+	}
+
+	@Test
+	public void testResetSubmitWait() throws Exception {
+		cut.addSubmitWait(TimeUnit.MILLISECONDS.toNanos(3));
+
+		cut.reset();
+
+		assertThat(cut.getSubmitWait(TimeUnit.MILLISECONDS), is(0L));
+	}
 }
@@ -21,12 +21,14 @@ import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.hasItems;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.Matchers.contains;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -86,6 +88,35 @@ public class ResultGroupTest {
 		assertThat(cut.getResults(), hasItems(resultA, new Result(cut, recordB)));
 	}
 
+	@Test
+	public void testResultDistance() throws Exception {
+		assertThat(cut.getResults().get(0).getDistance(), is(0));
+	}
+
+	@Test
+	public void testResultsOrderedByDistance() throws Exception {
+		ImageRecord far = new ImageRecord("far", HASH ^ 0b111);
+		ImageRecord near = new ImageRecord("near", HASH ^ 0b1);
+
+		cut = new ResultGroup(parent, HASH, Arrays.asList(far, recordA, near));
+
+		assertThat(cut.getResults(), contains(new Result(cut, recordA), new Result(cut, near), new Result(cut, far)));
+	}
+
+	@Test
+	public void testMaxDistance() throws Exception {
+		cut = new ResultGroup(parent, HASH, Arrays.asList(recordA, new ImageRecord("far", HASH ^ 0b111)));
+
+		assertThat(cut.getMaxDistance(), is(3));
+	}
+
+	@Test
+	public void testMaxDistanceEmptyGroup() throws Exception {
+		cut = new ResultGroup(parent, HASH, Collections.emptyList());
+
+		assertThat(cut.getMaxDistance(), is(0));
+	}
+
 	@Test
 	public void testRemove() throws Exception {
 		assertThat(cut.remove(resultA), is(true));
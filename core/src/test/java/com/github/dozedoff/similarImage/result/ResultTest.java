@@ -57,6 +57,16 @@ public class ResultTest {
 		assertThat(cut.getImageRecord(), is(imageRecord));
 	}
 
+	@Test
+	public void testDistanceFromParentHash() throws Exception {
+		assertThat(cut.getDistance(), is(Long.bitCount(HASH)));
+	}
+
+	@Test
+	public void testGivenDistance() throws Exception {
+		assertThat(new Result(parentGroup, imageRecord, 7).getDistance(), is(7));
+	}
+
 	@Test
 	public void testRemoveResult() throws Exception {
 		cut.remove();
@@ -66,7 +76,7 @@ public class ResultTest {
 
 	@Test
 	public void testHashAndEquals() throws Exception {
-		EqualsVerifier.forClass(Result.class).allFieldsShouldBeUsedExcept("parentGroup").verify();
+		EqualsVerifier.forClass(Result.class).allFieldsShouldBeUsedExcept("parentGroup", "distance").verify();
 	}
 
 	@Test
@@ -0,0 +1,246 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.dozedoff.commonj.hash.ImagePHash;
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.db.repository.ImageRepository;
+import com.github.dozedoff.similarImage.db.repository.RepositoryException;
+import com.github.dozedoff.similarImage.io.HashAttribute;
+import com.github.dozedoff.similarImage.io.Statistics;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HashPipelineTest {
+	private static final long HASH = 42L;
+	private static final long TIMEOUT = 5;
+	private static final int BLOCKED_FILES = 30;
+
+	@Mock
+	private ImageRepository imageRepository;
+
+	@Mock
+	private ImagePHash hasher;
+
+	@Mock
+	private Statistics statistics;
+
+	@Mock
+	private HashAttribute hashAttribute;
+
+	private MetricRegistry metrics;
+
+	private HashPipeline cut;
+
+	private static Path testImage;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		testImage = Paths.get(Thread.currentThread().getContextClassLoader().getResource("testImage.jpg").toURI());
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		when(hasher.getLongHash(any(BufferedImage.class))).thenReturn(HASH);
+		when(hasher.getLongHash(any(InputStream.class))).thenReturn(HASH);
+		metrics = new MetricRegistry();
+
+		cut = new HashPipeline(hasher, imageRepository, statistics, hashAttribute, 2, 1, 1, metrics);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		cut.shutdown(TIMEOUT, TimeUnit.SECONDS);
+	}
+
+	private void hash(Path file) throws Exception {
+		cut.submit(file).get(TIMEOUT, TimeUnit.SECONDS);
+	}
+
+	private int queueCapacity(String stage) {
+		return cut.getThreads(stage) * HashPipeline.QUEUED_FILES_PER_THREAD;
+	}
+
+	private void awaitQueueDepth(String stage, int depth) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+
+		while (cut.getQueueDepth(stage) < depth && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidThreads() throws Exception {
+		new HashPipeline(hasher, imageRepository, statistics, hashAttribute, 1, 0, 1, metrics);
+	}
+
+	@Test
+	public void testStageThreads() throws Exception {
+		assertThat(cut.getThreads(HashPipeline.STAGE_READ), is(2));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownStage() throws Exception {
+		cut.getQueueDepth("foo");
+	}
+
+	@Test
+	public void testQueueDepthIdle() throws Exception {
+		assertThat(cut.getQueueDepth(HashPipeline.STAGE_HASH), is(0));
+	}
+
+	@Test
+	public void testHashStored() throws Exception {
+		hash(testImage);
+
+		verify(imageRepository).store(new ImageRecord(testImage.toString(), HASH));
+	}
+
+	@Test
+	public void testStreamHashByDefault() throws Exception {
+		hash(testImage);
+
+		verify(hasher, never()).getLongHash(any(BufferedImage.class));
+	}
+
+	@Test
+	public void testSubsampledDecode() throws Exception {
+		cut.setSubsampled(true);
+
+		hash(testImage);
+
+		verify(hasher).getLongHash(any(BufferedImage.class));
+		verify(hasher, never()).getLongHash(any(InputStream.class));
+	}
+
+	@Test
+	public void testExtendedAttributeWritten() throws Exception {
+		hash(testImage);
+
+		verify(hashAttribute).writeHash(testImage, HASH);
+	}
+
+	@Test
+	public void testProcessedCounted() throws Exception {
+		hash(testImage);
+
+		verify(statistics).incrementProcessedFiles();
+	}
+
+	@Test
+	public void testMissingFileFailed() throws Exception {
+		hash(Paths.get("foo.jpg"));
+
+		verify(statistics).incrementFailedFiles();
+		verify(imageRepository, never()).store(any(ImageRecord.class));
+	}
+
+	@Test
+	public void testRepositoryErrorFailed() throws Exception {
+		doThrow(new RepositoryException("testing")).when(imageRepository).store(any(ImageRecord.class));
+
+		hash(testImage);
+
+		verify(statistics).incrementFailedFiles();
+		verify(hashAttribute, never()).writeHash(testImage, HASH);
+	}
+
+	@Test
+	public void testStageTimesRecorded() throws Exception {
+		hash(testImage);
+
+		assertThat(metrics.timer(MetricRegistry.name(HashPipeline.class, HashPipeline.STAGE_READ,
+				HashPipeline.METRIC_TIME)).getCount(), is(1L));
+		assertThat(metrics.timer(MetricRegistry.name(HashPipeline.class, HashPipeline.STAGE_HASH,
+				HashPipeline.METRIC_TIME)).getCount(), is(1L));
+		assertThat(metrics.timer(MetricRegistry.name(HashPipeline.class, HashPipeline.STAGE_PERSIST,
+				HashPipeline.METRIC_TIME)).getCount(), is(1L));
+	}
+
+	@Test
+	public void testQueueDepthRecorded() throws Exception {
+		hash(testImage);
+
+		assertThat(metrics.histogram(MetricRegistry.name(HashPipeline.class, HashPipeline.STAGE_HASH,
+				HashPipeline.METRIC_QUEUE)).getCount(), is(1L));
+	}
+
+	@Test
+	public void testShutdownTerminates() throws Exception {
+		cut.submit(testImage);
+
+		assertThat(cut.shutdown(TIMEOUT, TimeUnit.SECONDS), is(true));
+		verify(imageRepository).store(new ImageRecord(testImage.toString(), HASH));
+	}
+
+	@Test
+	public void testSlowHashBlocksRead() throws Exception {
+		CountDownLatch hashRelease = new CountDownLatch(1);
+		when(hasher.getLongHash(any(InputStream.class))).thenAnswer(invocation -> {
+			hashRelease.await();
+			return HASH;
+		});
+
+		Thread submitter = new Thread(() -> {
+			for (int i = 0; i < BLOCKED_FILES; i++) {
+				cut.submit(testImage);
+			}
+		});
+		submitter.start();
+
+		awaitQueueDepth(HashPipeline.STAGE_HASH, queueCapacity(HashPipeline.STAGE_HASH));
+		awaitQueueDepth(HashPipeline.STAGE_READ, queueCapacity(HashPipeline.STAGE_READ));
+		int maxReads = cut.getThreads(HashPipeline.STAGE_HASH) + queueCapacity(HashPipeline.STAGE_HASH)
+				+ cut.getThreads(HashPipeline.STAGE_READ);
+
+		assertThat(cut.getQueueDepth(HashPipeline.STAGE_HASH), is(queueCapacity(HashPipeline.STAGE_HASH)));
+		verify(statistics, atMost(maxReads)).incrementProcessedFiles();
+		assertThat(submitter.isAlive(), is(true));
+
+		hashRelease.countDown();
+		submitter.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+		cut.shutdown(TIMEOUT, TimeUnit.SECONDS);
+
+		verify(imageRepository, times(BLOCKED_FILES)).store(any(ImageRecord.class));
+	}
+}
@@ -21,6 +21,8 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
@@ -101,4 +103,21 @@ public class ImageHashJobTest {
 
 		verify(hashAttributeMock, never()).writeHash(testImage, 0);
 	}
+
+	@Test
+	public void testStreamHashByDefault() throws Exception {
+		imageLoadJob.run();
+
+		verify(phw).getLongHash(any(InputStream.class));
+		verify(phw, never()).getLongHash(any(BufferedImage.class));
+	}
+
+	@Test
+	public void testSubsampledDecode() throws Exception {
+		imageLoadJob.setSubsampled(true);
+		imageLoadJob.run();
+
+		verify(phw).getLongHash(any(BufferedImage.class));
+		verify(phw, never()).getLongHash(any(InputStream.class));
+	}
 }
@@ -0,0 +1,194 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.github.dozedoff.commonj.hash.ImagePHash;
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.db.repository.ImageRepository;
+import com.github.dozedoff.similarImage.db.repository.RepositoryException;
+import com.github.dozedoff.similarImage.image.ImageHasher;
+import com.github.dozedoff.similarImage.io.HashAttribute;
+import com.github.dozedoff.similarImage.io.Statistics;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MultiHashJobTest {
+	private static final long HASH = 42L;
+	private static final long AVERAGE_HASH = 7L;
+	private static final long DIFFERENCE_HASH = 9L;
+	private static final long STREAM_HASH = 11L;
+
+	@Mock
+	private ImageRepository imageRepository;
+
+	@Mock
+	private ImagePHash phw;
+
+	@Mock
+	private Statistics statistics;
+
+	@Mock
+	private HashAttribute hashAttribute;
+
+	@Mock
+	private HashAttribute averageAttribute;
+
+	@Mock
+	private HashAttribute differenceAttribute;
+
+	@Mock
+	private ImageHasher averageHasher;
+
+	@Mock
+	private ImageHasher differenceHasher;
+
+	private MultiHashJob cut;
+
+	private static Path testImage;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		testImage = Paths.get(Thread.currentThread().getContextClassLoader().getResource("testImage.jpg").toURI());
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		when(phw.getLongHash(any(BufferedImage.class))).thenReturn(HASH);
+		when(phw.getLongHash(any(InputStream.class))).thenReturn(STREAM_HASH);
+		when(averageHasher.hash(any(BufferedImage.class))).thenReturn(AVERAGE_HASH);
+		when(differenceHasher.hash(any(BufferedImage.class))).thenReturn(DIFFERENCE_HASH);
+
+		cut = new MultiHashJob(testImage, phw, imageRepository, statistics);
+		cut.setHashAttribute(hashAttribute);
+		cut.addHash(averageAttribute, averageHasher);
+		cut.addHash(differenceAttribute, differenceHasher);
+	}
+
+	@Test
+	public void testHashStored() throws Exception {
+		cut.run();
+
+		verify(imageRepository).store(new ImageRecord(testImage.toString(), HASH));
+	}
+
+	@Test
+	public void testHashAttributeWritten() throws Exception {
+		cut.run();
+
+		verify(hashAttribute).writeHash(testImage, HASH);
+	}
+
+	@Test
+	public void testAdditionalHashesWritten() throws Exception {
+		cut.run();
+
+		verify(averageAttribute).writeHash(testImage, AVERAGE_HASH);
+		verify(differenceAttribute).writeHash(testImage, DIFFERENCE_HASH);
+	}
+
+	@Test
+	public void testSingleDecode() throws Exception {
+		cut.run();
+
+		verify(phw, times(1)).getLongHash(any(BufferedImage.class));
+		verify(averageHasher, times(1)).hash(any(BufferedImage.class));
+		verify(differenceHasher, times(1)).hash(any(BufferedImage.class));
+	}
+
+	@Test
+	public void testMissingFileFailed() throws Exception {
+		cut = new MultiHashJob(Paths.get("foo.jpg"), phw, imageRepository, statistics);
+
+		cut.run();
+
+		verify(statistics).incrementFailedFiles();
+	}
+
+	@Test
+	public void testRepositoryErrorSkipsAttributes() throws Exception {
+		doThrow(new RepositoryException("testing")).when(imageRepository).store(any(ImageRecord.class));
+
+		cut.run();
+
+		verify(statistics).incrementFailedFiles();
+		verify(averageAttribute, never()).writeHash(any(Path.class), anyLong());
+	}
+
+	@Test
+	public void testSubsampledHashStored() throws Exception {
+		cut.setSubsampled(true);
+
+		cut.run();
+
+		verify(imageRepository).store(new ImageRecord(testImage.toString(), HASH));
+		verify(averageAttribute).writeHash(testImage, AVERAGE_HASH);
+	}
+
+	@Test
+	public void testNoReaderStreamHashStored() throws Exception {
+		Path noReader = createNoReaderFile();
+		cut = new MultiHashJob(noReader, phw, imageRepository, statistics);
+		cut.setHashAttribute(hashAttribute);
+		cut.addHash(averageAttribute, averageHasher);
+
+		cut.run();
+
+		verify(imageRepository).store(new ImageRecord(noReader.toString(), STREAM_HASH));
+		verify(hashAttribute).writeHash(noReader, STREAM_HASH);
+	}
+
+	@Test
+	public void testNoReaderSkipsAdditionalHashes() throws Exception {
+		Path noReader = createNoReaderFile();
+		cut = new MultiHashJob(noReader, phw, imageRepository, statistics);
+		cut.addHash(averageAttribute, averageHasher);
+
+		cut.run();
+
+		verify(averageAttribute, never()).writeHash(any(Path.class), anyLong());
+		verify(statistics, never()).incrementFailedFiles();
+	}
+
+	private Path createNoReaderFile() throws Exception {
+		Path file = Files.createTempFile(MultiHashJobTest.class.getSimpleName(), ".jpg");
+		file.toFile().deleteOnExit();
+		Files.write(file, new byte[] { 1, 2, 3 });
+
+		return file;
+	}
+}
@@ -106,4 +106,9 @@ public class TagFilterTest {
 	public void testMatchingTagSecondImageNotIncluded() throws Exception {
 		assertThat(cut.getFilterMatches(recordSearch, TAG, DISTANCE).get(1L), not(hasItem(image2)));
 	}
+
+	@Test
+	public void testMatchingTagWithinDistance() throws Exception {
+		assertThat(cut.getFilterMatches(recordSearch, TAG, 2).get(1L), hasItem(image2));
+	}
 }
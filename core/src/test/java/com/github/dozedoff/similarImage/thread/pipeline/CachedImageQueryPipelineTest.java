@@ -0,0 +1,137 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.github.dozedoff.similarImage.db.ImageChangeLog;
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.db.repository.IgnoreRepository;
+import com.github.dozedoff.similarImage.util.TaskProgress;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.MultimapBuilder;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CachedImageQueryPipelineTest {
+	private static final String CONFIGURATION = "foo";
+
+	@Mock
+	private Function<Path, List<ImageRecord>> imageQueryStage;
+
+	@Mock
+	private GroupImagesStage grouper;
+
+	@Mock
+	private Function<Multimap<Long, ImageRecord>, Multimap<Long, ImageRecord>> postProcessingStage;
+
+	@Mock
+	private IgnoreRepository ignoreRepository;
+
+	@Mock
+	private List<ImageRecord> images;
+
+	private Multimap<Long, ImageRecord> groups;
+	private ImageQueryResultCache resultCache;
+	private Path scope;
+
+	private CachedImageQueryPipeline cut;
+
+	@Before
+	public void setUp() throws Exception {
+		scope = Paths.get("bar");
+		groups = MultimapBuilder.hashKeys().hashSetValues().build();
+		groups.put(1L, new ImageRecord("a", 1L));
+
+		when(imageQueryStage.apply(any())).thenReturn(images);
+		when(grouper.apply(eq(images), any(TaskProgress.class))).thenReturn(groups);
+		when(postProcessingStage.apply(groups)).thenReturn(groups);
+
+		resultCache = new ImageQueryResultCache(new ImageChangeLog(), ignoreRepository);
+
+		cut = new CachedImageQueryPipeline(imageQueryStage, grouper, Arrays.asList(postProcessingStage),
+				new PipelineMetrics(CachedImageQueryPipeline.class), resultCache, CONFIGURATION, false);
+	}
+
+	@Test
+	public void testQueryExecuted() throws Exception {
+		cut.apply(scope);
+
+		verify(imageQueryStage).apply(scope);
+	}
+
+	@Test
+	public void testResult() throws Exception {
+		assertThat(cut.apply(scope), is(groups));
+	}
+
+	@Test
+	public void testSecondQueryCached() throws Exception {
+		cut.apply(scope);
+		cut.apply(scope);
+
+		verify(imageQueryStage, times(1)).apply(scope);
+	}
+
+	@Test
+	public void testCachedResult() throws Exception {
+		cut.apply(scope);
+
+		assertThat(cut.apply(scope).size(), is(1));
+	}
+
+	@Test
+	public void testFailedRunFinished() throws Exception {
+		when(postProcessingStage.apply(groups)).thenThrow(new IllegalStateException("test"));
+
+		try {
+			cut.apply(scope);
+		} catch (IllegalStateException e) {
+		}
+
+		assertThat(cut.getMetrics().getLastRun(), hasSize(2));
+	}
+
+	@Test
+	public void testGetConfiguration() throws Exception {
+		assertThat(cut.getConfiguration(), is(CONFIGURATION));
+	}
+
+	@Test
+	public void testGetResultCache() throws Exception {
+		assertThat(cut.getResultCache(), is(resultCache));
+	}
+}
@@ -0,0 +1,162 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+import com.google.common.collect.Multimap;
+
+public class ClusterImagesStageTest {
+	private static final long HASH_A = 0b000;
+	private static final long HASH_B = 0b001;
+	private static final long HASH_C = 0b011;
+	private static final long HASH_D = 0b111;
+	private static final long HASH_FAR = 0xFF00;
+	private static final int DISTANCE = 1;
+
+	private ClusterImagesStage cut;
+
+	private ImageRecord imageA;
+	private ImageRecord imageB;
+	private ImageRecord imageB2;
+	private ImageRecord imageC;
+	private ImageRecord imageD;
+	private ImageRecord imageFar;
+
+	private List<ImageRecord> images;
+
+	private ImageRecord createImage(String path, long hash) {
+		return new ImageRecord(path, hash);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		imageA = createImage("a", HASH_A);
+		imageB = createImage("b", HASH_B);
+		imageB2 = createImage("b2", HASH_B);
+		imageC = createImage("c", HASH_C);
+		imageD = createImage("d", HASH_D);
+		imageFar = createImage("far", HASH_FAR);
+
+		images = Arrays.asList(imageD, imageC, imageB, imageB2, imageA, imageFar);
+
+		cut = new ClusterImagesStage(DISTANCE, new RecordSearch());
+	}
+
+	@Test
+	public void testChainIsOneCluster() throws Exception {
+		assertThat(cut.apply(images).get(HASH_A), containsInAnyOrder(imageA, imageB, imageB2, imageC, imageD));
+	}
+
+	@Test
+	public void testClustersAreDisjoint() throws Exception {
+		Multimap<Long, ImageRecord> result = cut.apply(images);
+
+		assertThat(result.size(), is(images.size()));
+	}
+
+	@Test
+	public void testUnlinkedHashIsSeparateCluster() throws Exception {
+		assertThat(cut.apply(images).get(HASH_FAR), containsInAnyOrder(imageFar));
+	}
+
+	@Test
+	public void testNumberOfClusters() throws Exception {
+		assertThat(cut.apply(images).keySet().size(), is(2));
+	}
+
+	@Test
+	public void testExactMatchOnly() throws Exception {
+		cut = new ClusterImagesStage(0, new RecordSearch());
+
+		assertThat(cut.apply(images).get(HASH_B), containsInAnyOrder(imageB, imageB2));
+	}
+
+	@Test
+	public void testMaxDiameterSplitsChain() throws Exception {
+		cut = new ClusterImagesStage(DISTANCE, new RecordSearch(), 1);
+
+		Multimap<Long, ImageRecord> result = cut.apply(images);
+
+		assertThat(result.get(HASH_A), containsInAnyOrder(imageA, imageB, imageB2));
+		assertThat(result.get(HASH_C), containsInAnyOrder(imageC, imageD));
+	}
+
+	@Test
+	public void testMaxDiameterRejectedLinks() throws Exception {
+		cut = new ClusterImagesStage(DISTANCE, new RecordSearch(), 1);
+
+		cut.apply(images);
+
+		assertThat(cut.getRejectedLinks(), is(1L));
+	}
+
+	@Test
+	public void testLargeMaxDiameterKeepsChain() throws Exception {
+		cut = new ClusterImagesStage(DISTANCE, new RecordSearch(), 3);
+
+		assertThat(cut.apply(images).get(HASH_A), containsInAnyOrder(imageA, imageB, imageB2, imageC, imageD));
+	}
+
+	@Test
+	public void testMaxDiameterNotExceeded() throws Exception {
+		List<ImageRecord> dense = new ArrayList<>();
+
+		for (long hash = 0; hash < 256; hash++) {
+			dense.add(createImage(Long.toString(hash), hash));
+		}
+
+		cut = new ClusterImagesStage(DISTANCE, new RecordSearch(), 2);
+
+		for (Collection<ImageRecord> cluster : cut.apply(dense).asMap().values()) {
+			for (ImageRecord a : cluster) {
+				for (ImageRecord b : cluster) {
+					assertThat(Long.bitCount(a.getpHash() ^ b.getpHash()), is(lessThanOrEqualTo(2)));
+				}
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeMaxDiameter() throws Exception {
+		new ClusterImagesStage(DISTANCE, new RecordSearch(), -1);
+	}
+
+	@Test
+	public void testNoDiameterLimit() throws Exception {
+		assertThat(cut.getMaxDiameter(), is(-1));
+	}
+
+	@Test
+	public void testGetHammingDistance() throws Exception {
+		assertThat(cut.getHammingDistance(), is(DISTANCE));
+	}
+}
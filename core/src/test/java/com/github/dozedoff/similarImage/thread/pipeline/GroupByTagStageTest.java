@@ -22,8 +22,10 @@ import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -36,6 +38,11 @@ import com.github.dozedoff.similarImage.db.ImageRecord;
 import com.github.dozedoff.similarImage.db.Tag;
 import com.github.dozedoff.similarImage.db.repository.FilterRepository;
 import com.github.dozedoff.similarImage.db.repository.RepositoryException;
+import com.github.dozedoff.similarImage.duplicate.DegenerateHashFilter;
+import com.github.dozedoff.similarImage.duplicate.HashGroups;
+import com.github.dozedoff.similarImage.duplicate.MultiIndexSearchIndex;
+import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+import com.github.dozedoff.similarImage.thread.pipeline.GroupByTagStage.Strategy;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Multimap;
 
@@ -96,4 +103,140 @@ public class GroupByTagStageTest {
 
 		assertThat(cut.apply(images), is(EMPTY_MAP));
 	}
+
+	@Test
+	public void testIndexTagsGroupedByTag() throws Exception {
+		cut = new GroupByTagStage(filterRepository, TAG, 0, new RecordSearch(), Strategy.INDEX_TAGS);
+
+		assertThat(cut.apply(images).get(HASH_A), containsInAnyOrder(imageA));
+	}
+
+	@Test
+	public void testIndexTagsWithDistance() throws Exception {
+		cut = new GroupByTagStage(filterRepository, TAG, 1, new RecordSearch(), Strategy.INDEX_TAGS);
+
+		assertThat(cut.apply(images).get(HASH_A), containsInAnyOrder(imageA, imageB));
+	}
+
+	@Test
+	public void testIndexTagsRepositoryError() throws Exception {
+		when(filterRepository.getByTag(TAG)).thenThrow(new RepositoryException(""));
+		cut = new GroupByTagStage(filterRepository, TAG, 0, new RecordSearch(), Strategy.INDEX_TAGS);
+
+		assertThat(cut.apply(images), is(EMPTY_MAP));
+	}
+
+	@Test
+	public void testAutoIndexesImagesForFewImages() throws Exception {
+		cut.apply(images);
+
+		assertThat(cut.getLastStrategy(), is(Strategy.INDEX_IMAGES));
+	}
+
+	@Test
+	public void testAutoIndexesTagsForManyImages() throws Exception {
+		List<ImageRecord> manyImages = new ArrayList<>();
+
+		for (int i = 0; i < GroupByTagStage.IMAGES_PER_TAG_HASH; i++) {
+			manyImages.add(createImage(i));
+		}
+
+		cut.apply(manyImages);
+
+		assertThat(cut.getLastStrategy(), is(Strategy.INDEX_TAGS));
+	}
+
+	@Test
+	public void testStrategiesSameResult() throws Exception {
+		Random random = new Random(42);
+		List<ImageRecord> manyImages = new ArrayList<>();
+		List<FilterRecord> filters = new ArrayList<>();
+
+		for (int i = 0; i < 20; i++) {
+			long tagHash = random.nextLong();
+			filters.add(new FilterRecord(tagHash, TAG));
+
+			for (int j = 0; j < 10; j++) {
+				manyImages.add(createImage(tagHash ^ (1L << random.nextInt(Long.SIZE)) ^ (1L << j)));
+			}
+		}
+
+		filters.add(new FilterRecord(HASH_A, TAG));
+		manyImages.add(imageA);
+		manyImages.add(imageB);
+
+		when(filterRepository.getByTag(TAG)).thenReturn(filters);
+
+		Multimap<Long, ImageRecord> indexImages = newStrategyStage(Strategy.INDEX_IMAGES, 2).apply(manyImages);
+		Multimap<Long, ImageRecord> indexTags = newStrategyStage(Strategy.INDEX_TAGS, 2).apply(manyImages);
+
+		assertThat(indexImages.get(HASH_A), containsInAnyOrder(imageA));
+		assertThat(indexTags, is(indexImages));
+	}
+
+	@Test
+	public void testIndexImagesDegenerateGroups() throws Exception {
+		cut = newStrategyStage(Strategy.INDEX_IMAGES, 1);
+		cut.apply(images);
+
+		assertThat(cut.getDegenerateGroups().get(HASH_A), containsInAnyOrder(imageA));
+	}
+
+	@Test
+	public void testIndexTagsDegenerateGroups() throws Exception {
+		cut = newStrategyStage(Strategy.INDEX_TAGS, 1);
+		cut.apply(images);
+
+		assertThat(cut.getDegenerateGroups().get(HASH_A), containsInAnyOrder(imageA));
+	}
+
+	@Test
+	public void testIndexImagesDegenerateMatchedExactly() throws Exception {
+		cut = newStrategyStage(Strategy.INDEX_IMAGES, 0);
+
+		assertThat(cut.apply(images).get(HASH_A), containsInAnyOrder(imageA));
+		assertThat(cut.getDegenerateGroups().isEmpty(), is(true));
+	}
+
+	@Test
+	public void testIndexTagsDegenerateMatchedExactly() throws Exception {
+		cut = newStrategyStage(Strategy.INDEX_TAGS, 0);
+
+		assertThat(cut.apply(images).get(HASH_A), containsInAnyOrder(imageA));
+		assertThat(cut.getDegenerateGroups().isEmpty(), is(true));
+	}
+
+	@Test
+	public void testIndexImagesDegenerateOnlyMatchedExactly() throws Exception {
+		cut = newStrategyStage(Strategy.INDEX_IMAGES, 1);
+
+		assertThat(cut.apply(images).get(HASH_A), containsInAnyOrder(imageA));
+	}
+
+	@Test
+	public void testIndexTagsDegenerateOnlyMatchedExactly() throws Exception {
+		cut = newStrategyStage(Strategy.INDEX_TAGS, 1);
+
+		assertThat(cut.apply(images).get(HASH_A), containsInAnyOrder(imageA));
+	}
+
+	@Test
+	public void testIndexTagsGroupedRecords() throws Exception {
+		cut = new GroupByTagStage(filterRepository, TAG, 1, new RecordSearch(), Strategy.INDEX_TAGS);
+
+		assertThat(cut.apply(HashGroups.group(images).records()).get(HASH_A), containsInAnyOrder(imageA, imageB));
+	}
+
+	private GroupByTagStage newStrategyStage(Strategy strategy, int hammingDistance) {
+		DegenerateHashFilter degenerateFilter = new DegenerateHashFilter();
+
+		return new GroupByTagStage(filterRepository, TAG, hammingDistance,
+				new RecordSearch(new MultiIndexSearchIndex(), degenerateFilter), strategy, MultiIndexSearchIndex::new,
+				degenerateFilter);
+	}
+
+	@Test
+	public void testDefaultStrategy() throws Exception {
+		assertThat(cut.getStrategy(), is(Strategy.AUTO));
+	}
 }
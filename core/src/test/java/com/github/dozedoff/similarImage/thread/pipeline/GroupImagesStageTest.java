@@ -20,21 +20,36 @@ package com.github.dozedoff.similarImage.thread.pipeline;
 import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.hasItems;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.Matchers.hasSize;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+import com.github.dozedoff.similarImage.duplicate.SearchIndex;
+import com.github.dozedoff.similarImage.util.TaskProgress;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.MultimapBuilder;
 
 public class GroupImagesStageTest {
 	private static final long HASH_A = 0;
 	private static final long HASH_B = 1;
 	private static final int DISTANCE = 42;
+	private static final int PARALLELISM = 4;
+	private static final int NUMBER_OF_RANDOM_IMAGES = 5000;
 
 	private GroupImagesStage cut;
 
@@ -87,4 +102,196 @@ public class GroupImagesStageTest {
 	public void testDefaultDistance() throws Exception {
 		assertThat(cut.getHammingDistance(), is(0));
 	}
+
+	@Test
+	public void testSkippedQueries() throws Exception {
+		cut.apply(Arrays.asList(imageA, imageB, new ImageRecord("2", HASH_B), new ImageRecord("3", HASH_B)));
+
+		assertThat(cut.getSkippedQueries(), is(2L));
+	}
+
+	@Test
+	public void testSharedHashGroupedTogether() throws Exception {
+		ImageRecord imageD = new ImageRecord("2", HASH_B);
+
+		assertThat(cut.apply(Arrays.asList(imageA, imageB, imageD)).get(HASH_B), hasItems(imageB, imageD));
+	}
+
+	@Test
+	public void testDefaultParallelism() throws Exception {
+		assertThat(cut.getParallelism(), is(1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidParallelism() throws Exception {
+		new GroupImagesStage(0, new RecordSearch(), 0);
+	}
+
+	@Test
+	public void testParallelHammingDistance() throws Exception {
+		cut = new GroupImagesStage(1, new RecordSearch(), PARALLELISM);
+
+		assertThat(cut.apply(images).get(HASH_B), hasItems(imageA, imageB));
+	}
+
+	@Test
+	public void testParallelMatchesSequential() throws Exception {
+		Random random = new Random(42);
+		List<ImageRecord> randomImages = new ArrayList<ImageRecord>();
+
+		for (int i = 0; i < NUMBER_OF_RANDOM_IMAGES; i++) {
+			randomImages.add(new ImageRecord(String.valueOf(i), random.nextInt(4096)));
+		}
+
+		GroupImagesStage sequential = new GroupImagesStage(2, new RecordSearch(), 1);
+		GroupImagesStage parallel = new GroupImagesStage(2, new RecordSearch(), PARALLELISM);
+
+		assertThat(parallel.apply(randomImages), is(sequential.apply(randomImages)));
+	}
+
+	@Test
+	public void testDefaultMaxMatchesPerGroup() throws Exception {
+		assertThat(cut.getMaxMatchesPerGroup(), is(RecordSearch.UNLIMITED_RECORDS));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidMaxMatchesPerGroup() throws Exception {
+		new GroupImagesStage(0, new RecordSearch(), 1, 0);
+	}
+
+	@Test
+	public void testMaxMatchesPerGroup() throws Exception {
+		cut = new GroupImagesStage(1, new RecordSearch(), 1, 1);
+
+		assertThat(cut.apply(Arrays.asList(imageA, imageB, new ImageRecord("2", HASH_B))).get(HASH_B), hasSize(1));
+	}
+
+	@Test
+	public void testMaxMatchesPerGroupKeepsClosest() throws Exception {
+		cut = new GroupImagesStage(1, new RecordSearch(), 1, 1);
+
+		assertThat(cut.apply(Arrays.asList(imageA, imageB, new ImageRecord("2", HASH_B))).get(HASH_B),
+				not(hasItem(imageA)));
+	}
+
+	@Test
+	public void testMaxMatchesPerGroupIncludesExactMatch() throws Exception {
+		cut = new GroupImagesStage(1, new RecordSearch(), 1, 2);
+
+		assertThat(cut.apply(Arrays.asList(imageA, imageB, new ImageRecord("2", HASH_B))).get(HASH_A),
+				hasItem(imageA));
+	}
+
+	@Test
+	public void testCappedGroups() throws Exception {
+		cut = new GroupImagesStage(1, new RecordSearch(), 1, 2);
+
+		cut.apply(Arrays.asList(imageA, imageB, new ImageRecord("2", HASH_B)));
+
+		assertThat(cut.getCappedGroups(), is(2L));
+	}
+
+	@Test
+	public void testGroupAtLimitIsNotCapped() throws Exception {
+		cut = new GroupImagesStage(1, new RecordSearch(), 1, 3);
+
+		cut.apply(Arrays.asList(imageA, imageB, new ImageRecord("2", HASH_B)));
+
+		assertThat(cut.getCappedGroups(), is(0L));
+	}
+
+	@Test
+	public void testExactGroupAtLimitIsNotCapped() throws Exception {
+		cut = new GroupImagesStage(0, new RecordSearch(), 1, 2);
+
+		cut.apply(Arrays.asList(imageA, imageB, new ImageRecord("2", HASH_B)));
+
+		assertThat(cut.getCappedGroups(), is(0L));
+	}
+
+	@Test
+	public void testNoCappedGroupsWithoutLimit() throws Exception {
+		cut = new GroupImagesStage(1);
+
+		cut.apply(images);
+
+		assertThat(cut.getCappedGroups(), is(0L));
+	}
+
+	@Test
+	public void testMaxMatchesPerGroupDoesNotSearchIndex() throws Exception {
+		SearchIndex searchIndex = mock(SearchIndex.class);
+		cut = new GroupImagesStage(1, new RecordSearch(searchIndex), 1, 1);
+
+		cut.apply(images);
+
+		verify(searchIndex, never()).searchWithin(anyLong(), anyLong());
+	}
+
+	@Test
+	public void testParallelMaxMatchesPerGroup() throws Exception {
+		cut = new GroupImagesStage(1, new RecordSearch(), PARALLELISM, 1);
+
+		assertThat(cut.apply(images).get(HASH_B), hasSize(1));
+	}
+
+	@Test(expected = CancellationException.class)
+	public void testCancelled() throws Exception {
+		TaskProgress progress = new TaskProgress();
+		progress.cancel();
+
+		cut.apply(images, progress);
+	}
+
+	@Test(expected = CancellationException.class)
+	public void testCancelledParallel() throws Exception {
+		cut = new GroupImagesStage(1, new RecordSearch(), PARALLELISM);
+		TaskProgress progress = new TaskProgress();
+		progress.cancel();
+
+		cut.apply(images, progress);
+	}
+
+	@Test
+	public void testGroupingProgressComplete() throws Exception {
+		TaskProgress.Listener listener = mock(TaskProgress.Listener.class);
+
+		cut.apply(images, new TaskProgress(listener));
+
+		verify(listener).progressChanged(GroupImagesStage.STAGE_GROUP, 1.0);
+	}
+
+	@Test
+	public void testExactMatchDoesNotSearchIndex() throws Exception {
+		SearchIndex searchIndex = mock(SearchIndex.class);
+		cut = new GroupImagesStage(0, new RecordSearch(searchIndex));
+
+		cut.apply(images);
+
+		verify(searchIndex, never()).searchWithin(anyLong(), anyLong());
+	}
+
+	@Test
+	public void testExactMatchGroupsByHash() throws Exception {
+		List<ImageRecord> random = new ArrayList<>();
+		Multimap<Long, ImageRecord> expected = MultimapBuilder.hashKeys().hashSetValues().build();
+		Random rand = new Random(42);
+
+		for (int i = 0; i < NUMBER_OF_RANDOM_IMAGES; i++) {
+			ImageRecord image = new ImageRecord(String.valueOf(i), rand.nextInt(100) - 50);
+			random.add(image);
+			expected.put(image.getpHash(), image);
+		}
+
+		assertThat(cut.apply(random), is(expected));
+	}
+
+	@Test
+	public void testExactMatchCapped() throws Exception {
+		cut = new GroupImagesStage(0, new RecordSearch(), 1, 1);
+
+		cut.apply(Arrays.asList(imageA, imageB, new ImageRecord("2", HASH_B)));
+
+		assertThat(cut.getCappedGroups(), is(1L));
+	}
 }
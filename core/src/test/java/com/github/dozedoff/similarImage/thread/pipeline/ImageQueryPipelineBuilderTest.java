@@ -19,9 +19,18 @@ package com.github.dozedoff.similarImage.thread.pipeline;
 
 import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -30,9 +39,16 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.db.LiveImageIndex;
+import com.github.dozedoff.similarImage.db.PersistedHashIndex;
 import com.github.dozedoff.similarImage.db.Tag;
 import com.github.dozedoff.similarImage.db.repository.FilterRepository;
 import com.github.dozedoff.similarImage.db.repository.ImageRepository;
+import com.github.dozedoff.similarImage.duplicate.DegenerateHashFilter;
+import com.github.dozedoff.similarImage.duplicate.MultiIndexSearchIndex;
+import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+import com.github.dozedoff.similarImage.duplicate.SearchIndex;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ImageQueryPipelineBuilderTest {
@@ -44,6 +60,18 @@ public class ImageQueryPipelineBuilderTest {
 	@Mock
 	private FilterRepository filterRepository;
 
+	@Mock
+	private Supplier<SearchIndex> searchIndexSupplier;
+
+	@Mock
+	private PersistedHashIndex persistedHashIndex;
+
+	@Mock
+	private LiveImageIndex liveImageIndex;
+
+	@Mock
+	private ImageQueryResultCache resultCache;
+
 	@InjectMocks
 	private ImageQueryPipelineBuilder imageQueryPipelineBuilder;
 
@@ -126,4 +154,280 @@ public class ImageQueryPipelineBuilderTest {
 
 		verify(imageRepository).getAllWithoutIgnored();
 	}
+
+	@Test
+	public void testSearchIndexUsedForGroupAll() throws Exception {
+		when(searchIndexSupplier.get()).thenReturn(new MultiIndexSearchIndex());
+
+		cut.searchIndex(searchIndexSupplier).groupAll().build();
+
+		verify(searchIndexSupplier).get();
+	}
+
+	@Test
+	public void testSearchIndexUsedForGroupByTag() throws Exception {
+		when(searchIndexSupplier.get()).thenReturn(new MultiIndexSearchIndex());
+
+		cut.searchIndex(searchIndexSupplier).groupByTag(new Tag("")).build();
+
+		verify(searchIndexSupplier).get();
+	}
+
+	@Test
+	public void testParallelSet() throws Exception {
+		ImageQueryPipeline pipeline = cut.parallel(DISTANCE).groupAll().build();
+		GroupImagesStage grouper = (GroupImagesStage) pipeline.getImageGrouper();
+
+		assertThat(grouper.getParallelism(), is(DISTANCE));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParallelInvalidThreads() throws Exception {
+		cut.parallel(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testShardsZero() throws Exception {
+		cut.shards(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testShardsNotPowerOfTwo() throws Exception {
+		cut.shards(3);
+	}
+
+	@Test
+	public void testShardsIndexCreatedOnBuild() throws Exception {
+		cut.searchIndex(searchIndexSupplier).shards(4).groupAll().build();
+
+		verify(searchIndexSupplier, never()).get();
+	}
+
+	@Test
+	public void testDegenerateHashFilterDefault() throws Exception {
+		ImageQueryPipeline pipeline = cut.groupAll().build();
+		GroupImagesStage grouper = (GroupImagesStage) pipeline.getImageGrouper();
+
+		assertThat(grouper.getDegenerateGroups().isEmpty(), is(true));
+	}
+
+	@Test
+	public void testDegenerateHashFilterSet() throws Exception {
+		ImageQueryPipeline pipeline = cut.distance(1).degenerateHashFilter(new DegenerateHashFilter()).groupAll()
+				.build();
+		GroupImagesStage grouper = (GroupImagesStage) pipeline.getImageGrouper();
+		grouper.apply(Arrays.asList(new ImageRecord("blank", 0L)));
+
+		assertThat(grouper.getDegenerateGroups().size(), is(1));
+	}
+
+	@Test
+	public void testDegenerateHashFilterNotUsedForExactMatches() throws Exception {
+		ImageQueryPipeline pipeline = cut.degenerateHashFilter(new DegenerateHashFilter()).groupAll().build();
+		GroupImagesStage grouper = (GroupImagesStage) pipeline.getImageGrouper();
+		grouper.apply(Arrays.asList(new ImageRecord("blank", 0L)));
+
+		assertThat(grouper.getDegenerateGroups().isEmpty(), is(true));
+	}
+
+	@Test
+	public void testDegenerateGroupsOfPipeline() throws Exception {
+		ImageRecord blank = new ImageRecord("blank", 0L);
+		when(imageRepository.getAll()).thenReturn(Arrays.asList(blank));
+		ImageQueryPipeline pipeline = cut.distance(1).degenerateHashFilter(new DegenerateHashFilter()).groupAll()
+				.build();
+
+		assertThat(pipeline.apply(null).isEmpty(), is(true));
+		assertThat(pipeline.getDegenerateGroups().get(0L), containsInAnyOrder(blank));
+	}
+
+	@Test
+	public void testMaxMatchesPerGroupSet() throws Exception {
+		ImageQueryPipeline pipeline = cut.maxMatchesPerGroup(DISTANCE).groupAll().build();
+		GroupImagesStage grouper = (GroupImagesStage) pipeline.getImageGrouper();
+
+		assertThat(grouper.getMaxMatchesPerGroup(), is(DISTANCE));
+	}
+
+	@Test
+	public void testMaxMatchesPerGroupDefault() throws Exception {
+		ImageQueryPipeline pipeline = cut.groupAll().build();
+		GroupImagesStage grouper = (GroupImagesStage) pipeline.getImageGrouper();
+
+		assertThat(grouper.getMaxMatchesPerGroup(), is(RecordSearch.UNLIMITED_RECORDS));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMaxMatchesPerGroupInvalid() throws Exception {
+		cut.maxMatchesPerGroup(0);
+	}
+
+	@Test
+	public void testNotCachedByDefault() throws Exception {
+		assertThat(cut.groupAll().build(), is(not(instanceOf(CachedImageQueryPipeline.class))));
+	}
+
+	@Test
+	public void testResultCacheUsedForGroupAll() throws Exception {
+		assertThat(cut.resultCache(resultCache).groupAll().build(), is(instanceOf(CachedImageQueryPipeline.class)));
+	}
+
+	@Test
+	public void testResultCacheUsedByDefaultGrouping() throws Exception {
+		assertThat(cut.resultCache(resultCache).build(), is(instanceOf(CachedImageQueryPipeline.class)));
+	}
+
+	@Test
+	public void testResultCacheNotUsedForClusters() throws Exception {
+		assertThat(cut.resultCache(resultCache).groupClusters().build(),
+				is(not(instanceOf(CachedImageQueryPipeline.class))));
+	}
+
+	@Test
+	public void testResultCacheNotUsedWithMatchLimit() throws Exception {
+		assertThat(cut.resultCache(resultCache).maxMatchesPerGroup(1).groupAll().build(),
+				is(not(instanceOf(CachedImageQueryPipeline.class))));
+	}
+
+	@Test
+	public void testResultCacheNotUsedWithDegenerateFilter() throws Exception {
+		assertThat(cut.resultCache(resultCache).degenerateHashFilter(new DegenerateHashFilter()).groupAll().build(),
+				is(not(instanceOf(CachedImageQueryPipeline.class))));
+	}
+
+	@Test
+	public void testCacheConfigurationContainsDistance() throws Exception {
+		CachedImageQueryPipeline pipeline = (CachedImageQueryPipeline) cut.resultCache(resultCache)
+				.distance(DISTANCE).groupAll().build();
+
+		assertThat(pipeline.getConfiguration(), containsString("distance=" + DISTANCE));
+	}
+
+	@Test
+	public void testCacheConfigurationDiffersByIgnored() throws Exception {
+		CachedImageQueryPipeline included = (CachedImageQueryPipeline) cut.resultCache(resultCache).groupAll()
+				.build();
+		CachedImageQueryPipeline excluded = (CachedImageQueryPipeline) cut.excludeIgnored().build();
+
+		assertThat(included.getConfiguration(), is(not(excluded.getConfiguration())));
+	}
+
+	@Test
+	public void testCacheConfigurationRepeatedStages() throws Exception {
+		CachedImageQueryPipeline once = (CachedImageQueryPipeline) cut.resultCache(resultCache)
+				.removeSingleImageGroups().groupAll().build();
+		CachedImageQueryPipeline twice = (CachedImageQueryPipeline) cut.removeSingleImageGroups().build();
+
+		assertThat(once.getConfiguration(), is(twice.getConfiguration()));
+	}
+
+	@Test
+	public void testNoPersistedIndexByDefault() throws Exception {
+		assertThat(cut.build().getImageQueryStage(), is(instanceOf(ImageQueryStage.class)));
+	}
+
+	@Test
+	public void testPersistedIndexSet() throws Exception {
+		assertThat(cut.persistedIndex(persistedHashIndex).build().getImageQueryStage(),
+				is(instanceOf(PersistedIndexQueryStage.class)));
+	}
+
+	@Test
+	public void testPersistedIndexQueryName() throws Exception {
+		PersistedIndexQueryStage stage = (PersistedIndexQueryStage) cut.persistedIndex(persistedHashIndex).build()
+				.getImageQueryStage();
+
+		assertThat(stage.getQueryName(), is("all"));
+	}
+
+	@Test
+	public void testPersistedIndexQueryNameExcludeIgnored() throws Exception {
+		PersistedIndexQueryStage stage = (PersistedIndexQueryStage) cut.persistedIndex(persistedHashIndex)
+				.excludeIgnored().build().getImageQueryStage();
+
+		assertThat(stage.getQueryName(), is("not-ignored"));
+	}
+
+	@Test
+	public void testPersistedIndexUsesRepositoryIfInvalid() throws Exception {
+		cut.persistedIndex(persistedHashIndex).excludeIgnored().build().apply(null);
+
+		verify(imageRepository).getAllWithoutIgnored();
+	}
+
+	@Test
+	public void testLiveIndexSet() throws Exception {
+		assertThat(cut.liveIndex(liveImageIndex).build().getImageQueryStage(),
+				is(instanceOf(LiveIndexQueryStage.class)));
+	}
+
+	@Test
+	public void testLiveIndexPreferredOverPersistedIndex() throws Exception {
+		assertThat(cut.persistedIndex(persistedHashIndex).liveIndex(liveImageIndex).build().getImageQueryStage(),
+				is(instanceOf(LiveIndexQueryStage.class)));
+	}
+
+	@Test
+	public void testLiveIndexNotUsedIfIgnoredExcluded() throws Exception {
+		cut.liveIndex(liveImageIndex).excludeIgnored().build().apply(null);
+
+		verify(imageRepository).getAllWithoutIgnored();
+	}
+
+	@Test
+	public void testGroupClusters() throws Exception {
+		ImageQueryPipeline pipeline = cut.groupClusters().build();
+
+		assertThat(pipeline.getImageGrouper(), is(instanceOf(ClusterImagesStage.class)));
+	}
+
+	@Test
+	public void testGroupClustersMaxDiameter() throws Exception {
+		ImageQueryPipeline pipeline = cut.groupClusters(DISTANCE).build();
+		ClusterImagesStage grouper = (ClusterImagesStage) pipeline.getImageGrouper();
+
+		assertThat(grouper.getMaxDiameter(), is(DISTANCE));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testGroupClustersNegativeMaxDiameter() throws Exception {
+		cut.groupClusters(-1);
+	}
+
+	@Test
+	public void testGroupSweep() throws Exception {
+		ImageQueryPipeline pipeline = cut.distance(DISTANCE).groupSweep().build();
+		SweepImagesStage grouper = (SweepImagesStage) pipeline.getImageGrouper();
+
+		assertThat(grouper.getHammingDistance(), is(DISTANCE));
+	}
+
+	@Test
+	public void testBuildStreamingDistance() throws Exception {
+		assertThat(cut.distance(DISTANCE).buildStreaming().getHammingDistance(), is(DISTANCE));
+	}
+
+	@Test
+	public void testBuildStreamingGroupFilters() throws Exception {
+		assertThat(cut.removeSingleImageGroups().removeDuplicateGroups().buildStreaming().getGroupFilters(),
+				hasSize(2));
+	}
+
+	@Test
+	public void testBuildStreamingExcludeIgnored() throws Exception {
+		StreamingImageQueryStage stage = (StreamingImageQueryStage) cut.excludeIgnored().buildStreaming()
+				.getImageQueryStage();
+
+		assertThat(stage.isExcludeIgnored(), is(true));
+	}
+
+	@Test
+	public void testBuildNearest() throws Exception {
+		assertThat(cut.buildNearest(DISTANCE).getK(), is(DISTANCE));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBuildNearestInvalidK() throws Exception {
+		cut.buildNearest(0);
+	}
 }
@@ -19,15 +19,22 @@ package com.github.dozedoff.similarImage.thread.pipeline;
 
 import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.hasSize;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.function.Function;
 
 import org.junit.Before;
@@ -37,6 +44,9 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.duplicate.HashGroups;
+import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+import com.github.dozedoff.similarImage.util.TaskProgress;
 import com.google.common.collect.Multimap;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -63,7 +73,7 @@ public class ImageQueryPipelineTest {
 	@Before
 	public void setUp() throws Exception {
 		when(imageQueryStage.apply(any())).thenReturn(images);
-		when(grouper.apply(images)).thenReturn(groups);
+		when(grouper.apply(eq(images), any(TaskProgress.class))).thenReturn(groups);
 		when(postProcessingStageA.apply(groups)).thenReturn(groups);
 		when(postProcessingStageB.apply(groups)).thenReturn(groups);
 
@@ -80,7 +90,7 @@ public class ImageQueryPipelineTest {
 
 	@Test
 	public void testGroupingExecuted() throws Exception {
-		verify(grouper).apply(images);
+		verify(grouper).apply(eq(images), any(TaskProgress.class));
 	}
 	
 	@Test
@@ -107,4 +117,124 @@ public class ImageQueryPipelineTest {
 	public void testGetPostProcessingStages() throws Exception {
 		assertThat(cut.getPostProcessingStages(), hasSize(2));
 	}
+
+	@Test(expected = CancellationException.class)
+	public void testCancelledPipeline() throws Exception {
+		TaskProgress progress = new TaskProgress();
+		progress.cancel();
+
+		cut.apply(null, progress);
+	}
+
+	@Test
+	public void testCancelledPipelineDoesNotGroup() throws Exception {
+		TaskProgress progress = new TaskProgress();
+		progress.cancel();
+
+		try {
+			cut.apply(null, progress);
+		} catch (CancellationException e) {
+		}
+
+		verify(grouper, times(1)).apply(eq(images), any(TaskProgress.class));
+	}
+
+	@Test
+	public void testProgressReported() throws Exception {
+		TaskProgress.Listener listener = mock(TaskProgress.Listener.class);
+
+		cut.apply(null, new TaskProgress(listener));
+
+		verify(listener).progressChanged(ImageQueryPipeline.STAGE_QUERY, 1.0);
+	}
+
+	@Test
+	public void testStagesMeasured() throws Exception {
+		assertThat(cut.getMetrics().getLastRun(), hasSize(4));
+	}
+
+	@Test
+	public void testCancelledRunFinished() throws Exception {
+		TaskProgress progress = new TaskProgress();
+		progress.cancel();
+
+		try {
+			cut.apply(null, progress);
+		} catch (CancellationException e) {
+		}
+
+		assertThat(cut.getMetrics().getLastRun(), is(empty()));
+	}
+
+	@Test
+	public void testFailedRunFinished() throws Exception {
+		when(postProcessingStageB.apply(groups)).thenThrow(new IllegalStateException("test"));
+
+		try {
+			cut.apply(null);
+		} catch (IllegalStateException e) {
+		}
+
+		assertThat(cut.getMetrics().getLastRun(), hasSize(3));
+	}
+
+	@Test
+	public void testQueryStageMeasuredFirst() throws Exception {
+		assertThat(cut.getMetrics().getLastRun().get(0).getStage(), is(ImageQueryPipeline.STAGE_QUERY));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRegroupWithoutSweep() throws Exception {
+		cut.regroup(0);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRegroupBeforeQuery() throws Exception {
+		cut = new ImageQueryPipeline(imageQueryStage, new SweepImagesStage(1, new RecordSearch()),
+				Collections.emptyList());
+
+		cut.regroup(0);
+	}
+
+	@Test
+	public void testRegroupAppliesPostProcessing() throws Exception {
+		ImageRecord image = new ImageRecord("foo", 1L);
+		when(imageQueryStage.apply(any())).thenReturn(Arrays.asList(image, new ImageRecord("bar", 0L)));
+		cut = new ImageQueryPipeline(imageQueryStage, new SweepImagesStage(1, new RecordSearch()),
+				Arrays.asList(new RemoveSingleImageSetStage()));
+		cut.apply(null);
+
+		assertThat(cut.regroup(0).isEmpty(), is(true));
+	}
+
+	@Test
+	public void testRegroupAtSweepDistance() throws Exception {
+		ImageRecord image = new ImageRecord("foo", 1L);
+		when(imageQueryStage.apply(any())).thenReturn(Arrays.asList(image, new ImageRecord("bar", 0L)));
+		cut = new ImageQueryPipeline(imageQueryStage, new SweepImagesStage(1, new RecordSearch()),
+				Arrays.asList(new RemoveSingleImageSetStage()));
+		cut.apply(null);
+
+		assertThat(cut.regroup(1).keySet(), hasSize(2));
+	}
+
+	@Test
+	public void testProcessedDegenerateGroupsApplyPostProcessing() throws Exception {
+		when(grouper.getDegenerateGroups()).thenReturn(
+				HashGroups.group(Arrays.asList(new ImageRecord("foo", 0L), new ImageRecord("bar", -1L),
+						new ImageRecord("baz", -1L))));
+		cut = new ImageQueryPipeline(imageQueryStage, grouper, Arrays.asList(new RemoveSingleImageSetStage()));
+
+		assertThat(cut.getProcessedDegenerateGroups().keySet(), containsInAnyOrder(-1L));
+	}
+
+	@Test
+	public void testProcessedDegenerateGroupsNotMeasured() throws Exception {
+		when(grouper.getDegenerateGroups()).thenReturn(HashGroups.group(Arrays.asList(new ImageRecord("foo", 0L))));
+		when(postProcessingStageA.apply(any())).thenReturn(groups);
+
+		cut.getProcessedDegenerateGroups();
+
+		assertThat(cut.getMetrics().getLastRun(), hasSize(4));
+	}
 }
@@ -0,0 +1,373 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.Function;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import com.github.dozedoff.similarImage.db.IgnoreRecord;
+import com.github.dozedoff.similarImage.db.ImageChangeLog;
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.db.repository.IgnoreRepository;
+import com.github.dozedoff.similarImage.db.repository.RepositoryException;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.MultimapBuilder;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ImageQueryResultCacheTest {
+	private static final String CONFIGURATION = "foo";
+	private static final long HASH_A = 0L;
+	private static final long HASH_B = 1L;
+
+	@Mock
+	private IgnoreRepository ignoreRepository;
+
+	@Mock
+	private Function<Path, Multimap<Long, ImageRecord>> query;
+
+	@Mock
+	private Function<Multimap<Long, ImageRecord>, Multimap<Long, ImageRecord>> postProcessing;
+
+	private ImageChangeLog changeLog;
+	private Path scope;
+
+	private ImageRecord imageA;
+	private ImageRecord imageA2;
+	private ImageRecord imageB;
+
+	private ImageQueryResultCache cut;
+
+	@Before
+	public void setUp() throws Exception {
+		scope = Paths.get("bar");
+		changeLog = new ImageChangeLog();
+
+		imageA = new ImageRecord("a", HASH_A);
+		imageA2 = new ImageRecord("a2", HASH_A);
+		imageB = new ImageRecord("b", HASH_B);
+
+		when(query.apply(any(Path.class))).thenAnswer(new Answer<Multimap<Long, ImageRecord>>() {
+			@Override
+			public Multimap<Long, ImageRecord> answer(InvocationOnMock invocation) throws Throwable {
+				Multimap<Long, ImageRecord> result = MultimapBuilder.hashKeys().hashSetValues().build();
+				result.putAll(HASH_A, Arrays.asList(imageA, imageA2, imageB));
+				result.putAll(HASH_B, Arrays.asList(imageA, imageA2, imageB));
+				return result;
+			}
+		});
+
+		when(postProcessing.apply(any())).thenAnswer(new Answer<Multimap<Long, ImageRecord>>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Multimap<Long, ImageRecord> answer(InvocationOnMock invocation) throws Throwable {
+				return (Multimap<Long, ImageRecord>) invocation.getArguments()[0];
+			}
+		});
+
+		when(ignoreRepository.getAll()).thenReturn(Collections.emptyList());
+
+		cut = new ImageQueryResultCache(changeLog, ignoreRepository);
+	}
+
+	private Multimap<Long, ImageRecord> query() {
+		return query(false);
+	}
+
+	private Multimap<Long, ImageRecord> query(boolean excludeIgnored) {
+		return cut.query(CONFIGURATION, scope, excludeIgnored, query, postProcessing);
+	}
+
+	@Test
+	public void testFirstQueryRuns() throws Exception {
+		query();
+
+		verify(query).apply(scope);
+	}
+
+	@Test
+	public void testFirstQueryIsMiss() throws Exception {
+		query();
+
+		assertThat(cut.getMisses(), is(1L));
+	}
+
+	@Test
+	public void testFirstQueryResult() throws Exception {
+		assertThat(query().get(HASH_A), containsInAnyOrder(imageA, imageA2, imageB));
+	}
+
+	@Test
+	public void testResultCached() throws Exception {
+		query();
+		query();
+
+		verify(query, times(1)).apply(scope);
+	}
+
+	@Test
+	public void testCacheHit() throws Exception {
+		query();
+		query();
+
+		assertThat(cut.getHits(), is(1L));
+	}
+
+	@Test
+	public void testCachedResult() throws Exception {
+		query();
+
+		assertThat(query().get(HASH_B), containsInAnyOrder(imageA, imageA2, imageB));
+	}
+
+	@Test
+	public void testCachedResultIsCopy() throws Exception {
+		query().clear();
+
+		assertThat(query().size(), is(6));
+	}
+
+	@Test
+	public void testDifferentConfigurationNotShared() throws Exception {
+		query();
+		cut.query("baz", scope, false, query, postProcessing);
+
+		verify(query, times(2)).apply(scope);
+	}
+
+	@Test
+	public void testDifferentScopeNotShared() throws Exception {
+		query();
+		cut.query(CONFIGURATION, null, false, query, postProcessing);
+
+		verify(query).apply(null);
+	}
+
+	@Test
+	public void testRemovedImageApplied() throws Exception {
+		query();
+		changeLog.imageRemoved(imageA2);
+
+		assertThat(query().get(HASH_A), containsInAnyOrder(imageA, imageB));
+	}
+
+	@Test
+	public void testRemovedImageNoFullRun() throws Exception {
+		query();
+		changeLog.imageRemoved(imageA2);
+		query();
+
+		verify(query, times(1)).apply(scope);
+	}
+
+	@Test
+	public void testRemovedImageDeltaHit() throws Exception {
+		query();
+		changeLog.imageRemoved(imageA2);
+		query();
+
+		assertThat(cut.getDeltaHits(), is(1L));
+	}
+
+	@Test
+	public void testRemovedImagePostProcessed() throws Exception {
+		query();
+		changeLog.imageRemoved(imageA2);
+		query();
+
+		verify(postProcessing, times(2)).apply(any());
+	}
+
+	@Test
+	public void testNoPostProcessingWithoutChanges() throws Exception {
+		query();
+		query();
+
+		verify(postProcessing, times(1)).apply(any());
+	}
+
+	@Test
+	public void testRemovedImageAfterDuplicatesRemoved() throws Exception {
+		ImageRecord x = new ImageRecord("x", HASH_A);
+		ImageRecord y = new ImageRecord("y", HASH_B);
+		ImageRecord y2 = new ImageRecord("y2", HASH_B);
+
+		Function<Path, Multimap<Long, ImageRecord>> groupQuery = path -> {
+			Multimap<Long, ImageRecord> result = MultimapBuilder.hashKeys().hashSetValues().build();
+			result.putAll(HASH_A, Arrays.asList(x, y, y2));
+			result.putAll(HASH_B, Arrays.asList(x, y, y2));
+			return result;
+		};
+
+		RemoveDuplicateSetStage removeDuplicates = new RemoveDuplicateSetStage();
+
+		assertThat(cut.query(CONFIGURATION, scope, false, groupQuery, removeDuplicates).keySet().size(), is(1));
+
+		changeLog.imageRemoved(x);
+		Multimap<Long, ImageRecord> result = cut.query(CONFIGURATION, scope, false, groupQuery, removeDuplicates);
+
+		assertThat(result.keySet(), containsInAnyOrder(HASH_B));
+		assertThat(result.get(HASH_B), containsInAnyOrder(y, y2));
+	}
+
+	@Test
+	public void testGroupWithoutHashRemoved() throws Exception {
+		query();
+		changeLog.imageRemoved(imageB);
+
+		assertThat(query().containsKey(HASH_B), is(false));
+	}
+
+	@Test
+	public void testDeltaAppliedOnce() throws Exception {
+		query();
+		changeLog.imageRemoved(imageA2);
+		query();
+		query();
+
+		assertThat(cut.getHits(), is(1L));
+	}
+
+	@Test
+	public void testStoredImageRunsQuery() throws Exception {
+		query();
+		changeLog.imageStored(new ImageRecord("c", HASH_A));
+		query();
+
+		verify(query, times(2)).apply(scope);
+	}
+
+	@Test
+	public void testLargeDeltaRunsQuery() throws Exception {
+		cut = new ImageQueryResultCache(changeLog, ignoreRepository, 1, 0);
+		query();
+
+		for (int i = 0; i < 101; i++) {
+			changeLog.imageRemoved(new ImageRecord(String.valueOf(i), HASH_A));
+		}
+
+		query();
+
+		verify(query, times(2)).apply(scope);
+	}
+
+	@Test
+	public void testChangesNotInLogRunsQuery() throws Exception {
+		changeLog = new ImageChangeLog(0);
+		cut = new ImageQueryResultCache(changeLog, ignoreRepository);
+
+		query();
+		changeLog.imageRemoved(imageA2);
+		query();
+
+		verify(query, times(2)).apply(scope);
+	}
+
+	@Test
+	public void testIgnoredImageRemoved() throws Exception {
+		query(true);
+		when(ignoreRepository.getAll()).thenReturn(Arrays.asList(new IgnoreRecord(imageA2)));
+
+		assertThat(query(true).get(HASH_A), containsInAnyOrder(imageA, imageB));
+	}
+
+	@Test
+	public void testIgnoredImageNoFullRun() throws Exception {
+		query(true);
+		when(ignoreRepository.getAll()).thenReturn(Arrays.asList(new IgnoreRecord(imageA2)));
+		query(true);
+
+		verify(query, times(1)).apply(scope);
+	}
+
+	@Test
+	public void testNoLongerIgnoredRunsQuery() throws Exception {
+		when(ignoreRepository.getAll()).thenReturn(Arrays.asList(new IgnoreRecord(imageA2)));
+		query(true);
+		when(ignoreRepository.getAll()).thenReturn(Collections.emptyList());
+		query(true);
+
+		verify(query, times(2)).apply(scope);
+	}
+
+	@Test
+	public void testIgnoredNotCheckedWhenIncluded() throws Exception {
+		query();
+
+		verify(ignoreRepository, never()).getAll();
+	}
+
+	@Test
+	public void testIgnoreFailureBypassesCache() throws Exception {
+		when(ignoreRepository.getAll()).thenThrow(new RepositoryException("test"));
+
+		query(true);
+		query(true);
+
+		verify(query, times(2)).apply(scope);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedDropped() throws Exception {
+		cut = new ImageQueryResultCache(changeLog, ignoreRepository, 1,
+				ImageQueryResultCache.DEFAULT_MAX_DELTA_FRACTION);
+
+		query();
+		cut.query("baz", scope, false, query, postProcessing);
+
+		assertThat(cut.size(), is(1));
+	}
+
+	@Test
+	public void testInvalidate() throws Exception {
+		query();
+		cut.invalidate();
+		query();
+
+		verify(query, times(2)).apply(scope);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidMaxEntries() throws Exception {
+		new ImageQueryResultCache(changeLog, ignoreRepository, 0, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidDeltaFraction() throws Exception {
+		new ImageQueryResultCache(changeLog, ignoreRepository, 1, -1);
+	}
+}
@@ -0,0 +1,89 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.github.dozedoff.similarImage.db.LiveImageIndex;
+import com.github.dozedoff.similarImage.db.repository.RepositoryException;
+import com.github.dozedoff.similarImage.duplicate.HashGroups;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LiveIndexQueryStageTest {
+	private static final Path PATH = Paths.get("foo");
+
+	@Mock
+	private LiveImageIndex liveIndex;
+
+	@InjectMocks
+	private LiveIndexQueryStage cut;
+
+	@Before
+	public void setUp() throws Exception {
+		when(liveIndex.getGroups()).thenReturn(HashGroups.group(Collections.emptyList()));
+	}
+
+	@Test
+	public void testQueryForNull() throws Exception {
+		cut.apply(null);
+
+		verify(liveIndex).getGroups();
+	}
+
+	@Test
+	public void testQueryForEmpty() throws Exception {
+		cut.apply(Paths.get(""));
+
+		verify(liveIndex).getGroups();
+	}
+
+	@Test
+	public void testQueryReturnsGroupedRecords() throws Exception {
+		assertThat(cut.apply(null), is(instanceOf(HashGroups.GroupedRecords.class)));
+	}
+
+	@Test
+	public void testQueryForPath() throws Exception {
+		cut.apply(PATH);
+
+		verify(liveIndex).startsWithPath(PATH);
+	}
+
+	@Test
+	public void testIndexError() throws Exception {
+		when(liveIndex.getGroups()).thenThrow(new RepositoryException(""));
+
+		assertThat(cut.apply(null), is(empty()));
+	}
+}
@@ -0,0 +1,107 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+
+@RunWith(MockitoJUnitRunner.class)
+public class NearestImageQueryTest {
+	private static final int K = 3;
+
+	@Mock
+	private Function<Path, List<ImageRecord>> imageQueryStage;
+
+	private ImageRecord imageA;
+	private ImageRecord imageB;
+	private ImageRecord imageC;
+	private ImageRecord imageD;
+
+	private NearestImageQuery cut;
+
+	@Before
+	public void setUp() throws Exception {
+		imageA = new ImageRecord("a", 0b000L);
+		imageB = new ImageRecord("b", 0b001L);
+		imageC = new ImageRecord("c", 0b011L);
+		imageD = new ImageRecord("d", 0b111L);
+
+		when(imageQueryStage.apply(null)).thenReturn(Arrays.asList(imageD, imageC, imageB, imageA));
+
+		cut = new NearestImageQuery(imageQueryStage, new RecordSearch(), K);
+	}
+
+	@Test
+	public void testNearestImages() throws Exception {
+		assertThat(cut.apply(0L), contains(imageA, imageB, imageC));
+	}
+
+	@Test
+	public void testLimitedToK() throws Exception {
+		when(imageQueryStage.apply(null)).thenReturn(Arrays.asList(imageA, new ImageRecord("a2", 0L),
+				new ImageRecord("a3", 0L), new ImageRecord("a4", 0L)));
+
+		assertThat(cut.apply(0L), hasSize(K));
+	}
+
+	@Test
+	public void testImagesLoadedOnce() throws Exception {
+		cut.apply(0L);
+		cut.apply(1L);
+
+		verify(imageQueryStage, times(1)).apply(null);
+	}
+
+	@Test
+	public void testReload() throws Exception {
+		cut.apply(0L);
+		cut.reload();
+		cut.apply(0L);
+
+		verify(imageQueryStage, times(2)).apply(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidK() throws Exception {
+		new NearestImageQuery(imageQueryStage, new RecordSearch(), 0);
+	}
+
+	@Test
+	public void testGetK() throws Exception {
+		assertThat(cut.getK(), is(K));
+	}
+}
@@ -0,0 +1,152 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.db.PersistedHashIndex;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PersistedIndexQueryStageTest {
+	private static final Path PATH = Paths.get("foo");
+	private static final String QUERY = "all";
+
+	@Mock
+	private Function<Path, List<ImageRecord>> imageQuery;
+
+	@Mock
+	private PersistedHashIndex persistedIndex;
+
+	private List<ImageRecord> records;
+	private List<ImageRecord> persisted;
+
+	private PersistedIndexQueryStage cut;
+
+	@Before
+	public void setUp() throws Exception {
+		records = Collections.singletonList(new ImageRecord("foo", 1L));
+		persisted = Collections.singletonList(new ImageRecord("bar", 2L));
+
+		when(imageQuery.apply(any(Path.class))).thenReturn(records);
+		when(persistedIndex.read(QUERY)).thenReturn(persisted);
+
+		cut = new PersistedIndexQueryStage(imageQuery, persistedIndex, QUERY);
+	}
+
+	@Test
+	public void testQueryForPathIsDelegated() throws Exception {
+		assertThat(cut.apply(PATH), is(records));
+	}
+
+	@Test
+	public void testQueryForPathDoesNotUseIndex() throws Exception {
+		cut.apply(PATH);
+
+		verify(persistedIndex, never()).isValid(anyString());
+	}
+
+	@Test
+	public void testValidIndexIsRead() throws Exception {
+		when(persistedIndex.isValid(QUERY)).thenReturn(true);
+
+		assertThat(cut.apply(null), is(persisted));
+	}
+
+	@Test
+	public void testValidIndexSkipsQuery() throws Exception {
+		when(persistedIndex.isValid(QUERY)).thenReturn(true);
+
+		cut.apply(Paths.get(""));
+
+		verify(imageQuery, never()).apply(any(Path.class));
+	}
+
+	@Test
+	public void testInvalidIndexIsQueried() throws Exception {
+		assertThat(cut.apply(null), is(records));
+	}
+
+	@Test
+	public void testInvalidIndexIsWritten() throws Exception {
+		cut.apply(null);
+
+		verify(persistedIndex).write(eq(QUERY), eq(records), any(PersistedHashIndex.Version.class), eq(true));
+	}
+
+	@Test
+	public void testFilteredQueryIsWrittenIncomplete() throws Exception {
+		cut = new PersistedIndexQueryStage(imageQuery, persistedIndex, QUERY, false);
+
+		cut.apply(null);
+
+		verify(persistedIndex).write(eq(QUERY), eq(records), any(PersistedHashIndex.Version.class), eq(false));
+	}
+
+	@Test
+	public void testEmptyResultIsNotWritten() throws Exception {
+		when(imageQuery.apply(any(Path.class))).thenReturn(Collections.emptyList());
+
+		cut.apply(null);
+
+		verify(persistedIndex, never()).write(anyString(), any(), any(PersistedHashIndex.Version.class),
+				anyBoolean());
+	}
+
+	@Test
+	public void testReadErrorFallsBackToQuery() throws Exception {
+		when(persistedIndex.isValid(QUERY)).thenReturn(true);
+		when(persistedIndex.read(QUERY)).thenThrow(new IOException("test"));
+
+		assertThat(cut.apply(null), is(records));
+	}
+
+	@Test
+	public void testWriteErrorReturnsResult() throws Exception {
+		when(persistedIndex.write(eq(QUERY), eq(records), any(PersistedHashIndex.Version.class), eq(true)))
+				.thenThrow(new IOException("test"));
+
+		assertThat(cut.apply(null), is(records));
+	}
+
+	@Test
+	public void testGetQueryName() throws Exception {
+		assertThat(cut.getQueryName(), is(QUERY));
+	}
+}
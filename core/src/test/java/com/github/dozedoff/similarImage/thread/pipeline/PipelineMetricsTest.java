@@ -0,0 +1,127 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.dozedoff.similarImage.thread.pipeline.PipelineMetrics.Run;
+
+public class PipelineMetricsTest {
+	private static final String STAGE = "stage";
+	private static final List<Integer> RESULT = Arrays.asList(1, 2, 3);
+
+	private MetricRegistry registry;
+	private PipelineMetrics cut;
+
+	@Before
+	public void setUp() throws Exception {
+		registry = new MetricRegistry();
+		cut = new PipelineMetrics(PipelineMetricsTest.class, registry);
+	}
+
+	private List<Integer> measureStage(Run run, long input) {
+		return run.measure(STAGE, input, () -> RESULT, List::size);
+	}
+
+	private String metricName(String metric) {
+		return MetricRegistry.name(PipelineMetricsTest.class, STAGE, metric);
+	}
+
+	@Test
+	public void testMeasureReturnsResult() throws Exception {
+		assertThat(measureStage(cut.startRun(), 5), is(RESULT));
+	}
+
+	@Test
+	public void testNoRunBeforeFinish() throws Exception {
+		measureStage(cut.startRun(), 5);
+
+		assertThat(cut.getLastRun(), is(empty()));
+	}
+
+	@Test
+	public void testLastRunAfterFinish() throws Exception {
+		Run run = cut.startRun();
+		measureStage(run, 5);
+		run.finish();
+
+		assertThat(cut.getLastRun(), hasSize(1));
+	}
+
+	@Test
+	public void testStageInputAndOutput() throws Exception {
+		Run run = cut.startRun();
+		measureStage(run, 5);
+		run.finish();
+
+		assertThat(cut.getLastRun().get(0).getInput(), is(5L));
+		assertThat(cut.getLastRun().get(0).getOutput(), is(3L));
+	}
+
+	@Test
+	public void testTimerUpdated() throws Exception {
+		Run run = cut.startRun();
+		measureStage(run, 5);
+		measureStage(run, 5);
+
+		assertThat(registry.timer(metricName(PipelineMetrics.METRIC_TIME)).getCount(), is(2L));
+	}
+
+	@Test
+	public void testOutputHistogramUpdated() throws Exception {
+		measureStage(cut.startRun(), 5);
+
+		assertThat(registry.histogram(metricName(PipelineMetrics.METRIC_OUTPUT)).getCount(), is(1L));
+	}
+
+	@Test
+	public void testUnknownInputNotRecorded() throws Exception {
+		measureStage(cut.startRun(), PipelineMetrics.UNKNOWN);
+
+		assertThat(registry.histogram(metricName(PipelineMetrics.METRIC_INPUT)).getCount(), is(0L));
+	}
+
+	@Test
+	public void testWithoutRegistry() throws Exception {
+		cut = new PipelineMetrics(PipelineMetricsTest.class);
+		Run run = cut.startRun();
+		measureStage(run, 5);
+		run.finish();
+
+		assertThat(cut.getLastRun(), hasSize(1));
+	}
+
+	@Test
+	public void testSummary() throws Exception {
+		Run run = cut.startRun();
+		run.measure(STAGE, PipelineMetrics.UNKNOWN, () -> RESULT, List::size);
+		run.finish();
+
+		assertThat(cut.getLastRunSummary().matches("stage \\d+ ms \\( -> 3\\)"), is(true));
+	}
+}
@@ -69,4 +69,16 @@ public class RemoveDuplicateSetStageTest {
 	public void testParameterReturned() throws Exception {
 		assertThat(cut.apply(testMap), is(sameInstance(testMap)));
 	}
+
+	@Test
+	public void testRemovedGroups() throws Exception {
+		cut.apply(testMap);
+
+		assertThat(cut.getRemovedGroups(), is(1L));
+	}
+
+	@Test
+	public void testNoRemovedGroupsBeforeRun() throws Exception {
+		assertThat(cut.getRemovedGroups(), is(0L));
+	}
 }
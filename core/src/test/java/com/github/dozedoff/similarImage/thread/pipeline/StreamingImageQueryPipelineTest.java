@@ -0,0 +1,134 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.duplicate.HashGroups;
+import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+import com.github.dozedoff.similarImage.duplicate.UniqueGroups;
+import com.google.common.collect.Multimap;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StreamingImageQueryPipelineTest {
+	private static final long HASH_A = 0;
+	private static final long HASH_B = 1;
+	private static final long HASH_C = 3;
+
+	@Mock
+	private Function<Path, HashGroups> imageQueryStage;
+
+	private ImageRecord imageA;
+	private ImageRecord imageB;
+	private ImageRecord imageB2;
+	private ImageRecord imageC;
+
+	private List<Supplier<Predicate<Collection<ImageRecord>>>> groupFilters;
+
+	private StreamingImageQueryPipeline cut;
+
+	@Before
+	public void setUp() throws Exception {
+		imageA = new ImageRecord("a", HASH_A);
+		imageB = new ImageRecord("b", HASH_B);
+		imageB2 = new ImageRecord("b2", HASH_B);
+		imageC = new ImageRecord("c", HASH_C);
+
+		when(imageQueryStage.apply(null)).thenReturn(HashGroups.group(Arrays.asList(imageA, imageB, imageB2, imageC)));
+
+		groupFilters = new LinkedList<>();
+		cut = new StreamingImageQueryPipeline(imageQueryStage, new RecordSearch(), 0, groupFilters);
+	}
+
+	@Test
+	public void testExactMatchGroups() throws Exception {
+		assertThat(cut.apply(null).get(HASH_B), containsInAnyOrder(imageB, imageB2));
+	}
+
+	@Test
+	public void testAllGroupsWithoutFilters() throws Exception {
+		assertThat(cut.apply(null).keySet().size(), is(3));
+	}
+
+	@Test
+	public void testDistanceMatchGroups() throws Exception {
+		cut = new StreamingImageQueryPipeline(imageQueryStage, new RecordSearch(), 1, groupFilters);
+
+		assertThat(cut.apply(null).get(HASH_B), containsInAnyOrder(imageA, imageB, imageB2, imageC));
+	}
+
+	@Test
+	public void testFilterRemovesGroups() throws Exception {
+		groupFilters.add(() -> group -> group.size() > 1);
+		cut = new StreamingImageQueryPipeline(imageQueryStage, new RecordSearch(), 0, groupFilters);
+
+		Multimap<Long, ImageRecord> result = cut.apply(null);
+
+		assertThat(result.keySet(), containsInAnyOrder(HASH_B));
+	}
+
+	@Test
+	public void testDuplicateGroupsRemoved() throws Exception {
+		groupFilters.add(() -> new UniqueGroups()::add);
+		cut = new StreamingImageQueryPipeline(imageQueryStage, new RecordSearch(), 3, groupFilters);
+
+		assertThat(cut.apply(null).keySet().size(), is(1));
+	}
+
+	@Test
+	public void testFiltersAreCreatedPerQuery() throws Exception {
+		groupFilters.add(() -> new UniqueGroups()::add);
+		cut = new StreamingImageQueryPipeline(imageQueryStage, new RecordSearch(), 3, groupFilters);
+
+		cut.apply(null);
+
+		assertThat(cut.apply(null).keySet().size(), is(1));
+	}
+
+	@Test
+	public void testEmptyQuery() throws Exception {
+		when(imageQueryStage.apply(null)).thenReturn(HashGroups.group(Collections.<ImageRecord> emptyList()));
+
+		assertThat(cut.apply(null).isEmpty(), is(true));
+	}
+
+	@Test
+	public void testGetHammingDistance() throws Exception {
+		assertThat(cut.getHammingDistance(), is(0));
+	}
+}
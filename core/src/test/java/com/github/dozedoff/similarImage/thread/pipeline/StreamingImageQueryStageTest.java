@@ -0,0 +1,133 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.db.repository.ImageRepository;
+import com.github.dozedoff.similarImage.db.repository.RepositoryException;
+import com.j256.ormlite.dao.CloseableIterator;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StreamingImageQueryStageTest {
+	private static final Path PATH = Paths.get("foo");
+
+	@Mock
+	private ImageRepository imageRepository;
+
+	@Mock
+	private CloseableIterator<ImageRecord> iterator;
+
+	private ImageRecord imageA;
+	private ImageRecord imageB;
+
+	private StreamingImageQueryStage cut;
+
+	@Before
+	public void setUp() throws Exception {
+		imageA = new ImageRecord("a", 1L);
+		imageB = new ImageRecord("b", 1L);
+
+		when(iterator.hasNext()).thenReturn(true, true, false);
+		when(iterator.next()).thenReturn(imageA, imageB);
+
+		when(imageRepository.iterateAll()).thenReturn(iterator);
+		when(imageRepository.iterateStartsWithPath(PATH)).thenReturn(iterator);
+		when(imageRepository.iterateAllWithoutIgnored()).thenReturn(iterator);
+		when(imageRepository.iterateAllWithoutIgnored(PATH)).thenReturn(iterator);
+
+		cut = new StreamingImageQueryStage(imageRepository, false);
+	}
+
+	@Test
+	public void testQueryForNull() throws Exception {
+		cut.apply(null);
+
+		verify(imageRepository).iterateAll();
+	}
+
+	@Test
+	public void testQueryForEmpty() throws Exception {
+		cut.apply(Paths.get(""));
+
+		verify(imageRepository).iterateAll();
+	}
+
+	@Test
+	public void testQueryForPath() throws Exception {
+		cut.apply(PATH);
+
+		verify(imageRepository).iterateStartsWithPath(PATH);
+	}
+
+	@Test
+	public void testQueryWithoutIgnored() throws Exception {
+		cut = new StreamingImageQueryStage(imageRepository, true);
+
+		cut.apply(null);
+
+		verify(imageRepository).iterateAllWithoutIgnored();
+	}
+
+	@Test
+	public void testQueryWithoutIgnoredForPath() throws Exception {
+		cut = new StreamingImageQueryStage(imageRepository, true);
+
+		cut.apply(PATH);
+
+		verify(imageRepository).iterateAllWithoutIgnored(PATH);
+	}
+
+	@Test
+	public void testRecordsAreGrouped() throws Exception {
+		assertThat(cut.apply(null).get(1L), containsInAnyOrder(imageA, imageB));
+	}
+
+	@Test
+	public void testIteratorIsClosed() throws Exception {
+		cut.apply(null);
+
+		verify(iterator).close();
+	}
+
+	@Test
+	public void testRepositoryError() throws Exception {
+		when(imageRepository.iterateAll()).thenThrow(new RepositoryException(""));
+
+		assertThat(cut.apply(null).isEmpty(), is(true));
+	}
+
+	@Test
+	public void testIsExcludeIgnored() throws Exception {
+		assertThat(cut.isExcludeIgnored(), is(false));
+	}
+}
@@ -0,0 +1,125 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.thread.pipeline;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.dozedoff.similarImage.db.ImageRecord;
+import com.github.dozedoff.similarImage.duplicate.RecordSearch;
+import com.github.dozedoff.similarImage.util.TaskProgress;
+import com.google.common.collect.Multimap;
+
+public class SweepImagesStageTest {
+	private static final long HASH_A = 0b000;
+	private static final long HASH_B = 0b001;
+	private static final long HASH_C = 0b011;
+	private static final int DISTANCE = 2;
+
+	private SweepImagesStage cut;
+
+	private ImageRecord imageA;
+	private ImageRecord imageA2;
+	private ImageRecord imageB;
+	private ImageRecord imageC;
+
+	private List<ImageRecord> images;
+
+	@Before
+	public void setUp() throws Exception {
+		imageA = new ImageRecord("a", HASH_A);
+		imageA2 = new ImageRecord("a2", HASH_A);
+		imageB = new ImageRecord("b", HASH_B);
+		imageC = new ImageRecord("c", HASH_C);
+
+		images = Arrays.asList(imageA, imageA2, imageB, imageC);
+
+		cut = new SweepImagesStage(DISTANCE, new RecordSearch());
+	}
+
+	@Test
+	public void testGroupsAtHammingDistance() throws Exception {
+		assertThat(cut.apply(images).get(HASH_A), containsInAnyOrder(imageA, imageA2, imageB, imageC));
+	}
+
+	@Test
+	public void testSameAsGroupImagesStage() throws Exception {
+		Multimap<Long, ImageRecord> expected = new GroupImagesStage(DISTANCE).apply(images);
+		Multimap<Long, ImageRecord> result = cut.apply(images);
+
+		for (long hash : Arrays.asList(HASH_A, HASH_B, HASH_C)) {
+			assertThat(result.get(hash), containsInAnyOrder(expected.get(hash).toArray()));
+		}
+	}
+
+	@Test
+	public void testSweepExact() throws Exception {
+		cut.apply(images);
+
+		assertThat(cut.getLastSweep().groupsAt(0).get(HASH_A), containsInAnyOrder(imageA, imageA2));
+	}
+
+	@Test
+	public void testSweepSmallerDistance() throws Exception {
+		cut.apply(images);
+
+		assertThat(cut.getLastSweep().groupsAt(1).get(HASH_A), containsInAnyOrder(imageA, imageA2, imageB));
+	}
+
+	@Test
+	public void testSweepPairs() throws Exception {
+		cut.apply(images);
+
+		assertThat(cut.getLastSweep().pairsWithin(1), is(2L));
+	}
+
+	@Test
+	public void testNoSweepBeforeApply() throws Exception {
+		assertThat(cut.getLastSweep(), is(nullValue()));
+	}
+
+	@Test
+	public void testEmptyInput() throws Exception {
+		assertThat(cut.apply(Collections.emptyList()).isEmpty(), is(true));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDistanceAboveSweep() throws Exception {
+		cut.apply(images);
+
+		cut.getLastSweep().groupsAt(DISTANCE + 1);
+	}
+
+	@Test(expected = CancellationException.class)
+	public void testCancelled() throws Exception {
+		TaskProgress progress = new TaskProgress();
+		progress.cancel();
+
+		cut.apply(images, progress);
+	}
+}
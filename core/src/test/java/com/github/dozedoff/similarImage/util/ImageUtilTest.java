@@ -18,9 +18,16 @@
 package com.github.dozedoff.similarImage.util;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.Assert.assertThat;
 
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -32,19 +39,27 @@ import javax.imageio.ImageIO;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.github.dozedoff.commonj.hash.ImagePHash;
+
 public class ImageUtilTest {
 	private static final int IMAGE_SIZE = 40;
 	private static final int IMAGE_DATA_LENGTH = 333;
+	private static final int LARGE_IMAGE_WIDTH = 3000;
+	private static final int LARGE_IMAGE_HEIGHT = 2000;
+	private static final int MAX_HASH_DISTANCE = 2;
+	private static final int MAX_PHOTO_HASH_DISTANCE = 6;
 
 	private BufferedImage jpgImage;
 	private BufferedImage gifImage;
 	private Path jpgPath;
 	private Path gifPath;
+	private Path photoPath;
 
 	@Before
 	public void setUp() throws Exception {
 		jpgPath = Paths.get(Thread.currentThread().getContextClassLoader().getResource("testImage.jpg").toURI());
 		gifPath = Paths.get(Thread.currentThread().getContextClassLoader().getResource("testImage.gif").toURI());
+		photoPath = Paths.get(Thread.currentThread().getContextClassLoader().getResource("autumn.jpg").toURI());
 
 		jpgImage = ImageIO.read(Files.newInputStream(jpgPath));
 		gifImage = ImageIO.read(Files.newInputStream(gifPath));
@@ -90,4 +105,77 @@ public class ImageUtilTest {
 		assertThat(image.getHeight(), is(IMAGE_SIZE));
 		assertThat(image.getWidth(), is(IMAGE_SIZE));
 	}
+
+	private byte[] createLargeJpg() throws Exception {
+		BufferedImage image = new BufferedImage(LARGE_IMAGE_WIDTH, LARGE_IMAGE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+
+		g.setPaint(new GradientPaint(0, 0, Color.BLUE, LARGE_IMAGE_WIDTH, LARGE_IMAGE_HEIGHT, Color.YELLOW));
+		g.fillRect(0, 0, LARGE_IMAGE_WIDTH, LARGE_IMAGE_HEIGHT);
+		g.setColor(Color.RED);
+		g.fillOval(300, 400, 900, 700);
+		g.setColor(Color.DARK_GRAY);
+		g.fillRect(1800, 200, 800, 1400);
+		g.dispose();
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpg", baos);
+
+		return baos.toByteArray();
+	}
+
+	@Test
+	public void testSubsamplingSmallImage() throws Exception {
+		assertThat(ImageUtil.subsampling(IMAGE_SIZE, IMAGE_SIZE, ImageUtil.HASH_DECODE_SIZE), is(1));
+	}
+
+	@Test
+	public void testSubsamplingUsesSmallerSide() throws Exception {
+		assertThat(ImageUtil.subsampling(LARGE_IMAGE_WIDTH, LARGE_IMAGE_HEIGHT, 256), is(7));
+	}
+
+	@Test
+	public void testReadSubsampledSmallImage() throws Exception {
+		BufferedImage image = ImageUtil.loadImageSubsampled(jpgPath, ImageUtil.HASH_DECODE_SIZE);
+
+		assertThat(image.getHeight(), is(IMAGE_SIZE));
+		assertThat(image.getWidth(), is(IMAGE_SIZE));
+	}
+
+	@Test
+	public void testReadSubsampledLargeImage() throws Exception {
+		BufferedImage image = ImageUtil.readSubsampled(new ByteArrayInputStream(createLargeJpg()),
+				ImageUtil.HASH_DECODE_SIZE);
+
+		assertThat(image.getHeight(), is(286));
+		assertThat(image.getWidth(), is(429));
+	}
+
+	@Test
+	public void testReadSubsampledNoReader() throws Exception {
+		assertThat(ImageUtil.readSubsampled(new ByteArrayInputStream(new byte[] { 1, 2, 3 }),
+				ImageUtil.HASH_DECODE_SIZE), is(nullValue()));
+	}
+
+	@Test
+	public void testSubsampledHashCloseToFullDecode() throws Exception {
+		byte[] data = createLargeJpg();
+		ImagePHash hasher = new ImagePHash();
+
+		long fullHash = hasher.getLongHash(ImageIO.read(new ByteArrayInputStream(data)));
+		long subsampledHash = hasher
+				.getLongHash(ImageUtil.readSubsampled(new ByteArrayInputStream(data), ImageUtil.HASH_DECODE_SIZE));
+
+		assertThat(Long.bitCount(fullHash ^ subsampledHash), is(lessThanOrEqualTo(MAX_HASH_DISTANCE)));
+	}
+
+	@Test
+	public void testSubsampledPhotoHashCloseToFullDecode() throws Exception {
+		ImagePHash hasher = new ImagePHash();
+
+		long fullHash = hasher.getLongHash(ImageIO.read(Files.newInputStream(photoPath)));
+		long subsampledHash = hasher.getLongHash(ImageUtil.loadImageSubsampled(photoPath, ImageUtil.HASH_DECODE_SIZE));
+
+		assertThat(Long.bitCount(fullHash ^ subsampledHash), is(lessThanOrEqualTo(MAX_PHOTO_HASH_DISTANCE)));
+	}
 }
@@ -0,0 +1,138 @@
+/*  Copyright (C) 2017  Nicholas Wright
+    
+    This file is part of similarImage - A similar image finder using pHash
+    
+    similarImage is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.dozedoff.similarImage.util;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CancellationException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TaskProgressTest {
+	private static final String STAGE = "foo";
+	private static final String OTHER_STAGE = "bar";
+
+	@Mock
+	private TaskProgress.Listener listener;
+
+	private TaskProgress cut;
+
+	@Before
+	public void setUp() throws Exception {
+		cut = new TaskProgress(listener);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Thread.interrupted();
+	}
+
+	@Test
+	public void testNotCancelled() throws Exception {
+		assertThat(cut.isCancelled(), is(false));
+	}
+
+	@Test
+	public void testCancelled() throws Exception {
+		cut.cancel();
+
+		assertThat(cut.isCancelled(), is(true));
+	}
+
+	@Test
+	public void testInterruptCancels() throws Exception {
+		Thread.currentThread().interrupt();
+
+		assertThat(cut.isCancelled(), is(true));
+	}
+
+	@Test(expected = CancellationException.class)
+	public void testCheckCancelled() throws Exception {
+		cut.cancel();
+
+		cut.checkCancelled();
+	}
+
+	@Test
+	public void testCheckNotCancelled() throws Exception {
+		cut.checkCancelled();
+	}
+
+	@Test
+	public void testUpdate() throws Exception {
+		cut.update(STAGE, 0.5);
+
+		verify(listener).progressChanged(STAGE, 0.5);
+	}
+
+	@Test
+	public void testUpdateClamped() throws Exception {
+		cut.update(STAGE, 2.0);
+
+		verify(listener).progressChanged(STAGE, 1.0);
+	}
+
+	@Test
+	public void testUpdateProcessed() throws Exception {
+		cut.update(STAGE, 1, 4);
+
+		verify(listener).progressChanged(STAGE, 0.25);
+	}
+
+	@Test
+	public void testUpdateNoElements() throws Exception {
+		cut.update(STAGE, 0, 0);
+
+		verify(listener).progressChanged(STAGE, 1.0);
+	}
+
+	@Test
+	public void testSmallChangeNotReported() throws Exception {
+		cut.update(STAGE, 0.501);
+		cut.update(STAGE, 0.502);
+
+		verify(listener, times(1)).progressChanged(anyString(), anyDouble());
+	}
+
+	@Test
+	public void testNewStageReported() throws Exception {
+		cut.update(STAGE, 0.5);
+		cut.update(OTHER_STAGE, 0.5);
+
+		verify(listener).progressChanged(OTHER_STAGE, 0.5);
+	}
+
+	@Test
+	public void testDefaultListener() throws Exception {
+		new TaskProgress().update(STAGE, 0.5);
+
+		verify(listener, never()).progressChanged(anyString(), anyDouble());
+	}
+}
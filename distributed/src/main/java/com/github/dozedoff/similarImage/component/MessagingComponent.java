@@ -19,10 +19,14 @@ package com.github.dozedoff.similarImage.component;
 
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Slf4jReporter;
+import com.github.dozedoff.similarImage.db.ImageChangeLog;
+import com.github.dozedoff.similarImage.db.LiveImageIndex;
+import com.github.dozedoff.similarImage.db.PersistedHashIndex;
 import com.github.dozedoff.similarImage.db.repository.FilterRepository;
 import com.github.dozedoff.similarImage.db.repository.IgnoreRepository;
 import com.github.dozedoff.similarImage.db.repository.ImageRepository;
 import com.github.dozedoff.similarImage.db.repository.TagRepository;
+import com.github.dozedoff.similarImage.db.repository.WriteBehindImageRepository;
 import com.github.dozedoff.similarImage.io.Statistics;
 import com.github.dozedoff.similarImage.messaging.ArtemisEmbeddedServer;
 import com.github.dozedoff.similarImage.messaging.ArtemisSession;
@@ -66,10 +70,17 @@ public interface MessagingComponent {
 
 	ImageRepository getImageRepository();
 
+	WriteBehindImageRepository getWriteBehindImageRepository();
+
 	FilterRepository getfilFilterRepository();
 
 	TagRepository gettaTagRepository();
 
 	IgnoreRepository getIgnoreRepository();
 
+	PersistedHashIndex getPersistedHashIndex();
+
+	LiveImageIndex getLiveImageIndex();
+
+	ImageChangeLog getImageChangeLog();
 }
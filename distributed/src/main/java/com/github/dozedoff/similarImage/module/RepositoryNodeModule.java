@@ -24,10 +24,15 @@ import javax.inject.Named;
 import org.apache.activemq.artemis.api.core.ActiveMQException;
 import org.apache.activemq.artemis.api.core.client.ClientSession;
 
+import com.codahale.metrics.MetricRegistry;
+import com.github.dozedoff.similarImage.component.MainScope;
+import com.github.dozedoff.similarImage.db.repository.ImageRepository;
+import com.github.dozedoff.similarImage.db.repository.WriteBehindImageRepository;
 import com.github.dozedoff.similarImage.messaging.ArtemisQueue.QueueAddress;
 import com.github.dozedoff.similarImage.messaging.MessageCollector;
 import com.github.dozedoff.similarImage.messaging.QueueToDatabaseTransaction;
 import com.github.dozedoff.similarImage.messaging.ResultMessageSink;
+import com.j256.ormlite.misc.TransactionManager;
 
 import dagger.Module;
 import dagger.Provides;
@@ -39,6 +44,8 @@ public class RepositoryNodeModule {
 	 * Time in milliseconds
 	 */
 	private static final long COLLECTED_MESSAGE_DRAIN_INTERVAL = TimeUnit.MILLISECONDS.convert(1, TimeUnit.SECONDS);
+	private static final int WRITE_BEHIND_BATCH_SIZE = 500;
+	private static final long WRITE_BEHIND_MAX_DELAY_SECONDS = 1;
 
 	@Provides
 	public MessageCollector provideMessageCollector(QueueToDatabaseTransaction qdt) {
@@ -55,4 +62,24 @@ public class RepositoryNodeModule {
 			throw new RuntimeException("Failed to create message sink", e);
 		}
 	}
+
+	/**
+	 * Repository for storing hashing results in batches. It must be closed on shutdown, so queued records are written
+	 * when the program exits.
+	 * 
+	 * @param imageRepository
+	 *            to write the batches to
+	 * @param transactionManager
+	 *            for writing each batch in a transaction
+	 * @param metrics
+	 *            for tracking queue depth and flush latency
+	 * @return a shared write-behind repository
+	 */
+	@MainScope
+	@Provides
+	public WriteBehindImageRepository provideWriteBehindImageRepository(ImageRepository imageRepository,
+			TransactionManager transactionManager, MetricRegistry metrics) {
+		return new WriteBehindImageRepository(imageRepository, transactionManager, WRITE_BEHIND_BATCH_SIZE,
+				WRITE_BEHIND_MAX_DELAY_SECONDS, TimeUnit.SECONDS, metrics);
+	}
 }
@@ -37,6 +37,7 @@ import com.github.dozedoff.similarImage.component.GuiApplicationComponent;
 import com.github.dozedoff.similarImage.component.MessagingComponent;
 import com.github.dozedoff.similarImage.component.PersistenceComponent;
 import com.github.dozedoff.similarImage.component.SettingComponent;
+import com.github.dozedoff.similarImage.db.repository.WriteBehindImageRepository;
 import com.github.dozedoff.similarImage.gui.SimilarImageView;
 import com.github.dozedoff.similarImage.messaging.ArtemisEmbeddedServer;
 import com.github.dozedoff.similarImage.messaging.Node;
@@ -127,6 +128,9 @@ public class SimilarImage {
 		aes = messagingComponent.getServer();
 		aes.start();
 
+		WriteBehindImageRepository writeBehind = messagingComponent.getWriteBehindImageRepository();
+		Runtime.getRuntime().addShutdownHook(new Thread(writeBehind::close));
+
 		nodes.add(messagingComponent.getRepositoryNode());
 		nodes.add(messagingComponent.getResultMessageSink());
 
@@ -23,6 +23,9 @@ import java.nio.file.Paths;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -42,6 +45,7 @@ import com.github.dozedoff.similarImage.db.ImageRecord;
 import com.github.dozedoff.similarImage.db.Tag;
 import com.github.dozedoff.similarImage.db.repository.FilterRepository;
 import com.github.dozedoff.similarImage.db.repository.RepositoryException;
+import com.github.dozedoff.similarImage.duplicate.DegenerateHashFilter;
 import com.github.dozedoff.similarImage.event.GuiEventBus;
 import com.github.dozedoff.similarImage.event.GuiGroupEvent;
 import com.github.dozedoff.similarImage.handler.HandlerListFactory;
@@ -55,11 +59,16 @@ import com.github.dozedoff.similarImage.result.ResultGroup;
 import com.github.dozedoff.similarImage.thread.GroupListPopulator;
 import com.github.dozedoff.similarImage.thread.ImageFindJob;
 import com.github.dozedoff.similarImage.thread.ImageFindJobVisitor;
+import com.github.dozedoff.similarImage.thread.pipeline.GroupByTagStage;
 import com.github.dozedoff.similarImage.thread.pipeline.ImageQueryPipeline;
 import com.github.dozedoff.similarImage.thread.pipeline.ImageQueryPipelineBuilder;
+import com.github.dozedoff.similarImage.thread.pipeline.SweepImagesStage;
+import com.github.dozedoff.similarImage.util.TaskProgress;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.MultimapBuilder;
 import com.google.common.eventbus.Subscribe;
 
 @ApplicationScope
@@ -67,13 +76,29 @@ public class SimilarImageController {
 	private final Logger logger = LoggerFactory.getLogger(SimilarImageController.class);
 
 	private static final String GUI_MSG_SORTING = "Sorting...";
+	private static final String GUI_MSG_SORTED = "%d Groups - %s";
+	private static final String GUI_MSG_SORTED_DEGENERATE = "%d Groups, %d degenerate hashes not searched - %s";
+	private static final String GUI_MSG_SORT_PROGRESS = "Sorting: %s %d%%";
+	private static final String GUI_MSG_SORT_CANCELLED = "Sorting cancelled";
+	private static final String GUI_MSG_SWEEP_DISTANCE = "%d Groups at distance %d";
 	private static final int MAXIMUM_GROUP_SIZE = 50;
 
 	private GroupList groupList;
 	private SimilarImageView gui;
 	private final Statistics statistics;
 	private final LinkedList<Thread> tasks = new LinkedList<>();
+	private final List<TaskProgress> runningQueries = new CopyOnWriteArrayList<>();
 	private boolean includeIgnoredImages;
+	private boolean distanceSweep;
+	private volatile ImageQueryPipeline lastSweep;
+	private volatile Multimap<Long, ImageRecord> degenerateGroups = ImmutableMultimap.of();
+	/**
+	 * Incremented for every sort or regroup, so results of superseded regroups are not shown.
+	 */
+	private final AtomicInteger resultRequests = new AtomicInteger();
+	private final int sortThreads;
+	private final int searchShards;
+	private final DegenerateHashFilter degenerateFilter;
 
 	private final HandlerListFactory handlerCollectionFactory;
 	private final OperationsMenuFactory omf;
@@ -111,6 +136,21 @@ public class SimilarImageController {
 		MainSetting settings = DaggerSettingComponent.create().getMainSetting();
 
 		includeIgnoredImages = settings.includeIgnoredImages();
+		sortThreads = settings.threads();
+		searchShards = settings.searchShards();
+		degenerateFilter = createDegenerateFilter(settings);
+	}
+
+	private static DegenerateHashFilter createDegenerateFilter(MainSetting settings) {
+		int bitBalance = settings.degenerateBitBalance();
+		int population = settings.degenerateHashPopulation();
+
+		if (bitBalance == 0 && population == 0) {
+			return null;
+		}
+
+		return new DegenerateHashFilter(bitBalance,
+				population == 0 ? DegenerateHashFilter.NO_POPULATION_LIMIT : population);
 	}
 
 
@@ -264,9 +304,16 @@ public class SimilarImageController {
 	 */
 	public void sortDuplicates(int hammingDistance, String path) {
 		setGUIStatus(GUI_MSG_SORTING);
-		ImageQueryPipeline pipeline = imagePipelineBuilder.excludeIgnored(!includeIgnoredImages)
-				.distance(hammingDistance).groupAll()
-				.removeSingleImageGroups().removeDuplicateGroups().build();
+		imagePipelineBuilder.excludeIgnored(!includeIgnoredImages).distance(hammingDistance).parallel(sortThreads)
+				.shards(searchShards).degenerateHashFilter(degenerateFilter);
+
+		if (distanceSweep) {
+			imagePipelineBuilder.groupSweep();
+		} else {
+			imagePipelineBuilder.groupAll();
+		}
+
+		ImageQueryPipeline pipeline = imagePipelineBuilder.removeSingleImageGroups().removeDuplicateGroups().build();
 		Thread t = createPipelineThread(pipeline, checkPath(path));
 		this.searchTag = null;
 		startTask(t);
@@ -285,18 +332,75 @@ public class SimilarImageController {
 	public void sortFilter(int hammingDistance, Tag tag, String path) {
 
 		ImageQueryPipeline pipeline = imagePipelineBuilder.excludeIgnored(!includeIgnoredImages)
-				.distance(hammingDistance).groupByTag(tag).build();
+				.distance(hammingDistance).shards(searchShards).degenerateHashFilter(degenerateFilter).groupByTag(tag)
+				.build();
 		Thread t = createPipelineThread(pipeline, checkPath(path));
 		this.searchTag = tag;
 		startTask(t);
 	}
 
+	/**
+	 * Show the results of the last sort at a different distance, without querying again. Only possible if the last
+	 * sort was a distance sweep, see {@link #setDistanceSweep(boolean)}, and the distance is not greater than the
+	 * distance used for sorting. The images are regrouped on a worker thread, results of a regroup that was superseded
+	 * by a newer regroup or sort are discarded.
+	 * 
+	 * @param hammingDistance
+	 *            distance to group the images with
+	 * @return true if the results will be updated, false if a new sort is needed
+	 */
+	public boolean showDistance(int hammingDistance) {
+		ImageQueryPipeline pipeline = lastSweep;
+
+		if (pipeline == null) {
+			return false;
+		}
+
+		SweepImagesStage sweep = (SweepImagesStage) pipeline.getImageGrouper();
+
+		if (hammingDistance > sweep.getHammingDistance()) {
+			return false;
+		}
+
+		startTask(createRegroupThread(pipeline, hammingDistance));
+		return true;
+	}
+
+	private Thread createRegroupThread(ImageQueryPipeline pipeline, int hammingDistance) {
+		int request = resultRequests.incrementAndGet();
+
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				Multimap<Long, ImageRecord> results = withDegenerateGroups(pipeline.regroup(hammingDistance));
+
+				synchronized (SimilarImageController.this) {
+					if (request != resultRequests.get()) {
+						logger.debug("Discarding regroup at distance {}, it was superseded", hammingDistance);
+						return;
+					}
+
+					setResults(results);
+					String status = String.format(GUI_MSG_SWEEP_DISTANCE, groupList.groupCount(), hammingDistance);
+					SwingUtilities.invokeLater(() -> setGUIStatus(status));
+				}
+			}
+		};
+
+		thread.setName("Regroup at distance " + hammingDistance);
+		return thread;
+	}
+
 	/**
 	 * Stop all running Jobs.
 	 */
 	public void stopWorkers() {
 		logger.info("Stopping running jobs...");
 
+		for (TaskProgress query : runningQueries) {
+			query.cancel();
+		}
+
 		for (Thread t : tasks) {
 			t.interrupt();
 		}
@@ -347,15 +451,99 @@ public class SimilarImageController {
 		return includeIgnoredImages;
 	}
 
+	/**
+	 * Set if sorting similar images should keep the matches for all distances up to the sort distance, so the results
+	 * can be shown for a smaller distance with {@link #showDistance(int)}.
+	 * 
+	 * @param distanceSweep
+	 *            set to true to sort with a distance sweep
+	 */
+	public void setDistanceSweep(boolean distanceSweep) {
+		this.distanceSweep = distanceSweep;
+	}
+
+	/**
+	 * Get if sorting similar images keeps the matches for all distances up to the sort distance.
+	 * 
+	 * @return if true, sorting uses a distance sweep
+	 */
+	public boolean getDistanceSweep() {
+		return distanceSweep;
+	}
+
 	private Thread createPipelineThread(ImageQueryPipeline pipeline, Path scope) {
+		TaskProgress progress = new TaskProgress(this::updateSortProgress);
+		runningQueries.add(progress);
+		lastSweep = null;
+		resultRequests.incrementAndGet();
+
 		return new Thread() {
 			@Override
 			public void run() {
-				setResults(pipeline.apply(scope));
+				try {
+					Multimap<Long, ImageRecord> results = pipeline.apply(scope, progress);
+					degenerateGroups = degenerateGroups(pipeline);
+					setResults(withDegenerateGroups(results));
+
+					if (pipeline.getImageGrouper() instanceof SweepImagesStage) {
+						lastSweep = pipeline;
+					}
+
+					setGUIStatus(sortedStatus(pipeline.getMetrics().getLastRunSummary()));
+				} catch (CancellationException e) {
+					logger.info("Sorting was cancelled");
+					setGUIStatus(GUI_MSG_SORT_CANCELLED);
+				} finally {
+					runningQueries.remove(progress);
+				}
 			}
 		};
 	}
 
+	/**
+	 * Get the degenerate groups to show with the results. Tag pipelines group by the tag hash, groups keyed by the
+	 * hash of the images would be mixed into the tag groups, so they are not shown.
+	 */
+	private static Multimap<Long, ImageRecord> degenerateGroups(ImageQueryPipeline pipeline) {
+		if (pipeline.getImageGrouper() instanceof GroupByTagStage) {
+			return ImmutableMultimap.of();
+		}
+
+		return pipeline.getProcessedDegenerateGroups();
+	}
+
+	/**
+	 * Records with degenerate hashes are not searched, they are shown as their own groups so they are not silently
+	 * missing from the results. The groups have the same post-processing as the results.
+	 */
+	private Multimap<Long, ImageRecord> withDegenerateGroups(Multimap<Long, ImageRecord> results) {
+		if (degenerateGroups.isEmpty()) {
+			return results;
+		}
+
+		Multimap<Long, ImageRecord> merged = MultimapBuilder.hashKeys().hashSetValues().build(results);
+		merged.putAll(degenerateGroups);
+		return merged;
+	}
+
+	private String sortedStatus(String runSummary) {
+		if (degenerateGroups.isEmpty()) {
+			return String.format(GUI_MSG_SORTED, groupList.groupCount(), runSummary);
+		}
+
+		return String.format(GUI_MSG_SORTED_DEGENERATE, groupList.groupCount(), degenerateGroups.keySet().size(),
+				runSummary);
+	}
+
+	private void updateSortProgress(String stage, double fraction) {
+		int percent = (int) (fraction * 100);
+
+		SwingUtilities.invokeLater(() -> {
+			setGUIStatus(String.format(GUI_MSG_SORT_PROGRESS, stage, percent));
+			gui.setTaskProgress(percent);
+		});
+	}
+
 	private Path checkPath(String path) {
 		String checkedPath = path;
 		if (path == null) {
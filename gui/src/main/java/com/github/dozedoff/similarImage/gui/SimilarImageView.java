@@ -75,6 +75,7 @@ public class SimilarImageView implements StatisticsChangedListener {
 
 	private static final int DEFAULT_TEXTFIELD_WIDTH = 20;
 	private static final String QUEUE_LABEL = "Queue size: ";
+	private static final int TASK_PROGRESS_MAXIMUM = 100;
 	private final SimilarImageController controller;
 
 	private JTextField path;
@@ -251,6 +252,7 @@ public class SimilarImageView implements StatisticsChangedListener {
 			public void adjustmentValueChanged(AdjustmentEvent event) {
 				if (!event.getValueIsAdjusting()) {
 					updateHammingDisplay();
+					controller.showDistance(hammingDistance.getValue());
 				}
 			}
 		});
@@ -376,6 +378,18 @@ public class SimilarImageView implements StatisticsChangedListener {
 			}
 		});
 
+		JMenuItem distanceSweep = new JCheckBoxMenuItem("Distance sweep");
+		distanceSweep.setToolTipText("If checked, sorting keeps the matches for all smaller distances, "
+				+ "so the distance can be lowered without sorting again.");
+		distanceSweep.setSelected(controller.getDistanceSweep());
+		distanceSweep.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				controller.setDistanceSweep(distanceSweep.isSelected());
+				LOGGER.debug("Sort with distance sweep: {}", distanceSweep.isSelected());
+			}
+		});
+
 		JMenu file = new JMenu("File");
 		file.add(directoryTag);
 		file.add(pruneRecords);
@@ -388,6 +402,7 @@ public class SimilarImageView implements StatisticsChangedListener {
 		settings.add(filters);
 		settings.add(ignoredImages);
 		settings.add(includeIgnored);
+		settings.add(distanceSweep);
 
 		JMenuBar menuBar = new JMenuBar();
 		menuBar.add(file);
@@ -404,6 +419,17 @@ public class SimilarImageView implements StatisticsChangedListener {
 		progress.setMaximum(numOfFiles);
 	}
 
+	/**
+	 * Show the progress of a running task, such as sorting, in the progress bar.
+	 * 
+	 * @param percent
+	 *            how much of the task is done, from 0 to 100
+	 */
+	public void setTaskProgress(int percent) {
+		progress.setMaximum(TASK_PROGRESS_MAXIMUM);
+		progress.setValue(percent);
+	}
+
 	private void deleteAll(ResultGroup group) {
 		duplicateOperations.deleteAll(group.getResults());
 		groupListModel.removeElement(group);
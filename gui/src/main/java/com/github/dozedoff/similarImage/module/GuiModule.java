@@ -19,7 +19,12 @@ package com.github.dozedoff.similarImage.module;
 
 import java.util.concurrent.TimeUnit;
 
+import com.codahale.metrics.MetricRegistry;
+import com.github.dozedoff.similarImage.db.ImageChangeLog;
+import com.github.dozedoff.similarImage.db.LiveImageIndex;
+import com.github.dozedoff.similarImage.db.PersistedHashIndex;
 import com.github.dozedoff.similarImage.db.repository.FilterRepository;
+import com.github.dozedoff.similarImage.db.repository.IgnoreRepository;
 import com.github.dozedoff.similarImage.db.repository.ImageRepository;
 import com.github.dozedoff.similarImage.duplicate.DuplicateOperations;
 import com.github.dozedoff.similarImage.gui.OperationsMenuFactory;
@@ -27,7 +32,10 @@ import com.github.dozedoff.similarImage.gui.UserTagSettingController;
 import com.github.dozedoff.similarImage.io.ExtendedAttribute;
 import com.github.dozedoff.similarImage.io.ExtendedAttributeDirectoryCache;
 import com.github.dozedoff.similarImage.io.ExtendedAttributeQuery;
+import com.github.dozedoff.similarImage.thread.pipeline.ImageQueryPipeline;
 import com.github.dozedoff.similarImage.thread.pipeline.ImageQueryPipelineBuilder;
+import com.github.dozedoff.similarImage.thread.pipeline.ImageQueryResultCache;
+import com.github.dozedoff.similarImage.thread.pipeline.PipelineMetrics;
 
 import dagger.Module;
 import dagger.Provides;
@@ -48,7 +56,11 @@ public class GuiModule {
 
 	@Provides
 	public ImageQueryPipelineBuilder provideImageQueryPipelineBuilder(ImageRepository imageRepository,
-			FilterRepository filterRepository) {
-		return ImageQueryPipelineBuilder.newBuilder(imageRepository, filterRepository);
+			FilterRepository filterRepository, PersistedHashIndex persistedHashIndex, LiveImageIndex liveImageIndex,
+			ImageChangeLog imageChangeLog, IgnoreRepository ignoreRepository, MetricRegistry metricRegistry) {
+		return ImageQueryPipelineBuilder.newBuilder(imageRepository, filterRepository)
+				.persistedIndex(persistedHashIndex).liveIndex(liveImageIndex)
+				.resultCache(new ImageQueryResultCache(imageChangeLog, ignoreRepository))
+				.metrics(new PipelineMetrics(ImageQueryPipeline.class, metricRegistry));
 	}
 }